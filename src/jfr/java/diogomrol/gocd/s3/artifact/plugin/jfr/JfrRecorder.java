@@ -0,0 +1,202 @@
+package diogomrol.gocd.s3.artifact.plugin.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records the events of the plugin with JFR. Whether a recording is running is tracked with a listener, so nothing is
+ * allocated while JFR is idle. Only loaded by {@link PluginEvents} on JVMs which have JFR.
+ */
+class JfrRecorder implements PluginEvents.Recorder, FlightRecorderListener {
+    private static final String CATEGORY = "GoCD S3 Artifact Plugin";
+
+    private volatile boolean recording;
+
+    JfrRecorder() {
+        FlightRecorder.addListener(this);
+    }
+
+    @Override
+    public boolean isRecording() {
+        return recording;
+    }
+
+    @Override
+    public void recorderInitialized(FlightRecorder recorder) {
+        update(recorder);
+    }
+
+    @Override
+    public void recordingStateChanged(Recording changed) {
+        update(FlightRecorder.getFlightRecorder());
+    }
+
+    private void update(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording recording : recorder.getRecordings()) {
+            running |= recording.getState() == RecordingState.RUNNING;
+        }
+        recording = running;
+    }
+
+    @Override
+    public Span request(String requestName) {
+        RequestEvent event = new RequestEvent();
+        event.requestName = requestName;
+        return begin(event);
+    }
+
+    @Override
+    public Span scan(String pattern) {
+        ScanEvent event = new ScanEvent();
+        event.pattern = pattern;
+        return begin(event);
+    }
+
+    @Override
+    public Span s3(String operation, String bucketName, String key) {
+        S3RequestEvent event = new S3RequestEvent();
+        event.operation = operation;
+        event.bucket = bucketName;
+        event.key = key;
+        return begin(event);
+    }
+
+    @Override
+    public Span consoleLog(String level) {
+        ConsoleLogEvent event = new ConsoleLogEvent();
+        event.level = level;
+        return begin(event);
+    }
+
+    @Override
+    public void retry(String reason, String transfer, int attempt) {
+        RetryEvent event = new RetryEvent();
+        if (event.isEnabled()) {
+            event.reason = reason;
+            event.transfer = transfer;
+            event.attempt = attempt;
+            event.commit();
+        }
+    }
+
+    private static <T extends Event & Span> Span begin(T event) {
+        if (!event.isEnabled()) {
+            return Span.NONE;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Name("gocd.s3.Request")
+    @Label("Plugin Request")
+    @Description("A request of GoCD handled by the plugin")
+    @Category(CATEGORY)
+    static class RequestEvent extends Event implements Span {
+        @Label("Request Name")
+        String requestName;
+
+        @Override
+        public void close() {
+            commit();
+        }
+    }
+
+    @Name("gocd.s3.Scan")
+    @Label("Directory Scan")
+    @Description("Search of the working directory for the files to publish")
+    @Category(CATEGORY)
+    static class ScanEvent extends Event implements Span {
+        @Label("Pattern")
+        String pattern;
+
+        @Label("Files")
+        long files;
+
+        @Override
+        public void setCount(long count) {
+            files = count;
+        }
+
+        @Override
+        public void close() {
+            commit();
+        }
+    }
+
+    @Name("gocd.s3.S3Request")
+    @Label("S3 Request")
+    @Description("A PUT, GET or LIST request to S3, including its body")
+    @Category(CATEGORY)
+    static class S3RequestEvent extends Event implements Span {
+        @Label("Operation")
+        String operation;
+
+        @Label("Bucket")
+        String bucket;
+
+        @Label("Key")
+        String key;
+
+        @Label("Bytes")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+
+        @Label("Objects")
+        long objects;
+
+        @Override
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void setCount(long count) {
+            objects = count;
+        }
+
+        @Override
+        public void close() {
+            commit();
+        }
+    }
+
+    @Name("gocd.s3.ConsoleLog")
+    @Label("Console Log")
+    @Description("A message sent to the console log of the job")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ConsoleLogEvent extends Event implements Span {
+        @Label("Level")
+        String level;
+
+        @Override
+        public void close() {
+            commit();
+        }
+    }
+
+    @Name("gocd.s3.Retry")
+    @Label("Transfer Retry")
+    @Description("A transfer retried after S3 throttled it or it stalled")
+    @Category(CATEGORY)
+    static class RetryEvent extends Event {
+        @Label("Reason")
+        String reason;
+
+        @Label("Transfer")
+        String transfer;
+
+        @Label("Attempt")
+        int attempt;
+    }
+}
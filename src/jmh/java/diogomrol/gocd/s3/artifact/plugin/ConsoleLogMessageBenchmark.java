@@ -0,0 +1,32 @@
+package diogomrol.gocd.s3.artifact.plugin;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every console line of a publish or fetch is serialized this way, e.g. one per uploaded file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsoleLogMessageBenchmark {
+    private final ConsoleLogger.ConsoleLogMessage message = new ConsoleLogger.ConsoleLogMessage(ConsoleLogger.ConsoleLogMessage.LogLevel.INFO,
+            "Source file `build/libs/module/module-1.0.jar` successfully pushed to S3 bucket `artifacts`.");
+
+    @Benchmark
+    public String toJson() {
+        return message.toJSON();
+    }
+}
@@ -0,0 +1,53 @@
+package diogomrol.gocd.s3.artifact.plugin.executors;
+
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metadata and view requests GoCD sends whenever a store or an artifact config is shown or edited.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutorBenchmark {
+    @Param({"store-metadata", "store-view", "publish-metadata", "publish-view", "fetch-metadata", "fetch-view"})
+    private String request;
+
+    @Benchmark
+    public GoPluginApiResponse execute() throws Exception {
+        return executor(request).execute();
+    }
+
+    private static RequestExecutor executor(String request) {
+        switch (request) {
+            case "store-metadata":
+                return new GetArtifactStoreConfigMetadataExecutor();
+            case "store-view":
+                return new GetArtifactStoreViewExecutor();
+            case "publish-metadata":
+                return new GetPublishArtifactConfigMetadataExecutor();
+            case "publish-view":
+                return new GetPublishArtifactViewExecutor();
+            case "fetch-metadata":
+                return new GetFetchArtifactMetadataExecutor();
+            case "fetch-view":
+                return new GetFetchArtifactViewExecutor();
+            default:
+                throw new IllegalArgumentException(request);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package diogomrol.gocd.s3.artifact.plugin.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Scans a synthetic build output of 100 files per directory, nested two levels deep, so that both the directory
+ * walk of Ant and the collection of the matches are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class AntDirectoryScannerBenchmark {
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int files;
+
+    @Param({"**/*", "build/**/*.jar", "build/"})
+    private String pattern;
+
+    private File baseDir;
+
+    @Setup
+    public void createTree() throws IOException {
+        baseDir = Files.createTempDirectory("scanner-benchmark").toFile();
+        for (int index = 0; index < files; index++) {
+            int directory = index / FILES_PER_DIRECTORY;
+            Path path = baseDir.toPath().resolve(String.format("build/module-%d/lib-%d/file-%d.%s",
+                    directory / FILES_PER_DIRECTORY, directory % FILES_PER_DIRECTORY, index, index % 2 == 0 ? "jar" : "class"));
+            if (index % FILES_PER_DIRECTORY == 0) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.createFile(path);
+        }
+    }
+
+    @TearDown
+    public void deleteTree() throws IOException {
+        try (Stream<Path> paths = Files.walk(baseDir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public List<File> scan() {
+        return new AntDirectoryScanner().getFilesMatchingPattern(baseDir, pattern);
+    }
+}
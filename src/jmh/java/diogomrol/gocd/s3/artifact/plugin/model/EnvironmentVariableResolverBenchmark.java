@@ -0,0 +1,44 @@
+package diogomrol.gocd.s3.artifact.plugin.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentVariableResolverBenchmark {
+    @Param({"10", "100", "1000"})
+    private int variables;
+
+    private Map<String, String> environment;
+
+    @Setup
+    public void createEnvironment() {
+        environment = RequestJsonBenchmark.environment(variables);
+    }
+
+    @Benchmark
+    public String resolveArtifactLocator() throws UnresolvedPropertyException {
+        return new EnvironmentVariableResolver("${GO_ARTIFACT_LOCATOR}/reports", "Destination").resolve(environment);
+    }
+
+    @Benchmark
+    public String resolvePlainDestination() throws UnresolvedPropertyException {
+        return new EnvironmentVariableResolver("releases/latest", "Destination").resolve(environment);
+    }
+}
@@ -0,0 +1,94 @@
+package diogomrol.gocd.s3.artifact.plugin.model;
+
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gson (de)serialization of the requests GoCD sends for each publish and fetch. Publish requests carry the whole job
+ * environment; fetch requests carry none, but their artifact metadata grows with the files that were published.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestJsonBenchmark {
+    @Param({"10", "100", "1000"})
+    private int entries;
+
+    private PublishArtifactRequest publishRequest;
+    private String publishJson;
+    private FetchArtifactRequest fetchRequest;
+    private String fetchJson;
+
+    @Setup
+    public void createRequests() {
+        ArtifactStoreConfig storeConfig = new ArtifactStoreConfig("bucket", "eu-west-1", "access-key", "secret-key");
+        ArtifactPlan artifactPlan = new ArtifactPlan("installers", "s3", "build/**/*.jar", Optional.of("${GO_ARTIFACT_LOCATOR}"));
+        publishRequest = new PublishArtifactRequest(new ArtifactStore("s3", storeConfig), artifactPlan, "/go/pipelines/build");
+        publishRequest.setEnvironmentVariables(environment(entries));
+        publishJson = publishRequest.toJSON();
+
+        Map<String, Long> sizesByKey = new LinkedHashMap<>();
+        for (int index = 0; index < entries; index++) {
+            sizesByKey.put(String.format("build/42/compile/1/jar/lib/module-%d.jar", index), 1024L * index);
+        }
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "build/**/*.jar");
+        metadata.put("Destination", "build/42/compile/1/jar");
+        metadata.put("IsFile", false);
+        metadata.put(SizeSummary.METADATA_KEY, new SizeSummary(sizesByKey));
+        fetchRequest = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig("lib", "deps", false), "/go/pipelines/test");
+        fetchJson = Util.GSON.toJson(fetchRequest);
+    }
+
+    static Map<String, String> environment(int variables) {
+        Map<String, String> environment = new HashMap<>();
+        environment.put("GO_PIPELINE_NAME", "build");
+        environment.put("GO_PIPELINE_COUNTER", "42");
+        environment.put("GO_STAGE_NAME", "compile");
+        environment.put("GO_STAGE_COUNTER", "1");
+        environment.put("GO_JOB_NAME", "jar");
+        for (int index = environment.size(); index < variables; index++) {
+            environment.put("VARIABLE_" + index, "value of variable " + index);
+        }
+        return environment;
+    }
+
+    @Benchmark
+    public PublishArtifactRequest publishFromJson() {
+        return PublishArtifactRequest.fromJSON(publishJson);
+    }
+
+    @Benchmark
+    public String publishToJson() {
+        return publishRequest.toJSON();
+    }
+
+    @Benchmark
+    public FetchArtifactRequest fetchFromJson() {
+        return FetchArtifactRequest.fromJSON(fetchJson);
+    }
+
+    @Benchmark
+    public String fetchToJson() {
+        return Util.GSON.toJson(fetchRequest);
+    }
+}
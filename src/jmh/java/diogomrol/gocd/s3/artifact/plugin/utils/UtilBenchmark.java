@@ -0,0 +1,38 @@
+package diogomrol.gocd.s3.artifact.plugin.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+    private final Path path = Paths.get("build/42/compile/1/jar", "build/libs/module/module-1.0.jar");
+
+    @Benchmark
+    public String normalizePath() {
+        return Util.normalizePath(path);
+    }
+
+    /**
+     * As keys are built while publishing: the path is joined for each file.
+     */
+    @Benchmark
+    public String joinAndNormalizePath() {
+        return Util.normalizePath(Paths.get("build/42/compile/1/jar", "build/libs/module/module-1.0.jar"));
+    }
+}
@@ -21,6 +21,8 @@ import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
 import com.thoughtworks.go.plugin.api.request.DefaultGoApiRequest;
 import com.thoughtworks.go.plugin.api.response.DefaultGoApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.jfr.PluginEvents;
+import diogomrol.gocd.s3.artifact.plugin.jfr.Span;
 
 import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
 
@@ -44,7 +46,13 @@ public class ConsoleLogger {
         DefaultGoApiRequest request = new DefaultGoApiRequest(Constants.SEND_CONSOLE_LOG, Constants.API_VERSION, Constants.PLUGIN_IDENTIFIER);
         request.setRequestBody(consoleLogMessage.toJSON());
 
-        GoApiResponse response = accessor.submit(request);
+        GoApiResponse response;
+        Span span = PluginEvents.consoleLog(consoleLogMessage.logLevel.name());
+        try {
+            response = accessor.submit(request);
+        } finally {
+            span.close();
+        }
         if (response.responseCode() != DefaultGoApiResponse.SUCCESS_RESPONSE_CODE) {
             LOG.error(String.format("Failed to submit console log: %s", response.responseBody()));
         }
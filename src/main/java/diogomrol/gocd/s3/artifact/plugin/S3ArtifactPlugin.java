@@ -15,30 +15,57 @@
  */
 
 package diogomrol.gocd.s3.artifact.plugin;
+import diogomrol.gocd.s3.artifact.plugin.capture.RequestRecorder;
+import diogomrol.gocd.s3.artifact.plugin.jfr.PluginEvents;
+import diogomrol.gocd.s3.artifact.plugin.jfr.Span;
 import diogomrol.gocd.s3.artifact.plugin.utils.Util;
 import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
 import com.thoughtworks.go.plugin.api.GoPlugin;
 import com.thoughtworks.go.plugin.api.GoPluginIdentifier;
 import com.thoughtworks.go.plugin.api.annotation.Extension;
 import com.thoughtworks.go.plugin.api.annotation.Load;
+import com.thoughtworks.go.plugin.api.annotation.UnLoad;
 import com.thoughtworks.go.plugin.api.exceptions.UnhandledRequestTypeException;
 import com.thoughtworks.go.plugin.api.info.PluginContext;
 import com.thoughtworks.go.plugin.api.logging.Logger;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import diogomrol.gocd.s3.artifact.plugin.executors.*;
+import diogomrol.gocd.s3.artifact.plugin.metrics.WireMetrics;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferScheduler;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
 
 import java.util.Properties;
 
 @Extension
 public class S3ArtifactPlugin implements GoPlugin {
     public static final Logger LOG = Logger.getLoggerFor(S3ArtifactPlugin.class);
+    private final RequestRecorder recorder;
     private ConsoleLogger consoleLogger;
 
+    public S3ArtifactPlugin() {
+        this(RequestRecorder.shared());
+    }
+
+    /**
+     * @param recorder captures the requests handled by the plugin
+     */
+    public S3ArtifactPlugin(RequestRecorder recorder) {
+        this.recorder = recorder;
+    }
+
     @Load
     public void onLoad(PluginContext ctx) {
         final Properties properties = Util.getPluginProperties();
         LOG.info(String.format("Loading plugin %s[%s].", properties.getProperty("name"), properties.getProperty("pluginId")));
+        S3ClientFactory.applyJvmWideSettings(TransferSettings.fromSystemProperties());
+    }
+
+    @UnLoad
+    public void onUnload(PluginContext ctx) {
+        TransferScheduler.shutdownShared();
+        S3ClientFactory.resetJvmWideSettings();
+        WireMetrics.uninstall();
     }
 
     @Override
@@ -48,40 +75,52 @@ public class S3ArtifactPlugin implements GoPlugin {
 
     @Override
     public GoPluginApiResponse handle(GoPluginApiRequest request) {
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        GoPluginApiResponse response = null;
+        Span span = PluginEvents.request(request.requestName());
         try {
-            switch (Request.fromString(request.requestName())) {
-                case REQUEST_GET_PLUGIN_ICON:
-                    return new GetPluginIconExecutor().execute();
-                case REQUEST_GET_PLUGIN_CAPABILITIES:
-                    return new GetCapabilitiesExecutor().execute();
-                case REQUEST_STORE_CONFIG_METADATA:
-                    return new GetArtifactStoreConfigMetadataExecutor().execute();
-                case REQUEST_STORE_CONFIG_VIEW:
-                    return new GetArtifactStoreViewExecutor().execute();
-                case REQUEST_STORE_CONFIG_VALIDATE:
-                    return new ValidateArtifactStoreConfigExecutor(request).execute();
-                case REQUEST_PUBLISH_ARTIFACT_METADATA:
-                    return new GetPublishArtifactConfigMetadataExecutor().execute();
-                case REQUEST_PUBLISH_ARTIFACT_VIEW:
-                    return new GetPublishArtifactViewExecutor().execute();
-                case REQUEST_PUBLISH_ARTIFACT_VALIDATE:
-                    return new ValidatePublishArtifactConfigExecutor(request).execute();
-                case REQUEST_FETCH_ARTIFACT_METADATA:
-                    return new GetFetchArtifactMetadataExecutor().execute();
-                case REQUEST_FETCH_ARTIFACT_VIEW:
-                    return new GetFetchArtifactViewExecutor().execute();
-                case REQUEST_FETCH_ARTIFACT_VALIDATE:
-                    return new ValidateFetchArtifactConfigExecutor().execute();
-                case REQUEST_PUBLISH_ARTIFACT:
-                    return new PublishArtifactExecutor(request, consoleLogger).execute();
-                case REQUEST_FETCH_ARTIFACT:
-                    return new FetchArtifactExecutor(request, consoleLogger).execute();
-                default:
-                    throw new UnhandledRequestTypeException(request.requestName());
-            }
+            response = execute(request);
+            return response;
         } catch (Exception e) {
             LOG.error("Error while executing request " + request.requestName(), e);
             throw new RuntimeException(e);
+        } finally {
+            span.close();
+            recorder.record(request, response, startMillis, System.nanoTime() - startNanos);
+        }
+    }
+
+    private GoPluginApiResponse execute(GoPluginApiRequest request) throws Exception {
+        switch (Request.fromString(request.requestName())) {
+            case REQUEST_GET_PLUGIN_ICON:
+                return new GetPluginIconExecutor().execute();
+            case REQUEST_GET_PLUGIN_CAPABILITIES:
+                return new GetCapabilitiesExecutor().execute();
+            case REQUEST_STORE_CONFIG_METADATA:
+                return new GetArtifactStoreConfigMetadataExecutor().execute();
+            case REQUEST_STORE_CONFIG_VIEW:
+                return new GetArtifactStoreViewExecutor().execute();
+            case REQUEST_STORE_CONFIG_VALIDATE:
+                return new ValidateArtifactStoreConfigExecutor(request).execute();
+            case REQUEST_PUBLISH_ARTIFACT_METADATA:
+                return new GetPublishArtifactConfigMetadataExecutor().execute();
+            case REQUEST_PUBLISH_ARTIFACT_VIEW:
+                return new GetPublishArtifactViewExecutor().execute();
+            case REQUEST_PUBLISH_ARTIFACT_VALIDATE:
+                return new ValidatePublishArtifactConfigExecutor(request).execute();
+            case REQUEST_FETCH_ARTIFACT_METADATA:
+                return new GetFetchArtifactMetadataExecutor().execute();
+            case REQUEST_FETCH_ARTIFACT_VIEW:
+                return new GetFetchArtifactViewExecutor().execute();
+            case REQUEST_FETCH_ARTIFACT_VALIDATE:
+                return new ValidateFetchArtifactConfigExecutor().execute();
+            case REQUEST_PUBLISH_ARTIFACT:
+                return new PublishArtifactExecutor(request, consoleLogger).execute();
+            case REQUEST_FETCH_ARTIFACT:
+                return new FetchArtifactExecutor(request, consoleLogger).execute();
+            default:
+                throw new UnhandledRequestTypeException(request.requestName());
         }
     }
 
@@ -1,25 +1,93 @@
 package diogomrol.gocd.s3.artifact.plugin;
+import diogomrol.gocd.s3.artifact.plugin.metrics.MetricsRegistry;
+import diogomrol.gocd.s3.artifact.plugin.metrics.WireMetrics;
 import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import diogomrol.gocd.s3.artifact.plugin.transfer.UploadMode;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.SdkClientException;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.internal.SkipMd5CheckStrategy;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
 
 public class S3ClientFactory {
     private static final S3ClientFactory S3_CLIENT_FACTORY = new S3ClientFactory();
+    private static boolean md5Disabled;
+
+    private final TransferSettings settings;
+
+    public S3ClientFactory() {
+        this(TransferSettings.fromSystemProperties());
+    }
+
+    public S3ClientFactory(TransferSettings settings) {
+        this.settings = settings;
+    }
 
     public AmazonS3 s3(ArtifactStoreConfig artifactStoreConfig) throws SdkClientException {
-        return createClient(artifactStoreConfig);
+        WireMetrics wireMetrics = settings.isHttpMetricsEnabled() ? MetricsRegistry.shared().wire(artifactStoreConfig.getS3bucket()) : null;
+        return createClient(artifactStoreConfig, settings.getUploadMode(), settings.getEndpoint(), wireMetrics);
     }
 
     public static S3ClientFactory instance() {
         return S3_CLIENT_FACTORY;
     }
 
-    private static AmazonS3 createClient(ArtifactStoreConfig artifactStoreConfig) throws SdkClientException {
+    /**
+     * @param endpoint URL of an S3-compatible service, null for AWS
+     * @param wireMetrics receives the HTTP timings of the client, null to not collect them
+     */
+    private static AmazonS3 createClient(ArtifactStoreConfig artifactStoreConfig, UploadMode uploadMode, String endpoint, WireMetrics wireMetrics) throws SdkClientException {
         BasicAWSCredentials awsCredentials = new BasicAWSCredentials(artifactStoreConfig.getAwsaccesskey(), artifactStoreConfig.getAwssecretaccesskey());
-        return AmazonS3ClientBuilder.standard().withRegion(Regions.fromName(artifactStoreConfig.getRegion())).withCredentials(new AWSStaticCredentialsProvider(awsCredentials)).build();
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard().withCredentials(new AWSStaticCredentialsProvider(awsCredentials));
+        if (endpoint != null) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, artifactStoreConfig.getRegion()))
+                    .withPathStyleAccessEnabled(true);
+        } else {
+            builder.withRegion(Regions.fromName(artifactStoreConfig.getRegion()));
+        }
+        ClientConfiguration clientConfiguration = new ClientConfiguration();
+        if (uploadMode == UploadMode.SIGNED_PAYLOAD) {
+            builder.withPayloadSigningEnabled(true);
+        } else if (uploadMode == UploadMode.LOW_CPU) {
+            // the SDK still signs the payload of requests to an http:// endpoint
+            builder.withPayloadSigningEnabled(false);
+        }
+        if (wireMetrics != null) {
+            wireMetrics.instrument(clientConfiguration);
+            builder.withMetricsCollector(wireMetrics.requestCollector());
+        }
+        return builder.withClientConfiguration(clientConfiguration).build();
+    }
+
+    /**
+     * The SDK only offers a JVM-wide switch for the MD5 it computes of uploaded objects and parts, so it is turned off
+     * once for the plugin in low-cpu mode, and on again when another mode is applied or the plugin is unloaded. A value
+     * set by someone else is left alone.
+     */
+    public static synchronized void applyJvmWideSettings(TransferSettings settings) {
+        String property = SkipMd5CheckStrategy.DISABLE_PUT_OBJECT_MD5_VALIDATION_PROPERTY;
+        if (settings.getUploadMode() == UploadMode.LOW_CPU) {
+            if (System.getProperty(property) == null) {
+                LOG.info("Uploading in low-cpu mode, the S3 SDK will not compute MD5 checksums of uploaded objects");
+                System.setProperty(property, "true");
+                md5Disabled = true;
+            }
+        } else {
+            resetJvmWideSettings();
+        }
+    }
+
+    public static synchronized void resetJvmWideSettings() {
+        if (md5Disabled) {
+            System.clearProperty(SkipMd5CheckStrategy.DISABLE_PUT_OBJECT_MD5_VALIDATION_PROPERTY);
+            md5Disabled = false;
+        }
     }
 }
@@ -0,0 +1,134 @@
+package diogomrol.gocd.s3.artifact.plugin.capture;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.Request;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Appends each plugin request to a file of JSON lines, with its name, body, time, duration and response code, so that
+ * a day of traffic can be replayed offline. Credentials, and fields and environment variables which may hold secrets,
+ * are redacted. The response of a publish is kept too, as its metadata tells which files the workspace had.
+ */
+public class RequestRecorder {
+    public static final RequestRecorder DISABLED = new RequestRecorder(null);
+    public static final String REDACTED = "REDACTED";
+    private static final Pattern SECRET = Pattern.compile("(?i).*(secret|password|token|credential|accesskey).*");
+    private static final String ENVIRONMENT_VARIABLES = "environment_variables";
+    private static final Gson GSON = new Gson();
+    private static RequestRecorder shared;
+
+    private final File file;
+    private Writer writer;
+
+    RequestRecorder(File file) {
+        this.file = file;
+    }
+
+    public static synchronized RequestRecorder shared() {
+        if (shared == null) {
+            shared = fromSettings(TransferSettings.fromSystemProperties());
+        }
+        return shared;
+    }
+
+    public static RequestRecorder fromSettings(TransferSettings settings) {
+        File captureFile = settings.getCaptureFile();
+        if (captureFile == null) {
+            return DISABLED;
+        }
+        LOG.info(String.format("Capturing plugin requests to `%s`", captureFile));
+        return new RequestRecorder(captureFile);
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * @param response null when the request failed
+     */
+    public void record(GoPluginApiRequest request, GoPluginApiResponse response, long startMillis, long durationNanos) {
+        if (file == null) {
+            return;
+        }
+        JsonObject line = new JsonObject();
+        line.addProperty("time", startMillis);
+        line.addProperty("name", request.requestName());
+        line.add("body", redact(parse(request.requestBody())));
+        line.addProperty("durationMillis", durationNanos / 1e6);
+        line.addProperty("responseCode", response == null ? null : response.responseCode());
+        if (response != null && Request.REQUEST_PUBLISH_ARTIFACT.requestName().equals(request.requestName())) {
+            line.add("response", parse(response.responseBody()));
+        }
+        write(GSON.toJson(line));
+    }
+
+    private synchronized void write(String line) {
+        try {
+            if (writer == null) {
+                File parent = file.getAbsoluteFile().getParentFile();
+                Files.createDirectories(parent.toPath());
+                writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not capture plugin request to `%s`: %s", file, e.getMessage()));
+        }
+    }
+
+    private static JsonElement parse(String body) {
+        if (body == null || body.isEmpty()) {
+            return null;
+        }
+        try {
+            return new JsonParser().parse(body);
+        } catch (JsonParseException e) {
+            return new JsonPrimitive(body);
+        }
+    }
+
+    /**
+     * Replaces, in place, the values of fields whose name hints at a secret, e.g. {@code AWSSecretAccessKey}, and of
+     * the environment variables not set by GoCD itself, which may be secure variables.
+     */
+    static JsonElement redact(JsonElement element) {
+        if (element != null && element.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> field : element.getAsJsonObject().entrySet()) {
+                if (field.getValue().isJsonPrimitive() && SECRET.matcher(field.getKey()).matches()) {
+                    field.setValue(new JsonPrimitive(REDACTED));
+                } else if (ENVIRONMENT_VARIABLES.equals(field.getKey()) && field.getValue().isJsonObject()) {
+                    for (Map.Entry<String, JsonElement> variable : field.getValue().getAsJsonObject().entrySet()) {
+                        if (!variable.getKey().startsWith("GO_")) {
+                            variable.setValue(new JsonPrimitive(REDACTED));
+                        }
+                    }
+                } else {
+                    redact(field.getValue());
+                }
+            }
+        } else if (element != null && element.isJsonArray()) {
+            element.getAsJsonArray().forEach(RequestRecorder::redact);
+        }
+        return element;
+    }
+}
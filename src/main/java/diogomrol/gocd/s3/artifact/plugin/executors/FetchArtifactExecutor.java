@@ -16,15 +16,32 @@
 
 package diogomrol.gocd.s3.artifact.plugin.executors;
 
+import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.model.*;
 import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
 import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.metrics.MetricsRegistry;
+import diogomrol.gocd.s3.artifact.plugin.metrics.RequestMetrics;
+import diogomrol.gocd.s3.artifact.plugin.metrics.TransferReport;
 import diogomrol.gocd.s3.artifact.plugin.model.AntDirectoryScanner;
 import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.Checksums;
 import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactConfig;
 import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.model.SizeSummary;
+import diogomrol.gocd.s3.artifact.plugin.tracing.TraceSpan;
+import diogomrol.gocd.s3.artifact.plugin.tracing.Tracer;
+import diogomrol.gocd.s3.artifact.plugin.transfer.ChecksumManifest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.DownloadPlan;
+import diogomrol.gocd.s3.artifact.plugin.transfer.ListingCache;
+import diogomrol.gocd.s3.artifact.plugin.transfer.ObjectDownloader;
+import diogomrol.gocd.s3.artifact.plugin.transfer.PrefixLister;
+import diogomrol.gocd.s3.artifact.plugin.transfer.RequestHedger;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferEngine;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
 import diogomrol.gocd.s3.artifact.plugin.utils.Util;
 import com.amazonaws.services.s3.AmazonS3;
+import com.google.gson.JsonParseException;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
@@ -32,9 +49,13 @@ import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import java.io.*;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
 import static diogomrol.gocd.s3.artifact.plugin.utils.Util.normalizePath;
@@ -44,6 +65,11 @@ public class FetchArtifactExecutor implements RequestExecutor {
     private FetchArtifactRequest fetchArtifactRequest;
     private final ConsoleLogger consoleLogger;
     private S3ClientFactory clientFactory;
+    private final TransferSettings settings;
+    private final ListingCache listingCache;
+    private final RequestMetrics metrics = new RequestMetrics("fetch");
+    private final Tracer tracer;
+    private TraceSpan trace = TraceSpan.NONE;
 
     public FetchArtifactExecutor(GoPluginApiRequest request, ConsoleLogger consoleLogger) {
         this(request, consoleLogger, S3ClientFactory.instance());
@@ -55,13 +81,74 @@ public class FetchArtifactExecutor implements RequestExecutor {
     }
 
     public FetchArtifactExecutor(FetchArtifactRequest fetchArtifactRequest, ConsoleLogger consoleLogger, S3ClientFactory clientFactory) {
+        this(fetchArtifactRequest, consoleLogger, clientFactory, TransferSettings.fromSystemProperties());
+    }
+
+    FetchArtifactExecutor(FetchArtifactRequest fetchArtifactRequest, ConsoleLogger consoleLogger, S3ClientFactory clientFactory, TransferSettings settings) {
+        this(fetchArtifactRequest, consoleLogger, clientFactory, settings, ListingCache.shared());
+    }
+
+    FetchArtifactExecutor(FetchArtifactRequest fetchArtifactRequest, ConsoleLogger consoleLogger, S3ClientFactory clientFactory, TransferSettings settings, ListingCache listingCache) {
+        this(fetchArtifactRequest, consoleLogger, clientFactory, settings, listingCache, Tracer.shared());
+    }
+
+    FetchArtifactExecutor(FetchArtifactRequest fetchArtifactRequest, ConsoleLogger consoleLogger, S3ClientFactory clientFactory, TransferSettings settings, ListingCache listingCache, Tracer tracer) {
         this.fetchArtifactRequest = fetchArtifactRequest;
         this.consoleLogger = consoleLogger;
         this.clientFactory = clientFactory;
+        this.settings = settings;
+        this.listingCache = listingCache;
+        this.tracer = tracer;
     }
 
     @Override
     public GoPluginApiResponse execute() {
+        trace = tracer.startTrace("fetch", traceAttributes());
+        if (settings.getReportDir() != null) {
+            ArtifactStoreConfig storeConfig = fetchArtifactRequest.getArtifactStoreConfig();
+            metrics.setReport(new TransferReport("fetch", storeConfig == null ? null : storeConfig.getS3bucket()));
+        }
+        try {
+            GoPluginApiResponse response = fetch();
+            if (response.responseCode() != DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE) {
+                trace.setError(response.responseBody());
+            }
+            return response;
+        } finally {
+            consoleLogger.info(metrics.summary());
+            MetricsRegistry.shared().record(metrics);
+            writeReport();
+            trace.end();
+        }
+    }
+
+    private void writeReport() {
+        TransferReport report = metrics.getReport();
+        if (report == null || fetchArtifactRequest.getAgentWorkingDir() == null) {
+            return;
+        }
+        File file = Paths.get(fetchArtifactRequest.getAgentWorkingDir(), settings.getReportDir(), report.fileName()).toFile();
+        try {
+            report.write(file, metrics);
+            consoleLogger.info(String.format("Transfer report written to `%s`", file));
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write the transfer report to `%s`: %s", file, e.getMessage()));
+        }
+    }
+
+    /**
+     * GoCD sends no job environment with fetch requests, so fetches are only tagged with what they fetch.
+     */
+    private Map<String, String> traceAttributes() {
+        Map<String, String> attributes = new LinkedHashMap<>();
+        ArtifactStoreConfig storeConfig = fetchArtifactRequest.getArtifactStoreConfig();
+        attributes.put("s3.bucket", storeConfig == null ? null : storeConfig.getS3bucket());
+        FetchArtifactConfig fetchConfig = fetchArtifactRequest.getFetchArtifactConfig();
+        attributes.put("gocd.fetch.sub.path", fetchConfig == null ? null : fetchConfig.getSubPath());
+        return attributes;
+    }
+
+    private GoPluginApiResponse fetch() {
         try {
             final Map<String, Object> artifactMetadata = fetchArtifactRequest.getMetadata();
             validateMetadata(artifactMetadata);
@@ -77,8 +164,17 @@ public class FetchArtifactExecutor implements RequestExecutor {
                 awsDestinationPath = "";
             boolean sourceIsFile = (boolean)artifactMetadata.get("IsFile");
 
+            long clientStart = System.nanoTime();
             AmazonS3 s3 = clientFactory.s3(fetchArtifactRequest.getArtifactStoreConfig());
+            metrics.getClient().recordNanos(System.nanoTime() - clientStart);
             String bucketName = fetchArtifactRequest.getArtifactStoreConfig().getS3bucket();
+            ObjectDownloader downloader = new ObjectDownloader(s3, RequestHedger.fromSettings(settings, fetchArtifactRequest.getArtifactStoreConfig()));
+            SizeSummary sizeSummary = SizeSummary.fromMetadata(artifactMetadata);
+            Map<String, String> checksums = Checksums.fromMetadata(artifactMetadata);
+            String manifestKey = Checksums.manifestKey(artifactMetadata);
+            if(manifestKey != null)
+                checksums = loadManifest(s3, bucketName, manifestKey);
+            DownloadPlan plan = new DownloadPlan(bucketName, settings);
             String s3InbucketPath;
 
             String targetFile;
@@ -108,26 +204,39 @@ public class FetchArtifactExecutor implements RequestExecutor {
                     else
                         prefix = normalizePath(Paths.get(awsDestinationPath, fetchSubPath));
 
-                    ObjectListing listing = Util.isBlank(prefix) ? s3.listObjects(bucketName) : s3.listObjects(bucketName, prefix);
                     consoleLogger.info(String.format("Retrieving multiple files from S3 bucket `%s` using prefix `%s`", bucketName, prefix));
-                    int count = 0;
-                    while(true) {
-                        for(S3ObjectSummary obj : listing.getObjectSummaries()) {
-                            targetFile = obj.getKey().replaceFirst(prefix, "");
-                            File outFile = getTargetFile(fetchConfig, workingDir, targetFile);
-                            s3InbucketPath = obj.getKey();
-                            LOG.info(String.format("Retrieving file `%s` from S3 bucket `%s`.", s3InbucketPath, bucketName));
-                            GetObjectRequest getRequest = new GetObjectRequest(bucketName, s3InbucketPath);
-                            s3.getObject(getRequest, outFile);
-                            count++;
+                    String keyPrefix = PrefixLister.directoryPrefix(prefix);
+                    if(sizeSummary != null && sizeSummary.hasAllFiles()) {
+                        for(Map.Entry<String, Long> file : sizeSummary.getFiles().entrySet()) {
+                            if(file.getKey().startsWith(keyPrefix))
+                                plan.add(file.getKey(), getTargetFile(fetchConfig, workingDir, file.getKey().substring(keyPrefix.length())), file.getValue(), null, checksums.get(file.getKey()));
+                        }
+                        if(plan.getFileCount() > 0)
+                            download(plan, downloader, fetchConfig, workingDir);
+                    }
+                    else {
+                        String identity = listingCache.isEnabled() ? ListingCache.publishIdentity(artifactMetadata) : null;
+                        List<S3ObjectSummary> cached = identity == null ? null : listingCache.get(bucketName, keyPrefix, identity);
+                        if(cached != null) {
+                            consoleLogger.info(String.format("Using the listing of `%s` objects cached by an earlier fetch of this artifact", cached.size()));
+                            if(metrics.getReport() != null)
+                                metrics.getReport().setListingCached(true);
+                            for(S3ObjectSummary obj : cached) {
+                                if(obj.getKey().equals(manifestKey))
+                                    continue;
+                                plan.add(obj.getKey(), getTargetFile(fetchConfig, workingDir, obj.getKey().substring(keyPrefix.length())), obj.getSize(), obj.getETag(), checksums.get(obj.getKey()));
+                            }
+                            if(plan.getFileCount() > 0)
+                                download(plan, downloader, fetchConfig, workingDir);
+                        }
+                        else {
+                            List<S3ObjectSummary> listed = listAndDownload(s3, bucketName, keyPrefix, plan, downloader, fetchConfig, workingDir, checksums, manifestKey, identity != null);
+                            if(listed != null)
+                                listingCache.put(bucketName, keyPrefix, identity, listed);
                         }
-                        if(listing.isTruncated())
-                            listing = s3.listNextBatchOfObjects (listing);
-                        else
-                            break;
                     }
-                    if(count > 0) {
-                        consoleLogger.info(String.format("Successfully downloaded `%s` files from S3 bucket `%s` using prefix `%s`", count, bucketName, prefix));
+                    if(plan.getFileCount() > 0) {
+                        consoleLogger.info(String.format("Successfully downloaded `%s` files from S3 bucket `%s` using prefix `%s`", plan.getFileCount(), bucketName, prefix));
                         return DefaultGoPluginApiResponse.success("");
                     }
                     else {
@@ -140,9 +249,8 @@ public class FetchArtifactExecutor implements RequestExecutor {
             }
             File outFile = getTargetFile(fetchConfig, workingDir, targetFile);
             consoleLogger.info(String.format("Retrieving file `%s` from S3 bucket `%s`.", s3InbucketPath, bucketName));
-            LOG.info(String.format("Retrieving file `%s` from S3 bucket `%s`.", s3InbucketPath, bucketName));
-            GetObjectRequest getRequest = new GetObjectRequest(bucketName, s3InbucketPath);
-            s3.getObject(getRequest, outFile);
+            plan.add(s3InbucketPath, outFile, sizeSummary == null ? -1 : sizeSummary.sizeOf(s3InbucketPath), null, checksums.get(s3InbucketPath));
+            download(plan, downloader, fetchConfig, workingDir);
 
             consoleLogger.info(String.format("Source `%s` successfully pulled from S3 bucket `%s` to `%s`.", s3InbucketPath, bucketName, outFile));
 
@@ -155,6 +263,93 @@ public class FetchArtifactExecutor implements RequestExecutor {
         }
     }
 
+    /**
+     * Loads the checksums of the artifact, which is fetched without verifying them when its manifest is missing.
+     */
+    private Map<String, String> loadManifest(AmazonS3 s3, String bucketName, String manifestKey) {
+        try {
+            return ChecksumManifest.load(s3, bucketName, manifestKey);
+        } catch (IOException | SdkClientException | JsonParseException e) {
+            String message = String.format("Could not load checksums of the published files from `%s`, they will not be verified: %s", manifestKey, e.getMessage());
+            consoleLogger.info(message);
+            LOG.warn(message);
+            return Collections.emptyMap();
+        }
+    }
+
+    private void logHedging(RequestHedger hedger) {
+        if (hedger.isEnabled()) {
+            String message = String.format("Hedged %d of %d GET requests to S3, %d hedged requests won", hedger.getHedgesFired(), hedger.getRequests(), hedger.getHedgesWon());
+            consoleLogger.info(message);
+            LOG.info(message);
+        }
+    }
+
+    private void download(DownloadPlan plan, ObjectDownloader downloader, FetchArtifactConfig fetchConfig, String workingDir) throws Exception {
+        plan.checkFreeSpace(getTargetFile(fetchConfig, workingDir, ""));
+        TransferEngine engine = TransferEngine.forStore(fetchArtifactRequest.getArtifactStoreConfig(), TransferEngine.Direction.DOWNLOAD, settings);
+        try (TransferEngine.Batch batch = engine.newBatch(metrics, trace)) {
+            batch.submitAll(plan.transfers(downloader));
+            batch.await();
+        } finally {
+            plan.close();
+            report(plan);
+        }
+        plan.verifyChecksums();
+        logHedging(downloader.getHedger());
+    }
+
+    private void report(DownloadPlan plan) {
+        if (metrics.getReport() != null) {
+            plan.report(metrics.getReport());
+        }
+    }
+
+    /**
+     * Lists the prefix with concurrent requests and downloads each page of objects while the next ones are listed.
+     *
+     * @param keepListing whether to return the listed objects for the listing cache
+     * @return the listed objects, or null when they are not kept or the listing cache would not hold them
+     */
+    private List<S3ObjectSummary> listAndDownload(AmazonS3 s3, String bucketName, String keyPrefix, DownloadPlan plan, ObjectDownloader downloader,
+                                 FetchArtifactConfig fetchConfig, String workingDir, Map<String, String> checksums, String manifestKey,
+                                 boolean keepListing) throws Exception {
+        File destination = getTargetFile(fetchConfig, workingDir, "");
+        long maxKept = keepListing ? listingCache.getMaxObjects() : -1;
+        List<S3ObjectSummary> listed = new ArrayList<>();
+        AtomicLong listedObjects = new AtomicLong();
+        TransferEngine engine = TransferEngine.forStore(fetchArtifactRequest.getArtifactStoreConfig(), TransferEngine.Direction.DOWNLOAD, settings);
+        try (TransferEngine.Batch batch = engine.newBatch(metrics, trace);
+             TraceSpan listing = trace.child("listing").setAttribute("s3.prefix", keyPrefix)) {
+            long listingStart = System.nanoTime();
+            new PrefixLister(s3, bucketName, settings).list(keyPrefix, objects -> {
+                synchronized (plan) {
+                    if(listedObjects.addAndGet(objects.size()) <= maxKept)
+                        listed.addAll(objects);
+                    else
+                        listed.clear();
+                    for(S3ObjectSummary obj : objects) {
+                        if(obj.getKey().equals(manifestKey))
+                            continue;
+                        String targetFile = obj.getKey().substring(keyPrefix.length());
+                        plan.add(obj.getKey(), getTargetFile(fetchConfig, workingDir, targetFile), obj.getSize(), obj.getETag(), checksums.get(obj.getKey()));
+                    }
+                    plan.checkFreeSpace(destination);
+                    batch.submitAll(plan.transfers(downloader));
+                }
+            });
+            metrics.getListing().recordNanos(System.nanoTime() - listingStart);
+            listing.setAttribute("listing.objects", listedObjects.get()).end();
+            batch.await();
+        } finally {
+            plan.close();
+            report(plan);
+        }
+        plan.verifyChecksums();
+        logHedging(downloader.getHedger());
+        return listedObjects.get() <= maxKept ? listed : null;
+    }
+
     private File getTargetFile(FetchArtifactConfig fetchConfig, String workingDir, String targetFile) {
         File outFile;
         if(Util.isBlank(fetchConfig.getDestination())) {
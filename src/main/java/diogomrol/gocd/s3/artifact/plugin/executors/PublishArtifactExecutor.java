@@ -18,6 +18,14 @@ package diogomrol.gocd.s3.artifact.plugin.executors;
 
 import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
 import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.jfr.PluginEvents;
+import diogomrol.gocd.s3.artifact.plugin.jfr.Span;
+import diogomrol.gocd.s3.artifact.plugin.metrics.MetricsRegistry;
+import diogomrol.gocd.s3.artifact.plugin.metrics.RequestMetrics;
+import diogomrol.gocd.s3.artifact.plugin.metrics.TransferReport;
+import diogomrol.gocd.s3.artifact.plugin.tracing.TraceSpan;
+import diogomrol.gocd.s3.artifact.plugin.tracing.Tracer;
+import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
@@ -25,11 +33,24 @@ import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import diogomrol.gocd.s3.artifact.plugin.model.*;
+import diogomrol.gocd.s3.artifact.plugin.transfer.ChecksumInputStream;
+import diogomrol.gocd.s3.artifact.plugin.transfer.ChecksumManifest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.Crc32c;
+import diogomrol.gocd.s3.artifact.plugin.transfer.MultipartUpload;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferEngine;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferProgress;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
 import static diogomrol.gocd.s3.artifact.plugin.utils.Util.normalizePath;
@@ -39,6 +60,11 @@ public class PublishArtifactExecutor implements RequestExecutor {
     private final PublishArtifactResponse publishArtifactResponse;
     private final ConsoleLogger consoleLogger;
     private final S3ClientFactory clientFactory;
+    private final TransferSettings settings;
+    private final Map<String, String> checksumsByKey = new ConcurrentHashMap<>();
+    private final RequestMetrics metrics = new RequestMetrics("publish");
+    private final Tracer tracer;
+    private TraceSpan trace = TraceSpan.NONE;
     private AntDirectoryScanner scanner;
 
     public PublishArtifactExecutor(GoPluginApiRequest request, ConsoleLogger consoleLogger) {
@@ -46,24 +72,81 @@ public class PublishArtifactExecutor implements RequestExecutor {
     }
 
     PublishArtifactExecutor(GoPluginApiRequest request, ConsoleLogger consoleLogger, S3ClientFactory clientFactory) {
+        this(request, consoleLogger, clientFactory, TransferSettings.fromSystemProperties());
+    }
+
+    PublishArtifactExecutor(GoPluginApiRequest request, ConsoleLogger consoleLogger, S3ClientFactory clientFactory, TransferSettings settings) {
+        this(request, consoleLogger, clientFactory, settings, Tracer.shared());
+    }
+
+    PublishArtifactExecutor(GoPluginApiRequest request, ConsoleLogger consoleLogger, S3ClientFactory clientFactory, TransferSettings settings, Tracer tracer) {
         this.publishArtifactRequest = PublishArtifactRequest.fromJSON(request.requestBody());
         this.consoleLogger = consoleLogger;
         this.clientFactory = clientFactory;
+        this.settings = settings;
+        this.tracer = tracer;
         scanner = new AntDirectoryScanner();
         publishArtifactResponse = new PublishArtifactResponse();
     }
 
     @Override
     public GoPluginApiResponse execute() {
+        trace = tracer.startTrace("publish", traceAttributes());
+        if (settings.getReportDir() != null) {
+            metrics.setReport(new TransferReport("publish", publishArtifactRequest.getArtifactStore().getArtifactStoreConfig().getS3bucket()));
+        }
+        try {
+            GoPluginApiResponse response = publish();
+            if (response.responseCode() != DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE) {
+                trace.setError(response.responseBody());
+            }
+            return response;
+        } finally {
+            consoleLogger.info(metrics.summary());
+            MetricsRegistry.shared().record(metrics);
+            writeReport();
+            trace.end();
+        }
+    }
+
+    private void writeReport() {
+        TransferReport report = metrics.getReport();
+        if (report == null) {
+            return;
+        }
+        File file = Paths.get(publishArtifactRequest.getAgentWorkingDir(), settings.getReportDir(), report.fileName()).toFile();
+        try {
+            report.write(file, metrics);
+            consoleLogger.info(String.format("Transfer report written to `%s`", file));
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write the transfer report to `%s`: %s", file, e.getMessage()));
+        }
+    }
+
+    private Map<String, String> traceAttributes() {
+        Map<String, String> environment = publishArtifactRequest.getEnvironmentVariables() == null
+                ? Collections.emptyMap() : publishArtifactRequest.getEnvironmentVariables();
+        Map<String, String> attributes = new LinkedHashMap<>();
+        attributes.put("gocd.pipeline", environment.get("GO_PIPELINE_NAME"));
+        attributes.put("gocd.pipeline.counter", environment.get("GO_PIPELINE_COUNTER"));
+        attributes.put("gocd.stage", environment.get("GO_STAGE_NAME"));
+        attributes.put("gocd.job", environment.get("GO_JOB_NAME"));
+        attributes.put("gocd.artifact.store", publishArtifactRequest.getArtifactPlan().getStoreId());
+        attributes.put("s3.bucket", publishArtifactRequest.getArtifactStore().getArtifactStoreConfig().getS3bucket());
+        return attributes;
+    }
+
+    private GoPluginApiResponse publish() {
         ArtifactPlan artifactPlan = publishArtifactRequest.getArtifactPlan();
         final ArtifactStoreConfig artifactStoreConfig = publishArtifactRequest.getArtifactStore().getArtifactStoreConfig();
         try {
+            long clientStart = System.nanoTime();
             final AmazonS3 s3 = clientFactory.s3(artifactStoreConfig);
+            metrics.getClient().recordNanos(System.nanoTime() - clientStart);
             final String sourcePattern = artifactPlan.getArtifactPlanConfig().getSource();
             String destinationFolder = artifactPlan.getArtifactPlanConfig().getDestination();
             EnvironmentVariableResolver envResolver = new EnvironmentVariableResolver(destinationFolder, "Destination");
             destinationFolder = envResolver.resolve(publishArtifactRequest.getEnvironmentVariables());
-            final String s3bucket = artifactStoreConfig.getS3bucket();
             final String workingDir = publishArtifactRequest.getAgentWorkingDir();
             String s3InbucketPath;
             if(!destinationFolder.isEmpty()) {
@@ -73,7 +156,16 @@ public class PublishArtifactExecutor implements RequestExecutor {
                 s3InbucketPath = "";
             }
 
-            List<File> matchingFiles = scanner.getFilesMatchingPattern(new File(workingDir), sourcePattern);
+            long scanStart = System.nanoTime();
+            List<File> matchingFiles;
+            try (Span span = PluginEvents.scan(sourcePattern);
+                 TraceSpan scanSpan = trace.child("scan").setAttribute("scan.pattern", sourcePattern)) {
+                matchingFiles = scanner.getFilesMatchingPattern(new File(workingDir), sourcePattern);
+                span.setCount(matchingFiles.size());
+                scanSpan.setAttribute("scan.files", matchingFiles.size());
+            }
+            metrics.getScan().recordNanos(System.nanoTime() - scanStart);
+            Map<String, Long> sizesByKey;
             if(matchingFiles.size() == 0) {
                 String noFilesMsg = String.format("No files are matching pattern: %s", sourcePattern);
                 consoleLogger.error(noFilesMsg);
@@ -84,28 +176,31 @@ public class PublishArtifactExecutor implements RequestExecutor {
             else if(matchingFiles.size() == 1) {
                 File sourceFile = matchingFiles.get(0);
                 String s3Key = normalizePath(Paths.get(s3InbucketPath, sourceFile.toPath().getFileName().toString()));
-                PutObjectRequest request = new PutObjectRequest(s3bucket, s3Key, new File(Paths.get(workingDir, sourceFile.toString()).toString()));
-                ObjectMetadata metadata = new ObjectMetadata();
-                request.setMetadata(metadata);
-                s3.putObject(request);
+                sizesByKey = uploadFiles(s3, artifactStoreConfig, workingDir, Collections.singletonMap(sourceFile, s3Key));
                 publishArtifactResponse.addMetadata("Source", sourceFile.toString());
                 publishArtifactResponse.addMetadata("IsFile", true);
-                consoleLogger.info(String.format("Source file `%s` successfully pushed to S3 bucket `%s`.", sourceFile, artifactStoreConfig.getS3bucket()));
             }
             else {
                 // upload many files
+                Map<File, String> keysByFile = new LinkedHashMap<>();
                 for(File sourceFile : matchingFiles) {
-                    String s3Key = normalizePath(Paths.get(s3InbucketPath, sourceFile.getPath()));
-                    PutObjectRequest request = new PutObjectRequest(s3bucket, s3Key, new File(Paths.get(workingDir, sourceFile.toString()).toString()));
-                    ObjectMetadata metadata = new ObjectMetadata();
-                    request.setMetadata(metadata);
-                    s3.putObject(request);
-                    consoleLogger.info(String.format("Source file `%s` successfully pushed to S3 bucket `%s`.", sourceFile, artifactStoreConfig.getS3bucket()));
+                    keysByFile.put(sourceFile, normalizePath(Paths.get(s3InbucketPath, sourceFile.getPath())));
                 }
+                sizesByKey = uploadFiles(s3, artifactStoreConfig, workingDir, keysByFile);
                 publishArtifactResponse.addMetadata("Source", sourcePattern);
                 publishArtifactResponse.addMetadata("IsFile", false);
             }
             publishArtifactResponse.addMetadata("Destination", s3InbucketPath);
+            publishArtifactResponse.addMetadata(SizeSummary.METADATA_KEY, new SizeSummary(sizesByKey));
+            Map<String, String> checksums = Checksums.toMetadata(checksumsByKey);
+            if (checksums != null) {
+                publishArtifactResponse.addMetadata(Checksums.METADATA_KEY, checksums);
+            } else if (Checksums.needsManifest(checksumsByKey)) {
+                String manifestKey = uploadManifest(s3, artifactStoreConfig.getS3bucket(), ChecksumManifest.keyFor(s3InbucketPath), sizesByKey);
+                if (manifestKey != null) {
+                    publishArtifactResponse.addMetadata(Checksums.MANIFEST_METADATA_KEY, manifestKey);
+                }
+            }
 
             return DefaultGoPluginApiResponse.success(publishArtifactResponse.toJSON());
         } catch (Exception e) {
@@ -114,4 +209,105 @@ public class PublishArtifactExecutor implements RequestExecutor {
             return DefaultGoPluginApiResponse.error(String.format("Failed to publish %s: %s", artifactPlan, e.getMessage()));
         }
     }
+
+    /**
+     * Uploads the checksums of the artifact, which is published without them when that fails.
+     *
+     * @return the key of the manifest, or null when it was not uploaded
+     */
+    private String uploadManifest(AmazonS3 s3, String bucketName, String manifestKey, Map<String, Long> sizesByKey) {
+        String message;
+        if (sizesByKey.containsKey(manifestKey)) {
+            message = String.format("Not uploading checksums of the published files, because `%s` is one of them", manifestKey);
+        } else {
+            try {
+                ChecksumManifest.upload(s3, bucketName, manifestKey, checksumsByKey);
+                consoleLogger.info(String.format("Checksums of %d files uploaded to `%s`", checksumsByKey.size(), manifestKey));
+                return manifestKey;
+            } catch (SdkClientException e) {
+                message = String.format("Could not upload checksums of the published files to `%s`, they will not be verified on fetch: %s", manifestKey, e.getMessage());
+            }
+        }
+        consoleLogger.info(message);
+        LOG.warn(message);
+        return null;
+    }
+
+    private Map<String, Long> uploadFiles(AmazonS3 s3, ArtifactStoreConfig artifactStoreConfig, String workingDir, Map<File, String> keysByFile) throws Exception {
+        final String s3bucket = artifactStoreConfig.getS3bucket();
+        Map<String, Long> sizesByKey = new LinkedHashMap<>();
+        TransferEngine engine = TransferEngine.forStore(artifactStoreConfig, TransferEngine.Direction.UPLOAD, settings);
+        List<TransferEngine.Transfer> transfers = new ArrayList<>();
+        List<MultipartUpload> multipartUploads = new ArrayList<>();
+        try (TransferEngine.Batch batch = engine.newBatch(metrics, trace)) {
+            for (Map.Entry<File, String> entry : keysByFile.entrySet()) {
+                File sourceFile = entry.getKey();
+                File localFile = new File(Paths.get(workingDir, sourceFile.toString()).toString());
+                sizesByKey.put(entry.getValue(), localFile.length());
+                if (localFile.length() >= settings.getMultipartThresholdBytes()) {
+                    MultipartUpload upload = new MultipartUpload(s3, s3bucket, entry.getValue(), localFile, settings.getPartSizeBytes());
+                    upload.initiate();
+                    multipartUploads.add(upload);
+                    transfers.addAll(upload.parts());
+                    continue;
+                }
+                transfers.add(new TransferEngine.Transfer() {
+                    @Override
+                    public String getDescription() {
+                        return String.format("upload of `%s`", sourceFile);
+                    }
+
+                    @Override
+                    public long getSize() {
+                        return localFile.length();
+                    }
+
+                    @Override
+                    public String getKey() {
+                        return entry.getValue();
+                    }
+
+                    @Override
+                    public long execute(TransferProgress progress) throws IOException {
+                        long length = localFile.length();
+                        try (ChecksumInputStream in = ChecksumInputStream.ofFile(localFile, 0, length)) {
+                            ObjectMetadata metadata = new ObjectMetadata();
+                            metadata.setContentLength(length);
+                            PutObjectRequest request = new PutObjectRequest(s3bucket, entry.getValue(), in, metadata);
+                            request.setGeneralProgressListener(progress.listener());
+                            try (Span span = PluginEvents.s3("PutObject", s3bucket, entry.getValue())) {
+                                s3.putObject(request);
+                                span.setBytes(length);
+                            }
+                            long checksum = in.getChecksum(length);
+                            if (checksum >= 0) {
+                                checksumsByKey.put(entry.getValue(), Crc32c.toHex(checksum));
+                            }
+                        }
+                        consoleLogger.info(String.format("Source file `%s` successfully pushed to S3 bucket `%s`.", sourceFile, s3bucket));
+                        return localFile.length();
+                    }
+                });
+            }
+            batch.submitAll(transfers);
+            batch.await();
+            for (MultipartUpload upload : multipartUploads) {
+                upload.complete();
+                if (upload.getChecksum() != null) {
+                    checksumsByKey.put(upload.getKey(), upload.getChecksum());
+                }
+                consoleLogger.info(String.format("Source file `%s` successfully pushed to S3 bucket `%s` in parts.", upload.getKey(), s3bucket));
+            }
+            TransferReport report = metrics.getReport();
+            if (report != null) {
+                for (Map.Entry<String, Long> size : sizesByKey.entrySet()) {
+                    report.file(size.getKey()).setSize(size.getValue()).setCrc32c(checksumsByKey.get(size.getKey()));
+                }
+            }
+            return sizesByKey;
+        } catch (Exception e) {
+            multipartUploads.forEach(MultipartUpload::abort);
+            throw e;
+        }
+    }
 }
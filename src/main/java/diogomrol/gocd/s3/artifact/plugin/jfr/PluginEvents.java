@@ -0,0 +1,89 @@
+package diogomrol.gocd.s3.artifact.plugin.jfr;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Java Flight Recorder events of the plugin, so that its requests, scans, S3 requests, console logs and retries show
+ * up next to GC, I/O and lock contention in a recording of the agent. While nothing is recording, and on JVMs without
+ * JFR, every method returns {@link Span#NONE} without allocating. The JFR implementation is compiled separately from
+ * the rest of the plugin, in the {@code jfr} source set, as the JFR API is not part of Java 8.
+ */
+public final class PluginEvents {
+    /**
+     * Records the events, implemented with JFR when the JVM has it.
+     */
+    interface Recorder {
+        boolean isRecording();
+
+        Span request(String requestName);
+
+        Span scan(String pattern);
+
+        Span s3(String operation, String bucketName, String key);
+
+        Span consoleLog(String level);
+
+        void retry(String reason, String transfer, int attempt);
+    }
+
+    private static final Recorder RECORDER = createRecorder();
+
+    private PluginEvents() {
+    }
+
+    private static Recorder createRecorder() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            // loaded by name, so the JFR classes are never resolved on JVMs without them
+            return (Recorder) Class.forName(PluginEvents.class.getPackage().getName() + ".JfrRecorder").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.warn(String.format("Could not register the JFR events of the plugin: %s", e));
+            return null;
+        }
+    }
+
+    static boolean isAvailable() {
+        return RECORDER != null;
+    }
+
+    private static boolean isRecording() {
+        return RECORDER != null && RECORDER.isRecording();
+    }
+
+    /**
+     * @param requestName the GoCD plugin request being handled
+     */
+    public static Span request(String requestName) {
+        return isRecording() ? RECORDER.request(requestName) : Span.NONE;
+    }
+
+    /**
+     * @param pattern the source pattern matched against the working directory
+     */
+    public static Span scan(String pattern) {
+        return isRecording() ? RECORDER.scan(pattern) : Span.NONE;
+    }
+
+    /**
+     * @param operation the S3 API operation, e.g. {@code GetObject}
+     */
+    public static Span s3(String operation, String bucketName, String key) {
+        return isRecording() ? RECORDER.s3(operation, bucketName, key) : Span.NONE;
+    }
+
+    public static Span consoleLog(String level) {
+        return isRecording() ? RECORDER.consoleLog(level) : Span.NONE;
+    }
+
+    /**
+     * @param reason why the transfer is retried, e.g. {@code throttle} or {@code stall}
+     * @param attempt the number of the retry
+     */
+    public static void retry(String reason, String transfer, int attempt) {
+        if (isRecording()) {
+            RECORDER.retry(reason, transfer, attempt);
+        }
+    }
+}
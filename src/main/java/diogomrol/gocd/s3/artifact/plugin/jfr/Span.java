@@ -0,0 +1,24 @@
+package diogomrol.gocd.s3.artifact.plugin.jfr;
+
+/**
+ * An operation of the plugin which is being recorded, committed to the recording when closed.
+ */
+public interface Span extends AutoCloseable {
+    Span NONE = () -> {
+    };
+
+    /**
+     * @param bytes bytes moved by the operation
+     */
+    default void setBytes(long bytes) {
+    }
+
+    /**
+     * @param count items found by the operation, e.g. files or objects
+     */
+    default void setCount(long count) {
+    }
+
+    @Override
+    void close();
+}
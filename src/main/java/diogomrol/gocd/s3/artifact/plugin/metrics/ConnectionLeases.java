@@ -0,0 +1,97 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.amazonaws.metrics.AwsSdkMetrics;
+import com.amazonaws.metrics.ByteThroughputProvider;
+import com.amazonaws.metrics.MetricCollector;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.metrics.ServiceLatencyProvider;
+import com.amazonaws.metrics.ServiceMetricCollector;
+import com.amazonaws.util.AWSServiceMetrics;
+
+/**
+ * The SDK reports how long getting a connection from the pool took only to its JVM-wide service collector, not to the
+ * collector of the client. The time is kept for the thread here until {@link WireMetricCollector} of the request which
+ * waited, and which runs on the same thread when the request ends, takes it.
+ */
+class ConnectionLeases extends MetricCollector {
+    private static final ConnectionLeases INSTANCE = new ConnectionLeases();
+    private static final ThreadLocal<long[]> LEASES = ThreadLocal.withInitial(() -> new long[2]);
+
+    private final ServiceMetricCollector serviceCollector = new ServiceMetricCollector() {
+        @Override
+        public void collectByteThroughput(ByteThroughputProvider provider) {
+        }
+
+        @Override
+        public void collectLatency(ServiceLatencyProvider provider) {
+            if (provider.getServiceMetricType() == AWSServiceMetrics.HttpClientGetConnectionTime) {
+                long[] leases = LEASES.get();
+                leases[0]++;
+                leases[1] += (long) (provider.getDurationMilli() * 1_000_000);
+            }
+        }
+    };
+
+    private static MetricCollector replaced;
+    private static boolean installed;
+
+    /**
+     * Registers as the JVM-wide collector of the SDK, unless another collector, e.g. for CloudWatch, was set up.
+     */
+    static synchronized void install() {
+        MetricCollector current = AwsSdkMetrics.getMetricCollector();
+        if (current == null || current == MetricCollector.NONE) {
+            replaced = current;
+            installed = true;
+            AwsSdkMetrics.setMetricCollector(INSTANCE);
+        }
+    }
+
+    /**
+     * Puts back the JVM-wide collector which was replaced, unless another one was set up since.
+     */
+    static synchronized void uninstall() {
+        if (installed && AwsSdkMetrics.getMetricCollector() == INSTANCE) {
+            AwsSdkMetrics.setMetricCollector(replaced);
+        }
+        replaced = null;
+        installed = false;
+        LEASES.remove();
+    }
+
+    /**
+     * @return the count and nanoseconds of the connection leases of the thread since the last call
+     */
+    static long[] take() {
+        long[] leases = LEASES.get();
+        long[] taken = leases.clone();
+        leases[0] = 0;
+        leases[1] = 0;
+        return taken;
+    }
+
+    @Override
+    public boolean start() {
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public RequestMetricCollector getRequestMetricCollector() {
+        return RequestMetricCollector.NONE;
+    }
+
+    @Override
+    public ServiceMetricCollector getServiceMetricCollector() {
+        return serviceCollector;
+    }
+}
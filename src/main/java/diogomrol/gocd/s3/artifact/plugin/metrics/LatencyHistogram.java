@@ -0,0 +1,101 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies in log-linear buckets, as in HdrHistogram: each power of two microseconds is split into
+ * {@value #SUB_BUCKETS} buckets, so latencies from a microsecond to more than a day are kept with a relative error of
+ * at most 1/16. Recording only increments counters, it neither allocates nor locks.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 37;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    void recordMicros(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sumMicros.addAndGet(value);
+        maxMicros.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumMicros() {
+        return sumMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @return the highest latency of the bucket holding the percentile, 0 when nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int index = 0; index < BUCKETS; index++) {
+            seen += counts.get(index);
+            if (seen >= rank) {
+                return Math.min(highestValue(index), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Adds the latencies recorded by another histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int index = 0; index < BUCKETS; index++) {
+            long bucket = other.counts.get(index);
+            if (bucket > 0) {
+                counts.addAndGet(index, bucket);
+            }
+        }
+        count.addAndGet(other.getCount());
+        sumMicros.addAndGet(other.getSumMicros());
+        maxMicros.accumulateAndGet(other.getMaxMicros(), Math::max);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long highestValue(int index) {
+        int bucket = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (bucket == 0) {
+            return subBucket;
+        }
+        int shift = bucket - 1;
+        return ((long) (subBucket + SUB_BUCKETS) << shift) + (1L << shift) - 1;
+    }
+}
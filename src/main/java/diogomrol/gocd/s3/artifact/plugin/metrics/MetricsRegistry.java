@@ -0,0 +1,145 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Plugin-wide totals of the {@link RequestMetrics} of all publish and fetch requests. After each request a snapshot is
+ * written to a file in the Prometheus text format, which can be scraped e.g. by the textfile collector of the node
+ * exporter. The file is replaced atomically, so a scrape never sees half of it.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static MetricsRegistry shared;
+
+    private final File file;
+    private final Map<String, RequestMetrics> totals = new TreeMap<>();
+    private final Map<String, WireMetrics> wire = new TreeMap<>();
+
+    MetricsRegistry(File file) {
+        this.file = file;
+    }
+
+    public static synchronized MetricsRegistry shared() {
+        if (shared == null) {
+            shared = new MetricsRegistry(TransferSettings.fromSystemProperties().getMetricsFile());
+        }
+        return shared;
+    }
+
+    /**
+     * Adds the metrics of a finished request and writes the snapshot.
+     */
+    public synchronized void record(RequestMetrics metrics) {
+        totals.computeIfAbsent(metrics.getOperation(), RequestMetrics::total).add(metrics);
+        try {
+            write();
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not write S3 artifact plugin metrics to `%s`: %s", file, e.getMessage()));
+        }
+    }
+
+    /**
+     * @return the HTTP metrics of the clients of a store, reported in the snapshot from now on
+     */
+    public synchronized WireMetrics wire(String store) {
+        return wire.computeIfAbsent(store, WireMetrics::new);
+    }
+
+    synchronized RequestMetrics getTotal(String operation) {
+        return totals.get(operation);
+    }
+
+    private void write() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(parent.toPath());
+        File temp = new File(parent, file.getName() + ".tmp");
+        Files.write(temp.toPath(), snapshot().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized String snapshot() {
+        StringBuilder out = new StringBuilder();
+        counter(out, "gocd_s3_requests_total", "Publish and fetch requests", RequestMetrics::getRequests);
+        counter(out, "gocd_s3_transfers_total", "Successful transfers of files, parts and ranges", RequestMetrics::getTransfers);
+        counter(out, "gocd_s3_bytes_total", "Bytes transferred", RequestMetrics::getBytes);
+        counter(out, "gocd_s3_retries_total", "Transfers retried after a throttle or a stall", RequestMetrics::getRetries);
+        counter(out, "gocd_s3_throttles_total", "Transfers throttled by S3", RequestMetrics::getThrottles);
+        counter(out, "gocd_s3_stalls_total", "Transfers aborted for making no progress", RequestMetrics::getStalls);
+        summary(out, "gocd_s3_scan_seconds", "Time spent finding the files to publish", RequestMetrics::getScan);
+        summary(out, "gocd_s3_listing_seconds", "Time spent listing the objects to fetch", RequestMetrics::getListing);
+        summary(out, "gocd_s3_client_seconds", "Time spent getting an S3 client", RequestMetrics::getClient);
+        summary(out, "gocd_s3_first_byte_seconds", "Time until the response of a GET arrived", RequestMetrics::getFirstByte);
+        summary(out, "gocd_s3_transfer_seconds", "Duration of successful transfers", RequestMetrics::getTransfer);
+        wireCounter(out, "gocd_s3_http_requests_total", "S3 requests of the SDK", WireMetrics::getRequests);
+        wireCounter(out, "gocd_s3_http_attempts_total", "HTTP requests sent, including retries of the SDK", WireMetrics::getAttempts);
+        wireCounter(out, "gocd_s3_http_connections_total", "HTTP connections opened", WireMetrics::getConnections);
+        wireCounter(out, "gocd_s3_http_retries_total", "HTTP requests retried by the SDK", WireMetrics::getRetries);
+        wireCounter(out, "gocd_s3_http_throttles_total", "Throttling errors returned by S3", WireMetrics::getThrottles);
+        wireCounter(out, "gocd_s3_http_errors_total", "Failed HTTP requests", WireMetrics::getErrors);
+        out.append("# HELP gocd_s3_http_connection_reuse_ratio Share of HTTP requests sent on a reused connection.\n")
+                .append("# TYPE gocd_s3_http_connection_reuse_ratio gauge\n");
+        for (WireMetrics metrics : wire.values()) {
+            out.append(String.format("gocd_s3_http_connection_reuse_ratio{store=\"%s\"} %s\n", metrics.getStore(), metrics.getReuseRatio()));
+        }
+        wireSummary(out, "gocd_s3_http_dns_seconds", "Time spent resolving host names", WireMetrics::getDns);
+        wireSummary(out, "gocd_s3_http_connect_seconds", "Time spent opening TCP connections", WireMetrics::getConnect);
+        wireSummary(out, "gocd_s3_http_tls_seconds", "Time spent in TLS handshakes", WireMetrics::getTls);
+        wireSummary(out, "gocd_s3_http_lease_seconds", "Time requests waited for a pooled connection", WireMetrics::getLease);
+        wireSummary(out, "gocd_s3_http_send_seconds", "Time spent sending requests", WireMetrics::getSend);
+        wireSummary(out, "gocd_s3_http_response_seconds", "Time from sending a request until its response arrived", WireMetrics::getResponse);
+        return out.toString();
+    }
+
+    private void counter(StringBuilder out, String name, String help, ToLongFunction<RequestMetrics> value) {
+        out.append(String.format("# HELP %s %s.\n# TYPE %s counter\n", name, help, name));
+        for (RequestMetrics total : totals.values()) {
+            out.append(String.format("%s{operation=\"%s\"} %d\n", name, total.getOperation(), value.applyAsLong(total)));
+        }
+    }
+
+    private void summary(StringBuilder out, String name, String help, Function<RequestMetrics, LatencyHistogram> histogramOf) {
+        out.append(String.format("# HELP %s %s.\n# TYPE %s summary\n", name, help, name));
+        for (RequestMetrics total : totals.values()) {
+            quantiles(out, name, String.format("operation=\"%s\"", total.getOperation()), histogramOf.apply(total));
+        }
+    }
+
+    private void wireCounter(StringBuilder out, String name, String help, ToLongFunction<WireMetrics> value) {
+        out.append(String.format("# HELP %s %s.\n# TYPE %s counter\n", name, help, name));
+        for (WireMetrics metrics : wire.values()) {
+            out.append(String.format("%s{store=\"%s\"} %d\n", name, metrics.getStore(), value.applyAsLong(metrics)));
+        }
+    }
+
+    private void wireSummary(StringBuilder out, String name, String help, Function<WireMetrics, LatencyHistogram> histogramOf) {
+        out.append(String.format("# HELP %s %s.\n# TYPE %s summary\n", name, help, name));
+        for (WireMetrics metrics : wire.values()) {
+            quantiles(out, name, String.format("store=\"%s\"", metrics.getStore()), histogramOf.apply(metrics));
+        }
+    }
+
+    private static void quantiles(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(String.format("%s{%s,quantile=\"%s\"} %s\n", name, labels, quantile,
+                    seconds(histogram.getPercentileMicros(quantile * 100))));
+        }
+        out.append(String.format("%s_sum{%s} %s\n", name, labels, seconds(histogram.getSumMicros())));
+        out.append(String.format("%s_count{%s} %d\n", name, labels, histogram.getCount()));
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+}
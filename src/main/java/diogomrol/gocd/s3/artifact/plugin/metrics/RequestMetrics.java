@@ -0,0 +1,181 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of a publish or fetch went, and the bytes, retries and throttles of its transfers. Transfers record
+ * into it concurrently; once the request is done it is summarized on the console and added to the
+ * {@link MetricsRegistry}.
+ */
+public class RequestMetrics {
+    private final String operation;
+    private final long startNanos = System.nanoTime();
+    private final LatencyHistogram scan = new LatencyHistogram();
+    private final LatencyHistogram listing = new LatencyHistogram();
+    private final LatencyHistogram client = new LatencyHistogram();
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+    private final LatencyHistogram transfer = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private volatile TransferReport report;
+
+    public RequestMetrics(String operation) {
+        this(operation, 1);
+    }
+
+    private RequestMetrics(String operation, long requests) {
+        this.operation = operation;
+        this.requests.add(requests);
+    }
+
+    /**
+     * @return metrics summing up many requests
+     */
+    static RequestMetrics total(String operation) {
+        return new RequestMetrics(operation, 0);
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the time spent finding the files to publish
+     */
+    public LatencyHistogram getScan() {
+        return scan;
+    }
+
+    /**
+     * @return the time spent listing the objects to fetch
+     */
+    public LatencyHistogram getListing() {
+        return listing;
+    }
+
+    /**
+     * @return the time spent getting an S3 client
+     */
+    public LatencyHistogram getClient() {
+        return client;
+    }
+
+    /**
+     * @return the time from sending a GET until its response headers arrived
+     */
+    public LatencyHistogram getFirstByte() {
+        return firstByte;
+    }
+
+    /**
+     * @return the duration of successful transfers
+     */
+    public LatencyHistogram getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * @return the per-file report of the request, null when none is written
+     */
+    public TransferReport getReport() {
+        return report;
+    }
+
+    public void setReport(TransferReport report) {
+        this.report = report;
+    }
+
+    public void transferred(long bytes, long durationNanos) {
+        transfers.increment();
+        this.bytes.add(bytes);
+        transfer.recordNanos(durationNanos);
+    }
+
+    public void throttled() {
+        throttles.increment();
+        retries.increment();
+    }
+
+    public void stalled() {
+        stalls.increment();
+        retries.increment();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    public long getStalls() {
+        return stalls.sum();
+    }
+
+    void add(RequestMetrics other) {
+        scan.add(other.scan);
+        listing.add(other.listing);
+        client.add(other.client);
+        firstByte.add(other.firstByte);
+        transfer.add(other.transfer);
+        requests.add(other.getRequests());
+        transfers.add(other.getTransfers());
+        bytes.add(other.getBytes());
+        retries.add(other.getRetries());
+        throttles.add(other.getThrottles());
+        stalls.add(other.getStalls());
+    }
+
+    /**
+     * @return one line telling where the time of the request went
+     */
+    public String summary() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        List<String> parts = new ArrayList<>();
+        parts.add(String.format("%d transfers of %.1f MiB in %.1f s (%.1f MiB/s)", getTransfers(), getBytes() / 1048576.0, seconds,
+                getBytes() / 1048576.0 / Math.max(seconds, 0.001)));
+        addLatencies(parts, "transfer", transfer);
+        addLatencies(parts, "first byte", firstByte);
+        parts.add(String.format("%d retries, %d throttled, %d stalled", getRetries(), getThrottles(), getStalls()));
+        addTotal(parts, "scan", scan);
+        addTotal(parts, "listing", listing);
+        addTotal(parts, "client", client);
+        return String.format("S3 %s metrics: %s", operation, String.join("; ", parts));
+    }
+
+    private static void addLatencies(List<String> parts, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() > 0) {
+            parts.add(String.format("%s p50 %s, p99 %s, max %s", name, millis(histogram.getPercentileMicros(50)),
+                    millis(histogram.getPercentileMicros(99)), millis(histogram.getMaxMicros())));
+        }
+    }
+
+    private static void addTotal(List<String> parts, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() > 0) {
+            parts.add(String.format("%s %s", name, millis(histogram.getSumMicros())));
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1f ms", micros / 1000.0);
+    }
+}
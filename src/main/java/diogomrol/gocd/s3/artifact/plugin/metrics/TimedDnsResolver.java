@@ -0,0 +1,29 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.amazonaws.DnsResolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Times the lookups of a resolver, which the SDK asks for each new connection.
+ */
+class TimedDnsResolver implements DnsResolver {
+    private final DnsResolver resolver;
+    private final WireMetrics metrics;
+
+    TimedDnsResolver(DnsResolver resolver, WireMetrics metrics) {
+        this.resolver = resolver;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long start = System.nanoTime();
+        try {
+            return resolver.resolve(host);
+        } finally {
+            metrics.getDns().recordNanos(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.http.conn.ssl.SdkTLSSocketFactory;
+import com.amazonaws.http.settings.HttpClientSettings;
+import com.amazonaws.internal.SdkSSLContext;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The TLS socket factory the SDK uses by default, timing the TCP connect and the handshake of each new connection.
+ */
+class TimedTlsSocketFactory extends SdkTLSSocketFactory {
+    private final WireMetrics metrics;
+    private final ThreadLocal<Long> handshakeNanos = new ThreadLocal<>();
+
+    private final HostnameVerifier hostnameVerifier;
+
+    TimedTlsSocketFactory(SSLContext sslContext, HostnameVerifier hostnameVerifier, WireMetrics metrics) {
+        super(sslContext, hostnameVerifier);
+        this.hostnameVerifier = hostnameVerifier;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return a factory with the same context and verifier as the default factory the SDK builds for an S3 client with
+     * the configuration; S3 clients do not verify host names strictly, so that bucket names with dots match the
+     * wildcard certificate of S3
+     */
+    @SuppressWarnings("deprecation")
+    static TimedTlsSocketFactory create(ClientConfiguration configuration, WireMetrics metrics) {
+        HttpClientSettings settings = HttpClientSettings.adapt(configuration, true);
+        HostnameVerifier hostnameVerifier = settings.useBrowserCompatibleHostNameVerifier()
+                ? SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER
+                : SSLConnectionSocketFactory.STRICT_HOSTNAME_VERIFIER;
+        return new TimedTlsSocketFactory(SdkSSLContext.getPreferredSSLContext(settings.getSecureRandom()), hostnameVerifier, metrics);
+    }
+
+    HostnameVerifier getHostnameVerifier() {
+        return hostnameVerifier;
+    }
+
+    @Override
+    public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                InetSocketAddress localAddress, HttpContext context) throws IOException {
+        handshakeNanos.remove();
+        long start = System.nanoTime();
+        Socket connected = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+        long total = System.nanoTime() - start;
+        Long handshake = handshakeNanos.get();
+        handshakeNanos.remove();
+        metrics.connected(handshake == null ? total : total - handshake, handshake == null ? -1 : handshake);
+        return connected;
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context) throws IOException {
+        long start = System.nanoTime();
+        Socket layered = super.createLayeredSocket(socket, target, port, context);
+        handshakeNanos.set(System.nanoTime() - start);
+        return layered;
+    }
+}
@@ -0,0 +1,212 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Machine-readable report of a publish or fetch: each file with its size, duration, throughput, retries, checksum and
+ * whether it came from a cache, and the totals and percentiles of all files. Transfers of a file, e.g. its parts or
+ * ranges, are added up by key.
+ */
+public class TransferReport {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    private final String operation;
+    private final String bucket;
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, FileReport> files = new LinkedHashMap<>();
+    private boolean listingCached;
+
+    public TransferReport(String operation, String bucket) {
+        this.operation = operation;
+        this.bucket = bucket;
+    }
+
+    /**
+     * @return the file of the key, added on first use so that files keep the order they were planned in
+     */
+    public synchronized FileReport file(String key) {
+        return files.computeIfAbsent(key, FileReport::new);
+    }
+
+    /**
+     * @param startNanos when the first attempt of the transfer started, so that the duration includes its retries
+     */
+    public synchronized void transferred(String key, long bytes, long startNanos, long endNanos) {
+        FileReport file = file(key);
+        file.startNanos = file.transfers == 0 ? startNanos : Math.min(file.startNanos, startNanos);
+        file.endNanos = file.transfers == 0 ? endNanos : Math.max(file.endNanos, endNanos);
+        file.transfers++;
+        file.bytes += bytes;
+    }
+
+    public synchronized void retried(String key) {
+        file(key).retries++;
+    }
+
+    /**
+     * Marks that the objects were taken from the listing cache instead of listing S3.
+     */
+    public synchronized void setListingCached(boolean listingCached) {
+        this.listingCached = listingCached;
+    }
+
+    /**
+     * Writes the report, replacing the file atomically.
+     */
+    public void write(File file, RequestMetrics metrics) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(parent.toPath());
+        File temp = new File(parent, file.getName() + ".tmp");
+        Files.write(temp.toPath(), toJson(metrics).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return a name for the report which sorts by the time the request started
+     */
+    public String fileName() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return String.format("s3-%s-%s.json", operation, format.format(new Date(startMillis)));
+    }
+
+    synchronized String toJson(RequestMetrics metrics) {
+        Json json = new Json();
+        json.operation = operation;
+        json.bucket = bucket;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        json.started = format.format(new Date(startMillis));
+        json.durationSeconds = (System.currentTimeMillis() - startMillis) / 1000.0;
+        json.listingCached = listingCached;
+
+        Totals totals = new Totals();
+        List<Double> durations = new ArrayList<>();
+        List<Double> throughputs = new ArrayList<>();
+        for (FileReport file : files.values()) {
+            json.files.add(file);
+            totals.files++;
+            totals.bytes += file.bytes;
+            totals.retries += file.retries;
+            if (file.transfers > 0) {
+                file.durationMillis = (file.endNanos - file.startNanos) / 1e6;
+                file.mibPerSecond = mibPerSecond(file.bytes, file.durationMillis);
+                durations.add(file.durationMillis);
+                throughputs.add(file.mibPerSecond);
+            }
+        }
+        totals.transfers = metrics.getTransfers();
+        totals.throttles = metrics.getThrottles();
+        totals.stalls = metrics.getStalls();
+        totals.mibPerSecond = mibPerSecond(totals.bytes, json.durationSeconds * 1000);
+        json.totals = totals;
+        json.fileDurationMillis = percentiles(durations, 50, 90, 99, 100);
+        // slow files are the interesting ones, so throughput is reported from the bottom
+        json.fileMibPerSecond = percentiles(throughputs, 0, 10, 50);
+        return GSON.toJson(json);
+    }
+
+    private static double mibPerSecond(long bytes, double millis) {
+        return millis <= 0 ? 0 : round(bytes / 1048576.0 / (millis / 1000));
+    }
+
+    private static Map<String, Double> percentiles(List<Double> values, int... percentiles) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        if (values.isEmpty()) {
+            return result;
+        }
+        double[] sorted = values.stream().mapToDouble(Double::doubleValue).toArray();
+        Arrays.sort(sorted);
+        for (int percentile : percentiles) {
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            String name = percentile == 0 ? "min" : percentile == 100 ? "max" : "p" + percentile;
+            result.put(name, round(sorted[Math.max(0, index)]));
+        }
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    public static class FileReport {
+        private final String key;
+        private long size = -1;
+        private long bytes;
+        private double durationMillis;
+        private double mibPerSecond;
+        private int transfers;
+        private int retries;
+        private String crc32c;
+        private String cacheHit;
+        private transient long startNanos;
+        private transient long endNanos;
+
+        FileReport(String key) {
+            this.key = key;
+        }
+
+        public FileReport setSize(long size) {
+            this.size = size;
+            return this;
+        }
+
+        public FileReport setCrc32c(String crc32c) {
+            this.crc32c = crc32c;
+            return this;
+        }
+
+        /**
+         * @param cacheHit which cache the file was taken from instead of S3, null when it was transferred
+         */
+        public FileReport setCacheHit(String cacheHit) {
+            this.cacheHit = cacheHit;
+            return this;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        int getRetries() {
+            return retries;
+        }
+    }
+
+    private static class Json {
+        private String operation;
+        private String bucket;
+        private String started;
+        private double durationSeconds;
+        private boolean listingCached;
+        private Totals totals;
+        private Map<String, Double> fileDurationMillis;
+        private Map<String, Double> fileMibPerSecond;
+        private final List<FileReport> files = new ArrayList<>();
+    }
+
+    private static class Totals {
+        private int files;
+        private long bytes;
+        private long transfers;
+        private int retries;
+        private long throttles;
+        private long stalls;
+        private double mibPerSecond;
+    }
+}
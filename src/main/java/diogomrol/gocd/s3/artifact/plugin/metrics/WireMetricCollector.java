@@ -0,0 +1,64 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.TimingInfo;
+
+import java.util.List;
+
+/**
+ * Adds the timings and counters the SDK recorded for a request, including its retries, to the {@link WireMetrics} of
+ * the store. Setting it on a client makes the SDK record them.
+ */
+class WireMetricCollector extends RequestMetricCollector {
+    private final WireMetrics metrics;
+
+    WireMetricCollector(WireMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void collectMetrics(Request<?> request, Response<?> response) {
+        long[] leases = ConnectionLeases.take();
+        if (leases[0] > 0) {
+            metrics.getLease().recordNanos(leases[1]);
+        }
+        AWSRequestMetrics requestMetrics = request.getAWSRequestMetrics();
+        if (requestMetrics == null || !requestMetrics.isEnabled()) {
+            return;
+        }
+        TimingInfo timing = requestMetrics.getTimingInfo();
+        record(timing, Field.HttpClientSendRequestTime, metrics.getSend());
+        record(timing, Field.HttpClientReceiveResponseTime, metrics.getResponse());
+        long attempts = Math.max(1, counter(timing, Field.RequestCount));
+        metrics.requested(attempts, attempts - 1, count(requestMetrics, Field.ThrottleException), count(requestMetrics, Field.Exception));
+    }
+
+    private static void record(TimingInfo timing, Field field, LatencyHistogram histogram) {
+        List<TimingInfo> measurements = timing.getAllSubMeasurements(field.name());
+        if (measurements != null) {
+            for (TimingInfo measurement : measurements) {
+                Double millis = measurement.getTimeTakenMillisIfKnown();
+                if (millis != null) {
+                    histogram.recordNanos((long) (millis * 1_000_000));
+                }
+            }
+        }
+    }
+
+    private static long counter(TimingInfo timing, Field field) {
+        Number value = timing.getCounter(field.name());
+        return value == null ? 0 : value.longValue();
+    }
+
+    /**
+     * The SDK counts some events and only attaches the exception of others to the request.
+     */
+    private static long count(AWSRequestMetrics requestMetrics, Field field) {
+        List<Object> properties = requestMetrics.getProperty(field);
+        return Math.max(counter(requestMetrics.getTimingInfo(), field), properties == null ? 0 : properties.size());
+    }
+}
@@ -0,0 +1,153 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SDKGlobalConfiguration;
+import com.amazonaws.SystemDefaultDnsResolver;
+import com.amazonaws.metrics.RequestMetricCollector;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of the HTTP requests to one artifact store went: resolving, connecting, the TLS handshake, waiting
+ * for a pooled connection, sending and awaiting the response, and how often connections were reused. Filled in by
+ * hooks in the S3 clients of the store, see {@link #instrument(ClientConfiguration)}.
+ */
+public class WireMetrics {
+    private final String store;
+    private final LatencyHistogram dns = new LatencyHistogram();
+    private final LatencyHistogram connect = new LatencyHistogram();
+    private final LatencyHistogram tls = new LatencyHistogram();
+    private final LatencyHistogram lease = new LatencyHistogram();
+    private final LatencyHistogram send = new LatencyHistogram();
+    private final LatencyHistogram response = new LatencyHistogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public WireMetrics(String store) {
+        this.store = store;
+    }
+
+    public String getStore() {
+        return store;
+    }
+
+    /**
+     * Times name resolution, connecting and TLS handshakes of the clients built with the configuration.
+     */
+    public void instrument(ClientConfiguration configuration) {
+        configuration.setDnsResolver(new TimedDnsResolver(new SystemDefaultDnsResolver(), this));
+        // the SDK installs a socket factory which trusts any certificate when checking is disabled, keep that one
+        if (!SDKGlobalConfiguration.isCertCheckingDisabled()) {
+            configuration.getApacheHttpClientConfig().setSslSocketFactory(TimedTlsSocketFactory.create(configuration, this));
+        }
+        ConnectionLeases.install();
+    }
+
+    /**
+     * Removes the JVM-wide collector of connection lease times which instrumenting a client set up, when the plugin is
+     * unloaded.
+     */
+    public static void uninstall() {
+        ConnectionLeases.uninstall();
+    }
+
+    /**
+     * @return collector of the timings and counters the SDK records for each request
+     */
+    public RequestMetricCollector requestCollector() {
+        return new WireMetricCollector(this);
+    }
+
+    /**
+     * @return time spent resolving the host names of new connections
+     */
+    public LatencyHistogram getDns() {
+        return dns;
+    }
+
+    /**
+     * @return time spent opening TCP connections to HTTPS endpoints
+     */
+    public LatencyHistogram getConnect() {
+        return connect;
+    }
+
+    public LatencyHistogram getTls() {
+        return tls;
+    }
+
+    /**
+     * @return time each request waited for connections from the pool of the client
+     */
+    public LatencyHistogram getLease() {
+        return lease;
+    }
+
+    public LatencyHistogram getSend() {
+        return send;
+    }
+
+    /**
+     * @return time from sending a request until its response headers arrived
+     */
+    public LatencyHistogram getResponse() {
+        return response;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return HTTP requests sent, including those retried by the SDK
+     */
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    /**
+     * @return connections opened, the other attempts reused a pooled connection
+     */
+    public long getConnections() {
+        // the host is resolved for each new connection
+        return dns.getCount();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getThrottles() {
+        return throttles.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the share of HTTP requests sent on a reused connection
+     */
+    public double getReuseRatio() {
+        long attempts = getAttempts();
+        return attempts == 0 ? 0 : Math.max(0, attempts - getConnections()) / (double) attempts;
+    }
+
+    void connected(long connectNanos, long tlsNanos) {
+        connect.recordNanos(connectNanos);
+        if (tlsNanos >= 0) {
+            tls.recordNanos(tlsNanos);
+        }
+    }
+
+    void requested(long attempts, long retries, long throttles, long errors) {
+        requests.increment();
+        this.attempts.add(attempts);
+        this.retries.add(retries);
+        this.throttles.add(throttles);
+        this.errors.add(errors);
+    }
+}
@@ -3,9 +3,9 @@ package diogomrol.gocd.s3.artifact.plugin.model;
 import org.apache.tools.ant.DirectoryScanner;
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 public class AntDirectoryScanner {
 
@@ -16,7 +16,7 @@ public class AntDirectoryScanner {
         scanner.scan();
 
         String[] allPaths = scanner.getIncludedFiles();
-        List<File> allFiles = new ArrayList<>();
+        Set<File> allFiles = new LinkedHashSet<>();
         String[] directories = scanner.getIncludedDirectories();
         for (String directory : directories) {
             File[] files = new File(baseDir, directory).listFiles();
@@ -27,12 +27,9 @@ public class AntDirectoryScanner {
             }
         }
 
-        for (int i = 0; i < allPaths.length; i++) {
-            File file = new File(allPaths[i]);
-            if (!allFiles.contains(file)) {
-                allFiles.add(new File(allPaths[i]));
-            }
+        for (String path : allPaths) {
+            allFiles.add(new File(path));
         }
-        return allFiles;
+        return new ArrayList<>(allFiles);
     }
 }
@@ -18,9 +18,15 @@ package diogomrol.gocd.s3.artifact.plugin.model;
 
 import diogomrol.gocd.s3.artifact.plugin.annotation.FieldMetadata;
 import diogomrol.gocd.s3.artifact.plugin.annotation.Validatable;
+import diogomrol.gocd.s3.artifact.plugin.annotation.ValidationError;
+import diogomrol.gocd.s3.artifact.plugin.annotation.ValidationResult;
 import diogomrol.gocd.s3.artifact.plugin.utils.Util;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
 
 public class ArtifactStoreConfig implements Validatable {
     @Expose
@@ -43,6 +49,22 @@ public class ArtifactStoreConfig implements Validatable {
     @FieldMetadata(key = "AWSSecretAccessKey", required = true, secure = true)
     private String awssecretaccesskey;
 
+    @Expose
+    @SerializedName("MaxUploadMBps")
+    @FieldMetadata(key = "MaxUploadMBps", required = false)
+    private String maxUploadMBps;
+
+    @Expose
+    @SerializedName("MaxDownloadMBps")
+    @FieldMetadata(key = "MaxDownloadMBps", required = false)
+    private String maxDownloadMBps;
+
+    @Expose
+    @SerializedName("BurstMB")
+    @FieldMetadata(key = "BurstMB", required = false)
+    private String burstMB;
+
+    private static final List<String> RATE_LIMIT_KEYS = Arrays.asList("MaxUploadMBps", "MaxDownloadMBps", "BurstMB");
 
     public ArtifactStoreConfig() {
     }
@@ -68,6 +90,77 @@ public class ArtifactStoreConfig implements Validatable {
         return awssecretaccesskey;
     }
 
+    public void setRateLimits(String maxUploadMBps, String maxDownloadMBps, String burstMB) {
+        this.maxUploadMBps = maxUploadMBps;
+        this.maxDownloadMBps = maxDownloadMBps;
+        this.burstMB = burstMB;
+    }
+
+    /**
+     * @return bytes per second all uploads to this store may use together, 0 for no limit
+     */
+    public double getMaxUploadBytesPerSecond() {
+        return mebibytes(maxUploadMBps);
+    }
+
+    /**
+     * @return bytes per second all downloads from this store may use together, 0 for no limit
+     */
+    public double getMaxDownloadBytesPerSecond() {
+        return mebibytes(maxDownloadMBps);
+    }
+
+    /**
+     * @return bytes which may be moved at once after an idle period, one second of the limit when not set
+     */
+    public long getBurstBytes(double bytesPerSecond) {
+        double burst = mebibytes(burstMB);
+        return (long) Math.max(64 * 1024, burst > 0 ? burst : bytesPerSecond);
+    }
+
+    @Override
+    public ValidationResult validate() {
+        ValidationResult result = new ValidationResult();
+        for (ValidationError error : validateAllFieldsAsRequired()) {
+            if (!RATE_LIMIT_KEYS.contains(error.key())) {
+                result.addError(error);
+            }
+        }
+        validateMebibytes(result, "MaxUploadMBps", maxUploadMBps);
+        validateMebibytes(result, "MaxDownloadMBps", maxDownloadMBps);
+        validateMebibytes(result, "BurstMB", burstMB);
+        return result;
+    }
+
+    private static void validateMebibytes(ValidationResult result, String key, String value) {
+        if (StringUtils.isBlank(value)) {
+            return;
+        }
+        try {
+            double mebibytes = Double.parseDouble(value.trim());
+            if (Double.isNaN(mebibytes) || Double.isInfinite(mebibytes * 1024 * 1024)) {
+                result.addError(key, key + " must be a finite number.");
+            } else if (mebibytes < 0) {
+                result.addError(key, key + " must not be negative.");
+            }
+        } catch (NumberFormatException e) {
+            result.addError(key, key + " must be a number.");
+        }
+    }
+
+    private static double mebibytes(String value) {
+        if (StringUtils.isBlank(value)) {
+            return 0;
+        }
+        try {
+            double bytes = Double.parseDouble(value.trim()) * 1024 * 1024;
+            // NaN and infinity are no limit, like values which are not numbers
+            return Double.isNaN(bytes) || Double.isInfinite(bytes) ? 0 : Math.max(0, bytes);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -78,7 +171,10 @@ public class ArtifactStoreConfig implements Validatable {
         if (s3bucket != null ? !s3bucket.equals(that.s3bucket) : that.s3bucket != null) return false;
         if (region != null ? !region.equals(that.region) : that.region != null) return false;
         if (awsaccesskey != null ? !awsaccesskey.equals(that.awsaccesskey) : that.awsaccesskey != null) return false;
-        return awssecretaccesskey != null ? awssecretaccesskey.equals(that.awssecretaccesskey) : that.awssecretaccesskey == null;
+        if (awssecretaccesskey != null ? !awssecretaccesskey.equals(that.awssecretaccesskey) : that.awssecretaccesskey != null) return false;
+        if (maxUploadMBps != null ? !maxUploadMBps.equals(that.maxUploadMBps) : that.maxUploadMBps != null) return false;
+        if (maxDownloadMBps != null ? !maxDownloadMBps.equals(that.maxDownloadMBps) : that.maxDownloadMBps != null) return false;
+        return burstMB != null ? burstMB.equals(that.burstMB) : that.burstMB == null;
     }
 
     @Override
@@ -87,6 +183,9 @@ public class ArtifactStoreConfig implements Validatable {
         result = 31 * result + (region != null ? region.hashCode() : 0);
         result = 31 * result + (awsaccesskey != null ? awsaccesskey.hashCode() : 0);
         result = 31 * result + (awssecretaccesskey != null ? awssecretaccesskey.hashCode() : 0);
+        result = 31 * result + (maxUploadMBps != null ? maxUploadMBps.hashCode() : 0);
+        result = 31 * result + (maxDownloadMBps != null ? maxDownloadMBps.hashCode() : 0);
+        result = 31 * result + (burstMB != null ? burstMB.hashCode() : 0);
         return result;
     }
 
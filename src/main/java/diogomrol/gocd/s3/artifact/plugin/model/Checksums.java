@@ -0,0 +1,56 @@
+package diogomrol.gocd.s3.artifact.plugin.model;
+
+import com.google.gson.reflect.TypeToken;
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CRC32C checksums of the published files by S3 key, kept in the artifact metadata under {@code Crc32c} so that a
+ * fetch can verify the bytes it writes. Like sizes, they are only kept there for up to {@link SizeSummary#MAX_FILES}
+ * files; the checksums of larger artifacts are uploaded as a manifest whose key is kept under {@code Crc32cManifest}.
+ */
+public class Checksums {
+    public static final String METADATA_KEY = "Crc32c";
+    public static final String MANIFEST_METADATA_KEY = "Crc32cManifest";
+
+    private Checksums() {
+    }
+
+    /**
+     * @return the checksums to keep in the artifact metadata, or null when there are none or too many, see
+     * {@link #needsManifest(Map)}
+     */
+    public static Map<String, String> toMetadata(Map<String, String> checksumsByKey) {
+        if (checksumsByKey.isEmpty() || checksumsByKey.size() > SizeSummary.MAX_FILES) {
+            return null;
+        }
+        return new TreeMap<>(checksumsByKey);
+    }
+
+    public static boolean needsManifest(Map<String, String> checksumsByKey) {
+        return checksumsByKey.size() > SizeSummary.MAX_FILES;
+    }
+
+    /**
+     * @return the key of the manifest with the checksums, or null when they are kept in the metadata
+     */
+    public static String manifestKey(Map<String, Object> metadata) {
+        Object value = metadata.get(MANIFEST_METADATA_KEY);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @return checksums by S3 key, empty for artifacts published without them
+     */
+    public static Map<String, String> fromMetadata(Map<String, Object> metadata) {
+        Object value = metadata.get(METADATA_KEY);
+        if (value == null) {
+            return Collections.emptyMap();
+        }
+        return Util.GSON.fromJson(Util.GSON.toJsonTree(value), new TypeToken<Map<String, String>>() {
+        }.getType());
+    }
+}
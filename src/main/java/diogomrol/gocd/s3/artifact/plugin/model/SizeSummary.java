@@ -0,0 +1,79 @@
+package diogomrol.gocd.s3.artifact.plugin.model;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sizes of the published files, kept in the artifact metadata under {@code Size} so that a fetch can plan its
+ * downloads before talking to S3. Sizes of individual files are only kept for up to {@link #MAX_FILES} files.
+ */
+public class SizeSummary {
+    public static final String METADATA_KEY = "Size";
+    static final int MAX_FILES = 1000;
+
+    @Expose
+    @SerializedName("TotalBytes")
+    private long totalBytes;
+
+    @Expose
+    @SerializedName("FileCount")
+    private int fileCount;
+
+    @Expose
+    @SerializedName("Files")
+    private Map<String, Long> files;
+
+    public SizeSummary() {
+    }
+
+    public SizeSummary(Map<String, Long> sizesByKey) {
+        this.fileCount = sizesByKey.size();
+        for (long size : sizesByKey.values()) {
+            totalBytes += size;
+        }
+        this.files = sizesByKey.size() <= MAX_FILES ? new TreeMap<>(sizesByKey) : null;
+    }
+
+    /**
+     * @return the summary stored in artifact metadata, or null for artifacts published without one
+     */
+    public static SizeSummary fromMetadata(Map<String, Object> metadata) {
+        Object value = metadata.get(METADATA_KEY);
+        if (value == null) {
+            return null;
+        }
+        return Util.GSON.fromJson(Util.GSON.toJsonTree(value), SizeSummary.class);
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * @return whether the size of every published file is known
+     */
+    public boolean hasAllFiles() {
+        return files != null && files.size() == fileCount;
+    }
+
+    /**
+     * @return sizes by S3 key, empty when there were too many files to keep
+     */
+    public Map<String, Long> getFiles() {
+        return files == null ? Collections.emptyMap() : Collections.unmodifiableMap(files);
+    }
+
+    public long sizeOf(String key) {
+        Long size = getFiles().get(key);
+        return size == null ? -1 : size;
+    }
+}
@@ -0,0 +1,61 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Exports traces on a daemon thread, so that a slow or unreachable collector does not hold up the publish or fetch
+ * whose trace ended. Traces which end while {@link #MAX_PENDING} others wait to be exported are dropped. The thread
+ * stops when it has been idle for a minute.
+ */
+class BackgroundExporter implements SpanExporter {
+    static final int MAX_PENDING = 64;
+
+    private final SpanExporter exporter;
+    private final ThreadPoolExecutor executor;
+
+    BackgroundExporter(SpanExporter exporter) {
+        this.exporter = exporter;
+        this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_PENDING), runnable -> {
+            Thread thread = new Thread(runnable, "s3-trace-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void export(Trace trace, List<TraceSpan> spans) throws IOException {
+        try {
+            executor.execute(() -> {
+                try {
+                    exporter.export(trace, spans);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn(String.format("Could not export trace %s of the S3 artifact plugin: %s", trace.getTraceId(), e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IOException(String.format("%d traces are already waiting to be exported", MAX_PENDING));
+        }
+    }
+
+    /**
+     * @return whether the traces which ended before were exported within the timeout
+     */
+    boolean awaitExports(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (executor.getCompletedTaskCount() < executor.getTaskCount()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
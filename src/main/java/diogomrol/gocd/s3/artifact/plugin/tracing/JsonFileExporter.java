@@ -0,0 +1,49 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes each trace to its own file in the OTLP JSON encoding, for when no collector is running. The files can be
+ * posted to a collector later as they are. Only the most recent {@code maxFiles} traces are kept.
+ */
+class JsonFileExporter implements SpanExporter {
+    private static final String SUFFIX = ".json";
+
+    private final File dir;
+    private final int maxFiles;
+
+    JsonFileExporter(File dir, int maxFiles) {
+        this.dir = dir;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public void export(Trace trace, List<TraceSpan> spans) throws IOException {
+        Files.createDirectories(dir.toPath());
+        File temp = new File(dir, trace.getTraceId() + SUFFIX + ".tmp");
+        Files.write(temp.toPath(), OtlpJson.encode(trace, spans).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), new File(dir, trace.getTraceId() + SUFFIX).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        sweep();
+    }
+
+    /**
+     * Deletes the oldest traces beyond {@code maxFiles}.
+     */
+    private void sweep() {
+        File[] files = dir.listFiles((parent, name) -> name.endsWith(SUFFIX));
+        if (files == null || files.length <= maxFiles) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int index = 0; index < files.length - maxFiles; index++) {
+            files[index].delete();
+        }
+    }
+}
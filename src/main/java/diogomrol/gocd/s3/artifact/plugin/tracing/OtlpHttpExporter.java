@@ -0,0 +1,44 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Posts traces to an OTLP/HTTP collector, e.g. {@code http://localhost:4318/v1/traces}.
+ */
+class OtlpHttpExporter implements SpanExporter {
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final URL endpoint;
+
+    OtlpHttpExporter(URL endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public void export(Trace trace, List<TraceSpan> spans) throws IOException {
+        byte[] body = OtlpJson.encode(trace, spans).getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException(String.format("Collector `%s` answered %d %s", endpoint, status, connection.getResponseMessage()));
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes spans in the JSON encoding of the OpenTelemetry protocol, as accepted by the {@code /v1/traces} endpoint of
+ * an OTLP/HTTP collector.
+ */
+class OtlpJson {
+    static final String SERVICE_NAME = "gocd-s3-artifact-plugin";
+    private static final String SCOPE_NAME = "diogomrol.gocd.s3.artifact.plugin";
+    private static final int SPAN_KIND_INTERNAL = 1;
+    private static final int STATUS_CODE_ERROR = 2;
+
+    private OtlpJson() {
+    }
+
+    static String encode(Trace trace, List<TraceSpan> spans) {
+        JsonArray encodedSpans = new JsonArray();
+        for (TraceSpan span : spans) {
+            encodedSpans.add(encode(trace, span));
+        }
+        JsonObject scope = new JsonObject();
+        scope.addProperty("name", SCOPE_NAME);
+        JsonObject scopeSpans = new JsonObject();
+        scopeSpans.add("scope", scope);
+        scopeSpans.add("spans", encodedSpans);
+
+        Map<String, Object> resourceAttributes = new LinkedHashMap<>();
+        resourceAttributes.put("service.name", SERVICE_NAME);
+        JsonObject resource = new JsonObject();
+        resource.add("attributes", attributes(resourceAttributes));
+        JsonObject resourceSpans = new JsonObject();
+        resourceSpans.add("resource", resource);
+        resourceSpans.add("scopeSpans", single(scopeSpans));
+
+        JsonObject request = new JsonObject();
+        request.add("resourceSpans", single(resourceSpans));
+        return request.toString();
+    }
+
+    private static JsonObject encode(Trace trace, TraceSpan span) {
+        JsonObject encoded = new JsonObject();
+        encoded.addProperty("traceId", span.getTraceId());
+        encoded.addProperty("spanId", span.getSpanId());
+        if (span.getParentSpanId() != null) {
+            encoded.addProperty("parentSpanId", span.getParentSpanId());
+        }
+        encoded.addProperty("name", span.getName());
+        encoded.addProperty("kind", SPAN_KIND_INTERNAL);
+        encoded.addProperty("startTimeUnixNano", Long.toString(span.getStartEpochNanos()));
+        encoded.addProperty("endTimeUnixNano", Long.toString(span.getEndEpochNanos()));
+        Map<String, Object> attributes = new LinkedHashMap<>(trace.getAttributes());
+        attributes.putAll(span.getAttributes());
+        encoded.add("attributes", attributes(attributes));
+        if (span.getError() != null) {
+            JsonObject status = new JsonObject();
+            status.addProperty("code", STATUS_CODE_ERROR);
+            status.addProperty("message", span.getError());
+            encoded.add("status", status);
+        }
+        return encoded;
+    }
+
+    private static JsonArray attributes(Map<String, Object> attributes) {
+        JsonArray encoded = new JsonArray();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            JsonObject value = new JsonObject();
+            Object raw = attribute.getValue();
+            if (raw instanceof Boolean) {
+                value.addProperty("boolValue", (Boolean) raw);
+            } else if (raw instanceof Integer || raw instanceof Long) {
+                // int64 values are strings in the JSON encoding of protobuf
+                value.addProperty("intValue", raw.toString());
+            } else if (raw instanceof Number) {
+                value.addProperty("doubleValue", (Number) raw);
+            } else {
+                value.addProperty("stringValue", raw.toString());
+            }
+            JsonObject keyValue = new JsonObject();
+            keyValue.addProperty("key", attribute.getKey());
+            keyValue.add("value", value);
+            encoded.add(keyValue);
+        }
+        return encoded;
+    }
+
+    private static JsonArray single(JsonObject element) {
+        JsonArray array = new JsonArray();
+        array.add(element);
+        return array;
+    }
+}
@@ -0,0 +1,11 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Sends the spans of a finished trace somewhere.
+ */
+interface SpanExporter {
+    void export(Trace trace, List<TraceSpan> spans) throws IOException;
+}
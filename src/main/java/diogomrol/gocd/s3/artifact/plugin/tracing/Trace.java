@@ -0,0 +1,73 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * The spans of one request, collected as they end and exported together when the root span ends. Timestamps come from
+ * the monotonic clock, anchored to the wall clock once per trace, so spans of a trace never overlap by clock skew.
+ */
+class Trace {
+    private final String traceId = randomHex(16);
+    private final long epochStartNanos = System.currentTimeMillis() * 1_000_000;
+    private final long nanoStart = System.nanoTime();
+    private final Map<String, String> attributes;
+    private final SpanExporter exporter;
+    private final List<TraceSpan> ended = new ArrayList<>();
+    private TraceSpan root;
+
+    Trace(Map<String, String> attributes, SpanExporter exporter) {
+        this.attributes = attributes;
+        this.exporter = exporter;
+    }
+
+    TraceSpan start(String name) {
+        root = new TraceSpan(this, null, name);
+        return root;
+    }
+
+    String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return the tags of the job and store, which all spans of the trace carry
+     */
+    Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    long epochNanos() {
+        return epochStartNanos + System.nanoTime() - nanoStart;
+    }
+
+    void ended(TraceSpan span) {
+        List<TraceSpan> spans;
+        synchronized (this) {
+            ended.add(span);
+            if (span != root) {
+                return;
+            }
+            spans = new ArrayList<>(ended);
+        }
+        try {
+            exporter.export(this, spans);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn(String.format("Could not export trace %s of the S3 artifact plugin: %s", traceId, e));
+        }
+    }
+
+    static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++) {
+            hex.append(String.format("%02x", ThreadLocalRandom.current().nextInt(256)));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,119 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed operation of a publish or fetch, with the request itself as the root span. Spans may be started and ended
+ * from any thread; the trace is exported once its root ends. {@link #NONE} stands for a request which is not traced.
+ */
+public class TraceSpan implements AutoCloseable {
+    public static final TraceSpan NONE = new TraceSpan(null, null, null);
+
+    private final Trace trace;
+    private final String spanId;
+    private final String parentSpanId;
+    private final String name;
+    private final long startEpochNanos;
+    private final Map<String, Object> attributes = new LinkedHashMap<>();
+    private long endEpochNanos;
+    private String error;
+
+    TraceSpan(Trace trace, TraceSpan parent, String name) {
+        this.trace = trace;
+        this.parentSpanId = parent == null ? null : parent.spanId;
+        this.name = name;
+        this.spanId = trace == null ? null : Trace.randomHex(8);
+        this.startEpochNanos = trace == null ? 0 : trace.epochNanos();
+    }
+
+    public boolean isRecording() {
+        return trace != null;
+    }
+
+    /**
+     * Starts a span of an operation within this one.
+     */
+    public TraceSpan child(String name) {
+        return trace == null ? NONE : new TraceSpan(trace, this, name);
+    }
+
+    public TraceSpan setAttribute(String key, Object value) {
+        if (trace != null && value != null) {
+            synchronized (this) {
+                attributes.put(key, value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Marks the operation as failed.
+     */
+    public TraceSpan setError(String message) {
+        if (trace != null) {
+            synchronized (this) {
+                error = message == null ? "" : message;
+            }
+        }
+        return this;
+    }
+
+    public TraceSpan setError(Throwable e) {
+        return setError(e.toString());
+    }
+
+    /**
+     * Ends the span; ending it again has no effect.
+     */
+    public void end() {
+        if (trace == null) {
+            return;
+        }
+        synchronized (this) {
+            if (endEpochNanos != 0) {
+                return;
+            }
+            endEpochNanos = trace.epochNanos();
+        }
+        trace.ended(this);
+    }
+
+    @Override
+    public void close() {
+        end();
+    }
+
+    String getTraceId() {
+        return trace.getTraceId();
+    }
+
+    String getSpanId() {
+        return spanId;
+    }
+
+    String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    synchronized long getEndEpochNanos() {
+        return endEpochNanos;
+    }
+
+    synchronized Map<String, Object> getAttributes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+    }
+
+    synchronized String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,76 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Starts a trace for each publish and fetch, exported to an OTLP collector when an endpoint is configured and to
+ * JSON files otherwise. Traces are exported in the background once their root span ends.
+ */
+public class Tracer {
+    public static final Tracer DISABLED = new Tracer(null);
+    private static Tracer shared;
+
+    private final SpanExporter exporter;
+
+    Tracer(SpanExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    public static synchronized Tracer shared() {
+        if (shared == null) {
+            shared = fromSettings(TransferSettings.fromSystemProperties());
+        }
+        return shared;
+    }
+
+    public static Tracer fromSettings(TransferSettings settings) {
+        if (!settings.isTracingEnabled()) {
+            return DISABLED;
+        }
+        String endpoint = settings.getTracingOtlpEndpoint();
+        if (endpoint != null) {
+            try {
+                return new Tracer(new BackgroundExporter(new OtlpHttpExporter(new URL(endpoint))));
+            } catch (MalformedURLException e) {
+                LOG.warn(String.format("Ignoring invalid OTLP endpoint `%s`, writing traces to `%s`", endpoint, settings.getTracingDir()));
+            }
+        }
+        return new Tracer(new BackgroundExporter(new JsonFileExporter(settings.getTracingDir(), settings.getTracingMaxFiles())));
+    }
+
+    public boolean isEnabled() {
+        return exporter != null;
+    }
+
+    /**
+     * @return whether the traces which ended before were exported within the timeout
+     */
+    public boolean awaitExports(long timeout, TimeUnit unit) throws InterruptedException {
+        return !(exporter instanceof BackgroundExporter) || ((BackgroundExporter) exporter).awaitExports(timeout, unit);
+    }
+
+    /**
+     * @param attributes tags of the job and store, added to every span of the trace; null values are left out
+     * @return the root span, which exports the trace when it ends
+     */
+    public TraceSpan startTrace(String name, Map<String, String> attributes) {
+        if (exporter == null) {
+            return TraceSpan.NONE;
+        }
+        Map<String, String> tags = new LinkedHashMap<>();
+        attributes.forEach((key, value) -> {
+            if (value != null) {
+                tags.put(key, value);
+            }
+        });
+        return new Trace(tags, exporter).start(name);
+    }
+}
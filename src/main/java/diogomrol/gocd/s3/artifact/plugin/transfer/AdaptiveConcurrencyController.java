@@ -0,0 +1,126 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.util.function.LongSupplier;
+
+/**
+ * AIMD limit on the number of in-flight S3 requests.
+ * <p>
+ * Completed requests are grouped into windows of {@code limit} completions. The limit grows by one when a window
+ * shows better throughput than the previous one, and is cut multiplicatively when S3 throttles or when a request
+ * takes far longer per MiB than the recent average. At most one cut is applied per window, so a burst of
+ * {@code 503 SlowDown} responses caused by the same congestion only backs off once.
+ */
+public class AdaptiveConcurrencyController {
+    static final double THROTTLE_DECREASE_FACTOR = 0.5;
+    static final double LATENCY_DECREASE_FACTOR = 0.75;
+    static final double IMPROVEMENT_THRESHOLD = 1.05;
+    static final double LATENCY_SPIKE_FACTOR = 3.0;
+    static final int LATENCY_WARMUP_SAMPLES = 5;
+    private static final double LATENCY_EWMA_WEIGHT = 0.2;
+    private static final double BYTES_PER_COST_UNIT = 1024 * 1024;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final LongSupplier nanoClock;
+
+    private int limit;
+    private int inFlight;
+    private long windowStart;
+    private long windowBytes;
+    private int windowCompletions;
+    private boolean backedOffInWindow;
+    private double previousThroughput = -1;
+    private double latencyEwma;
+    private int latencySamples;
+    private int completedWindows;
+
+    public AdaptiveConcurrencyController(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, System::nanoTime);
+    }
+
+    AdaptiveConcurrencyController(int initialLimit, int minLimit, int maxLimit, LongSupplier nanoClock) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.nanoClock = nanoClock;
+        this.limit = Math.min(maxLimit, Math.max(minLimit, initialLimit));
+        this.windowStart = nanoClock.getAsLong();
+    }
+
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    public synchronized void onSuccess(long bytes, long durationNanos) {
+        inFlight--;
+        windowBytes += bytes;
+        windowCompletions++;
+        if (isLatencySpike(bytes, durationNanos)) {
+            decrease(LATENCY_DECREASE_FACTOR);
+        } else if (windowCompletions >= limit) {
+            closeWindow();
+        }
+    }
+
+    public synchronized void onThrottle() {
+        inFlight--;
+        decrease(THROTTLE_DECREASE_FACTOR);
+    }
+
+    public synchronized void onFailure() {
+        inFlight--;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return true once enough windows were observed for the limit to be worth remembering for the next job.
+     */
+    public synchronized boolean isCalibrated() {
+        return completedWindows >= 2;
+    }
+
+    private boolean isLatencySpike(long bytes, long durationNanos) {
+        double cost = durationNanos / Math.max(1.0, bytes / BYTES_PER_COST_UNIT);
+        boolean spike = latencySamples >= LATENCY_WARMUP_SAMPLES && cost > latencyEwma * LATENCY_SPIKE_FACTOR;
+        latencyEwma = latencySamples == 0 ? cost : latencyEwma + LATENCY_EWMA_WEIGHT * (cost - latencyEwma);
+        latencySamples++;
+        return spike;
+    }
+
+    private void closeWindow() {
+        double throughput = windowBytes / (double) Math.max(1, nanoClock.getAsLong() - windowStart);
+        if (previousThroughput < 0 || throughput > previousThroughput * IMPROVEMENT_THRESHOLD) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+        previousThroughput = throughput;
+        completedWindows++;
+        backedOffInWindow = false;
+        resetWindow();
+    }
+
+    private void decrease(double factor) {
+        if (backedOffInWindow) {
+            return;
+        }
+        limit = Math.max(minLimit, (int) Math.floor(limit * factor));
+        backedOffInWindow = true;
+        previousThroughput = -1;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        windowStart = nanoClock.getAsLong();
+        windowBytes = 0;
+        windowCompletions = 0;
+    }
+}
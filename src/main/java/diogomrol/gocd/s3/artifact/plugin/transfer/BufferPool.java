@@ -0,0 +1,99 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Direct buffers reused by the file I/O of all transfers, so multi-GB transfers do not allocate a buffer per request.
+ * Direct buffers also let the JVM read and write files without copying through a temporary native buffer. When
+ * bounded, no more than {@code maxBuffers} buffers ever exist and transfers wait for a buffer to be released, so the
+ * memory used for payloads does not grow with the size or number of artifacts. A transfer holds one buffer at a time.
+ */
+public class BufferPool {
+    static final int BUFFER_SIZE = 128 * 1024;
+    private static final int MAX_RETAINED = 64;
+    private static BufferPool shared;
+
+    private final int bufferSize;
+    private final int maxRetained;
+    private final int maxBuffers;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+    private long allocated;
+
+    BufferPool(int bufferSize, int maxRetained) {
+        this(bufferSize, maxRetained, 0);
+    }
+
+    /**
+     * @param maxBuffers buffers which may exist at once, 0 for no bound
+     */
+    BufferPool(int bufferSize, int maxRetained, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxBuffers > 0 ? maxBuffers : maxRetained;
+        this.maxBuffers = maxBuffers;
+    }
+
+    public static synchronized BufferPool shared() {
+        if (shared == null) {
+            shared = fromSettings(TransferSettings.fromSystemProperties());
+        }
+        return shared;
+    }
+
+    static BufferPool fromSettings(TransferSettings settings) {
+        long poolBytes = settings.getBufferPoolBytes();
+        if (poolBytes <= 0) {
+            return new BufferPool(BUFFER_SIZE, MAX_RETAINED);
+        }
+        return new BufferPool(BUFFER_SIZE, 0, (int) Math.max(1, Math.min(Integer.MAX_VALUE, poolBytes / BUFFER_SIZE)));
+    }
+
+    /**
+     * Takes a free buffer, waiting for one to be released when the pool is bounded and all of them are in use.
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        synchronized (this) {
+            while (true) {
+                ByteBuffer buffer = free.poll();
+                if (buffer != null) {
+                    buffer.clear();
+                    return buffer;
+                }
+                if (maxBuffers <= 0 || allocated < maxBuffers) {
+                    allocated++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a transfer buffer");
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer != null && free.size() < maxRetained) {
+            free.push(buffer);
+            notify();
+        }
+    }
+
+    /**
+     * @return buffers which may exist at once, 0 when the pool is not bounded
+     */
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    /**
+     * @return how many buffers were allocated since the pool was created
+     */
+    synchronized long getAllocated() {
+        return allocated;
+    }
+}
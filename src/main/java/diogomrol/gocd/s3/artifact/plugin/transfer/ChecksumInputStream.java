@@ -0,0 +1,89 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Checksum;
+
+/**
+ * Computes the {@link Crc32c} of the bytes the SDK sends while it reads them. When the SDK resets the stream to retry
+ * a request, bytes read again are not added to the checksum a second time.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+    private final Checksum checksum = Crc32c.create();
+    private long position;
+    private long markPosition;
+    private long checksummed;
+    private boolean skippedUnread;
+
+    public ChecksumInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @return a resettable stream of the range of the file, so the SDK can retry the request from it
+     */
+    public static ChecksumInputStream ofFile(File file, long offset, long length) throws IOException {
+        return new ChecksumInputStream(new FileRegionInputStream(file, offset, length));
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            if (position == checksummed) {
+                checksum.update(b);
+                checksummed++;
+            } else if (position > checksummed) {
+                skippedUnread = true;
+            }
+            position++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            long alreadyChecksummed = checksummed - position;
+            if (alreadyChecksummed < read) {
+                if (alreadyChecksummed < 0) {
+                    skippedUnread = true;
+                }
+                int from = (int) Math.max(0, alreadyChecksummed);
+                checksum.update(b, off + from, read - from);
+                checksummed = position + read;
+            }
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        in.mark(readLimit);
+        markPosition = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        in.reset();
+        position = markPosition;
+    }
+
+    /**
+     * @return the checksum of the first {@code length} bytes, or -1 when they were not all read
+     */
+    public long getChecksum(long length) {
+        return !skippedUnread && checksummed == length ? checksum.getValue() : -1;
+    }
+}
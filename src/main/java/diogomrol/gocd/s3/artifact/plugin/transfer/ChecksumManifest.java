@@ -0,0 +1,57 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.gson.reflect.TypeToken;
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CRC32C checksums of an artifact with more files than the artifact metadata keeps, stored as a JSON object of its
+ * own. The manifest is kept under the destination of the artifact, next to its files, as {@link #FILE_NAME}; fetches
+ * leave it out when they list the files of the artifact.
+ */
+public class ChecksumManifest {
+    public static final String FILE_NAME = ".checksums.json";
+
+    private ChecksumManifest() {
+    }
+
+    /**
+     * @return the key of the manifest of an artifact published to the destination, which is empty for the bucket root
+     */
+    public static String keyFor(String destination) {
+        return destination.isEmpty() ? FILE_NAME : destination + "/" + FILE_NAME;
+    }
+
+    public static void upload(AmazonS3 s3, String bucketName, String key, Map<String, String> checksumsByKey) {
+        byte[] json = Util.GSON.toJson(new TreeMap<>(checksumsByKey)).getBytes(StandardCharsets.UTF_8);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(json.length);
+        metadata.setContentType("application/json");
+        s3.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(json), metadata));
+    }
+
+    /**
+     * @return checksums by S3 key
+     */
+    public static Map<String, String> load(AmazonS3 s3, String bucketName, String key) throws IOException {
+        try (S3Object object = s3.getObject(new GetObjectRequest(bucketName, key));
+             Reader reader = new InputStreamReader(object.getObjectContent(), StandardCharsets.UTF_8)) {
+            Map<String, String> checksums = Util.GSON.fromJson(reader, new TypeToken<Map<String, String>>() {
+            }.getType());
+            return checksums == null ? Collections.emptyMap() : checksums;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Remembers the concurrency limit each store settled at, so the next job on the same agent starts from it
+ * instead of probing up from the default again. Agents sharing a home directory coordinate through a lock file.
+ */
+public class ConcurrencyHistory {
+    private static final String FILE_NAME = "concurrency.properties";
+    private static final String LOCK_FILE_NAME = FILE_NAME + ".lock";
+
+    private final File stateDir;
+
+    public ConcurrencyHistory(File stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    public int initialLimit(String storeKey, int defaultLimit) {
+        try {
+            String value = load().getProperty(storeKey);
+            return value == null ? defaultLimit : Integer.parseInt(value);
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn(String.format("Could not read concurrency history for %s: %s", storeKey, e.getMessage()));
+            return defaultLimit;
+        }
+    }
+
+    public void record(String storeKey, int limit) {
+        synchronized (ConcurrencyHistory.class) {
+            try {
+                Files.createDirectories(stateDir.toPath());
+                try (FileChannel lockChannel = FileChannel.open(new File(stateDir, LOCK_FILE_NAME).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = lockChannel.lock();
+                    try {
+                        Properties properties = load();
+                        properties.setProperty(storeKey, Integer.toString(limit));
+                        File tmpFile = File.createTempFile(FILE_NAME, ".tmp", stateDir);
+                        try (OutputStream out = new FileOutputStream(tmpFile)) {
+                            properties.store(out, "Learned S3 transfer concurrency per store");
+                        }
+                        Files.move(tmpFile.toPath(), new File(stateDir, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        lock.release();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not save concurrency history for %s: %s", storeKey, e.getMessage()));
+            }
+        }
+    }
+
+    private Properties load() throws IOException {
+        Properties properties = new Properties();
+        File file = new File(stateDir, FILE_NAME);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,134 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksums of transferred files. Uses {@code java.util.zip.CRC32C}, which the JVM accelerates
+ * with CPU instructions, when running on Java 9 or newer and a table driven implementation on older JVMs. Checksums
+ * of consecutive parts or ranges are computed independently and combined, so they are never read twice.
+ */
+public final class Crc32c {
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+    private static final Constructor<? extends Checksum> JDK_CRC32C = jdkCrc32c();
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[n] = crc;
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    public static Checksum create() {
+        if (JDK_CRC32C != null) {
+            try {
+                return JDK_CRC32C.newInstance();
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+        return new TableCrc32c();
+    }
+
+    public static String toHex(long crc) {
+        return String.format("%08x", crc);
+    }
+
+    public static long fromHex(String hex) {
+        return Long.parseLong(hex, 16);
+    }
+
+    /**
+     * @return the checksum of two consecutive blocks, given the checksum of each and the length of the second one
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = POLYNOMIAL & 0xFFFFFFFFL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);
+        square(odd, even);
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Checksum> jdkCrc32c() {
+        try {
+            return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C").getConstructor();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static class TableCrc32c implements Checksum {
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            int value = crc;
+            for (int i = off; i < off + len; i++) {
+                value = (value >>> 8) ^ TABLE[(value ^ b[i]) & 0xFF];
+            }
+            crc = value;
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
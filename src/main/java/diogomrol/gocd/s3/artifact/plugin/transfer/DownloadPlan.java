@@ -0,0 +1,410 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import diogomrol.gocd.s3.artifact.plugin.metrics.TransferReport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Checksum;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * The objects a fetch downloads, planned before the first GET. Objects of at least the range threshold are split into
+ * equally sized ranged GETs, which are written into a file preallocated with the object size. When sizes are known,
+ * free disk space is checked up front instead of failing half way through. Objects with a known CRC32C are verified
+ * while they are written; the checksums of ranges are combined once all of them are downloaded. Objects can be added
+ * while earlier ones are already downloading, e.g. page by page while a prefix is listed. Large objects can be
+ * downloaded once for all agents of the host through {@link SharedFetch}.
+ */
+public class DownloadPlan implements AutoCloseable {
+    private final String bucketName;
+    private final long rangeThreshold;
+    private final long rangePartSize;
+    private final SharedFetch sharedFetch;
+    private final List<Item> items = new ArrayList<>();
+    private int planned;
+    private long usableSpace = -1;
+
+    public DownloadPlan(String bucketName, TransferSettings settings) {
+        this(bucketName, settings.getRangeThresholdBytes(), settings.getRangePartSizeBytes(), SharedFetch.fromSettings(settings));
+    }
+
+    DownloadPlan(String bucketName, long rangeThreshold, long rangePartSize) {
+        this(bucketName, rangeThreshold, rangePartSize, SharedFetch.DISABLED);
+    }
+
+    DownloadPlan(String bucketName, long rangeThreshold, long rangePartSize, SharedFetch sharedFetch) {
+        this.bucketName = bucketName;
+        this.rangeThreshold = rangeThreshold;
+        this.rangePartSize = rangePartSize;
+        this.sharedFetch = sharedFetch;
+    }
+
+    /**
+     * @param size size of the object, -1 when unknown
+     * @param eTag ETag the ranges must match, null when unknown
+     */
+    public void add(String key, File outFile, long size, String eTag) {
+        add(key, outFile, size, eTag, null);
+    }
+
+    /**
+     * @param crc32c hex CRC32C the downloaded bytes must match, null when unknown
+     */
+    public void add(String key, File outFile, long size, String eTag, String crc32c) {
+        items.add(new Item(key, outFile, size, eTag, crc32c));
+    }
+
+    public int getFileCount() {
+        return items.size();
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (Item item : items) {
+            total += Math.max(0, item.size);
+        }
+        return total;
+    }
+
+    /**
+     * Checks that all objects of the plan fit into the space which was free on the first check, before any download.
+     */
+    public void checkFreeSpace(File destination) throws IOException {
+        long required = getTotalBytes();
+        File existing = destination.getAbsoluteFile();
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        if (required == 0 || existing == null) {
+            return;
+        }
+        if (usableSpace < 0) {
+            usableSpace = existing.getUsableSpace();
+        }
+        long usable = usableSpace;
+        if (usable < required) {
+            throw new IOException(String.format("Not enough free disk space to fetch %d bytes into `%s`, only %d bytes are available",
+                    required, destination, usable));
+        }
+    }
+
+    /**
+     * Creates the transfers of the objects added since the last call, preallocating the files which are downloaded in
+     * ranges. Objects shared with other agents of the host, which another agent is already downloading, are waited for.
+     */
+    public List<TransferEngine.Transfer> transfers(ObjectDownloader downloader) throws IOException {
+        List<TransferEngine.Transfer> transfers = new ArrayList<>();
+        List<Item> added = new ArrayList<>(items.subList(planned, items.size()));
+        planned = items.size();
+        for (Item item : added) {
+            SharedFetch.Entry shared = sharedFetch.entry(bucketName, item.key, item.size, item.eTag, item.crc32c);
+            if (shared != null && !shared.lead()) {
+                transfers.add(new SharedDownload(downloader, item, shared));
+                continue;
+            }
+            item.shared = shared;
+            item.target = shared == null ? item.outFile : shared.getPartFile();
+            if (item.size < rangeThreshold) {
+                transfers.add(new ObjectDownload(downloader, item));
+                continue;
+            }
+            ObjectDownloader.createParentDirectories(item.target);
+            try (RandomAccessFile file = new RandomAccessFile(item.target, "rw")) {
+                file.setLength(item.size);
+            }
+            long parts = (item.size + rangePartSize - 1) / rangePartSize;
+            item.rangeChecksums = new long[(int) parts];
+            item.pendingRanges = new AtomicInteger((int) parts);
+            LOG.info(String.format("Retrieving file `%s` from S3 bucket `%s` in %d ranges.", item.key, bucketName, parts));
+            for (int range = 0; range < parts; range++) {
+                long start = range * rangePartSize;
+                transfers.add(new RangeDownload(downloader, item, range, start, Math.min(item.size, start + rangePartSize) - 1));
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Checks the objects downloaded in ranges against their CRC32C, once all transfers of the plan have completed.
+     */
+    public void verifyChecksums() throws IOException {
+        for (Item item : items) {
+            verifyRanges(item);
+        }
+    }
+
+    /**
+     * Adds the size and checksum of each object to the report, and whether it was copied from a download of another
+     * agent of the host.
+     */
+    public void report(TransferReport report) {
+        for (Item item : items) {
+            report.file(item.key).setSize(item.size).setCrc32c(item.crc32c).setCacheHit(item.copiedFromHost ? "host" : null);
+        }
+    }
+
+    /**
+     * Gives up the lead of the shared downloads which did not complete, so that another agent takes them over.
+     */
+    @Override
+    public void close() {
+        for (Item item : items) {
+            if (item.shared != null) {
+                item.shared.release();
+            }
+        }
+    }
+
+    private void verifyRanges(Item item) throws IOException {
+        if (item.crc32c == null || item.rangeChecksums == null) {
+            return;
+        }
+        long checksum = item.rangeChecksums[0];
+        for (int range = 1; range < item.rangeChecksums.length; range++) {
+            checksum = Crc32c.combine(checksum, item.rangeChecksums[range], Math.min(rangePartSize, item.size - range * rangePartSize));
+        }
+        verify(item, checksum);
+    }
+
+    /**
+     * Hands a complete shared download over to the waiting agents and copies it to where it was fetched to.
+     */
+    private static void share(Item item) throws IOException {
+        if (item.shared != null) {
+            item.shared.publish();
+            item.shared.copyTo(item.outFile, null);
+        }
+    }
+
+    private static Checksum checksumOf(Item item) {
+        return item.crc32c == null ? null : Crc32c.create();
+    }
+
+    private static void verify(Item item, long checksum) throws IOException {
+        if (Crc32c.fromHex(item.crc32c) != checksum) {
+            throw new IOException(String.format("Downloaded `%s` does not match the checksum recorded when it was published: CRC32C is %s instead of %s",
+                    item.key, Crc32c.toHex(checksum), item.crc32c));
+        }
+    }
+
+    /**
+     * Checks a copy of a shared download the way the agent which downloaded it checked the download.
+     */
+    private static void verifyCopy(Item item, long bytes, Checksum checksum) throws IOException {
+        if (bytes != item.size) {
+            throw new IOException(String.format("Copied `%s` has %d bytes instead of %d", item.key, bytes, item.size));
+        }
+        if (checksum != null) {
+            verify(item, checksum.getValue());
+        }
+    }
+
+    private static class Item {
+        private final String key;
+        private final File outFile;
+        private final long size;
+        private final String eTag;
+        private final String crc32c;
+        private long[] rangeChecksums;
+        private AtomicInteger pendingRanges;
+        private SharedFetch.Entry shared;
+        private File target;
+        private volatile boolean copiedFromHost;
+
+        Item(String key, File outFile, long size, String eTag, String crc32c) {
+            this.key = key;
+            this.outFile = outFile;
+            this.target = outFile;
+            this.size = size;
+            this.eTag = eTag;
+            this.crc32c = crc32c;
+        }
+    }
+
+    private class ObjectDownload implements TransferEngine.Transfer {
+        private final ObjectDownloader downloader;
+        private final Item item;
+
+        ObjectDownload(ObjectDownloader downloader, Item item) {
+            this.downloader = downloader;
+            this.item = item;
+        }
+
+        @Override
+        public String getDescription() {
+            return String.format("download of `%s`", item.key);
+        }
+
+        @Override
+        public String getKey() {
+            return item.key;
+        }
+
+        @Override
+        public long getSize() {
+            return Math.max(0, item.size);
+        }
+
+        @Override
+        public long execute(TransferProgress progress) throws Exception {
+            LOG.info(String.format("Retrieving file `%s` from S3 bucket `%s`.", item.key, bucketName));
+            Checksum checksum = checksumOf(item);
+            long bytes = downloader.download(new GetObjectRequest(bucketName, item.key), item.target, item.size, checksum, progress);
+            if (checksum != null) {
+                verify(item, checksum.getValue());
+            }
+            share(item);
+            return bytes;
+        }
+    }
+
+    private class RangeDownload implements TransferEngine.Transfer {
+        private final ObjectDownloader downloader;
+        private final Item item;
+        private final int range;
+        private final long start;
+        private final long end;
+
+        RangeDownload(ObjectDownloader downloader, Item item, int range, long start, long end) {
+            this.downloader = downloader;
+            this.item = item;
+            this.range = range;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public String getDescription() {
+            return String.format("download of bytes %d-%d of `%s`", start, end, item.key);
+        }
+
+        @Override
+        public String getKey() {
+            return item.key;
+        }
+
+        @Override
+        public long getSize() {
+            return item.size;
+        }
+
+        @Override
+        public long getLength() {
+            return end - start + 1;
+        }
+
+        @Override
+        public long execute(TransferProgress progress) throws Exception {
+            GetObjectRequest request = new GetObjectRequest(bucketName, item.key).withRange(start, end);
+            if (item.eTag != null) {
+                request.withMatchingETagConstraint(item.eTag);
+            }
+            Checksum checksum = checksumOf(item);
+            long bytes = downloader.downloadRange(request, item.target, checksum, progress);
+            if (checksum != null) {
+                item.rangeChecksums[range] = checksum.getValue();
+            }
+            if (item.shared != null && item.pendingRanges.decrementAndGet() == 0) {
+                verifyRanges(item);
+                share(item);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Waits for another agent of the host to download the object and copies it, taking the download over when that
+     * agent fails or dies.
+     */
+    private class SharedDownload implements TransferEngine.Transfer {
+        private final ObjectDownloader downloader;
+        private final Item item;
+        private final SharedFetch.Entry shared;
+
+        SharedDownload(ObjectDownloader downloader, Item item, SharedFetch.Entry shared) {
+            this.downloader = downloader;
+            this.item = item;
+            this.shared = shared;
+        }
+
+        @Override
+        public String getDescription() {
+            return String.format("shared download of `%s`", item.key);
+        }
+
+        @Override
+        public String getKey() {
+            return item.key;
+        }
+
+        @Override
+        public long getSize() {
+            return item.size;
+        }
+
+        @Override
+        public boolean holdsConnection() {
+            return false;
+        }
+
+        @Override
+        public long execute(TransferProgress progress) throws Exception {
+            LOG.info(String.format("Waiting for another agent of the host to retrieve file `%s` from S3 bucket `%s`.", item.key, bucketName));
+            boolean tookOver = false;
+            long lastStagingWrite = -1;
+            while (true) {
+                if (shared.isStaged()) {
+                    Checksum checksum = checksumOf(item);
+                    long bytes;
+                    try {
+                        bytes = shared.copyTo(item.outFile, checksum);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    try {
+                        verifyCopy(item, bytes, checksum);
+                    } catch (IOException e) {
+                        if (tookOver) {
+                            throw e;
+                        }
+                        LOG.warn(String.format("Discarding the copy of file `%s` downloaded by another agent of the host: %s", item.key, e.getMessage()));
+                        shared.discard();
+                        continue;
+                    }
+                    item.copiedFromHost = !tookOver;
+                    return bytes;
+                }
+                if (shared.lead()) {
+                    tookOver = true;
+                    try (HostBudget.Lease lease = progress.connect()) {
+                        lease.throttle(progress);
+                        LOG.info(String.format("Taking over the retrieval of file `%s` from S3 bucket `%s`.", item.key, bucketName));
+                        Checksum checksum = checksumOf(item);
+                        downloader.download(new GetObjectRequest(bucketName, item.key), shared.getPartFile(), item.size, checksum, progress);
+                        if (checksum != null) {
+                            verify(item, checksum.getValue());
+                        }
+                        shared.publish();
+                    } finally {
+                        shared.release();
+                    }
+                    continue;
+                }
+                // waiting holds no connection of the host, and stalls when the leader stops writing
+                long stagingWrite = shared.lastStagingWrite();
+                if (stagingWrite != lastStagingWrite) {
+                    lastStagingWrite = stagingWrite;
+                    progress.advance(0);
+                }
+                Thread.sleep(SharedFetch.POLL_MILLIS);
+            }
+        }
+    }
+}
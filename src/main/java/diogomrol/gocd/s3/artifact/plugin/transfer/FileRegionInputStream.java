@@ -0,0 +1,133 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a range of a file with positional {@link FileChannel} reads into a pooled direct buffer. The stream can be
+ * reset to any earlier position without buffering what was read, so the SDK can retry a request from it. The buffer
+ * goes back to the pool when the stream is closed.
+ */
+public class FileRegionInputStream extends InputStream {
+    private final File file;
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final long end;
+    private ByteBuffer buffer;
+    private long position;
+    private long markPosition;
+
+    public FileRegionInputStream(File file, long offset, long length) throws IOException {
+        this(file, offset, length, BufferPool.shared());
+    }
+
+    FileRegionInputStream(File file, long offset, long length, BufferPool pool) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.pool = pool;
+        this.end = offset + length;
+        this.position = offset;
+        this.markPosition = offset;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        position++;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int read = Math.min(len, buffer.remaining());
+        buffer.get(b, off, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        if (buffer != null && skipped <= buffer.remaining()) {
+            buffer.position(buffer.position() + (int) skipped);
+        } else {
+            discardBuffered();
+        }
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        markPosition = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        discardBuffered();
+        position = markPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return false at the end of the range
+     */
+    private boolean fill() throws IOException {
+        if (buffer != null && buffer.hasRemaining()) {
+            return true;
+        }
+        if (position >= end) {
+            return false;
+        }
+        if (buffer == null) {
+            buffer = pool.acquire();
+        }
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(String.format("File `%s` ended at %d bytes, it was expected to have at least %d", file, position + buffer.position(), end));
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private void discardBuffered() {
+        if (buffer != null) {
+            buffer.position(buffer.limit());
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Connections and bandwidth shared by all agents on a host, coordinated through lock files in a shared directory.
+ * Each connection holds the lock of one of {@code maxConnections} slot files. Each agent with transfers in flight holds
+ * the lock of a member file, and throttles its streams to an equal share of the host bandwidth. Locks are released by
+ * the operating system when an agent dies, so a crashed agent does not keep its share.
+ */
+public class HostBudget implements AutoCloseable {
+    private static final String SLOT_PREFIX = "connection-";
+    private static final String MEMBER_PREFIX = "member-";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final long SLOT_POLL_MILLIS = 50;
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    static final HostBudget UNLIMITED = new HostBudget(null, 0, 0);
+
+    private final File dir;
+    private final int maxConnections;
+    private final double bytesPerSecond;
+    private final TokenBucket bandwidth;
+    private final LongSupplier nanoClock = System::nanoTime;
+    private final FileLock[] slots;
+    private final File memberFile;
+    private FileLock memberLock;
+    private int active;
+    private long refreshedNanos;
+    private int members = 1;
+
+    public HostBudget(File dir, int maxConnections, double bytesPerSecond) {
+        this.dir = dir;
+        this.maxConnections = maxConnections;
+        this.bytesPerSecond = bytesPerSecond;
+        this.bandwidth = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, burst(bytesPerSecond)) : null;
+        this.slots = new FileLock[Math.max(0, maxConnections)];
+        this.memberFile = dir == null ? null : new File(dir, MEMBER_PREFIX + Long.toHexString(System.nanoTime()) + "-" + Integer.toHexString(System.identityHashCode(this)) + LOCK_SUFFIX);
+    }
+
+    public static HostBudget fromSettings(TransferSettings settings) {
+        if (settings.getHostMaxConnections() <= 0 && settings.getHostMaxBytesPerSecond() <= 0) {
+            return UNLIMITED;
+        }
+        return new HostBudget(settings.getHostDir(), settings.getHostMaxConnections(), settings.getHostMaxBytesPerSecond());
+    }
+
+    public boolean isEnabled() {
+        return maxConnections > 0 || bandwidth != null;
+    }
+
+    /**
+     * Waits for a free connection slot on the host.
+     */
+    public Lease acquire() throws IOException, InterruptedException {
+        if (!isEnabled()) {
+            return new Lease(-1);
+        }
+        synchronized (this) {
+            if (active++ == 0) {
+                join();
+            }
+        }
+        try {
+            return new Lease(maxConnections > 0 ? acquireSlot() : -1);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            release(-1);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a free connection slot on the host without waiting.
+     *
+     * @return the lease, or null when all slots are taken
+     */
+    public Lease tryAcquire() throws IOException {
+        if (!isEnabled()) {
+            return new Lease(-1);
+        }
+        synchronized (this) {
+            if (active++ == 0) {
+                join();
+            }
+        }
+        try {
+            int slot = -1;
+            if (maxConnections > 0) {
+                Files.createDirectories(dir.toPath());
+                if ((slot = tryAcquireSlot()) < 0) {
+                    release(-1);
+                    return null;
+                }
+            }
+            return new Lease(slot);
+        } catch (IOException | RuntimeException e) {
+            release(-1);
+            throw e;
+        }
+    }
+
+    synchronized int getMembers() {
+        return members;
+    }
+
+    double getBytesPerSecondShare() {
+        return bandwidth == null ? 0 : bandwidth.getBytesPerSecond();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != null) {
+                unlock(slots[slot]);
+                slots[slot] = null;
+            }
+        }
+        leave();
+    }
+
+    private int acquireSlot() throws IOException, InterruptedException {
+        Files.createDirectories(dir.toPath());
+        while (true) {
+            int slot = tryAcquireSlot();
+            if (slot >= 0) {
+                return slot;
+            }
+            Thread.sleep(SLOT_POLL_MILLIS);
+        }
+    }
+
+    /**
+     * @return the slot whose lock was taken, or -1 when other connections hold all of them
+     */
+    private synchronized int tryAcquireSlot() throws IOException {
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] == null && (slots[slot] = tryLock(new File(dir, SLOT_PREFIX + slot + LOCK_SUFFIX))) != null) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void release(int slot) {
+        if (slot >= 0 && slots[slot] != null) {
+            unlock(slots[slot]);
+            slots[slot] = null;
+        }
+        if (--active == 0) {
+            leave();
+        }
+    }
+
+    private void join() {
+        if (bandwidth == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(dir.toPath());
+            memberLock = tryLock(memberFile);
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not join the S3 bandwidth budget of the host in `%s`: %s", dir, e.getMessage()));
+        }
+        refreshedNanos = nanoClock.getAsLong() - REFRESH_NANOS;
+        refreshShare();
+    }
+
+    private void leave() {
+        if (memberLock != null) {
+            unlock(memberLock);
+            memberLock = null;
+            memberFile.delete();
+        }
+    }
+
+    /**
+     * Divides the host bandwidth by the agents currently transferring, removing the member files of dead agents.
+     */
+    private synchronized void refreshShare() {
+        long now = nanoClock.getAsLong();
+        if (now - refreshedNanos < REFRESH_NANOS) {
+            return;
+        }
+        refreshedNanos = now;
+        if (memberLock != null && !memberFile.exists()) {
+            unlock(memberLock);
+            memberLock = null;
+            join();
+            return;
+        }
+        int count = 1;
+        File[] files = dir.listFiles((file, name) -> name.startsWith(MEMBER_PREFIX) && name.endsWith(LOCK_SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            if (file.equals(memberFile)) {
+                continue;
+            }
+            try {
+                FileLock lock = tryLock(file);
+                if (lock == null) {
+                    count++;
+                } else {
+                    unlock(lock);
+                    file.delete();
+                }
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not check S3 bandwidth budget member `%s`: %s", file, e.getMessage()));
+            }
+        }
+        if (count != members) {
+            LOG.info(String.format("Sharing %.1f MiB/s of S3 bandwidth between %d agents on this host", bytesPerSecond / 1024 / 1024, count));
+        }
+        members = count;
+        double share = bytesPerSecond / count;
+        bandwidth.setRate(share, burst(share));
+    }
+
+    private static long burst(double bytesPerSecond) {
+        return Math.max(64 * 1024, (long) (bytesPerSecond / 4));
+    }
+
+    /**
+     * @return the lock, or null when another process or budget holds it
+     */
+    private static FileLock tryLock(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException ignored) {
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        return lock;
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not release S3 host budget lock: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * A connection of the host budget, released when closed.
+     */
+    public class Lease implements AutoCloseable {
+        private final int slot;
+
+        private Lease(int slot) {
+            this.slot = slot;
+        }
+
+        /**
+         * Limits the transfer to the share of the host bandwidth of this agent.
+         */
+        public void throttle(TransferProgress progress) {
+            if (bandwidth != null) {
+                progress.throttle(bytes -> {
+                    refreshShare();
+                    bandwidth.acquire(bytes);
+                });
+            }
+        }
+
+        @Override
+        public void close() {
+            if (isEnabled()) {
+                release(slot);
+            }
+        }
+    }
+}
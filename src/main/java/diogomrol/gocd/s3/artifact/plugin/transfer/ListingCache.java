@@ -0,0 +1,177 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import diogomrol.gocd.s3.artifact.plugin.model.SizeSummary;
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Plugin-wide cache of the objects listed under a prefix, so that the fetch tasks of a job, or the jobs of a stage,
+ * fetching different sub paths of the same artifact do not list it again. Listings are keyed by bucket, prefix and the
+ * identity of the published artifact, its metadata, and are only kept for artifacts published with a size summary. A
+ * listing under a prefix also serves fetches of any directory below it. Entries expire after a TTL and the least
+ * recently used ones are evicted when the cache holds more than {@code maxObjects} objects.
+ */
+public class ListingCache {
+    private static ListingCache shared;
+
+    private final long ttlNanos;
+    private final int maxObjects;
+    private final LongSupplier nanoClock;
+    private final LinkedHashMap<Key, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+    private long objects;
+
+    public ListingCache(long ttlMillis, int maxObjects) {
+        this(ttlMillis, maxObjects, System::nanoTime);
+    }
+
+    ListingCache(long ttlMillis, int maxObjects, LongSupplier nanoClock) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxObjects = maxObjects;
+        this.nanoClock = nanoClock;
+    }
+
+    public static synchronized ListingCache shared() {
+        if (shared == null) {
+            TransferSettings settings = TransferSettings.fromSystemProperties();
+            shared = new ListingCache(settings.getListingCacheTtlMillis(), settings.getListingCacheMaxObjects());
+        }
+        return shared;
+    }
+
+    public boolean isEnabled() {
+        return ttlNanos > 0 && maxObjects > 0;
+    }
+
+    /**
+     * @return the most objects a listing may have to be kept
+     */
+    public int getMaxObjects() {
+        return maxObjects;
+    }
+
+    /**
+     * @return the identity of the published artifact, or null when its listings must not be cached
+     */
+    public static String publishIdentity(Map<String, Object> metadata) {
+        if (metadata.get(SizeSummary.METADATA_KEY) == null) {
+            // artifacts published without a summary carry nothing telling two publishes to the same destination apart
+            return null;
+        }
+        return Util.sha256Hex(Util.GSON.toJson(new TreeMap<>(metadata)));
+    }
+
+    /**
+     * @return the objects under the prefix, from a listing of the prefix or of a directory above it, null when there is none
+     */
+    public synchronized List<S3ObjectSummary> get(String bucketName, String prefix, String identity) {
+        evictExpired();
+        Key cached = null;
+        for (Key key : listings.keySet()) {
+            if (key.bucketName.equals(bucketName) && key.identity.equals(identity) && prefix.startsWith(key.prefix)) {
+                cached = key;
+                break;
+            }
+        }
+        if (cached == null) {
+            return null;
+        }
+        List<S3ObjectSummary> objects = new ArrayList<>();
+        for (S3ObjectSummary object : listings.get(cached).objects) {
+            if (object.getKey().startsWith(prefix)) {
+                objects.add(object);
+            }
+        }
+        return objects;
+    }
+
+    public synchronized void put(String bucketName, String prefix, String identity, List<S3ObjectSummary> listed) {
+        if (!isEnabled() || listed.size() > maxObjects) {
+            return;
+        }
+        List<S3ObjectSummary> compact = new ArrayList<>(listed.size());
+        for (S3ObjectSummary object : listed) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(bucketName);
+            summary.setKey(object.getKey());
+            summary.setSize(object.getSize());
+            summary.setETag(object.getETag());
+            compact.add(summary);
+        }
+        Listing previous = listings.put(new Key(bucketName, prefix, identity), new Listing(Collections.unmodifiableList(compact), nanoClock.getAsLong()));
+        if (previous != null) {
+            objects -= previous.objects.size();
+        }
+        objects += compact.size();
+        Iterator<Listing> eldest = listings.values().iterator();
+        while (objects > maxObjects && eldest.hasNext()) {
+            objects -= eldest.next().objects.size();
+            eldest.remove();
+        }
+    }
+
+    synchronized long getObjectCount() {
+        return objects;
+    }
+
+    synchronized int size() {
+        return listings.size();
+    }
+
+    private void evictExpired() {
+        long now = nanoClock.getAsLong();
+        Iterator<Listing> iterator = listings.values().iterator();
+        while (iterator.hasNext()) {
+            Listing listing = iterator.next();
+            if (now - listing.listedNanos >= ttlNanos) {
+                objects -= listing.objects.size();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Key {
+        private final String bucketName;
+        private final String prefix;
+        private final String identity;
+
+        Key(String bucketName, String prefix, String identity) {
+            this.bucketName = bucketName;
+            this.prefix = prefix;
+            this.identity = identity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return bucketName.equals(key.bucketName) && prefix.equals(key.prefix) && identity.equals(key.identity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bucketName, prefix, identity);
+        }
+    }
+
+    private static class Listing {
+        private final List<S3ObjectSummary> objects;
+        private final long listedNanos;
+
+        Listing(List<S3ObjectSummary> objects, long listedNanos) {
+            this.objects = objects;
+            this.listedNanos = listedNanos;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import diogomrol.gocd.s3.artifact.plugin.jfr.PluginEvents;
+import diogomrol.gocd.s3.artifact.plugin.jfr.Span;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Uploads a large file as a multipart upload whose parts are separate {@link TransferEngine.Transfer}s, so that they
+ * run in parallel and a failed or stalled part is retried on its own. The CRC32C of each part is computed while it is
+ * sent and the checksums of the parts are combined into the one of the file.
+ */
+public class MultipartUpload {
+    static final int MAX_PARTS = 10_000;
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String key;
+    private final File file;
+    private final long partSize;
+    private final PartETag[] partETags;
+    private final long[] partChecksums;
+    private String uploadId;
+    private boolean completed;
+
+    public MultipartUpload(AmazonS3 s3, String bucketName, String key, File file, long partSize) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.file = file;
+        this.partSize = Math.max(partSize, (file.length() + MAX_PARTS - 1) / MAX_PARTS);
+        this.partETags = new PartETag[(int) Math.max(1, (file.length() + this.partSize - 1) / this.partSize)];
+        this.partChecksums = new long[partETags.length];
+        Arrays.fill(partChecksums, -1);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void initiate() {
+        uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, new ObjectMetadata())).getUploadId();
+    }
+
+    public List<TransferEngine.Transfer> parts() {
+        List<TransferEngine.Transfer> parts = new ArrayList<>(partETags.length);
+        for (int i = 0; i < partETags.length; i++) {
+            parts.add(new Part(i + 1, i * partSize, Math.min(partSize, file.length() - i * partSize)));
+        }
+        return parts;
+    }
+
+    /**
+     * @return the CRC32C of the file, or null when a part was not sent in full
+     */
+    public String getChecksum() {
+        long checksum = partChecksums[0];
+        for (int i = 1; i < partChecksums.length && checksum >= 0; i++) {
+            checksum = partChecksums[i] < 0 ? -1 : Crc32c.combine(checksum, partChecksums[i], Math.min(partSize, file.length() - i * partSize));
+        }
+        return checksum < 0 ? null : Crc32c.toHex(checksum);
+    }
+
+    public void complete() {
+        s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, Arrays.asList(partETags)));
+        completed = true;
+    }
+
+    /**
+     * Discards the uploaded parts, so that S3 does not keep storing them.
+     */
+    public void abort() {
+        if (uploadId == null || completed) {
+            return;
+        }
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (SdkClientException e) {
+            LOG.warn(String.format("Failed to abort multipart upload of `%s` to S3 bucket `%s`: %s", key, bucketName, e.getMessage()));
+        }
+    }
+
+    private class Part implements TransferEngine.Transfer {
+        private final int partNumber;
+        private final long offset;
+        private final long length;
+
+        Part(int partNumber, long offset, long length) {
+            this.partNumber = partNumber;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String getDescription() {
+            return String.format("upload of part %d/%d of `%s`", partNumber, partETags.length, file);
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public long getSize() {
+            return file.length();
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public long execute(TransferProgress progress) throws IOException {
+            try (ChecksumInputStream in = ChecksumInputStream.ofFile(file, offset, length)) {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withInputStream(in)
+                        .withPartSize(length);
+                request.setGeneralProgressListener(progress.listener());
+                try (Span span = PluginEvents.s3("UploadPart", bucketName, key)) {
+                    partETags[partNumber - 1] = s3.uploadPart(request).getPartETag();
+                    span.setBytes(length);
+                }
+                partChecksums[partNumber - 1] = in.getChecksum(length);
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.S3ResponseMetadata;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.BinaryUtils;
+import diogomrol.gocd.s3.artifact.plugin.jfr.PluginEvents;
+import diogomrol.gocd.s3.artifact.plugin.jfr.Span;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.regex.Pattern;
+import java.util.zip.Checksum;
+
+/**
+ * Streams S3 objects into local files. Opening the object goes through a {@link RequestHedger}, so slow responses can
+ * be raced by a duplicate GET. When the caller passes a checksum, it is updated with the bytes as they are written.
+ * Otherwise, like the SDK's own file download, the content is checked against the ETag whenever the ETag is a plain
+ * MD5 of the object. Bytes are gathered in a pooled direct buffer and written with positional {@link FileChannel}
+ * writes, so ranges of one file are written concurrently without seeking and without allocating per request.
+ */
+public class ObjectDownloader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> READ_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static final Pattern MD5_ETAG = Pattern.compile("[0-9a-fA-F]{32}");
+
+    private final AmazonS3 s3;
+    private final RequestHedger hedger;
+
+    public ObjectDownloader(AmazonS3 s3, RequestHedger hedger) {
+        this.s3 = s3;
+        this.hedger = hedger;
+    }
+
+    public RequestHedger getHedger() {
+        return hedger;
+    }
+
+    /**
+     * Downloads a whole object, replacing the file.
+     *
+     * @param expectedSize size to preallocate the file with, -1 when unknown
+     * @param checksum receives the bytes of the object, null to verify the MD5 ETag instead
+     */
+    public long download(GetObjectRequest request, File outFile, long expectedSize, Checksum checksum, TransferProgress progress) throws Exception {
+        createParentDirectories(outFile);
+        try (Span span = PluginEvents.s3("GetObject", request.getBucketName(), request.getKey());
+             S3Object object = open(request, progress);
+             RandomAccessFile out = new RandomAccessFile(outFile, "rw")) {
+            out.setLength(Math.max(0, expectedSize));
+            MessageDigest md5 = checksum == null && shouldVerifyMd5(request, object.getObjectMetadata()) ? MessageDigest.getInstance("MD5") : null;
+            long bytes = copy(object, out.getChannel(), 0, md5, checksum, progress);
+            span.setBytes(bytes);
+            out.setLength(bytes);
+            if (md5 != null && !BinaryUtils.toHex(md5.digest()).equalsIgnoreCase(object.getObjectMetadata().getETag())) {
+                throw new SdkClientException(String.format("Unable to verify integrity of data download: client calculated content hash didn't match hash calculated by Amazon S3. The data stored in '%s' may be corrupt.", outFile));
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Downloads the range of the request into the same position of a file which was already created with its full size.
+     */
+    public long downloadRange(GetObjectRequest request, File outFile, Checksum checksum, TransferProgress progress) throws Exception {
+        try (Span span = PluginEvents.s3("GetObject", request.getBucketName(), request.getKey());
+             S3Object object = open(request, progress);
+             FileChannel out = FileChannel.open(outFile.toPath(), StandardOpenOption.WRITE)) {
+            long bytes = copy(object, out, request.getRange()[0], null, checksum, progress);
+            span.setBytes(bytes);
+            long expected = request.getRange()[1] - request.getRange()[0] + 1;
+            if (bytes != expected) {
+                throw new SdkClientException(String.format("Received %d bytes instead of %d for range %d-%d of `%s`",
+                        bytes, expected, request.getRange()[0], request.getRange()[1], request.getKey()));
+            }
+            return bytes;
+        }
+    }
+
+    public static void createParentDirectories(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+    }
+
+    private S3Object open(GetObjectRequest request, TransferProgress progress) throws Exception {
+        S3Object object = hedger.call(abortAfterMillis -> s3.getObject(withDeadline(request, abortAfterMillis)), ObjectDownloader::abort);
+        if (object == null) {
+            throw new SdkClientException(String.format("Object `%s` in S3 bucket `%s` changed during the download", request.getKey(), request.getBucketName()));
+        }
+        progress.responseReceived();
+        S3ResponseMetadata responseMetadata = s3.getCachedResponseMetadata(request);
+        if (responseMetadata != null) {
+            progress.setRequestId(responseMetadata.getRequestId());
+        }
+        return object;
+    }
+
+    /**
+     * The SDK aborts a request still waiting for its response after the client execution timeout; the timeout does
+     * not cover reading the content.
+     */
+    private static GetObjectRequest withDeadline(GetObjectRequest request, int abortAfterMillis) {
+        if (abortAfterMillis <= 0) {
+            return request;
+        }
+        GetObjectRequest copy = (GetObjectRequest) request.clone();
+        copy.setSdkClientExecutionTimeout(abortAfterMillis);
+        return copy;
+    }
+
+    private static long copy(S3Object object, FileChannel out, long position, MessageDigest md5, Checksum checksum, TransferProgress progress) throws IOException {
+        S3ObjectInputStream in = object.getObjectContent();
+        progress.onAbort(in::abort);
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer = pool.acquire();
+        long bytes = 0;
+        try {
+            byte[] chunk = READ_BUFFER.get();
+            int read;
+            while ((read = in.read(chunk, 0, Math.min(chunk.length, buffer.remaining()))) != -1) {
+                buffer.put(chunk, 0, read);
+                if (md5 != null) {
+                    md5.update(chunk, 0, read);
+                }
+                if (checksum != null) {
+                    checksum.update(chunk, 0, read);
+                }
+                if (!buffer.hasRemaining()) {
+                    position = write(out, buffer, position);
+                }
+                bytes += read;
+                progress.advance(read);
+            }
+            write(out, buffer, position);
+        } catch (IOException | RuntimeException e) {
+            in.abort();
+            throw e;
+        } finally {
+            pool.release(buffer);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the position after the written bytes
+     */
+    private static long write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    static boolean shouldVerifyMd5(GetObjectRequest request, ObjectMetadata metadata) {
+        return request.getRange() == null
+                && metadata != null
+                && metadata.getETag() != null
+                && MD5_ETAG.matcher(metadata.getETag()).matches()
+                && metadata.getSSEAwsKmsKeyId() == null
+                && metadata.getSSECustomerAlgorithm() == null;
+    }
+
+    static void abort(S3Object object) {
+        if (object == null) {
+            return;
+        }
+        object.getObjectContent().abort();
+        try {
+            object.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
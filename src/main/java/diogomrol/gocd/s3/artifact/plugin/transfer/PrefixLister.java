@@ -0,0 +1,127 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import diogomrol.gocd.s3.artifact.plugin.jfr.PluginEvents;
+import diogomrol.gocd.s3.artifact.plugin.jfr.Span;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lists the objects under a prefix with concurrent ListObjectsV2 requests. A single listing returns at most 1000 keys
+ * per request and each page needs the continuation token of the previous one, so huge prefixes are first split into
+ * the sub-prefixes found with the {@code /} delimiter, a few levels deep, and each of them is then listed on its own.
+ * Pages are handed to the consumer as soon as they arrive, so downloads start while listing goes on.
+ */
+public class PrefixLister {
+    static final String DELIMITER = "/";
+    private static final int MAX_DISCOVERY_DEPTH = 3;
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final int concurrency;
+    private final ExecutorService executor;
+
+    public interface PageConsumer {
+        /**
+         * Called concurrently for every page of objects which is listed.
+         */
+        void accept(List<S3ObjectSummary> objects) throws Exception;
+    }
+
+    public PrefixLister(AmazonS3 s3, String bucketName, TransferSettings settings) {
+        this(s3, bucketName, settings.getListConcurrency(), TransferScheduler.shared().getListingPool());
+    }
+
+    PrefixLister(AmazonS3 s3, String bucketName, int concurrency, ExecutorService executor) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.concurrency = concurrency;
+        this.executor = executor;
+    }
+
+    /**
+     * @return a prefix which only matches keys in the directory {@code path}, not in siblings sharing its name
+     */
+    public static String directoryPrefix(String path) {
+        return path.isEmpty() || path.endsWith(DELIMITER) ? path : path + DELIMITER;
+    }
+
+    /**
+     * Lists every object whose key starts with the prefix.
+     */
+    public void list(String prefix, PageConsumer consumer) throws Exception {
+        List<String> partitions = Collections.singletonList(prefix);
+        for (int depth = 0; depth < MAX_DISCOVERY_DEPTH && partitions.size() < concurrency; depth++) {
+            List<String> subPrefixes = Collections.synchronizedList(new ArrayList<>());
+            runConcurrently(partitions, partition -> subPrefixes.addAll(list(partition, DELIMITER, consumer)));
+            if (subPrefixes.isEmpty()) {
+                return;
+            }
+            partitions = new ArrayList<>(subPrefixes);
+            Collections.sort(partitions);
+        }
+        runConcurrently(partitions, partition -> list(partition, null, consumer));
+    }
+
+    /**
+     * @return the sub-prefixes found when listing with a delimiter
+     */
+    private List<String> list(String prefix, String delimiter, PageConsumer consumer) throws Exception {
+        List<String> subPrefixes = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(prefix.isEmpty() ? null : prefix)
+                .withDelimiter(delimiter);
+        ListObjectsV2Result result;
+        do {
+            try (Span span = PluginEvents.s3("ListObjectsV2", bucketName, prefix)) {
+                result = s3.listObjectsV2(request);
+                span.setCount(result.getKeyCount());
+            }
+            if (!result.getObjectSummaries().isEmpty()) {
+                consumer.accept(result.getObjectSummaries());
+            }
+            subPrefixes.addAll(result.getCommonPrefixes());
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated());
+        return subPrefixes;
+    }
+
+    private interface PartitionTask {
+        void run(String partition) throws Exception;
+    }
+
+    private void runConcurrently(List<String> partitions, PartitionTask task) throws Exception {
+        Queue<String> pending = new ConcurrentLinkedQueue<>(partitions);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(concurrency, partitions.size()); i++) {
+            workers.add(executor.submit(() -> {
+                String partition;
+                while ((partition = pending.poll()) != null) {
+                    task.run(partition);
+                }
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            pending.clear();
+            workers.forEach(worker -> worker.cancel(true));
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Sends a duplicate request when the original has not responded within a percentile of the response times recently
+ * observed for the store. The original runs on the calling thread and the duplicate, launched by the timer of the
+ * {@link TransferScheduler}, on a pooled thread. The first response wins and a response which arrives too late is
+ * handed to a discard callback. The share of duplicated requests is capped by a budget, and a duplicate is only sent
+ * when one of the global requests of the scheduler and a connection of the {@link HostBudget} are free.
+ * <p>
+ * A request blocked on its socket cannot be interrupted, so an original which may be raced is sent with a deadline of
+ * twice the threshold, after which it is aborted in favour of its duplicate; the calling thread is interrupted as well
+ * when the duplicate wins earlier.
+ */
+public class RequestHedger {
+    static final int MIN_SAMPLES = ResponseTimes.MIN_SAMPLES;
+
+    /**
+     * A request which can be aborted by its client.
+     */
+    public interface Request<T> {
+        /**
+         * @param abortAfterMillis how long the request may take before it is aborted, 0 for no limit
+         */
+        T send(int abortAfterMillis) throws Exception;
+    }
+
+    private final boolean enabled;
+    private final double percentile;
+    private final double budgetFraction;
+    private final long minDelayNanos;
+    private final ResponseTimes responseTimes;
+    private final TransferScheduler scheduler;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    public RequestHedger(boolean enabled, double percentile, double budgetPercent, long minDelayMillis) {
+        this(enabled, percentile, budgetPercent, minDelayMillis, new ResponseTimes(), TransferScheduler.shared());
+    }
+
+    RequestHedger(boolean enabled, double percentile, double budgetPercent, long minDelayMillis, ResponseTimes responseTimes, TransferScheduler scheduler) {
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.budgetFraction = budgetPercent / 100;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.responseTimes = responseTimes;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return a hedger for one fetch, which learns from and adds to the response times of all fetches from the store
+     */
+    public static RequestHedger fromSettings(TransferSettings settings, ArtifactStoreConfig storeConfig) {
+        TransferScheduler scheduler = TransferScheduler.shared();
+        ResponseTimes responseTimes = scheduler.responseTimes(TransferEngine.storeKey(storeConfig, TransferEngine.Direction.DOWNLOAD));
+        return new RequestHedger(settings.isHedgingEnabled(), settings.getHedgingPercentile(),
+                settings.getHedgingBudgetPercent(), settings.getHedgingMinDelayMillis(), responseTimes, scheduler);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getHedgesFired() {
+        return hedgesFired.get();
+    }
+
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * Races a request which cannot be aborted, so the calling thread is only released early when it is interruptible.
+     *
+     * @param request issues the request; called a second time for the duplicate
+     * @param discard releases a response which lost the race
+     */
+    public <T> T call(Callable<T> request, Consumer<T> discard) throws Exception {
+        return call(abortAfterMillis -> request.call(), discard);
+    }
+
+    /**
+     * @param request issues the request; called a second time, without a deadline, for the duplicate
+     * @param discard releases a response which lost the race
+     */
+    public <T> T call(Request<T> request, Consumer<T> discard) throws Exception {
+        requests.incrementAndGet();
+        if (!enabled) {
+            return request.send(0);
+        }
+        long threshold = currentThreshold();
+        if (threshold <= 0 || !withinBudget()) {
+            long start = System.nanoTime();
+            T response = request.send(0);
+            recordLatency(System.nanoTime() - start);
+            return response;
+        }
+        Race<T> race = new Race<>(request, discard, Thread.currentThread());
+        ScheduledFuture<?> hedgeTimer = scheduler.getTimer().schedule(race::hedge, threshold, TimeUnit.NANOSECONDS);
+        try {
+            race.runPrimary((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(2 * threshold)));
+            return race.awaitResult();
+        } finally {
+            hedgeTimer.cancel(false);
+            race.finish();
+        }
+    }
+
+    /**
+     * Checked before the original is sent, so that only originals which will be raced get a deadline. Concurrent
+     * originals may all pass, which exceeds the budget by at most the number of requests in flight.
+     */
+    private boolean withinBudget() {
+        return hedgesFired.get() < (long) Math.ceil(requests.get() * budgetFraction);
+    }
+
+    void recordLatency(long nanos) {
+        responseTimes.record(nanos);
+    }
+
+    long currentThreshold() {
+        long time = responseTimes.percentile(percentile);
+        return time < 0 ? -1 : Math.max(minDelayNanos, time);
+    }
+
+    private class Race<T> {
+        private final Request<T> request;
+        private final Consumer<T> discard;
+        private final Thread caller;
+        private int launched = 1;
+        private int failed;
+        private boolean finished;
+        private boolean decided;
+        private T winner;
+        private boolean hedgeWon;
+        private Exception firstError;
+        private boolean primaryRunning = true;
+        private boolean interruptPending;
+        private Future<?> hedge;
+        private HostBudget.Lease hedgeLease;
+        private boolean hedgeStarted;
+
+        Race(Request<T> request, Consumer<T> discard, Thread caller) {
+            this.request = request;
+            this.discard = discard;
+            this.caller = caller;
+        }
+
+        void runPrimary(int abortAfterMillis) {
+            run(false, abortAfterMillis);
+        }
+
+        /**
+         * Called by the timer when the original has been slower than the threshold. The duplicate is skipped when it
+         * would exceed the requests or connections the transfers may use.
+         */
+        synchronized void hedge() {
+            if (decided || finished || failed >= launched || !scheduler.tryStartRequest()) {
+                return;
+            }
+            try {
+                hedgeLease = scheduler.getHostBudget().tryAcquire();
+            } catch (IOException e) {
+                hedgeLease = null;
+            }
+            if (hedgeLease == null) {
+                scheduler.requestFinished();
+                return;
+            }
+            try {
+                hedge = scheduler.getHedgePool().submit(this::runHedge);
+                launched++;
+                hedgesFired.incrementAndGet();
+            } catch (RejectedExecutionException ignored) {
+                releaseHedge();
+            }
+        }
+
+        private void runHedge() {
+            synchronized (this) {
+                if (hedgeLease == null) {
+                    return;
+                }
+                hedgeStarted = true;
+            }
+            try {
+                run(true, 0);
+            } finally {
+                releaseHedge();
+            }
+        }
+
+        private synchronized void releaseHedge() {
+            if (hedgeLease != null) {
+                hedgeLease.close();
+                hedgeLease = null;
+                scheduler.requestFinished();
+            }
+        }
+
+        private void run(boolean isHedge, int abortAfterMillis) {
+            long start = System.nanoTime();
+            T response;
+            try {
+                response = request.send(abortAfterMillis);
+            } catch (Exception e) {
+                if (!isHedge) {
+                    primaryEnded(e instanceof InterruptedException);
+                }
+                failed(e);
+                return;
+            }
+            if (!isHedge) {
+                primaryEnded(false);
+            }
+            recordLatency(System.nanoTime() - start);
+            if (!offer(response, isHedge)) {
+                discard.accept(response);
+            }
+        }
+
+        /**
+         * Clears the interrupt a winning duplicate sent to the caller, so that it does not abort what the caller does
+         * next, unless the original already took it by throwing {@link InterruptedException}; an interrupt sent by
+         * someone else after that is left to the caller.
+         *
+         * @param interruptTaken whether the original ended because it was interrupted
+         */
+        synchronized void primaryEnded(boolean interruptTaken) {
+            primaryRunning = false;
+            if (interruptPending && !interruptTaken) {
+                Thread.interrupted();
+            }
+            interruptPending = false;
+        }
+
+        synchronized boolean offer(T response, boolean isHedge) {
+            if (decided || finished) {
+                return false;
+            }
+            decided = true;
+            winner = response;
+            hedgeWon = isHedge;
+            if (isHedge && primaryRunning) {
+                interruptPending = true;
+                caller.interrupt();
+            }
+            notifyAll();
+            return true;
+        }
+
+        synchronized void failed(Exception e) {
+            failed++;
+            if (firstError == null) {
+                firstError = e;
+            }
+            notifyAll();
+        }
+
+        synchronized T awaitResult() throws Exception {
+            while (!decided && failed < launched) {
+                wait();
+            }
+            if (hedgeWon) {
+                hedgesWon.incrementAndGet();
+            }
+            if (!decided) {
+                throw firstError;
+            }
+            return winner;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            if (hedge != null) {
+                hedge.cancel(true);
+                if (!hedgeStarted) {
+                    releaseHedge();
+                }
+            }
+        }
+    }
+}
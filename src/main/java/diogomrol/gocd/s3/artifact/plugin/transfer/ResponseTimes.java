@@ -0,0 +1,43 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.util.Arrays;
+
+/**
+ * Recent response times of the GETs to one store, shared by all fetches from it so that a fetch can hedge from its
+ * first request on. Percentiles are computed from a sorted copy of the samples, refreshed every 16 new samples.
+ */
+class ResponseTimes {
+    static final int MIN_SAMPLES = 20;
+    private static final int MAX_SAMPLES = 256;
+
+    private final long[] samples = new long[MAX_SAMPLES];
+    private int sampleCount;
+    private long[] sorted;
+    private int sortedCount;
+
+    synchronized void record(long nanos) {
+        samples[sampleCount % MAX_SAMPLES] = nanos;
+        sampleCount++;
+    }
+
+    synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the response time in nanoseconds below which the percentile of the samples fall, -1 while there are
+     * fewer than {@link #MIN_SAMPLES}
+     */
+    synchronized long percentile(double percentile) {
+        if (sampleCount < MIN_SAMPLES) {
+            return -1;
+        }
+        if (sorted == null || sampleCount - sortedCount >= 16) {
+            sorted = Arrays.copyOf(samples, Math.min(sampleCount, MAX_SAMPLES));
+            Arrays.sort(sorted);
+            sortedCount = sampleCount;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,280 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Single-flight downloads of the same object by all agents on a host. The first agent fetching an object leads its
+ * download: it holds the lock file of the object in the shared directory, downloads the object into a staging file of
+ * its own and moves it to the staged object once it is complete and verified. The other agents wait for the lock and
+ * copy the staged object. When the leader fails, or dies and the operating system releases its lock, a waiting agent
+ * takes over the download. Objects are identified by bucket, key, size and ETag, or CRC32C when the ETag is not known.
+ * Staged objects are reused for {@code ttl} and deleted afterwards.
+ * <p>
+ * The shared directory is created accessible to its owner only. Downloads are not shared through a directory which
+ * another user owns or can access, since whoever can write to it can change what the agents fetch.
+ */
+public class SharedFetch {
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String OBJECT_SUFFIX = ".object";
+    private static final String PART_SUFFIX = ".part";
+    static final long POLL_MILLIS = 100;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    static final SharedFetch DISABLED = new SharedFetch(null, Long.MAX_VALUE, 0);
+
+    private final File dir;
+    private final long minBytes;
+    private final long ttlMillis;
+    private Boolean usable;
+
+    public SharedFetch(File dir, long minBytes, long ttlMillis) {
+        this.dir = dir;
+        this.minBytes = minBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static SharedFetch fromSettings(TransferSettings settings) {
+        if (!settings.isSharedFetchEnabled()) {
+            return DISABLED;
+        }
+        return new SharedFetch(new File(settings.getHostDir(), "fetches"), settings.getSharedFetchMinBytes(), settings.getSharedFetchTtlMillis());
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * @return the shared download of the object, null when the object is not downloaded through the host
+     */
+    Entry entry(String bucketName, String key, long size, String eTag, String crc32c) {
+        if (!isEnabled() || size < minBytes || (eTag == null && crc32c == null) || !isDirUsable()) {
+            return null;
+        }
+        String version = eTag != null ? "etag:" + eTag : "crc32c:" + crc32c;
+        return new Entry(Util.sha256Hex(bucketName + "\n" + key + "\n" + size + "\n" + version));
+    }
+
+    /**
+     * Creates the shared directory for its owner only, or checks that an existing one is private to the user of the
+     * agent. Checked once, a directory which cannot be used is logged and downloads are not shared.
+     */
+    private synchronized boolean isDirUsable() {
+        if (usable == null) {
+            try {
+                createPrivateDirectory(dir.toPath());
+                usable = true;
+            } catch (IOException e) {
+                LOG.warn(String.format("Not sharing downloads with the other agents of the host: %s", e.getMessage()));
+                usable = false;
+            }
+        }
+        return usable;
+    }
+
+    private static void createPrivateDirectory(Path path) throws IOException {
+        if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(path);
+            return;
+        }
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        try {
+            Files.createDirectory(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } catch (FileAlreadyExistsException ignored) {
+        }
+        PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attributes.isDirectory() || !attributes.owner().equals(user)) {
+            throw new IOException(String.format("`%s` is not a directory owned by %s", path, user.getName()));
+        }
+        if (!OWNER_ONLY.containsAll(attributes.permissions())) {
+            throw new IOException(String.format("`%s` can be accessed by other users, its permissions are %s",
+                    path, PosixFilePermissions.toString(attributes.permissions())));
+        }
+    }
+
+    /**
+     * Deletes the staged objects, staging files and lock files which were not touched for longer than the TTL.
+     */
+    void sweep() {
+        long expired = System.currentTimeMillis() - ttlMillis;
+        File[] files = dir.listFiles((file, name) -> name.endsWith(OBJECT_SUFFIX) || name.endsWith(PART_SUFFIX) || name.endsWith(LOCK_SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            if (file.lastModified() >= expired) {
+                continue;
+            }
+            if (!file.getName().endsWith(LOCK_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            try {
+                FileLock lock = tryLock(file);
+                if (lock != null) {
+                    file.delete();
+                    unlock(lock);
+                }
+            } catch (IOException e) {
+                LOG.warn(String.format("Could not remove shared download lock `%s`: %s", file, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * @return the lock, or null when another process or download holds it
+     */
+    private static FileLock tryLock(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException ignored) {
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        return lock;
+    }
+
+    private static void unlock(FileLock lock) {
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            LOG.warn(String.format("Could not release shared download lock: %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * The download of one object shared by the agents of the host.
+     */
+    class Entry {
+        private final String name;
+        private final File lockFile;
+        private final File objectFile;
+        private final File partFile;
+        private FileLock lock;
+
+        private Entry(String name) {
+            this.name = name;
+            this.lockFile = new File(dir, name + LOCK_SUFFIX);
+            this.objectFile = new File(dir, name + OBJECT_SUFFIX);
+            this.partFile = new File(dir, name + "-" + Long.toHexString(System.nanoTime()) + "-" + Integer.toHexString(System.identityHashCode(this)) + PART_SUFFIX);
+        }
+
+        /**
+         * @return the file the leader downloads the object into
+         */
+        File getPartFile() {
+            return partFile;
+        }
+
+        /**
+         * @return whether a complete copy of the object can be copied
+         */
+        boolean isStaged() {
+            return objectFile.isFile() && System.currentTimeMillis() - objectFile.lastModified() < ttlMillis;
+        }
+
+        /**
+         * @return when a leader of the host last wrote to the object it is downloading, or 0 when none is downloading
+         */
+        long lastStagingWrite() {
+            File[] parts = dir.listFiles((parent, file) -> file.startsWith(name + "-") && file.endsWith(PART_SUFFIX));
+            long lastWrite = 0;
+            for (File part : parts == null ? new File[0] : parts) {
+                lastWrite = Math.max(lastWrite, part.lastModified());
+            }
+            return lastWrite;
+        }
+
+        /**
+         * Takes the lead of the download, unless another download holds it or the object is already staged.
+         */
+        synchronized boolean lead() throws IOException {
+            if (lock != null) {
+                return true;
+            }
+            if (isStaged()) {
+                return false;
+            }
+            createPrivateDirectory(dir.toPath());
+            FileLock acquired = tryLock(lockFile);
+            if (acquired == null) {
+                return false;
+            }
+            if (isStaged()) {
+                unlock(acquired);
+                return false;
+            }
+            lock = acquired;
+            return true;
+        }
+
+        /**
+         * Makes the downloaded object available to the waiting agents and gives up the lead.
+         */
+        synchronized void publish() throws IOException {
+            Files.move(partFile.toPath(), objectFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            release();
+            sweep();
+        }
+
+        /**
+         * @param checksum updated with the copied bytes, or null
+         * @return the bytes copied from the staged object
+         */
+        long copyTo(File outFile, Checksum checksum) throws IOException {
+            ObjectDownloader.createParentDirectories(outFile);
+            if (checksum == null) {
+                Files.copy(objectFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return outFile.length();
+            }
+            try (InputStream in = new CheckedInputStream(Files.newInputStream(objectFile.toPath()), checksum)) {
+                return Files.copy(in, outFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * Deletes a staged object which does not match the object it was staged for, so that it is downloaded again.
+         */
+        void discard() {
+            objectFile.delete();
+        }
+
+        /**
+         * Gives up the lead, dropping what was downloaded so far, so that a waiting agent takes over.
+         */
+        synchronized void release() {
+            if (lock != null) {
+                partFile.delete();
+                unlock(lock);
+                lock = null;
+            }
+        }
+    }
+}
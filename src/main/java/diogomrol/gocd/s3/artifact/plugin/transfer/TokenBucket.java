@@ -0,0 +1,66 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the bytes per second moved by all streams sharing it. Tokens accumulate up to the burst size; a stream taking
+ * more than is available goes into debt and sleeps until the debt is paid, so concurrent streams queue up fairly.
+ */
+public class TokenBucket implements TransferProgress.Throttle {
+    private final LongSupplier nanoClock;
+    private double bytesPerSecond;
+    private double burstBytes;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(double bytesPerSecond, long burstBytes) {
+        this(bytesPerSecond, burstBytes, System::nanoTime);
+    }
+
+    TokenBucket(double bytesPerSecond, long burstBytes, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.tokens = burstBytes;
+        this.lastRefillNanos = nanoClock.getAsLong();
+    }
+
+    public synchronized void setRate(double bytesPerSecond, long burstBytes) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.tokens = Math.min(tokens, burstBytes);
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized long getBurstBytes() {
+        return (long) burstBytes;
+    }
+
+    @Override
+    public void acquire(long bytes) throws InterruptedException {
+        long waitNanos = reserve(bytes);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * @return how long the caller has to wait before moving the bytes
+     */
+    synchronized long reserve(long bytes) {
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens / bytesPerSecond * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(burstBytes, tokens + (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,450 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.retry.RetryUtils;
+import diogomrol.gocd.s3.artifact.plugin.jfr.PluginEvents;
+import diogomrol.gocd.s3.artifact.plugin.metrics.RequestMetrics;
+import diogomrol.gocd.s3.artifact.plugin.metrics.TransferReport;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.tracing.TraceSpan;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Runs S3 transfers in parallel, with the number of in-flight requests driven by an {@link AdaptiveConcurrencyController}.
+ * The largest transfers are started first, while a share of the slots is kept for small transfers so that they are not
+ * queued behind the large ones. Transfers throttled by S3 are queued again after an exponential backoff, during which
+ * they hold no slot, and transfers aborted by the {@link TransferWatchdog} are re-issued; any other failure aborts the whole batch. Workers and global limits are shared through the
+ * {@link TransferScheduler}.
+ */
+public class TransferEngine {
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final long BASE_BACKOFF_MILLIS = 200;
+
+    public enum Direction {
+        UPLOAD, DOWNLOAD
+    }
+
+    public interface Transfer {
+        String getDescription();
+
+        /**
+         * @param progress receives the bytes moved, so that a stalled attempt can be detected and aborted
+         * @return the number of bytes moved
+         */
+        long execute(TransferProgress progress) throws Exception;
+
+        /**
+         * @return the size which orders this transfer in the batch, 0 when unknown
+         */
+        default long getSize() {
+            return 0;
+        }
+
+        /**
+         * @return the bytes this transfer moves, counted against the in-flight byte budget
+         */
+        default long getLength() {
+            return getSize();
+        }
+
+        /**
+         * @return the key of the object this transfer is part of, null when it is not part of one
+         */
+        default String getKey() {
+            return null;
+        }
+
+        /**
+         * @return whether an attempt holds a connection of the host budget for as long as it runs; a transfer which
+         * mostly waits takes one with {@link TransferProgress#connect()} only around its requests
+         */
+        default boolean holdsConnection() {
+            return true;
+        }
+    }
+
+    private final AdaptiveConcurrencyController controller;
+    private final ConcurrencyHistory history;
+    private final String storeKey;
+    private final TransferScheduler scheduler;
+    private final int maxThrottleRetries;
+    private final TransferWatchdog watchdog;
+    private final int maxStallRetries;
+    private final long smallTransferBytes;
+    private final int smallLanePercent;
+    private final TokenBucket rateLimit;
+
+    TransferEngine(AdaptiveConcurrencyController controller, ConcurrencyHistory history, String storeKey,
+                   TransferScheduler scheduler, TransferSettings settings) {
+        this(controller, history, storeKey, scheduler, settings, null);
+    }
+
+    /**
+     * @param rateLimit limit of the bytes per second of the store, shared with the other engines of the store; null for no limit
+     */
+    TransferEngine(AdaptiveConcurrencyController controller, ConcurrencyHistory history, String storeKey,
+                   TransferScheduler scheduler, TransferSettings settings, TokenBucket rateLimit) {
+        this.controller = controller;
+        this.history = history;
+        this.storeKey = storeKey;
+        this.scheduler = scheduler;
+        this.maxThrottleRetries = settings.getMaxThrottleRetries();
+        this.watchdog = new TransferWatchdog(settings.getStallTimeoutMillis(), scheduler);
+        this.maxStallRetries = settings.getMaxStallRetries();
+        this.smallTransferBytes = settings.getSmallTransferBytes();
+        this.smallLanePercent = settings.getSmallLanePercent();
+        this.rateLimit = rateLimit;
+    }
+
+    public static TransferEngine forStore(ArtifactStoreConfig storeConfig, Direction direction) {
+        return forStore(storeConfig, direction, TransferSettings.fromSystemProperties());
+    }
+
+    public static TransferEngine forStore(ArtifactStoreConfig storeConfig, Direction direction, TransferSettings settings) {
+        ConcurrencyHistory history = new ConcurrencyHistory(settings.getStateDir());
+        String storeKey = storeKey(storeConfig, direction);
+        int initialLimit = settings.clamp(history.initialLimit(storeKey, settings.getInitialConcurrency()));
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(initialLimit, settings.getMinConcurrency(), settings.getMaxConcurrency());
+        TransferScheduler scheduler = TransferScheduler.shared();
+        double bytesPerSecond = direction == Direction.UPLOAD ? storeConfig.getMaxUploadBytesPerSecond() : storeConfig.getMaxDownloadBytesPerSecond();
+        TokenBucket rateLimit = null;
+        if (bytesPerSecond > 0) {
+            rateLimit = scheduler.rateLimit(storeKey, bytesPerSecond, storeConfig.getBurstBytes(bytesPerSecond));
+            LOG.info(String.format("Limiting S3 %s rate of bucket `%s` to %.1f MiB/s", direction.name().toLowerCase(), storeConfig.getS3bucket(), bytesPerSecond / 1024 / 1024));
+        }
+        return new TransferEngine(controller, history, storeKey, scheduler, settings, rateLimit);
+    }
+
+    static String storeKey(ArtifactStoreConfig storeConfig, Direction direction) {
+        return String.format("%s.%s.%s", direction.name().toLowerCase(), storeConfig.getS3bucket(), storeConfig.getRegion());
+    }
+
+    public Batch newBatch() {
+        return newBatch(new RequestMetrics("batch"));
+    }
+
+    /**
+     * @param metrics receives the duration, bytes, retries and throttles of the transfers
+     */
+    public Batch newBatch(RequestMetrics metrics) {
+        return newBatch(metrics, TraceSpan.NONE);
+    }
+
+    /**
+     * @param trace parent of the spans of each transfer attempt
+     */
+    public Batch newBatch(RequestMetrics metrics, TraceSpan trace) {
+        return new Batch(metrics, trace);
+    }
+
+    AdaptiveConcurrencyController getController() {
+        return controller;
+    }
+
+    TokenBucket getRateLimit() {
+        return rateLimit;
+    }
+
+    static boolean isThrottle(Throwable e) {
+        if (!(e instanceof AmazonServiceException)) {
+            return false;
+        }
+        int statusCode = ((AmazonServiceException) e).getStatusCode();
+        return statusCode == 503 || statusCode == 429 || RetryUtils.isThrottlingException((SdkBaseException) e);
+    }
+
+    /**
+     * Transfers of one publish or fetch. All state is guarded by the lock of the {@link TransferScheduler}.
+     */
+    public class Batch implements AutoCloseable, TransferScheduler.Queue {
+        private final PriorityQueue<Attempt> large = new PriorityQueue<>(Comparator
+                .comparingLong((Attempt attempt) -> attempt.transfer.getSize()).reversed()
+                .thenComparingLong(attempt -> attempt.sequence));
+        private final Deque<Attempt> small = new ArrayDeque<>();
+        private final Set<Attempt> running = new HashSet<>();
+        private final RequestMetrics metrics;
+        private final TraceSpan trace;
+        private long submitted;
+        private int smallRunning;
+        private int outstanding;
+        private boolean closed;
+        private Exception failure;
+
+        Batch(RequestMetrics metrics, TraceSpan trace) {
+            this.metrics = metrics;
+            this.trace = trace;
+            scheduler.register(this);
+        }
+
+        public void submit(Transfer transfer) {
+            submitAll(Collections.singletonList(transfer));
+        }
+
+        /**
+         * Queues all transfers before starting any of them, so they are started largest first.
+         */
+        public void submitAll(Collection<? extends Transfer> transfers) {
+            synchronized (scheduler) {
+                if (failure != null || closed) {
+                    return;
+                }
+                for (Transfer transfer : transfers) {
+                    enqueue(new Attempt(transfer, submitted++), false);
+                    outstanding++;
+                }
+                scheduler.schedule();
+            }
+        }
+
+        /**
+         * Blocks until every submitted transfer has finished, rethrowing the failure which aborted the batch.
+         */
+        public void await() throws Exception {
+            synchronized (scheduler) {
+                while (outstanding > 0 && failure == null) {
+                    scheduler.wait();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (scheduler) {
+                closed = true;
+                stop();
+                scheduler.unregister(this);
+            }
+            if (controller.isCalibrated()) {
+                history.record(storeKey, controller.getLimit());
+            }
+            LOG.info(String.format("S3 transfer concurrency for %s finished at %d", storeKey, controller.getLimit()));
+        }
+
+        @Override
+        public long nextLength() {
+            Attempt next = failure == null && !closed ? peekNext() : null;
+            return next == null ? -1 : next.transfer.getLength();
+        }
+
+        @Override
+        public Runnable start() {
+            if (!controller.tryAcquire()) {
+                return null;
+            }
+            Attempt next = takeSmall() ? small.poll() : large.poll();
+            if (next.small) {
+                smallRunning++;
+            }
+            running.add(next);
+            return next;
+        }
+
+        @Override
+        public void cancel(Exception reason) {
+            synchronized (scheduler) {
+                if (failure == null) {
+                    failure = reason;
+                }
+                stop();
+                scheduler.notifyAll();
+            }
+        }
+
+        private void stop() {
+            large.clear();
+            small.clear();
+            for (Attempt attempt : running) {
+                if (attempt.runner != null) {
+                    attempt.runner.interrupt();
+                }
+            }
+        }
+
+        private void enqueue(Attempt attempt, boolean retry) {
+            if (!attempt.small) {
+                large.add(attempt);
+            } else if (retry) {
+                small.addFirst(attempt);
+            } else {
+                small.add(attempt);
+            }
+        }
+
+        private Attempt peekNext() {
+            return takeSmall() ? small.peek() : large.peek();
+        }
+
+        private boolean takeSmall() {
+            int smallLane = Math.max(1, controller.getLimit() * smallLanePercent / 100);
+            return !small.isEmpty() && (large.isEmpty() || smallRunning < smallLane);
+        }
+
+        private void completed(Attempt attempt) {
+            TraceSpan span = attempt.span;
+            synchronized (scheduler) {
+                running.remove(attempt);
+                scheduler.finished(attempt.transfer.getLength());
+                if (attempt.small) {
+                    smallRunning--;
+                }
+                boolean active = failure == null && !closed;
+                if (attempt.error == null) {
+                    controller.onSuccess(attempt.bytes, attempt.durationNanos);
+                    metrics.transferred(attempt.bytes, attempt.durationNanos);
+                    span.setAttribute("transfer.bytes", attempt.bytes);
+                    report(attempt, false);
+                    outstanding--;
+                } else if (active && isThrottle(attempt.error) && attempt.retries < maxThrottleRetries) {
+                    controller.onThrottle();
+                    metrics.throttled();
+                    attempt.retries++;
+                    PluginEvents.retry("throttle", attempt.transfer.getDescription(), attempt.retries);
+                    span.setAttribute("retry.reason", "throttle").setError(attempt.error);
+                    report(attempt, true);
+                    LOG.warn(String.format("S3 throttled %s, retrying (%d/%d) with concurrency %d",
+                            attempt.transfer.getDescription(), attempt.retries, maxThrottleRetries, controller.getLimit()));
+                    enqueueAfterBackoff(attempt);
+                } else if (active && attempt.stalled && attempt.stallRetries < maxStallRetries) {
+                    controller.onFailure();
+                    metrics.stalled();
+                    attempt.stallRetries++;
+                    PluginEvents.retry("stall", attempt.transfer.getDescription(), attempt.stallRetries);
+                    span.setAttribute("retry.reason", "stall").setError("stalled");
+                    report(attempt, true);
+                    LOG.warn(String.format("Re-issuing stalled %s (%d/%d)", attempt.transfer.getDescription(), attempt.stallRetries, maxStallRetries));
+                    enqueue(attempt, true);
+                } else {
+                    controller.onFailure();
+                    outstanding--;
+                    span.setError(attempt.error);
+                    if (active) {
+                        failure = attempt.error instanceof Exception ? (Exception) attempt.error : new RuntimeException(attempt.error);
+                        stop();
+                    }
+                }
+                span.end();
+                scheduler.notifyAll();
+                scheduler.schedule();
+            }
+        }
+
+        /**
+         * Queues a throttled attempt again once its backoff has passed, so that it does not hold a slot, nor the global
+         * budget, while it waits.
+         */
+        private void enqueueAfterBackoff(Attempt attempt) {
+            try {
+                scheduler.getTimer().schedule(() -> {
+                    synchronized (scheduler) {
+                        if (failure == null && !closed) {
+                            enqueue(attempt, true);
+                            scheduler.schedule();
+                        }
+                    }
+                }, backoffMillis(attempt.retries), TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                failure = e;
+                stop();
+            }
+        }
+
+        private void report(Attempt attempt, boolean retried) {
+            TransferReport report = metrics.getReport();
+            String key = attempt.transfer.getKey();
+            if (report == null || key == null) {
+                return;
+            }
+            if (retried) {
+                report.retried(key);
+            } else {
+                report.transferred(key, attempt.bytes, attempt.firstStartNanos, System.nanoTime());
+            }
+        }
+
+        private class Attempt implements Runnable {
+            private final Transfer transfer;
+            private final long sequence;
+            private final boolean small;
+            private Thread runner;
+            private int retries;
+            private int stallRetries;
+            private boolean stalled;
+            private long bytes;
+            private long durationNanos;
+            private Throwable error;
+            private TraceSpan span = TraceSpan.NONE;
+            private long firstStartNanos = -1;
+
+            Attempt(Transfer transfer, long sequence) {
+                this.transfer = transfer;
+                this.sequence = sequence;
+                this.small = transfer.getSize() < smallTransferBytes;
+            }
+
+            @Override
+            public void run() {
+                error = null;
+                stalled = false;
+                if (firstStartNanos < 0) {
+                    firstStartNanos = System.nanoTime();
+                }
+                span = trace.child(transfer.getDescription())
+                        .setAttribute("transfer.size", transfer.getSize())
+                        .setAttribute("transfer.attempt", retries + stallRetries + 1);
+                try {
+                    synchronized (scheduler) {
+                        if (failure != null || closed) {
+                            throw new InterruptedException(String.format("Skipped %s of an aborted batch", transfer.getDescription()));
+                        }
+                        runner = Thread.currentThread();
+                    }
+                    TransferProgress progress = new TransferProgress();
+                    progress.connectThrough(scheduler.getHostBudget());
+                    try (HostBudget.Lease lease = transfer.holdsConnection() ? progress.connect() : null) {
+                        if (lease != null) {
+                            lease.throttle(progress);
+                        }
+                        if (rateLimit != null) {
+                            progress.throttle(rateLimit);
+                        }
+                        watchdog.watch(progress, transfer.getDescription());
+                        long start = System.nanoTime();
+                        try {
+                            bytes = transfer.execute(progress);
+                            durationNanos = System.nanoTime() - start;
+                        } finally {
+                            if (progress.getFirstByteNanos() >= 0) {
+                                metrics.getFirstByte().recordNanos(progress.getFirstByteNanos() - start);
+                            }
+                            watchdog.unwatch(progress);
+                            stalled = progress.isStalled();
+                        }
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                } finally {
+                    synchronized (scheduler) {
+                        runner = null;
+                    }
+                    Thread.interrupted();
+                }
+                completed(this);
+            }
+        }
+    }
+
+    static long backoffMillis(int retry) {
+        long exponential = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(retry - 1, 16));
+        return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+    }
+}
@@ -0,0 +1,157 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.SyncProgressListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Progress of a single transfer attempt, as seen by the {@link TransferWatchdog}. A transfer reports moved bytes
+ * through {@link #advance(long)} and can register how its stream is aborted when it stalls. Throttles registered with
+ * {@link #throttle(Throttle)} slow down the thread moving the bytes.
+ */
+public class TransferProgress {
+    /**
+     * Blocks the thread moving bytes until it may move more.
+     */
+    public interface Throttle {
+        void acquire(long bytes) throws InterruptedException;
+    }
+
+    private final Thread owner;
+    private final LongSupplier nanoClock;
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long lastProgressNanos;
+    private volatile Runnable abortAction;
+    private volatile String requestId;
+    private volatile long firstByteNanos = -1;
+    private volatile boolean stalled;
+    private volatile boolean connecting;
+    private final List<Throttle> throttles = new CopyOnWriteArrayList<>();
+    private volatile HostBudget hostBudget = HostBudget.UNLIMITED;
+
+    public TransferProgress() {
+        this(Thread.currentThread(), System::nanoTime);
+    }
+
+    TransferProgress(Thread owner, LongSupplier nanoClock) {
+        this.owner = owner;
+        this.nanoClock = nanoClock;
+        this.lastProgressNanos = nanoClock.getAsLong();
+    }
+
+    public void advance(long bytesMoved) {
+        bytes.addAndGet(bytesMoved);
+        lastProgressNanos = nanoClock.getAsLong();
+        if (bytesMoved <= 0 || throttles.isEmpty()) {
+            return;
+        }
+        try {
+            for (Throttle throttle : throttles) {
+                throttle.acquire(bytesMoved);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lastProgressNanos = nanoClock.getAsLong();
+    }
+
+    public void throttle(Throttle throttle) {
+        throttles.add(throttle);
+    }
+
+    void connectThrough(HostBudget hostBudget) {
+        this.hostBudget = hostBudget;
+    }
+
+    /**
+     * Waits for a connection of the host budget of the transfer. Waiting for a connection is not a stall.
+     */
+    public HostBudget.Lease connect() throws IOException, InterruptedException {
+        connecting = true;
+        try {
+            return hostBudget.acquire();
+        } finally {
+            lastProgressNanos = nanoClock.getAsLong();
+            connecting = false;
+        }
+    }
+
+    /**
+     * @return a listener advancing this progress on the thread which sends the request body, so throttles apply to it
+     */
+    public ProgressListener listener() {
+        return new SyncProgressListener() {
+            @Override
+            public void progressChanged(ProgressEvent event) {
+                advance(event.getBytesTransferred());
+            }
+        };
+    }
+
+    /**
+     * @param action closes the stream of the attempt; the thread running the attempt is interrupted as well
+     */
+    public void onAbort(Runnable action) {
+        abortAction = action;
+        if (stalled) {
+            action.run();
+        }
+    }
+
+    /**
+     * Marks the arrival of the response to the request of the attempt, before its body is read.
+     */
+    public void responseReceived() {
+        if (firstByteNanos < 0) {
+            firstByteNanos = nanoClock.getAsLong();
+        }
+    }
+
+    /**
+     * @return when the response of the attempt arrived, -1 when it did not or the transfer does not report it
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    long idleNanos() {
+        return connecting ? 0 : nanoClock.getAsLong() - lastProgressNanos;
+    }
+
+    void abort() {
+        stalled = true;
+        Runnable action = abortAction;
+        if (action != null) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                LOG.warn(String.format("Failed to abort stalled S3 stream: %s", e.getMessage()));
+            }
+        }
+        owner.interrupt();
+    }
+}
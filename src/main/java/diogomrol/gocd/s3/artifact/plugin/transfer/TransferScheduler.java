@@ -0,0 +1,205 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Plugin-wide scheduler of S3 transfers. All batches of all concurrent publish and fetch requests share one pool of
+ * workers and a global budget of in-flight requests and bytes. Batches waiting for capacity are served round-robin,
+ * one transfer at a time, so that an artifact plan with many files does not starve one started later. Connections and
+ * bandwidth of all agents on the host are further limited by the {@link HostBudget}.
+ */
+public class TransferScheduler {
+    private static TransferScheduler shared;
+
+    /**
+     * A batch of transfers competing for the shared capacity. Called with the scheduler lock held.
+     */
+    interface Queue {
+        /**
+         * @return the bytes of the transfer which would start next, -1 when there is none
+         */
+        long nextLength();
+
+        /**
+         * @return the next transfer to run, null when the batch cannot start one now
+         */
+        Runnable start();
+
+        void cancel(Exception reason);
+    }
+
+    private final int maxRequests;
+    private final long maxInFlightBytes;
+    private final HostBudget hostBudget;
+    private final ThreadPoolExecutor workers;
+    private final ExecutorService hedgePool = Executors.newCachedThreadPool(new TransferThreadFactory("s3-hedge"));
+    private final ExecutorService listingPool = Executors.newCachedThreadPool(new TransferThreadFactory("s3-list"));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new TransferThreadFactory("s3-watchdog"));
+    private final Deque<Queue> queues = new ArrayDeque<>();
+    private final Map<String, TokenBucket> rateLimits = new HashMap<>();
+    private final Map<String, ResponseTimes> responseTimes = new HashMap<>();
+    private int inFlightRequests;
+    private long inFlightBytes;
+    private boolean shutdown;
+
+    TransferScheduler(int maxRequests, long maxInFlightBytes) {
+        this(maxRequests, maxInFlightBytes, HostBudget.UNLIMITED);
+    }
+
+    TransferScheduler(int maxRequests, long maxInFlightBytes, HostBudget hostBudget) {
+        this.maxRequests = maxRequests;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.hostBudget = hostBudget;
+        this.workers = new ThreadPoolExecutor(maxRequests, maxRequests, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new TransferThreadFactory("s3-transfer"));
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized TransferScheduler shared() {
+        if (shared == null) {
+            TransferSettings settings = TransferSettings.fromSystemProperties();
+            int maxRequests = settings.getGlobalMaxRequests();
+            int maxBuffers = BufferPool.shared().getMaxBuffers();
+            if (maxBuffers > 0 && maxBuffers < maxRequests) {
+                // each request holds a buffer, more requests would only wait for one
+                maxRequests = maxBuffers;
+            }
+            shared = new TransferScheduler(maxRequests, settings.getGlobalMaxInFlightBytes(), HostBudget.fromSettings(settings));
+        }
+        return shared;
+    }
+
+    /**
+     * Stops all transfers and threads of the plugin, called when GoCD unloads it.
+     */
+    public static synchronized void shutdownShared() {
+        if (shared != null) {
+            shared.shutdown();
+            shared = null;
+        }
+    }
+
+    HostBudget getHostBudget() {
+        return hostBudget;
+    }
+
+    /**
+     * @return the rate limit shared by all transfers of the store, updated to the latest configuration
+     */
+    synchronized TokenBucket rateLimit(String storeKey, double bytesPerSecond, long burstBytes) {
+        TokenBucket rateLimit = rateLimits.get(storeKey);
+        if (rateLimit == null) {
+            rateLimit = new TokenBucket(bytesPerSecond, burstBytes);
+            rateLimits.put(storeKey, rateLimit);
+        } else if (rateLimit.getBytesPerSecond() != bytesPerSecond || rateLimit.getBurstBytes() != burstBytes) {
+            rateLimit.setRate(bytesPerSecond, burstBytes);
+        }
+        return rateLimit;
+    }
+
+    /**
+     * @return the response times of the GETs to the store, kept across fetches for hedging
+     */
+    synchronized ResponseTimes responseTimes(String storeKey) {
+        return responseTimes.computeIfAbsent(storeKey, key -> new ResponseTimes());
+    }
+
+    ExecutorService getHedgePool() {
+        return hedgePool;
+    }
+
+    ExecutorService getListingPool() {
+        return listingPool;
+    }
+
+    ScheduledExecutorService getTimer() {
+        return timer;
+    }
+
+    synchronized void register(Queue queue) {
+        queues.add(queue);
+    }
+
+    synchronized void unregister(Queue queue) {
+        queues.remove(queue);
+    }
+
+    synchronized void finished(long length) {
+        inFlightRequests--;
+        inFlightBytes -= length;
+    }
+
+    /**
+     * Takes one of the global requests for a request sent outside of the batches, such as a hedged GET.
+     *
+     * @return false when all of them are in flight
+     */
+    synchronized boolean tryStartRequest() {
+        if (shutdown || inFlightRequests >= maxRequests) {
+            return false;
+        }
+        inFlightRequests++;
+        return true;
+    }
+
+    synchronized void requestFinished() {
+        finished(0);
+        schedule();
+    }
+
+    synchronized int getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    /**
+     * Starts transfers while there is capacity, taking one transfer from each batch in turn.
+     */
+    synchronized void schedule() {
+        boolean started = true;
+        while (!shutdown && started && inFlightRequests < maxRequests) {
+            started = false;
+            for (int i = 0, n = queues.size(); i < n && inFlightRequests < maxRequests; i++) {
+                Queue queue = queues.poll();
+                queues.add(queue);
+                long length = queue.nextLength();
+                if (length < 0 || (inFlightBytes > 0 && inFlightBytes + length > maxInFlightBytes)) {
+                    continue;
+                }
+                Runnable transfer = queue.start();
+                if (transfer == null) {
+                    continue;
+                }
+                inFlightRequests++;
+                inFlightBytes += length;
+                workers.execute(transfer);
+                started = true;
+            }
+        }
+    }
+
+    synchronized void shutdown() {
+        shutdown = true;
+        Exception reason = new CancellationException("S3 artifact plugin is being unloaded");
+        for (Queue queue : new ArrayList<>(queues)) {
+            queue.cancel(reason);
+        }
+        queues.clear();
+        workers.shutdownNow();
+        hedgePool.shutdownNow();
+        listingPool.shutdownNow();
+        timer.shutdownNow();
+        hostBudget.close();
+        LOG.info("Stopped S3 transfer workers");
+    }
+}
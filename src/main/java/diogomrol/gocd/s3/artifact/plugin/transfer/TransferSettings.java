@@ -0,0 +1,312 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Agent-wide tuning of the transfer engines. Values are read from JVM system properties prefixed
+ * with {@code cd.go.artifact.s3.}, so they can be set in the agent's wrapper properties.
+ */
+public class TransferSettings {
+    static final String PREFIX = "cd.go.artifact.s3.";
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+
+    private final Properties properties;
+
+    public TransferSettings(Properties properties) {
+        this.properties = properties;
+    }
+
+    public static TransferSettings fromSystemProperties() {
+        return new TransferSettings(System.getProperties());
+    }
+
+    public int getMinConcurrency() {
+        return Math.max(1, getInt("concurrency.min", 1));
+    }
+
+    public int getMaxConcurrency() {
+        return Math.max(getMinConcurrency(), getInt("concurrency.max", 64));
+    }
+
+    public int getInitialConcurrency() {
+        return clamp(getInt("concurrency.initial", 4));
+    }
+
+    /**
+     * @return in-flight S3 requests across all jobs running in the agent
+     */
+    public int getGlobalMaxRequests() {
+        return Math.max(1, getInt("global.max.requests", 128));
+    }
+
+    /**
+     * @return bytes of the transfers in flight across all jobs running in the agent; a single larger transfer may still run alone
+     */
+    public long getGlobalMaxInFlightBytes() {
+        return Math.max(1, mebibytes(getDouble("global.max.inflight.mb", 1024)));
+    }
+
+    /**
+     * @return concurrent list requests of a fetch which lists a prefix
+     */
+    public int getListConcurrency() {
+        return Math.max(1, getInt("list.concurrency", 8));
+    }
+
+    /**
+     * @return how long a listing is reused by later fetches of the same artifact, 0 disables the cache
+     */
+    public long getListingCacheTtlMillis() {
+        return (long) (Math.max(0, getDouble("list.cache.ttl.seconds", 300)) * 1000);
+    }
+
+    /**
+     * @return objects kept in the listing cache across all listings
+     */
+    public int getListingCacheMaxObjects() {
+        return Math.max(0, getInt("list.cache.max.objects", 100000));
+    }
+
+    public int getMaxThrottleRetries() {
+        return Math.max(0, getInt("throttle.retries", 5));
+    }
+
+    /**
+     * @return how long a transfer may go without progress before it is aborted and re-issued, 0 disables the watchdog
+     */
+    public long getStallTimeoutMillis() {
+        return (long) (Math.max(0, getDouble("stall.timeout.seconds", 60)) * 1000);
+    }
+
+    public int getMaxStallRetries() {
+        return Math.max(0, getInt("stall.retries", 3));
+    }
+
+    public long getMultipartThresholdBytes() {
+        return Math.max(getPartSizeBytes(), mebibytes(getDouble("multipart.threshold.mb", 64)));
+    }
+
+    /**
+     * @return the size of multipart upload parts, at least the 5 MiB S3 accepts
+     */
+    public long getPartSizeBytes() {
+        return Math.max(MIN_PART_SIZE, mebibytes(getDouble("multipart.part.size.mb", 16)));
+    }
+
+    /**
+     * @return objects of at least this size are downloaded with several ranged GETs
+     */
+    public long getRangeThresholdBytes() {
+        return Math.max(getRangePartSizeBytes(), mebibytes(getDouble("range.threshold.mb", 64)));
+    }
+
+    public long getRangePartSizeBytes() {
+        return Math.max(mebibytes(1), mebibytes(getDouble("range.part.size.mb", 16)));
+    }
+
+    /**
+     * @return transfers smaller than this are served by the small-file lane
+     */
+    public long getSmallTransferBytes() {
+        return (long) (Math.max(0, getDouble("small.file.kb", 1024)) * 1024);
+    }
+
+    public int getSmallLanePercent() {
+        return Math.min(100, Math.max(0, getInt("small.lane.percent", 25)));
+    }
+
+    public boolean isHedgingEnabled() {
+        return getBoolean("hedging.enabled", false);
+    }
+
+    public double getHedgingPercentile() {
+        return Math.min(99.9, Math.max(50, getDouble("hedging.percentile", 95)));
+    }
+
+    public double getHedgingBudgetPercent() {
+        return Math.max(0, getDouble("hedging.budget.percent", 5));
+    }
+
+    public long getHedgingMinDelayMillis() {
+        return Math.max(0, getInt("hedging.min.delay.ms", 50));
+    }
+
+    /**
+     * @return concurrent S3 connections of all agents on the host, 0 for no limit
+     */
+    public int getHostMaxConnections() {
+        return Math.max(0, getInt("host.max.connections", 0));
+    }
+
+    /**
+     * @return bytes per second of all agents on the host, 0 for no limit
+     */
+    public double getHostMaxBytesPerSecond() {
+        return Math.max(0, getDouble("host.max.mb.per.second", 0)) * 1024 * 1024;
+    }
+
+    /**
+     * @return directory shared by the agents on the host to coordinate their budget
+     */
+    public File getHostDir() {
+        String hostDir = properties.getProperty(PREFIX + "host.dir");
+        if (hostDir == null || hostDir.trim().isEmpty()) {
+            return Paths.get(properties.getProperty("java.io.tmpdir", "."), "gocd-s3-artifact-plugin").toFile();
+        }
+        return new File(hostDir.trim());
+    }
+
+    /**
+     * @return whether the agents of the host download each object only once, sharing it through {@link #getHostDir()}
+     */
+    public boolean isSharedFetchEnabled() {
+        return getBoolean("shared.fetch.enabled", false);
+    }
+
+    public long getSharedFetchMinBytes() {
+        return Math.max(0, mebibytes(getDouble("shared.fetch.min.mb", 64)));
+    }
+
+    /**
+     * @return how long a downloaded object is kept for the other agents of the host
+     */
+    public long getSharedFetchTtlMillis() {
+        return (long) (Math.max(1, getDouble("shared.fetch.ttl.minutes", 10)) * 60 * 1000);
+    }
+
+    /**
+     * @return bytes of the buffers all transfers share, 0 for no bound
+     */
+    public long getBufferPoolBytes() {
+        return Math.max(0, mebibytes(getDouble("buffer.pool.mb", 0)));
+    }
+
+    public UploadMode getUploadMode() {
+        String value = properties.getProperty(PREFIX + "upload.mode");
+        if (value == null || value.trim().isEmpty()) {
+            return UploadMode.STANDARD;
+        }
+        UploadMode mode = UploadMode.fromValue(value.trim());
+        if (mode == null) {
+            LOG.warn(String.format("Ignoring invalid value `%s` of %supload.mode, using %s", value, PREFIX, UploadMode.STANDARD.getValue()));
+            return UploadMode.STANDARD;
+        }
+        return mode;
+    }
+
+    /**
+     * @return URL of an S3-compatible service to use instead of AWS, addressed with path-style requests, null for AWS
+     */
+    public String getEndpoint() {
+        String endpoint = properties.getProperty(PREFIX + "endpoint");
+        return endpoint == null || endpoint.trim().isEmpty() ? null : endpoint.trim();
+    }
+
+    public File getStateDir() {
+        String stateDir = properties.getProperty(PREFIX + "state.dir");
+        if (stateDir == null || stateDir.trim().isEmpty()) {
+            return Paths.get(properties.getProperty("user.home", "."), ".gocd-s3-artifact-plugin").toFile();
+        }
+        return new File(stateDir.trim());
+    }
+
+    /**
+     * @return file the plugin-wide metrics are written to after each publish and fetch
+     */
+    public File getMetricsFile() {
+        String metricsFile = properties.getProperty(PREFIX + "metrics.file");
+        if (metricsFile == null || metricsFile.trim().isEmpty()) {
+            return new File(getStateDir(), "metrics.prom");
+        }
+        return new File(metricsFile.trim());
+    }
+
+    /**
+     * @return directory, relative to the agent working directory, each publish and fetch writes a JSON report of its
+     * files to, null when no reports are written
+     */
+    public String getReportDir() {
+        String reportDir = properties.getProperty(PREFIX + "report.dir");
+        return reportDir == null || reportDir.trim().isEmpty() ? null : reportDir.trim();
+    }
+
+    /**
+     * @return whether the S3 clients time DNS, connects, TLS handshakes and connection leases of their requests
+     */
+    public boolean isHttpMetricsEnabled() {
+        return getBoolean("http.metrics.enabled", true);
+    }
+
+    /**
+     * @return file every plugin request is appended to with its secrets redacted, to be replayed offline, null to not
+     * capture requests
+     */
+    public File getCaptureFile() {
+        String captureFile = properties.getProperty(PREFIX + "capture.file");
+        return captureFile == null || captureFile.trim().isEmpty() ? null : new File(captureFile.trim());
+    }
+
+    public boolean isTracingEnabled() {
+        return getBoolean("tracing.enabled", false);
+    }
+
+    /**
+     * @return URL of the OTLP/HTTP traces endpoint of a collector, null to write traces to {@link #getTracingDir()}
+     */
+    public String getTracingOtlpEndpoint() {
+        String endpoint = properties.getProperty(PREFIX + "tracing.otlp.endpoint");
+        return endpoint == null || endpoint.trim().isEmpty() ? null : endpoint.trim();
+    }
+
+    public File getTracingDir() {
+        String tracingDir = properties.getProperty(PREFIX + "tracing.dir");
+        if (tracingDir == null || tracingDir.trim().isEmpty()) {
+            return new File(getStateDir(), "traces");
+        }
+        return new File(tracingDir.trim());
+    }
+
+    /**
+     * @return how many trace files are kept in {@link #getTracingDir()}, the oldest are deleted
+     */
+    public int getTracingMaxFiles() {
+        return Math.max(1, getInt("tracing.max.files", 1000));
+    }
+
+    private static long mebibytes(double value) {
+        return (long) (value * 1024 * 1024);
+    }
+
+    int clamp(int concurrency) {
+        return Math.min(getMaxConcurrency(), Math.max(getMinConcurrency(), concurrency));
+    }
+
+    int getInt(String name, int defaultValue) {
+        return (int) getDouble(name, defaultValue);
+    }
+
+    double getDouble(String name, double defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warn(String.format("Ignoring invalid value `%s` of %s%s, using %s", value, PREFIX, name, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    boolean getBoolean(String name, boolean defaultValue) {
+        String value = properties.getProperty(PREFIX + name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,20 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TransferThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    TransferThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,69 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin.LOG;
+
+/**
+ * Aborts in-flight transfers which have not moved a byte for the stall timeout, so that the
+ * {@link TransferEngine} can re-issue them instead of waiting for the job to time out.
+ */
+public class TransferWatchdog {
+    private static final long MAX_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final long stallTimeoutNanos;
+    private final TransferScheduler scheduler;
+    private final Map<TransferProgress, String> watched = new IdentityHashMap<>();
+    private ScheduledFuture<?> checks;
+
+    public TransferWatchdog(long stallTimeoutMillis, TransferScheduler scheduler) {
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMillis);
+        this.scheduler = scheduler;
+    }
+
+    public boolean isEnabled() {
+        return stallTimeoutNanos > 0;
+    }
+
+    public synchronized void watch(TransferProgress progress, String description) {
+        if (!isEnabled()) {
+            return;
+        }
+        watched.put(progress, description);
+        if (checks == null) {
+            long interval = Math.max(1, Math.min(MAX_CHECK_INTERVAL_MILLIS, TimeUnit.NANOSECONDS.toMillis(stallTimeoutNanos) / 4));
+            checks = scheduler.getTimer().scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Once this returns, the watchdog will not abort the transfer anymore.
+     */
+    public synchronized void unwatch(TransferProgress progress) {
+        watched.remove(progress);
+        if (watched.isEmpty() && checks != null) {
+            checks.cancel(false);
+            checks = null;
+        }
+    }
+
+    synchronized int check() {
+        int aborted = 0;
+        for (Map.Entry<TransferProgress, String> entry : watched.entrySet()) {
+            TransferProgress progress = entry.getKey();
+            long idleNanos = progress.idleNanos();
+            if (progress.isStalled() || idleNanos < stallTimeoutNanos) {
+                continue;
+            }
+            LOG.warn(String.format("S3 %s made no progress for %d seconds after %d bytes (S3 request ID: %s), aborting it",
+                    entry.getValue(), TimeUnit.NANOSECONDS.toSeconds(idleNanos), progress.getBytes(),
+                    progress.getRequestId() == null ? "no response yet" : progress.getRequestId()));
+            progress.abort();
+            aborted++;
+        }
+        return aborted;
+    }
+}
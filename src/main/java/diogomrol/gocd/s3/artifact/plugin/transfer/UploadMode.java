@@ -0,0 +1,42 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+/**
+ * How the bytes of uploads are protected, trading CPU for checks done by the SDK.
+ */
+public enum UploadMode {
+    /**
+     * SDK defaults: the payload is not signed over HTTPS, the SDK computes an MD5 which S3 verifies.
+     */
+    STANDARD("standard"),
+    /**
+     * The payload is signed in SHA-256 chunks on top of the MD5, as required by some S3 compatible stores.
+     */
+    SIGNED_PAYLOAD("signed-payload"),
+    /**
+     * HTTPS only and no payload hashing by the SDK. The CRC32C computed by the plugin while sending is the only pass
+     * over the bytes, and is verified on fetch.
+     */
+    LOW_CPU("low-cpu");
+
+    private final String value;
+
+    UploadMode(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the mode with the given value, or null when there is none
+     */
+    public static UploadMode fromValue(String value) {
+        for (UploadMode mode : values()) {
+            if (mode.value.equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
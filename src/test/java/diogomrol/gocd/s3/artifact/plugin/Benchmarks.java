@@ -0,0 +1,5 @@
+package diogomrol.gocd.s3.artifact.plugin;
+
+//category marker interface of the benchmarks, run with ./gradlew benchmark
+public interface Benchmarks {
+}
@@ -0,0 +1,70 @@
+package diogomrol.gocd.s3.artifact.plugin;
+
+import com.amazonaws.services.s3.internal.SkipMd5CheckStrategy;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class S3ClientFactoryTest {
+    private static final String MD5_PROPERTY = SkipMd5CheckStrategy.DISABLE_PUT_OBJECT_MD5_VALIDATION_PROPERTY;
+
+    private String savedValue;
+
+    @Before
+    public void setUp() {
+        savedValue = System.getProperty(MD5_PROPERTY);
+        S3ClientFactory.resetJvmWideSettings();
+        System.clearProperty(MD5_PROPERTY);
+    }
+
+    @After
+    public void tearDown() {
+        S3ClientFactory.resetJvmWideSettings();
+        if (savedValue == null) {
+            System.clearProperty(MD5_PROPERTY);
+        } else {
+            System.setProperty(MD5_PROPERTY, savedValue);
+        }
+    }
+
+    @Test
+    public void shouldTurnOffMd5OfTheSdkInLowCpuModeUntilReset() {
+        S3ClientFactory.applyJvmWideSettings(settings("low-cpu"));
+        assertThat(System.getProperty(MD5_PROPERTY)).isEqualTo("true");
+
+        S3ClientFactory.resetJvmWideSettings();
+        assertThat(System.getProperty(MD5_PROPERTY)).isNull();
+    }
+
+    @Test
+    public void shouldTurnMd5OfTheSdkBackOnWhenAnotherModeIsApplied() {
+        S3ClientFactory.applyJvmWideSettings(settings("low-cpu"));
+
+        S3ClientFactory.applyJvmWideSettings(settings("standard"));
+
+        assertThat(System.getProperty(MD5_PROPERTY)).isNull();
+    }
+
+    @Test
+    public void shouldLeaveMd5SettingOfSomeoneElseAlone() {
+        System.setProperty(MD5_PROPERTY, "false");
+
+        S3ClientFactory.applyJvmWideSettings(settings("low-cpu"));
+        assertThat(System.getProperty(MD5_PROPERTY)).isEqualTo("false");
+
+        S3ClientFactory.resetJvmWideSettings();
+        S3ClientFactory.applyJvmWideSettings(settings("standard"));
+        assertThat(System.getProperty(MD5_PROPERTY)).isEqualTo("false");
+    }
+
+    private static TransferSettings settings(String uploadMode) {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.upload.mode", uploadMode);
+        return new TransferSettings(properties);
+    }
+}
@@ -0,0 +1,5 @@
+package diogomrol.gocd.s3.artifact.plugin;
+
+//category marker interface of the tests of 100k-file artifacts, run with ./gradlew scaleTest
+public interface ScaleTests {
+}
@@ -0,0 +1,124 @@
+package diogomrol.gocd.s3.artifact.plugin.capture;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.thoughtworks.go.plugin.api.request.DefaultGoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.Constants;
+import diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RequestRecorderTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private File captureFile;
+    private RequestRecorder recorder;
+
+    @Before
+    public void setUp() {
+        captureFile = new File(tmpFolder.getRoot(), "capture/requests.jsonl");
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.capture.file", captureFile.getPath());
+        recorder = RequestRecorder.fromSettings(new TransferSettings(properties));
+    }
+
+    @Test
+    public void shouldBeDisabledByDefault() {
+        assertThat(RequestRecorder.fromSettings(new TransferSettings(new Properties()))).isSameAs(RequestRecorder.DISABLED);
+        assertThat(recorder.isEnabled()).isTrue();
+    }
+
+    @Test
+    public void shouldRedactCredentialsAndEnvironmentVariablesNotSetByGoCD() throws IOException {
+        PublishArtifactRequest publishRequest = new PublishArtifactRequest(new ArtifactStore("s3", new ArtifactStoreConfig("bucket", "us-east-1", "AKIA", "secret")),
+                new ArtifactPlan("id", "s3", "build/*.jar", Optional.of("dest")), "/agent/pipelines/up42");
+        Map<String, String> environmentVariables = new HashMap<>();
+        environmentVariables.put("GO_PIPELINE_LABEL", "42");
+        environmentVariables.put("DEPLOY_KEY", "hunter2");
+        publishRequest.setEnvironmentVariables(environmentVariables);
+
+        recorder.record(request("cd.go.artifact.publish-artifact", publishRequest.toJSON()),
+                DefaultGoPluginApiResponse.success("{\"metadata\":{\"Destination\":\"dest\"}}"), 1000, 2_500_000);
+
+        JsonObject line = lines().get(0);
+        assertThat(line.get("time").getAsLong()).isEqualTo(1000);
+        assertThat(line.get("name").getAsString()).isEqualTo("cd.go.artifact.publish-artifact");
+        assertThat(line.get("durationMillis").getAsDouble()).isEqualTo(2.5);
+        assertThat(line.get("responseCode").getAsInt()).isEqualTo(200);
+        assertThat(line.getAsJsonObject("response").getAsJsonObject("metadata").get("Destination").getAsString()).isEqualTo("dest");
+        JsonObject body = line.getAsJsonObject("body");
+        JsonObject storeConfiguration = body.getAsJsonObject("artifact_store").getAsJsonObject("configuration");
+        assertThat(storeConfiguration.get("S3Bucket").getAsString()).isEqualTo("bucket");
+        assertThat(storeConfiguration.get("AWSAccessKey").getAsString()).isEqualTo(RequestRecorder.REDACTED);
+        assertThat(storeConfiguration.get("AWSSecretAccessKey").getAsString()).isEqualTo(RequestRecorder.REDACTED);
+        assertThat(body.getAsJsonObject("environment_variables").get("GO_PIPELINE_LABEL").getAsString()).isEqualTo("42");
+        assertThat(body.getAsJsonObject("environment_variables").get("DEPLOY_KEY").getAsString()).isEqualTo(RequestRecorder.REDACTED);
+        assertThat(new String(Files.readAllBytes(captureFile.toPath()), StandardCharsets.UTF_8)).doesNotContain("AKIA", "hunter2");
+    }
+
+    @Test
+    public void shouldAppendOneLinePerRequestHandledByThePlugin() throws IOException {
+        S3ArtifactPlugin plugin = new S3ArtifactPlugin(recorder);
+
+        plugin.handle(request("cd.go.artifact.get-capabilities", null));
+        plugin.handle(request("cd.go.artifact.store.get-metadata", null));
+
+        List<JsonObject> lines = lines();
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0).get("name").getAsString()).isEqualTo("cd.go.artifact.get-capabilities");
+        assertThat(lines.get(0).has("body")).isFalse();
+        assertThat(lines.get(0).has("response")).isFalse();
+        assertThat(lines.get(1).get("name").getAsString()).isEqualTo("cd.go.artifact.store.get-metadata");
+    }
+
+    @Test
+    public void shouldKeepBodiesWhichAreNotJson() throws IOException {
+        recorder.record(request("cd.go.artifact.publish.validate", "not json"), null, 0, 0);
+
+        JsonObject line = lines().get(0);
+        assertThat(line.get("body").getAsString()).isEqualTo("not json");
+        assertThat(line.has("responseCode")).isFalse();
+    }
+
+    @Test
+    public void shouldNotWriteAnythingWhenDisabled() {
+        RequestRecorder.DISABLED.record(request("cd.go.artifact.get-capabilities", null), DefaultGoPluginApiResponse.success("{}"), 0, 0);
+
+        assertThat(captureFile).doesNotExist();
+    }
+
+    private static DefaultGoPluginApiRequest request(String name, String body) {
+        DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(Constants.EXTENSION_TYPE, Constants.API_VERSION, name);
+        request.setRequestBody(body);
+        return request;
+    }
+
+    private List<JsonObject> lines() throws IOException {
+        JsonParser parser = new JsonParser();
+        return Files.readAllLines(captureFile.toPath(), StandardCharsets.UTF_8).stream()
+                .map(line -> parser.parse(line).getAsJsonObject())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,218 @@
+package diogomrol.gocd.s3.artifact.plugin.executors;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.S3ResponseMetadata;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.gson.Gson;
+import com.thoughtworks.go.plugin.api.request.DefaultGoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
+import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Publishes and fetches artifacts many times larger than the heap in a JVM with a small {@code -Xmx} and direct memory
+ * limit, so buffering a whole payload, or more buffers than the pool allows, fails the run.
+ */
+public class BoundedMemoryTest {
+    private static final long LARGE_FILE = 160L * 1024 * 1024;
+    private static final long MEDIUM_FILE = 48L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldPublishAndFetchWithinSmallHeapInBoundedMemoryMode() throws Exception {
+        File workingDir = tmpFolder.newFolder("go-agent");
+        createSparseFile(new File(workingDir, "large.bin"), LARGE_FILE);
+        createSparseFile(new File(workingDir, "medium.bin"), MEDIUM_FILE);
+        File output = tmpFolder.newFile("output.txt");
+
+        Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx40m",
+                "-XX:MaxDirectMemorySize=4m",
+                "-Dcd.go.artifact.s3.buffer.pool.mb=2",
+                "-Dcd.go.artifact.s3.state.dir=" + tmpFolder.newFolder("state"),
+                "-cp", System.getProperty("java.class.path"),
+                Child.class.getName(),
+                workingDir.getAbsolutePath())
+                .redirectErrorStream(true)
+                .redirectOutput(output)
+                .start();
+
+        assertThat(process.waitFor(5, TimeUnit.MINUTES)).isTrue();
+        String log = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+        assertThat(process.exitValue()).as(log).isZero();
+        assertThat(new File(workingDir, "fetched/large.bin").length()).isEqualTo(LARGE_FILE);
+        assertThat(new File(workingDir, "fetched/medium.bin").length()).isEqualTo(MEDIUM_FILE);
+    }
+
+    private static void createSparseFile(File file, long length) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+        }
+    }
+
+    public static class Child {
+        public static void main(String[] args) {
+            String workingDir = args[0];
+            ArtifactStoreConfig storeConfig = new ArtifactStoreConfig("bucket", "eu-west-1", "key", "secret");
+            S3ClientFactory clientFactory = new S3ClientFactory() {
+                @Override
+                public AmazonS3 s3(ArtifactStoreConfig artifactStoreConfig) {
+                    return new DrainingS3();
+                }
+            };
+            ConsoleLogger consoleLogger = mock(ConsoleLogger.class);
+            TransferSettings settings = TransferSettings.fromSystemProperties();
+
+            ArtifactPlan artifactPlan = new ArtifactPlan("id", "storeId", "*.bin", Optional.empty());
+            DefaultGoPluginApiRequest publishRequest = new DefaultGoPluginApiRequest("artifact", "1.0", "cd.go.artifact.publish-artifact");
+            publishRequest.setRequestBody(new PublishArtifactRequest(new ArtifactStore(artifactPlan.getId(), storeConfig), artifactPlan, workingDir).toJSON());
+            GoPluginApiResponse published = new PublishArtifactExecutor(publishRequest, consoleLogger, clientFactory, settings).execute();
+            check(published);
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object> metadata = (Map<String, Object>) new Gson().fromJson(published.responseBody(), Map.class).get("metadata");
+            FetchArtifactRequest fetchRequest = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig(null, "fetched", false), workingDir);
+            check(new FetchArtifactExecutor(fetchRequest, consoleLogger, clientFactory, settings).execute());
+            System.exit(0);
+        }
+
+        private static void check(GoPluginApiResponse response) {
+            if (response.responseCode() != 200) {
+                System.err.println(response.responseBody());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Consumes uploaded streams and serves objects of zeros, without keeping any of their bytes.
+     */
+    private static class DrainingS3 extends AbstractAmazonS3 {
+        @Override
+        public PutObjectResult putObject(PutObjectRequest request) {
+            drain(request.getInputStream(), request.getMetadata().getContentLength());
+            return new PutObjectResult();
+        }
+
+        @Override
+        public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("upload");
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            drain(request.getInputStream(), request.getPartSize());
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        }
+
+        @Override
+        public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            return new CompleteMultipartUploadResult();
+        }
+
+        @Override
+        public S3Object getObject(GetObjectRequest request) {
+            long length = request.getKey().equals("large.bin") ? LARGE_FILE : MEDIUM_FILE;
+            if (request.getRange() != null) {
+                length = request.getRange()[1] - request.getRange()[0] + 1;
+            }
+            S3Object object = new S3Object();
+            object.setKey(request.getKey());
+            object.setObjectContent(new Zeros(length));
+            return object;
+        }
+
+        @Override
+        public S3ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
+            return null;
+        }
+
+        private static void drain(InputStream in, long expected) {
+            byte[] buffer = new byte[8 * 1024];
+            long total = 0;
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    total += read;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            if (total != expected) {
+                throw new IllegalStateException(String.format("Read %d bytes instead of %d", total, expected));
+            }
+        }
+    }
+
+    private static class Zeros extends InputStream {
+        private long remaining;
+
+        Zeros(long length) {
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = (int) Math.min(len, remaining);
+            Arrays.fill(b, off, off + read, (byte) 0);
+            remaining -= read;
+            return read;
+        }
+    }
+}
@@ -2,10 +2,11 @@ package diogomrol.gocd.s3.artifact.plugin.executors;
 
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
 import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.S3Object;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
@@ -13,6 +14,10 @@ import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
 import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
 import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactConfig;
 import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.Crc32c;
+import diogomrol.gocd.s3.artifact.plugin.transfer.ListingCache;
+import diogomrol.gocd.s3.artifact.plugin.transfer.ObjectListings;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -22,16 +27,26 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.zip.Checksum;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -52,7 +67,7 @@ public class FetchArtifactExecutorTest {
     private AmazonS3 s3Client;
 
     @Captor ArgumentCaptor<GetObjectRequest> getRequestCaptor;
-    @Captor ArgumentCaptor<File> fileCaptor;
+    @Captor ArgumentCaptor<ListObjectsV2Request> listRequestCaptor;
     private ArtifactStoreConfig storeConfig;
     private FetchArtifactConfig fetchArtifactConfig;
 
@@ -61,6 +76,7 @@ public class FetchArtifactExecutorTest {
         initMocks(this);
         agentWorkingDir = tmpFolder.newFolder("go-agent");
         when(s3ClientFactory.s3(any())).thenReturn(s3Client);
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> s3Object(invocation.getArgument(0)));
         storeConfig = new ArtifactStoreConfig("testBucket", "test", "test", "test");
         fetchArtifactConfig = new FetchArtifactConfig();
     }
@@ -75,10 +91,10 @@ public class FetchArtifactExecutorTest {
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        verify(s3Client, times(1)).getObject(getRequestCaptor.capture());
         assertThat(getRequestCaptor.getValue().getBucketName()).isEqualTo("testBucket");
         assertThat(getRequestCaptor.getValue().getKey()).isEqualTo("build.json");
-        assertThat(fileCaptor.getValue().getAbsoluteFile()).isEqualTo(Paths.get(agentWorkingDir.toString(), "build.json").toFile());
+        assertThat(Paths.get(agentWorkingDir.toString(), "build.json")).isRegularFile();
     }
 
     @Test
@@ -91,10 +107,10 @@ public class FetchArtifactExecutorTest {
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        verify(s3Client, times(1)).getObject(getRequestCaptor.capture());
         assertThat(getRequestCaptor.getValue().getBucketName()).isEqualTo("testBucket");
         assertThat(getRequestCaptor.getValue().getKey()).isEqualTo("x/y/build.json");
-        assertThat(fileCaptor.getValue().getAbsoluteFile()).isEqualTo(Paths.get(agentWorkingDir.toString(), "build.json").toFile());
+        assertThat(Paths.get(agentWorkingDir.toString(), "build.json")).isRegularFile();
     }
 
     @Test
@@ -108,10 +124,10 @@ public class FetchArtifactExecutorTest {
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        verify(s3Client, times(1)).getObject(getRequestCaptor.capture());
         assertThat(getRequestCaptor.getValue().getBucketName()).isEqualTo("testBucket");
         assertThat(getRequestCaptor.getValue().getKey()).isEqualTo("x/y/build.json");
-        assertThat(fileCaptor.getValue().getAbsoluteFile()).isEqualTo(Paths.get(agentWorkingDir.toString(), "local/build.json").toFile());
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/build.json")).isRegularFile();
     }
 
     @Test
@@ -125,10 +141,10 @@ public class FetchArtifactExecutorTest {
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        verify(s3Client, times(1)).getObject(getRequestCaptor.capture());
         assertThat(getRequestCaptor.getValue().getBucketName()).isEqualTo("testBucket");
         assertThat(getRequestCaptor.getValue().getKey()).isEqualTo("build.json");
-        assertThat(fileCaptor.getValue().getAbsoluteFile()).isEqualTo(Paths.get(agentWorkingDir.toString(), "local/build.json").toFile());
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/build.json")).isRegularFile();
     }
 
     @Test
@@ -142,7 +158,7 @@ public class FetchArtifactExecutorTest {
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(412);
-        verify(s3Client, times(0)).getObject(any(), any(String.class));
+        verify(s3Client, times(0)).getObject(any(GetObjectRequest.class));
     }
 
     @Test
@@ -152,14 +168,12 @@ public class FetchArtifactExecutorTest {
         metadata.put("Destination", "");
         metadata.put("IsFile", false);
         fetchArtifactConfig = new FetchArtifactConfig("bla/h", "local", false);
-        ObjectListing objectLists = new ObjectListing();
-        objectLists.setBucketName("testBucket");
-        when(s3Client.listObjects(any(String.class), eq("bla/h"))).thenReturn(objectLists);
+        bucketKeys("bla/hx.json", "bla/h2/build.json");
         FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(400);
-        verify(s3Client, times(0)).getObject(any(), any(String.class));
+        verify(s3Client, times(0)).getObject(any(GetObjectRequest.class));
     }
 
     @Test
@@ -173,10 +187,10 @@ public class FetchArtifactExecutorTest {
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        verify(s3Client, times(1)).getObject(getRequestCaptor.capture());
         assertThat(getRequestCaptor.getValue().getBucketName()).isEqualTo("testBucket");
         assertThat(getRequestCaptor.getValue().getKey()).isEqualTo("x/y/build.json");
-        assertThat(fileCaptor.getValue().getAbsoluteFile()).isEqualTo(Paths.get(agentWorkingDir.toString(), "local/build.json").toFile());
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/build.json")).isRegularFile();
     }
 
     @Test
@@ -188,15 +202,11 @@ public class FetchArtifactExecutorTest {
         fetchArtifactConfig = new FetchArtifactConfig(null, "local", false);
         FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
-        ObjectListing objectLists = new ObjectListing();
-        objectLists.setBucketName("testBucket");
-        addObject(objectLists, "build.json");
-        addObject(objectLists, "test.json");
-        when(s3Client.listObjects(any(String.class))).thenReturn(objectLists);
+        bucketKeys("build.json", "test.json");
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).listObjects("testBucket");
-        verify(s3Client, times(2)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        assertThat(firstListedPrefix()).isNull();
+        verify(s3Client, times(2)).getObject(getRequestCaptor.capture());
         List<GetObjectRequest> allRequestsMade = getRequestCaptor.getAllValues();
         assertThat(allRequestsMade)
                 .hasSize(2)
@@ -205,12 +215,9 @@ public class FetchArtifactExecutorTest {
         assertThat(allRequestsMade)
                 .hasSize(2)
                 .extracting(GetObjectRequest::getKey)
-                .containsExactly("build.json", "test.json");
-        List<File> allFilesDownloaded = fileCaptor.getAllValues();
-        assertThat(allFilesDownloaded)
-                .hasSize(2)
-                .extracting(File::getAbsolutePath)
-                .contains(Paths.get(agentWorkingDir.toString(), "local/build.json").toString(), Paths.get(agentWorkingDir.toString(), "local/test.json").toString());
+                .containsExactlyInAnyOrder("build.json", "test.json");
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/build.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/test.json")).isRegularFile();
     }
 
     @Test
@@ -222,15 +229,11 @@ public class FetchArtifactExecutorTest {
         fetchArtifactConfig = new FetchArtifactConfig(null, "local", false);
         FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
-        ObjectListing objectLists = new ObjectListing();
-        objectLists.setBucketName("testBucket");
-        addObject(objectLists, "x/y/build.json");
-        addObject(objectLists, "x/y/test.json");
-        when(s3Client.listObjects(any(String.class), eq("x/y"))).thenReturn(objectLists);
+        bucketKeys("x/y/build.json", "x/y/test.json", "x/yz/other.json");
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).listObjects("testBucket", "x/y");
-        verify(s3Client, times(2)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        assertThat(firstListedPrefix()).isEqualTo("x/y/");
+        verify(s3Client, times(2)).getObject(getRequestCaptor.capture());
         List<GetObjectRequest> allRequestsMade = getRequestCaptor.getAllValues();
         assertThat(allRequestsMade)
                 .hasSize(2)
@@ -239,12 +242,9 @@ public class FetchArtifactExecutorTest {
         assertThat(allRequestsMade)
                 .hasSize(2)
                 .extracting(GetObjectRequest::getKey)
-                .containsExactly("x/y/build.json", "x/y/test.json");
-        List<File> allFilesDownloaded = fileCaptor.getAllValues();
-        assertThat(allFilesDownloaded)
-                .hasSize(2)
-                .extracting(File::getAbsolutePath)
-                .contains(Paths.get(agentWorkingDir.toString(), "local/build.json").toString(), Paths.get(agentWorkingDir.toString(), "local/test.json").toString());
+                .containsExactlyInAnyOrder("x/y/build.json", "x/y/test.json");
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/build.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/test.json")).isRegularFile();
     }
 
     @Test
@@ -256,15 +256,11 @@ public class FetchArtifactExecutorTest {
         fetchArtifactConfig = new FetchArtifactConfig(null, "local", false);
         FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
-        ObjectListing objectLists = new ObjectListing();
-        objectLists.setBucketName("testBucket");
-        addObject(objectLists, "x/y/bin/build.json");
-        addObject(objectLists, "x/y/bin/test.json");
-        when(s3Client.listObjects(any(String.class), eq("x/y"))).thenReturn(objectLists);
+        bucketKeys("x/y/bin/build.json", "x/y/bin/test.json");
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).listObjects("testBucket", "x/y");
-        verify(s3Client, times(2)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        assertThat(firstListedPrefix()).isEqualTo("x/y/");
+        verify(s3Client, times(2)).getObject(getRequestCaptor.capture());
         List<GetObjectRequest> allRequestsMade = getRequestCaptor.getAllValues();
         assertThat(allRequestsMade)
                 .hasSize(2)
@@ -273,12 +269,9 @@ public class FetchArtifactExecutorTest {
         assertThat(allRequestsMade)
                 .hasSize(2)
                 .extracting(GetObjectRequest::getKey)
-                .containsExactly("x/y/bin/build.json", "x/y/bin/test.json");
-        List<File> allFilesDownloaded = fileCaptor.getAllValues();
-        assertThat(allFilesDownloaded)
-                .hasSize(2)
-                .extracting(File::getAbsolutePath)
-                .contains(Paths.get(agentWorkingDir.toString(), "local/bin/build.json").toString(), Paths.get(agentWorkingDir.toString(), "local/bin/test.json").toString());
+                .containsExactlyInAnyOrder("x/y/bin/build.json", "x/y/bin/test.json");
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/bin/build.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/bin/test.json")).isRegularFile();
     }
 
     @Test
@@ -290,15 +283,11 @@ public class FetchArtifactExecutorTest {
         fetchArtifactConfig = new FetchArtifactConfig("bin", "local", false);
         FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
         FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
-        ObjectListing objectLists = new ObjectListing();
-        objectLists.setBucketName("testBucket");
-        addObject(objectLists, "x/y/bin/build.json");
-        addObject(objectLists, "x/y/bin/test.json");
-        when(s3Client.listObjects(any(String.class), eq("x/y/bin"))).thenReturn(objectLists);
+        bucketKeys("x/y/bin/build.json", "x/y/bin/test.json", "x/y/bin2/other.json", "x/y/binary.json");
         final GoPluginApiResponse response = executor.execute();
         assertThat(response.responseCode()).isEqualTo(200);
-        verify(s3Client, times(1)).listObjects("testBucket", "x/y/bin");
-        verify(s3Client, times(2)).getObject(getRequestCaptor.capture(), fileCaptor.capture());
+        assertThat(firstListedPrefix()).isEqualTo("x/y/bin/");
+        verify(s3Client, times(2)).getObject(getRequestCaptor.capture());
         List<GetObjectRequest> allRequestsMade = getRequestCaptor.getAllValues();
         assertThat(allRequestsMade)
                 .hasSize(2)
@@ -307,17 +296,281 @@ public class FetchArtifactExecutorTest {
         assertThat(allRequestsMade)
                 .hasSize(2)
                 .extracting(GetObjectRequest::getKey)
-                .containsExactly("x/y/bin/build.json", "x/y/bin/test.json");
-        List<File> allFilesDownloaded = fileCaptor.getAllValues();
-        assertThat(allFilesDownloaded)
-                .hasSize(2)
-                .extracting(File::getAbsolutePath)
-                .contains(Paths.get(agentWorkingDir.toString(), "local/build.json").toString(), Paths.get(agentWorkingDir.toString(), "local/test.json").toString());
+                .containsExactlyInAnyOrder("x/y/bin/build.json", "x/y/bin/test.json");
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/build.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/test.json")).isRegularFile();
+    }
+
+    private S3Object s3Object(GetObjectRequest request) {
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        byte[] content = request.getKey().getBytes(StandardCharsets.UTF_8);
+        if (request.getRange() != null) {
+            content = new byte[(int) (request.getRange()[1] - request.getRange()[0] + 1)];
+            Arrays.fill(content, (byte) (request.getRange()[0] / (1024 * 1024)));
+        }
+        object.setObjectContent(new ByteArrayInputStream(content));
+        return object;
+    }
+
+    private static Map<String, Object> sizeSummary(long totalBytes, Object... sizesByKey) {
+        Map<String, Object> files = new HashMap<>();
+        for (int i = 0; i < sizesByKey.length; i += 2) {
+            files.put((String) sizesByKey[i], ((Number) sizesByKey[i + 1]).doubleValue());
+        }
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("TotalBytes", (double) totalBytes);
+        summary.put("FileCount", (double) files.size());
+        summary.put("Files", files);
+        return summary;
+    }
+
+    private static TransferSettings rangeSettings() {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.range.threshold.mb", "1");
+        properties.setProperty("cd.go.artifact.s3.range.part.size.mb", "1");
+        return new TransferSettings(properties);
+    }
+
+    @Test
+    public void shouldFetchDirectoryFromPublishedSizesWithoutListing() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "*.json");
+        metadata.put("Destination", "x/y");
+        metadata.put("IsFile", false);
+        metadata.put("Size", sizeSummary(12, "x/y/build.json", 6, "x/y/test.json", 6));
+        fetchArtifactConfig = new FetchArtifactConfig(null, "local", false);
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+        FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
+
+        final GoPluginApiResponse response = executor.execute();
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        verify(s3Client, times(0)).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(s3Client, times(2)).getObject(getRequestCaptor.capture());
+        assertThat(getRequestCaptor.getAllValues())
+                .extracting(GetObjectRequest::getKey)
+                .containsExactlyInAnyOrder("x/y/build.json", "x/y/test.json");
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/build.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "local/test.json")).isRegularFile();
+    }
+
+    @Test
+    public void shouldFetchLargeFileInRanges() throws IOException {
+        long size = 2 * 1024 * 1024 + 512 * 1024;
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "big.bin");
+        metadata.put("Destination", "");
+        metadata.put("IsFile", true);
+        metadata.put("Size", sizeSummary(size, "big.bin", size));
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+        FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory, rangeSettings());
+
+        final GoPluginApiResponse response = executor.execute();
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        verify(s3Client, times(3)).getObject(getRequestCaptor.capture());
+        assertThat(getRequestCaptor.getAllValues())
+                .extracting(request -> request.getRange()[0] + "-" + request.getRange()[1])
+                .containsExactlyInAnyOrder("0-1048575", "1048576-2097151", "2097152-2621439");
+        byte[] content = Files.readAllBytes(Paths.get(agentWorkingDir.toString(), "big.bin"));
+        assertThat(content).hasSize((int) size);
+        assertThat(content[0]).isEqualTo((byte) 0);
+        assertThat(content[1024 * 1024]).isEqualTo((byte) 1);
+        assertThat(content[(int) size - 1]).isEqualTo((byte) 2);
+    }
+
+    @Test
+    public void shouldFailBeforeDownloadingWhenDiskSpaceIsInsufficient() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "huge.bin");
+        metadata.put("Destination", "");
+        metadata.put("IsFile", true);
+        metadata.put("Size", sizeSummary(1L << 60, "huge.bin", 1L << 60));
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+        FetchArtifactExecutor executor = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory);
+
+        final GoPluginApiResponse response = executor.execute();
+
+        assertThat(response.responseCode()).isEqualTo(500);
+        assertThat(response.responseBody()).contains("Not enough free disk space");
+        verify(s3Client, times(0)).getObject(any(GetObjectRequest.class));
+    }
+
+    @Test
+    public void shouldVerifyChecksumOfFetchedFile() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "build.json");
+        metadata.put("Destination", "");
+        metadata.put("IsFile", true);
+        metadata.put("Crc32c", Collections.singletonMap("build.json", "d3e787b1"));
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+
+        final GoPluginApiResponse response = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory).execute();
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        assertThat(Paths.get(agentWorkingDir.toString(), "build.json")).hasContent("build.json");
+    }
+
+    @Test
+    public void shouldFailWhenFetchedFileDoesNotMatchChecksum() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "build.json");
+        metadata.put("Destination", "");
+        metadata.put("IsFile", true);
+        metadata.put("Crc32c", Collections.singletonMap("build.json", "0badc0de"));
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+
+        final GoPluginApiResponse response = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory).execute();
+
+        assertThat(response.responseCode()).isEqualTo(500);
+        assertThat(response.responseBody()).contains("Downloaded `build.json` does not match the checksum recorded when it was published: CRC32C is d3e787b1 instead of 0badc0de");
+    }
+
+    @Test
+    public void shouldVerifyChecksumsFromManifestAndNotFetchTheManifest() {
+        String manifestKey = ".checksums.json";
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            if (!request.getKey().equals(manifestKey)) {
+                return s3Object(request);
+            }
+            S3Object manifest = new S3Object();
+            manifest.setObjectContent(new ByteArrayInputStream("{\"build.json\": \"0badc0de\"}".getBytes(StandardCharsets.UTF_8)));
+            return manifest;
+        });
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "*.json");
+        metadata.put("Destination", "");
+        metadata.put("IsFile", false);
+        metadata.put("Crc32cManifest", manifestKey);
+        bucketKeys("build.json", manifestKey);
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+
+        GoPluginApiResponse response = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory).execute();
+
+        assertThat(response.responseCode()).isEqualTo(500);
+        assertThat(response.responseBody()).contains("CRC32C is d3e787b1 instead of 0badc0de");
+        assertThat(Paths.get(agentWorkingDir.toString(), ".checksums.json")).doesNotExist();
+    }
+
+    @Test
+    public void shouldFetchWithoutVerifyingChecksumsWhenTheManifestIsMissing() {
+        AmazonS3Exception notFound = new AmazonS3Exception("The specified key does not exist.");
+        notFound.setStatusCode(404);
+        when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = invocation.getArgument(0);
+            if (request.getKey().equals("build/.checksums.json")) {
+                throw notFound;
+            }
+            return s3Object(request);
+        });
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "*.json");
+        metadata.put("Destination", "build");
+        metadata.put("IsFile", false);
+        metadata.put("Crc32cManifest", "build/.checksums.json");
+        bucketKeys("build/build.json", "build/.checksums.json");
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+
+        GoPluginApiResponse response = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory).execute();
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        assertThat(Paths.get(agentWorkingDir.toString(), "build.json")).exists();
+        assertThat(Paths.get(agentWorkingDir.toString(), ".checksums.json")).doesNotExist();
+        verify(consoleLogger).info(contains("Could not load checksums of the published files from `build/.checksums.json`"));
+    }
+
+    @Test
+    public void shouldVerifyChecksumOfFileFetchedInRanges() {
+        int size = 2 * 1024 * 1024 + 512 * 1024;
+        byte[] expected = new byte[size];
+        for (int i = 0; i < size; i++) {
+            expected[i] = (byte) (i / (1024 * 1024));
+        }
+        Checksum checksum = Crc32c.create();
+        checksum.update(expected, 0, size);
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "big.bin");
+        metadata.put("Destination", "");
+        metadata.put("IsFile", true);
+        metadata.put("Size", sizeSummary(size, "big.bin", size));
+        metadata.put("Crc32c", Collections.singletonMap("big.bin", Crc32c.toHex(checksum.getValue())));
+        FetchArtifactRequest fetchArtifactRequest = new FetchArtifactRequest(storeConfig, metadata, fetchArtifactConfig, agentWorkingDir.toString());
+
+        GoPluginApiResponse response = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory, rangeSettings()).execute();
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        metadata.put("Crc32c", Collections.singletonMap("big.bin", "0badc0de"));
+        response = new FetchArtifactExecutor(fetchArtifactRequest, consoleLogger, s3ClientFactory, rangeSettings()).execute();
+        assertThat(response.responseCode()).isEqualTo(500);
+    }
+
+    @Test
+    public void shouldReuseListingOfArtifactForFetchesOfItsSubPaths() {
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("TotalBytes", 60000.0);
+        summary.put("FileCount", 2000.0);
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "**/*.json");
+        metadata.put("Destination", "x/y");
+        metadata.put("IsFile", false);
+        metadata.put("Size", summary);
+        bucketKeys("x/y/bin/build.json", "x/y/bin/test.json", "x/y/lib/other.json");
+        ListingCache listingCache = new ListingCache(60_000, 1000);
+        TransferSettings settings = TransferSettings.fromSystemProperties();
+
+        FetchArtifactRequest fetchAll = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig(null, "all", false), agentWorkingDir.toString());
+        assertThat(new FetchArtifactExecutor(fetchAll, consoleLogger, s3ClientFactory, settings, listingCache).execute().responseCode()).isEqualTo(200);
+        verify(s3Client, atLeastOnce()).listObjectsV2(any(ListObjectsV2Request.class));
+        clearInvocations(s3Client);
+        FetchArtifactRequest fetchBin = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig("bin", "bin", false), agentWorkingDir.toString());
+        assertThat(new FetchArtifactExecutor(fetchBin, consoleLogger, s3ClientFactory, settings, listingCache).execute().responseCode()).isEqualTo(200);
+
+        verify(s3Client, never()).listObjectsV2(any(ListObjectsV2Request.class));
+        assertThat(Paths.get(agentWorkingDir.toString(), "all/lib/other.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "bin/build.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "bin/test.json")).isRegularFile();
+        assertThat(Paths.get(agentWorkingDir.toString(), "bin/other.json")).doesNotExist();
+
+        metadata.put("Destination", "x/y/");
+        FetchArtifactRequest fetchRepublished = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig("bin", "again", false), agentWorkingDir.toString());
+        assertThat(new FetchArtifactExecutor(fetchRepublished, consoleLogger, s3ClientFactory, settings, listingCache).execute().responseCode()).isEqualTo(200);
+        verify(s3Client, atLeastOnce()).listObjectsV2(any(ListObjectsV2Request.class));
+    }
+
+    @Test
+    public void shouldNotKeepListingWithMoreObjectsThanTheCacheHolds() {
+        Map<String, Object> summary = new HashMap<>();
+        summary.put("TotalBytes", 60000.0);
+        summary.put("FileCount", 2000.0);
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "**/*.json");
+        metadata.put("Destination", "x/y");
+        metadata.put("IsFile", false);
+        metadata.put("Size", summary);
+        bucketKeys("x/y/bin/build.json", "x/y/bin/test.json", "x/y/lib/other.json");
+        ListingCache listingCache = new ListingCache(60_000, 2);
+        TransferSettings settings = TransferSettings.fromSystemProperties();
+
+        FetchArtifactRequest fetchAll = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig(null, "all", false), agentWorkingDir.toString());
+        assertThat(new FetchArtifactExecutor(fetchAll, consoleLogger, s3ClientFactory, settings, listingCache).execute().responseCode()).isEqualTo(200);
+        clearInvocations(s3Client);
+        FetchArtifactRequest fetchAgain = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig(null, "again", false), agentWorkingDir.toString());
+        assertThat(new FetchArtifactExecutor(fetchAgain, consoleLogger, s3ClientFactory, settings, listingCache).execute().responseCode()).isEqualTo(200);
+
+        verify(s3Client, atLeastOnce()).listObjectsV2(any(ListObjectsV2Request.class));
+        assertThat(Paths.get(agentWorkingDir.toString(), "again/lib/other.json")).isRegularFile();
+    }
+
+    private void bucketKeys(String... keys) {
+        when(s3Client.listObjectsV2(any(ListObjectsV2Request.class)))
+                .thenAnswer(invocation -> ObjectListings.list(Arrays.asList(keys), invocation.getArgument(0), 1000));
     }
 
-    private void addObject(ObjectListing objectLists, String key) {
-        S3ObjectSummary buildJsonObj = new S3ObjectSummary();
-        buildJsonObj.setKey(key);
-        objectLists.getObjectSummaries().add(buildJsonObj);
+    private String firstListedPrefix() {
+        verify(s3Client, atLeastOnce()).listObjectsV2(listRequestCaptor.capture());
+        return listRequestCaptor.getAllValues().get(0).getPrefix();
     }
 }
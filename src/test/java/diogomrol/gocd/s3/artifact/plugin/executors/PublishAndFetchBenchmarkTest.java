@@ -0,0 +1,316 @@
+package diogomrol.gocd.s3.artifact.plugin.executors;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.Benchmarks;
+import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
+import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.FakeS3Server;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Publishes and fetches typical artifacts through an in-process {@link FakeS3Server} and reports the throughput,
+ * requests per second, file latencies and heap peak of each, next to the results in
+ * {@value #BASELINE}. The system properties {@code benchmark.scale} (1 by default) grows the workloads,
+ * {@code benchmark.iterations} (3) sets the measured runs of which the median is reported,
+ * {@code benchmark.updateBaseline} replaces the baseline with the results and {@code benchmark.maxRegressionPercent}
+ * fails the benchmark when the throughput of a workload dropped further below the baseline.
+ */
+@Category(Benchmarks.class)
+public class PublishAndFetchBenchmarkTest {
+    static final String BASELINE = "src/test/resources/benchmarks/publish-and-fetch-baseline.json";
+    private static final String RESULTS = "build/reports/benchmark/publish-and-fetch.json";
+    private static final String BUCKET = "benchmark";
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Mock
+    private GoPluginApiRequest request;
+    @Mock
+    private ConsoleLogger consoleLogger;
+
+    private FakeS3Server server;
+    private ArtifactStoreConfig storeConfig;
+    private TransferSettings settings;
+
+    @Before
+    public void setUp() throws IOException {
+        initMocks(this);
+        server = new FakeS3Server(tmpFolder.newFolder("s3"));
+        storeConfig = new ArtifactStoreConfig(BUCKET, "us-east-1", "key", "secret");
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.endpoint", server.getEndpoint());
+        properties.setProperty("cd.go.artifact.s3.state.dir", tmpFolder.newFolder("state").getPath());
+        properties.setProperty("cd.go.artifact.s3.list.cache.ttl.seconds", "0");
+        properties.setProperty("cd.go.artifact.s3.report.dir", "reports");
+        settings = new TransferSettings(properties);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void shouldPublishAndFetchWorkloads() throws Exception {
+        int scale = Integer.getInteger("benchmark.scale", 1);
+        int iterations = Math.max(1, Integer.getInteger("benchmark.iterations", 3));
+        List<Workload> workloads = Arrays.asList(
+                new Workload("tiny", 2000 * scale, 4 * 1024, 1),
+                new Workload("huge", 4, 96L * 1024 * 1024 * scale, 1),
+                new Workload("deep", 1000 * scale, 32 * 1024, 10));
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (Workload workload : workloads) {
+            File source = workload.create(tmpFolder.newFolder(workload.name));
+            run(workload, source, 0);
+            List<Result[]> runs = new ArrayList<>();
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                runs.add(run(workload, source, iteration));
+            }
+            results.put(workload.name + ".publish", Result.median(runs, 0));
+            results.put(workload.name + ".fetch", Result.median(runs, 1));
+        }
+
+        Map<String, Result> baseline = readBaseline();
+        System.out.println(compare(results, baseline));
+        write(new File(RESULTS), results);
+        if (Boolean.getBoolean("benchmark.updateBaseline")) {
+            write(new File(BASELINE), results);
+        }
+        String maxRegression = System.getProperty("benchmark.maxRegressionPercent");
+        if (maxRegression != null) {
+            for (Map.Entry<String, Result> result : results.entrySet()) {
+                Result expected = baseline.get(result.getKey());
+                if (expected != null) {
+                    assertThat(result.getValue().mibPerSecond)
+                            .as("MiB/s of %s", result.getKey())
+                            .isGreaterThanOrEqualTo(expected.mibPerSecond * (1 - Double.parseDouble(maxRegression) / 100));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the results of the publish and of the fetch
+     */
+    private Result[] run(Workload workload, File source, int iteration) throws Exception {
+        String destination = workload.name + "/" + iteration;
+        PublishArtifactRequest publishRequest = new PublishArtifactRequest(new ArtifactStore("s3", storeConfig),
+                new ArtifactPlan("id", "s3", "**/*.bin", Optional.of(destination)), source.getAbsolutePath());
+        when(request.requestBody()).thenReturn(publishRequest.toJSON());
+        Measurement publish = new Measurement();
+        GoPluginApiResponse published = new PublishArtifactExecutor(request, consoleLogger, new S3ClientFactory(settings), settings).execute();
+        Result publishResult = publish.finish(new File(source, "reports"));
+        assertThat(published.responseCode()).as(published.responseBody()).isEqualTo(200);
+
+        Map<String, Map<String, Object>> body = new Gson().fromJson(published.responseBody(), new TypeToken<Map<String, Map<String, Object>>>() {
+        }.getType());
+        File fetched = tmpFolder.newFolder(workload.name + "-fetch-" + iteration);
+        FetchArtifactRequest fetchRequest = new FetchArtifactRequest(storeConfig, body.get("metadata"), new FetchArtifactConfig("", "", false), fetched.getAbsolutePath());
+        Measurement fetch = new Measurement();
+        GoPluginApiResponse fetchResponse = new FetchArtifactExecutor(fetchRequest, consoleLogger, new S3ClientFactory(settings), settings).execute();
+        Result fetchResult = fetch.finish(new File(fetched, "reports"));
+        assertThat(fetchResponse.responseCode()).as(fetchResponse.responseBody()).isEqualTo(200);
+        assertThat(sizes(fetched)).isEqualTo(sizes(source));
+        deleteTree(fetched);
+        return new Result[]{publishResult, fetchResult};
+    }
+
+    private static Map<String, Long> sizes(File root) throws IOException {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            paths.filter(path -> path.toString().endsWith(".bin")).sorted()
+                    .forEach(path -> sizes.put(root.toPath().relativize(path).toString(), path.toFile().length()));
+        }
+        return sizes;
+    }
+
+    private static void deleteTree(File root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            paths.sorted(Collections.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private Map<String, Result> readBaseline() throws IOException {
+        File file = new File(BASELINE);
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+        return GSON.fromJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), new TypeToken<Map<String, Result>>() {
+        }.getType());
+    }
+
+    private static void write(File file, Map<String, Result> results) throws IOException {
+        Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        Files.write(file.toPath(), (GSON.toJson(results) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String compare(Map<String, Result> results, Map<String, Result> baseline) {
+        StringBuilder out = new StringBuilder(String.format("%-14s %16s %16s %16s %16s %16s%n",
+                "workload", "MiB/s", "requests/s", "file p50 ms", "file p99 ms", "heap peak MiB"));
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            Result expected = baseline.getOrDefault(entry.getKey(), new Result());
+            out.append(String.format("%-14s %16s %16s %16s %16s %16s%n", entry.getKey(),
+                    change(result.mibPerSecond, expected.mibPerSecond), change(result.requestsPerSecond, expected.requestsPerSecond),
+                    change(result.p50Millis, expected.p50Millis), change(result.p99Millis, expected.p99Millis),
+                    change(result.heapPeakMiB, expected.heapPeakMiB)));
+        }
+        return out.toString();
+    }
+
+    private static String change(double value, double baseline) {
+        return baseline == 0 ? String.format("%.1f", value) : String.format("%.1f (%+.0f%%)", value, (value / baseline - 1) * 100);
+    }
+
+    /**
+     * Files of the same size, spread over directories of 100 files nested {@code depth} levels deep.
+     */
+    private static class Workload {
+        private final String name;
+        private final int files;
+        private final long fileSize;
+        private final int depth;
+
+        Workload(String name, int files, long fileSize, int depth) {
+            this.name = name;
+            this.files = files;
+            this.fileSize = fileSize;
+            this.depth = depth;
+        }
+
+        File create(File root) throws IOException {
+            Random random = new Random(files);
+            byte[] buffer = new byte[(int) Math.min(fileSize, 1024 * 1024)];
+            for (int index = 0; index < files; index++) {
+                StringBuilder directory = new StringBuilder();
+                for (int level = 0; level < depth; level++) {
+                    directory.append(level == depth - 1 ? "dir" + index / 100 : "level" + level).append('/');
+                }
+                Path path = root.toPath().resolve(directory + "file" + index + ".bin");
+                Files.createDirectories(path.getParent());
+                try (OutputStream out = Files.newOutputStream(path)) {
+                    for (long written = 0; written < fileSize; written += buffer.length) {
+                        random.nextBytes(buffer);
+                        out.write(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+                    }
+                }
+            }
+            return root;
+        }
+    }
+
+    /**
+     * Measures a publish or fetch from its creation, taking the latencies from its transfer report.
+     */
+    private class Measurement {
+        private final long startNanos;
+        private final long startRequests;
+
+        Measurement() {
+            System.gc();
+            heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+            startRequests = server.getRequestCount();
+            startNanos = System.nanoTime();
+        }
+
+        @SuppressWarnings("unchecked")
+        Result finish(File reportDir) throws IOException {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            Result result = new Result();
+            result.requestsPerSecond = round((server.getRequestCount() - startRequests) / seconds);
+            result.heapPeakMiB = round(heapPools().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / 1048576.0);
+            File[] reports = reportDir.listFiles();
+            assertThat(reports).hasSize(1);
+            Map<String, Object> report = new Gson().fromJson(new String(Files.readAllBytes(reports[0].toPath()), StandardCharsets.UTF_8),
+                    new TypeToken<Map<String, Object>>() {
+                    }.getType());
+            Map<String, Double> totals = (Map<String, Double>) report.get("totals");
+            Map<String, Double> durations = (Map<String, Double>) report.get("fileDurationMillis");
+            result.mibPerSecond = round(totals.get("bytes") / 1048576.0 / seconds);
+            result.p50Millis = round(durations.get("p50"));
+            result.p99Millis = round(durations.get("p99"));
+            deleteTree(reportDir);
+            return result;
+        }
+
+        private Stream<MemoryPoolMXBean> heapPools() {
+            return ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType() == MemoryType.HEAP);
+        }
+    }
+
+    static class Result {
+        private double mibPerSecond;
+        private double requestsPerSecond;
+        private double p50Millis;
+        private double p99Millis;
+        private double heapPeakMiB;
+
+        /**
+         * @return the median of each value of the runs, so that a single slow run does not skew the result
+         */
+        static Result median(List<Result[]> runs, int operation) {
+            Result median = new Result();
+            median.mibPerSecond = median(runs, operation, result -> result.mibPerSecond);
+            median.requestsPerSecond = median(runs, operation, result -> result.requestsPerSecond);
+            median.p50Millis = median(runs, operation, result -> result.p50Millis);
+            median.p99Millis = median(runs, operation, result -> result.p99Millis);
+            median.heapPeakMiB = median(runs, operation, result -> result.heapPeakMiB);
+            return median;
+        }
+
+        private static double median(List<Result[]> runs, int operation, ToDoubleFunction<Result> value) {
+            double[] values = runs.stream().mapToDouble(run -> value.applyAsDouble(run[operation])).sorted().toArray();
+            return values[values.length / 2];
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
@@ -0,0 +1,265 @@
+package diogomrol.gocd.s3.artifact.plugin.executors;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
+import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.ScaleTests;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.FakeS3Server;
+import diogomrol.gocd.s3.artifact.plugin.model.AntDirectoryScanner;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Publishes and fetches an artifact of 100k files, up to 50 directories deep, through an in-process
+ * {@link FakeS3Server}, and fails when the heap, threads, open files or time it takes exceed the limits below. The
+ * limits are loose enough for a slow machine, and tight enough to catch work growing with the square of the files.
+ * The system property {@code scale.files} shrinks the artifact for a quicker run.
+ */
+@Category(ScaleTests.class)
+public class PublishAndFetchScaleTest {
+    private static final String BUCKET = "scale";
+    private static final int DEPTH = 50;
+    private static final int FILES_PER_DIRECTORY = 100;
+    // about 4 KiB a file in a 1 GiB heap, mostly the paths of the files 50 directories deep
+    private static final long MAX_HEAP_MIB = 768;
+    private static final int MAX_THREADS = 200;
+    private static final long MAX_OPEN_FILES = 1000;
+    private static final long MAX_SCAN_SECONDS = 30;
+    private static final long MAX_SECONDS = 900;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final GoPluginApiRequest request = mock(GoPluginApiRequest.class);
+    // a stub-only mock does not keep the 100k console messages
+    private final ConsoleLogger consoleLogger = mock(ConsoleLogger.class, withSettings().stubOnly());
+    private FakeS3Server server;
+    private ArtifactStoreConfig storeConfig;
+    private TransferSettings settings;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeS3Server(tmpFolder.newFolder("s3"));
+        storeConfig = new ArtifactStoreConfig(BUCKET, "us-east-1", "key", "secret");
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.endpoint", server.getEndpoint());
+        properties.setProperty("cd.go.artifact.s3.state.dir", tmpFolder.newFolder("state").getPath());
+        properties.setProperty("cd.go.artifact.s3.list.cache.ttl.seconds", "0");
+        settings = new TransferSettings(properties);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void shouldPublishAndFetchHundredThousandFiles() throws Exception {
+        int files = Integer.getInteger("scale.files", 100_000);
+        File source = createWorkspace(tmpFolder.newFolder("source"), files);
+
+        Usage<List<File>> scan = Usage.measure(() -> new AntDirectoryScanner().getFilesMatchingPattern(source, "**/*"));
+        assertThat(scan.result).hasSize((int) (files + nestedDirectories(source)));
+        scan.assertWithin("scan", MAX_SCAN_SECONDS);
+
+        PublishArtifactRequest publishRequest = new PublishArtifactRequest(new ArtifactStore("s3", storeConfig),
+                new ArtifactPlan("id", "s3", "**/*.txt", Optional.of("scale")), source.getAbsolutePath());
+        when(request.requestBody()).thenReturn(publishRequest.toJSON());
+        Usage<GoPluginApiResponse> publish = Usage.measure(() -> new PublishArtifactExecutor(request, consoleLogger, new S3ClientFactory(settings), settings).execute());
+        assertThat(publish.result.responseCode()).isEqualTo(200);
+        assertThat(server.getObjectCount(BUCKET)).isEqualTo(files);
+        publish.assertWithin("publish", MAX_SECONDS);
+
+        Map<String, Map<String, Object>> body = new Gson().fromJson(publish.result.responseBody(), new TypeToken<Map<String, Map<String, Object>>>() {
+        }.getType());
+        File destination = tmpFolder.newFolder("destination");
+        FetchArtifactRequest fetchRequest = new FetchArtifactRequest(storeConfig, body.get("metadata"), new FetchArtifactConfig("", "", false), destination.getAbsolutePath());
+        Usage<GoPluginApiResponse> fetch = Usage.measure(() -> new FetchArtifactExecutor(fetchRequest, consoleLogger, new S3ClientFactory(settings), settings).execute());
+        assertThat(fetch.result.responseCode()).isEqualTo(200);
+        assertThat(countFiles(destination)).isEqualTo(files);
+        fetch.assertWithin("fetch", MAX_SECONDS);
+    }
+
+    /**
+     * Directories of {@value #FILES_PER_DIRECTORY} files, each nested one level deeper than the one before, up to
+     * {@value #DEPTH} levels, e.g. {@code tree0/level1/level2/dir2/file200.txt}.
+     */
+    private static File createWorkspace(File root, int files) throws IOException {
+        for (int index = 0; index < files; index++) {
+            int directory = index / FILES_PER_DIRECTORY;
+            StringBuilder path = new StringBuilder("tree").append(directory / DEPTH).append('/');
+            for (int level = 1; level < directory % DEPTH; level++) {
+                path.append("level").append(level).append('/');
+            }
+            path.append("dir").append(directory).append("/file").append(index).append(".txt");
+            Path file = root.toPath().resolve(path.toString());
+            Files.createDirectories(file.getParent());
+            Files.write(file, Integer.toString(index).getBytes(StandardCharsets.UTF_8));
+        }
+        return root;
+    }
+
+    /**
+     * @return the directories below the top-level ones, which {@code **}{@code /*} lists along with the files
+     */
+    private static long nestedDirectories(File root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            return paths.filter(Files::isDirectory).filter(path -> root.toPath().relativize(path).getNameCount() > 1).count();
+        }
+    }
+
+    private static long countFiles(File root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root.toPath())) {
+            return paths.filter(Files::isRegularFile).count();
+        }
+    }
+
+    /**
+     * Wall time, heap high-water mark, and the most threads and open files seen while running a task. The high-water
+     * mark is the most heap in use after a garbage collection, as the peak usage mostly measures how lazily the JVM
+     * collects. Threads of the S3 stand-in are not counted, its connections and files are.
+     */
+    private static class Usage<T> {
+        private static final long SAMPLE_MILLIS = 20;
+
+        private T result;
+        private double seconds;
+        private double heapPeakMiB;
+        private long maxHeapAfterGc = -1;
+        private int maxThreads;
+        private long openFilesBefore;
+        private long maxOpenFiles;
+        private long openFilesAfter;
+
+        static <T> Usage<T> measure(Callable<T> task) throws Exception {
+            Usage<T> usage = new Usage<>();
+            System.gc();
+            heapPools().forEach(MemoryPoolMXBean::resetPeakUsage);
+            usage.openFilesBefore = openFiles();
+            Thread sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    usage.sample();
+                    try {
+                        Thread.sleep(SAMPLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "scale-test-sampler");
+            sampler.setDaemon(true);
+            NotificationListener listener = (notification, handback) -> {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    usage.collected(GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()));
+                }
+            };
+            ManagementFactory.getGarbageCollectorMXBeans().forEach(gc -> ((NotificationEmitter) gc).addNotificationListener(listener, null, null));
+            long start = System.nanoTime();
+            sampler.start();
+            try {
+                usage.result = task.call();
+            } finally {
+                sampler.interrupt();
+                sampler.join();
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                    ((NotificationEmitter) gc).removeNotificationListener(listener);
+                }
+            }
+            usage.seconds = (System.nanoTime() - start) / 1e9;
+            usage.sample();
+            usage.heapPeakMiB = heapPools().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / 1048576.0;
+            usage.openFilesAfter = openFiles();
+            return usage;
+        }
+
+        private synchronized void sample() {
+            int threads = (int) Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> !thread.getName().startsWith("fake-s3") && !thread.getName().equals("scale-test-sampler"))
+                    .count();
+            maxThreads = Math.max(maxThreads, threads);
+            maxOpenFiles = Math.max(maxOpenFiles, openFiles());
+        }
+
+        private synchronized void collected(GarbageCollectionNotificationInfo info) {
+            Set<String> heap = heapPools().map(MemoryPoolMXBean::getName).collect(Collectors.toSet());
+            long used = info.getGcInfo().getMemoryUsageAfterGc().entrySet().stream()
+                    .filter(pool -> heap.contains(pool.getKey()))
+                    .mapToLong(pool -> pool.getValue().getUsed())
+                    .sum();
+            maxHeapAfterGc = Math.max(maxHeapAfterGc, used);
+        }
+
+        /**
+         * @return the most heap in use after a collection, or the peak when the heap was not collected at all
+         */
+        private double heapHighWaterMiB() {
+            return maxHeapAfterGc < 0 ? heapPeakMiB : maxHeapAfterGc / 1048576.0;
+        }
+
+        synchronized void assertWithin(String name, long maxSeconds) {
+            System.out.println(String.format("%s took %.1f s, heap high-water %.1f MiB (peak %.1f MiB), %d threads, %d open files (%d before, %d after)",
+                    name, seconds, heapHighWaterMiB(), heapPeakMiB, maxThreads, maxOpenFiles, openFilesBefore, openFilesAfter));
+            assertThat(seconds).as("seconds of %s", name).isLessThan(maxSeconds);
+            assertThat(heapHighWaterMiB()).as("heap high-water MiB of %s", name).isLessThan(MAX_HEAP_MIB);
+            assertThat(maxThreads).as("threads of %s", name).isLessThan(MAX_THREADS);
+            if (openFilesBefore >= 0) {
+                assertThat(maxOpenFiles - openFilesBefore).as("open files of %s", name).isLessThan(MAX_OPEN_FILES);
+            }
+        }
+
+        private static Stream<MemoryPoolMXBean> heapPools() {
+            return ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType() == MemoryType.HEAP);
+        }
+
+        /**
+         * @return the file descriptors open in the JVM, -1 when the platform does not tell
+         */
+        private static long openFiles() {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            return os instanceof UnixOperatingSystemMXBean ? ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() : -1;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package diogomrol.gocd.s3.artifact.plugin.executors;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
+import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.FakeS3Server;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.Fault;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.Latency;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Publishes and fetches through a {@link FakeS3Server} which misbehaves like a congested network and a busy S3 do.
+ */
+public class PublishAndFetchUnderFaultsTest {
+    private static final String BUCKET = "faults";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Mock
+    private GoPluginApiRequest request;
+    @Mock
+    private ConsoleLogger consoleLogger;
+
+    private FakeS3Server server;
+    private ArtifactStoreConfig storeConfig;
+    private Properties properties;
+    private File source;
+
+    @Before
+    public void setUp() throws IOException {
+        initMocks(this);
+        server = new FakeS3Server(tmpFolder.newFolder("s3"));
+        storeConfig = new ArtifactStoreConfig(BUCKET, "us-east-1", "key", "secret");
+        properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.endpoint", server.getEndpoint());
+        properties.setProperty("cd.go.artifact.s3.state.dir", tmpFolder.newFolder("state").getPath());
+        properties.setProperty("cd.go.artifact.s3.list.cache.ttl.seconds", "0");
+        properties.setProperty("cd.go.artifact.s3.http.metrics.enabled", "false");
+        source = tmpFolder.newFolder("source");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void shouldRetryPublishThrottledBeyondTheRetriesOfTheSdk() throws Exception {
+        createFiles(1, 1024);
+        server.inject(Fault.on("PutObject").times(4).slowDown());
+
+        GoPluginApiResponse response = publish();
+
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        assertThat(server.getRequests()).containsEntry("PutObject", 5L);
+        assertThat(server.getObject(BUCKET, "build/file0.bin")).isEqualTo(Files.readAllBytes(new File(source, "file0.bin").toPath()));
+        assertThat(consoleMessages()).anyMatch(message -> message.contains("1 retries, 1 throttled, 0 stalled"));
+    }
+
+    @Test
+    public void shouldResendUploadsWhoseConnectionWasClosed() throws Exception {
+        createFiles(3, 64 * 1024);
+        server.inject(Fault.on("PutObject").times(2).reset(16 * 1024));
+
+        GoPluginApiResponse response = publish();
+
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        assertThat(server.getRequests()).containsEntry("PutObject", 5L);
+        for (int index = 0; index < 3; index++) {
+            assertThat(server.getObject(BUCKET, "build/file" + index + ".bin"))
+                    .isEqualTo(Files.readAllBytes(new File(source, "file" + index + ".bin").toPath()));
+        }
+    }
+
+    @Test
+    public void shouldLimitConcurrentRequestsWhenS3IsSlow() throws Exception {
+        properties.setProperty("cd.go.artifact.s3.concurrency.initial", "3");
+        properties.setProperty("cd.go.artifact.s3.concurrency.max", "3");
+        // so that the start-up of the SDK is not timed
+        createFiles(1, 1024);
+        assertThat(publish().responseCode()).isEqualTo(200);
+        server.resetRequests();
+        createFiles(30, 1024);
+        server.inject(Fault.on("PutObject").delay(Latency.fixed(100)));
+
+        long start = System.nanoTime();
+        GoPluginApiResponse response = publish();
+
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        assertThat(server.getMaxConcurrentRequests()).isBetween(2, 3);
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(30 * 100);
+    }
+
+    @Test
+    public void shouldReissueStalledDownloads() throws Exception {
+        createFiles(2, 1024 * 1024);
+        Map<String, Object> metadata = publishedMetadata();
+        properties.setProperty("cd.go.artifact.s3.stall.timeout.seconds", "0.5");
+        server.inject(Fault.on("GetObject").times(1).stall(64 * 1024, 30_000));
+
+        File destination = tmpFolder.newFolder("destination");
+        long start = System.nanoTime();
+        GoPluginApiResponse response = fetch(metadata, destination);
+
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        assertThat(Files.readAllBytes(new File(destination, "file0.bin").toPath())).isEqualTo(Files.readAllBytes(new File(source, "file0.bin").toPath()));
+        assertThat(Files.readAllBytes(new File(destination, "file1.bin").toPath())).isEqualTo(Files.readAllBytes(new File(source, "file1.bin").toPath()));
+        assertThat(server.getRequests()).containsEntry("GetObject", 3L);
+        assertThat(consoleMessages()).anyMatch(message -> message.contains("1 retries, 0 throttled, 1 stalled"));
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(30_000);
+    }
+
+    @Test
+    public void shouldHedgeGetsSlowerThanTheOthers() throws Exception {
+        properties.setProperty("cd.go.artifact.s3.hedging.enabled", "true");
+        createFiles(40, 1024);
+        Map<String, Object> metadata = publishedMetadata();
+        server.inject(Fault.on("GetObject").after(30).times(2).delay(Latency.fixed(10_000)));
+
+        File destination = tmpFolder.newFolder("destination");
+        long start = System.nanoTime();
+        GoPluginApiResponse response = fetch(metadata, destination);
+
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        assertThat(destination.list()).hasSize(40);
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(10_000);
+        assertThat(consoleMessages()).anyMatch(message -> message.matches("Hedged [12] of 4\\d GET requests to S3, [12] hedged requests won"));
+    }
+
+    @Test
+    public void shouldFetchRangesInParallelWhenEachConnectionIsCapped() throws Exception {
+        properties.setProperty("cd.go.artifact.s3.range.threshold.mb", "2");
+        properties.setProperty("cd.go.artifact.s3.range.part.size.mb", "1");
+        properties.setProperty("cd.go.artifact.s3.concurrency.initial", "8");
+        createFiles(1, 8 * 1024 * 1024);
+        Map<String, Object> metadata = publishedMetadata();
+        server.inject(Fault.on("GetObject").bandwidth(2 * 1024 * 1024));
+
+        File destination = tmpFolder.newFolder("destination");
+        long start = System.nanoTime();
+        GoPluginApiResponse response = fetch(metadata, destination);
+
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        assertThat(Files.readAllBytes(new File(destination, "file0.bin").toPath())).isEqualTo(Files.readAllBytes(new File(source, "file0.bin").toPath()));
+        assertThat(server.getRequests()).containsEntry("GetObject", 8L);
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(3000);
+    }
+
+    @Test
+    public void shouldDetectCorruptionOfArtifactsWithMoreFilesThanTheMetadataKeeps() throws Exception {
+        createFiles(1001, 16);
+        Map<String, Object> metadata = publishedMetadata();
+        assertThat(metadata).doesNotContainKey("Crc32c").containsEntry("Crc32cManifest", "build/.checksums.json");
+        server.putObject(BUCKET, "build/file500.bin", new byte[16]);
+
+        File destination = tmpFolder.newFolder("destination");
+        GoPluginApiResponse response = fetch(metadata, destination);
+
+        assertThat(response.responseCode()).isEqualTo(500);
+        assertThat(response.responseBody()).contains("build/file500.bin");
+    }
+
+    @Test
+    public void shouldPublishWithoutChecksumsWhenTheManifestCannotBeUploaded() throws Exception {
+        createFiles(1001, 16);
+        server.inject(Fault.on("PutObject").forKey("build/.checksums.json").slowDown());
+
+        Map<String, Object> metadata = publishedMetadata();
+
+        assertThat(metadata).doesNotContainKeys("Crc32c", "Crc32cManifest");
+        assertThat(consoleMessages()).anyMatch(message -> message.contains("Could not upload checksums of the published files to `build/.checksums.json`"));
+        File destination = tmpFolder.newFolder("destination");
+        assertThat(fetch(metadata, destination).responseCode()).isEqualTo(200);
+        assertThat(destination.list()).hasSize(1001);
+    }
+
+    @Test
+    public void shouldFailFetchWhenTheConnectionIsClosedMidStream() throws Exception {
+        createFiles(1, 256 * 1024);
+        Map<String, Object> metadata = publishedMetadata();
+        server.inject(Fault.on("GetObject").times(1).reset(100 * 1024));
+
+        GoPluginApiResponse response = fetch(metadata, tmpFolder.newFolder("destination"));
+
+        assertThat(response.responseCode()).isEqualTo(500);
+        verify(consoleLogger, atLeastOnce()).error(anyString());
+    }
+
+    private void createFiles(int count, int size) throws IOException {
+        Random random = new Random(count);
+        for (int index = 0; index < count; index++) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            Files.write(new File(source, "file" + index + ".bin").toPath(), content);
+        }
+    }
+
+    private GoPluginApiResponse publish() {
+        PublishArtifactRequest publishRequest = new PublishArtifactRequest(new ArtifactStore("s3", storeConfig),
+                new ArtifactPlan("id", "s3", "*.bin", Optional.of("build")), source.getAbsolutePath());
+        when(request.requestBody()).thenReturn(publishRequest.toJSON());
+        TransferSettings settings = new TransferSettings(properties);
+        return new PublishArtifactExecutor(request, consoleLogger, new S3ClientFactory(settings), settings).execute();
+    }
+
+    private Map<String, Object> publishedMetadata() {
+        GoPluginApiResponse response = publish();
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        server.resetRequests();
+        Map<String, Map<String, Object>> body = new Gson().fromJson(response.responseBody(), new TypeToken<Map<String, Map<String, Object>>>() {
+        }.getType());
+        return body.get("metadata");
+    }
+
+    private GoPluginApiResponse fetch(Map<String, Object> metadata, File destination) {
+        FetchArtifactRequest fetchRequest = new FetchArtifactRequest(storeConfig, metadata, new FetchArtifactConfig("", "", false), destination.getAbsolutePath());
+        TransferSettings settings = new TransferSettings(properties);
+        return new FetchArtifactExecutor(fetchRequest, consoleLogger, new S3ClientFactory(settings), settings).execute();
+    }
+
+    private List<String> consoleMessages() {
+        ArgumentCaptor<String> messages = ArgumentCaptor.forClass(String.class);
+        verify(consoleLogger, atLeastOnce()).info(messages.capture());
+        return messages.getAllValues();
+    }
+}
@@ -17,7 +17,8 @@
 package diogomrol.gocd.s3.artifact.plugin.executors;
 
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.IOUtils;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
@@ -26,6 +27,8 @@ import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
 import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
 import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
 import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.Crc32c;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
 import com.amazonaws.SdkClientException;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
@@ -45,14 +48,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.zip.Checksum;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -74,6 +82,7 @@ public class PublishArtifactExecutorTest {
     private AmazonS3 s3Client;
 
     @Captor ArgumentCaptor<PutObjectRequest> requestCaptor;
+    private final Map<String, String> uploaded = new ConcurrentHashMap<>();
 
     ArtifactStoreConfig storeConfig;
 
@@ -82,6 +91,11 @@ public class PublishArtifactExecutorTest {
         initMocks(this);
         agentWorkingDir = tmpFolder.newFolder("go-agent");
         when(s3ClientFactory.s3(any())).thenReturn(s3Client);
+        when(s3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            PutObjectRequest putRequest = invocation.getArgument(0);
+            uploaded.put(putRequest.getKey(), IOUtils.toString(putRequest.getInputStream()));
+            return new PutObjectResult();
+        });
         storeConfig = new ArtifactStoreConfig("test", "test", "test", "test");
     }
 
@@ -109,12 +123,14 @@ public class PublishArtifactExecutorTest {
                 "\"metadata\": {" +
                 "\"Source\": \"build.json\"," +
                 "\"Destination\": \"test/112/build/21/job/x\"," +
-                "\"IsFile\": true" +
+                "\"IsFile\": true," +
+                "\"Size\": {\"TotalBytes\": 35, \"FileCount\": 1, \"Files\": {\"test/112/build/21/job/x/build.json\": 35}}" +
+                ",\"Crc32c\": {\"test/112/build/21/job/x/build.json\": \"39916738\"}" +
                 "}}";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.STRICT);
 
         verify(s3Client, times(1)).putObject(requestCaptor.capture());
-        assertThat(requestCaptor.getValue().getFile()).isEqualTo(path.toFile());
+        assertThat(uploaded.get(requestCaptor.getValue().getKey())).isEqualTo(read(path));
         assertThat(requestCaptor.getValue().getBucketName()).isEqualTo("test");
         assertThat(requestCaptor.getValue().getKey()).isEqualTo("test/112/build/21/job/x/build.json");
     }
@@ -138,12 +154,14 @@ public class PublishArtifactExecutorTest {
                 "\"metadata\": {" +
                 "\"Source\": \"build.json\"," +
                 "\"Destination\": \"pipe/x\"," +
-                "\"IsFile\": true" +
+                "\"IsFile\": true," +
+                "\"Size\": {\"TotalBytes\": 35, \"FileCount\": 1, \"Files\": {\"pipe/x/build.json\": 35}}" +
+                ",\"Crc32c\": {\"pipe/x/build.json\": \"39916738\"}" +
                 "}}";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.STRICT);
 
         verify(s3Client, times(1)).putObject(requestCaptor.capture());
-        assertThat(requestCaptor.getValue().getFile()).isEqualTo(path.toFile());
+        assertThat(uploaded.get(requestCaptor.getValue().getKey())).isEqualTo(read(path));
         assertThat(requestCaptor.getValue().getBucketName()).isEqualTo("test");
         assertThat(requestCaptor.getValue().getKey()).isEqualTo("pipe/x/build.json");
     }
@@ -165,12 +183,14 @@ public class PublishArtifactExecutorTest {
                 "\"metadata\": {" +
                     "\"Source\": \"build.json\"," +
                     "\"Destination\": \"DestinationFolder\"," +
-                    "\"IsFile\": true" +
+                    "\"IsFile\": true," +
+                "\"Size\": {\"TotalBytes\": 35, \"FileCount\": 1, \"Files\": {\"DestinationFolder/build.json\": 35}}" +
+                ",\"Crc32c\": {\"DestinationFolder/build.json\": \"39916738\"}" +
                 "}}";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.STRICT);
 
         verify(s3Client, times(1)).putObject(requestCaptor.capture());
-        assertThat(requestCaptor.getValue().getFile()).isEqualTo(path.toFile());
+        assertThat(uploaded.get(requestCaptor.getValue().getKey())).isEqualTo(read(path));
         assertThat(requestCaptor.getValue().getBucketName()).isEqualTo("test");
         assertThat(requestCaptor.getValue().getKey()).isEqualTo("DestinationFolder/build.json");
     }
@@ -192,12 +212,14 @@ public class PublishArtifactExecutorTest {
                 "\"metadata\": {" +
                 "\"Source\": \"build.json\"," +
                 "\"Destination\": \"\"," +
-                "\"IsFile\": true" +
+                "\"IsFile\": true," +
+                "\"Size\": {\"TotalBytes\": 35, \"FileCount\": 1, \"Files\": {\"build.json\": 35}}" +
+                ",\"Crc32c\": {\"build.json\": \"39916738\"}" +
                 "}}";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.STRICT);
 
         verify(s3Client, times(1)).putObject(requestCaptor.capture());
-        assertThat(requestCaptor.getValue().getFile()).isEqualTo(path.toFile());
+        assertThat(uploaded.get(requestCaptor.getValue().getKey())).isEqualTo(read(path));
         assertThat(requestCaptor.getValue().getBucketName()).isEqualTo("test");
         assertThat(requestCaptor.getValue().getKey()).isEqualTo("build.json");
     }
@@ -223,7 +245,9 @@ public class PublishArtifactExecutorTest {
                 "\"metadata\": {" +
                 "\"Source\": \"*.json\"," +
                 "\"Destination\": \"\"," +
-                "\"IsFile\": false" +
+                "\"IsFile\": false," +
+                "\"Size\": {\"TotalBytes\": 82, \"FileCount\": 2, \"Files\": {\"build.json\": 41,\"test.json\": 41}}" +
+                ",\"Crc32c\": {\"build.json\": \"2b27e438\",\"test.json\": \"2b27e438\"}" +
                 "}}";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.STRICT);
 
@@ -235,8 +259,8 @@ public class PublishArtifactExecutorTest {
                 .containsExactly("test", "test");
         assertThat(allRequestsMade)
                 .hasSize(2)
-                .extracting(PutObjectRequest::getFile)
-                .contains(buildJsonPath.toFile(), testJsonPath.toFile());
+                .extracting(putRequest -> uploaded.get(putRequest.getKey()))
+                .contains(read(buildJsonPath), read(testJsonPath));
         assertThat(allRequestsMade)
                 .hasSize(2)
                 .extracting(PutObjectRequest::getKey)
@@ -267,7 +291,9 @@ public class PublishArtifactExecutorTest {
                 "\"metadata\": {" +
                 "\"Source\": \"bin\"," +
                 "\"Destination\": \"\"," +
-                "\"IsFile\": false" +
+                "\"IsFile\": false," +
+                "\"Size\": {\"TotalBytes\": 105, \"FileCount\": 3, \"Files\": {\"bin/build.json\": 41,\"bin/test.bin\": 23,\"bin/test.json\": 41}}" +
+                ",\"Crc32c\": {\"bin/build.json\": \"2b27e438\",\"bin/test.bin\": \"f471d1f6\",\"bin/test.json\": \"2b27e438\"}" +
                 "}}";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.STRICT);
 
@@ -279,8 +305,8 @@ public class PublishArtifactExecutorTest {
                 .containsExactly("test", "test", "test");
         assertThat(allRequestsMade)
                 .hasSize(3)
-                .extracting(PutObjectRequest::getFile)
-                .contains(buildJsonPath.toFile(), testJsonPath.toFile());
+                .extracting(putRequest -> uploaded.get(putRequest.getKey()))
+                .contains(read(buildJsonPath), read(testJsonPath));
         assertThat(allRequestsMade)
                 .hasSize(3)
                 .extracting(PutObjectRequest::getKey)
@@ -311,7 +337,9 @@ public class PublishArtifactExecutorTest {
                 "\"metadata\": {" +
                 "\"Source\": \"**/*.json\"," +
                 "\"Destination\": \"\"," +
-                "\"IsFile\": false" +
+                "\"IsFile\": false," +
+                "\"Size\": {\"TotalBytes\": 82, \"FileCount\": 2, \"Files\": {\"bin/build.json\": 41,\"bin/test.json\": 41}}" +
+                ",\"Crc32c\": {\"bin/build.json\": \"2b27e438\",\"bin/test.json\": \"2b27e438\"}" +
                 "}}";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.STRICT);
 
@@ -323,11 +351,140 @@ public class PublishArtifactExecutorTest {
                 .containsExactly("test", "test");
         assertThat(allRequestsMade)
                 .hasSize(2)
-                .extracting(PutObjectRequest::getFile)
-                .contains(buildJsonPath.toFile(), testJsonPath.toFile());
+                .extracting(putRequest -> uploaded.get(putRequest.getKey()))
+                .contains(read(buildJsonPath), read(testJsonPath));
         assertThat(allRequestsMade)
                 .hasSize(2)
                 .extracting(PutObjectRequest::getKey)
                 .contains("bin/build.json", "bin/test.json");
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldUploadLargeFilesInParts() throws IOException, JSONException {
+        final ArtifactPlan artifactPlan = new ArtifactPlan("id", "storeId", "*.bin", Optional.empty());
+        final ArtifactStore artifactStore = new ArtifactStore(artifactPlan.getId(), storeConfig);
+        final PublishArtifactRequest publishArtifactRequest = new PublishArtifactRequest(artifactStore, artifactPlan, agentWorkingDir.getAbsolutePath());
+        createFile("large.bin", 12 * 1024 * 1024);
+        createFile("small.bin", 1024);
+        when(request.requestBody()).thenReturn(publishArtifactRequest.toJSON());
+        when(s3Client.initiateMultipartUpload(any())).thenReturn(initiateResult("upload-1"));
+        when(s3Client.uploadPart(any())).thenAnswer(invocation -> uploadPartResult(invocation.getArgument(0)));
+
+        final GoPluginApiResponse response = new PublishArtifactExecutor(request, consoleLogger, s3ClientFactory, multipartSettings()).execute();
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        verify(s3Client, times(1)).putObject(requestCaptor.capture());
+        assertThat(requestCaptor.getValue().getKey()).isEqualTo("small.bin");
+        ArgumentCaptor<UploadPartRequest> partCaptor = ArgumentCaptor.forClass(UploadPartRequest.class);
+        verify(s3Client, times(3)).uploadPart(partCaptor.capture());
+        assertThat(partCaptor.getAllValues())
+                .extracting(UploadPartRequest::getPartNumber, UploadPartRequest::getPartSize)
+                .containsExactlyInAnyOrder(
+                        tuple(1, 5L * 1024 * 1024),
+                        tuple(2, 5L * 1024 * 1024),
+                        tuple(3, 2L * 1024 * 1024));
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeCaptor = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3Client).completeMultipartUpload(completeCaptor.capture());
+        assertThat(completeCaptor.getValue().getKey()).isEqualTo("large.bin");
+        assertThat(completeCaptor.getValue().getUploadId()).isEqualTo("upload-1");
+        assertThat(completeCaptor.getValue().getPartETags())
+                .extracting(PartETag::getETag)
+                .containsExactly("etag-1", "etag-2", "etag-3");
+        Map<String, Map<String, Object>> body = new Gson().fromJson(response.responseBody(), new TypeToken<Map<String, Map<String, Object>>>() {
+        }.getType());
+        Checksum checksum = Crc32c.create();
+        byte[] content = Files.readAllBytes(new File(agentWorkingDir, "large.bin").toPath());
+        checksum.update(content, 0, content.length);
+        assertThat((Map<String, Object>) body.get("metadata").get("Crc32c"))
+                .containsEntry("large.bin", Crc32c.toHex(checksum.getValue()))
+                .containsKey("small.bin");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldWriteTransferReportOfEachFile() throws IOException {
+        final ArtifactPlan artifactPlan = new ArtifactPlan("id", "storeId", "*.bin", Optional.empty());
+        final ArtifactStore artifactStore = new ArtifactStore(artifactPlan.getId(), storeConfig);
+        final PublishArtifactRequest publishArtifactRequest = new PublishArtifactRequest(artifactStore, artifactPlan, agentWorkingDir.getAbsolutePath());
+        createFile("large.bin", 12 * 1024 * 1024);
+        createFile("small.bin", 1024);
+        when(request.requestBody()).thenReturn(publishArtifactRequest.toJSON());
+        when(s3Client.initiateMultipartUpload(any())).thenReturn(initiateResult("upload-1"));
+        when(s3Client.uploadPart(any())).thenAnswer(invocation -> uploadPartResult(invocation.getArgument(0)));
+        Properties properties = multipartProperties();
+        properties.setProperty("cd.go.artifact.s3.report.dir", "reports");
+
+        final GoPluginApiResponse response = new PublishArtifactExecutor(request, consoleLogger, s3ClientFactory, new TransferSettings(properties)).execute();
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        File[] reports = new File(agentWorkingDir, "reports").listFiles();
+        assertThat(reports).hasSize(1);
+        assertThat(reports[0].getName()).startsWith("s3-publish-").endsWith(".json");
+        Map<String, Object> report = new Gson().fromJson(new String(Files.readAllBytes(reports[0].toPath())), new TypeToken<Map<String, Object>>() {
+        }.getType());
+        assertThat(report).containsEntry("operation", "publish").containsEntry("bucket", "test");
+        assertThat((Map<String, Object>) report.get("totals")).containsEntry("files", 2.0).containsEntry("transfers", 4.0);
+        List<Map<String, Object>> files = (List<Map<String, Object>>) report.get("files");
+        assertThat(files).extracting(file -> file.get("key"), file -> file.get("size"), file -> file.get("bytes"), file -> file.get("transfers"))
+                .containsExactlyInAnyOrder(
+                        tuple("large.bin", 12.0 * 1024 * 1024, 12.0 * 1024 * 1024, 3.0),
+                        tuple("small.bin", 1024.0, 1024.0, 1.0));
+        assertThat(files).allSatisfy(file -> assertThat(file).containsKeys("crc32c", "durationMillis", "mibPerSecond"));
+    }
+
+    @Test
+    public void shouldAbortMultipartUploadWhenPartFails() throws IOException {
+        final ArtifactPlan artifactPlan = new ArtifactPlan("id", "storeId", "large.bin", Optional.empty());
+        final ArtifactStore artifactStore = new ArtifactStore(artifactPlan.getId(), storeConfig);
+        final PublishArtifactRequest publishArtifactRequest = new PublishArtifactRequest(artifactStore, artifactPlan, agentWorkingDir.getAbsolutePath());
+        createFile("large.bin", 6 * 1024 * 1024);
+        when(request.requestBody()).thenReturn(publishArtifactRequest.toJSON());
+        when(s3Client.initiateMultipartUpload(any())).thenReturn(initiateResult("upload-1"));
+        when(s3Client.uploadPart(any())).thenThrow(new SdkClientException("connection reset"));
+
+        final GoPluginApiResponse response = new PublishArtifactExecutor(request, consoleLogger, s3ClientFactory, multipartSettings()).execute();
+
+        assertThat(response.responseCode()).isEqualTo(500);
+        verify(s3Client, never()).completeMultipartUpload(any());
+        ArgumentCaptor<AbortMultipartUploadRequest> abortCaptor = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+        verify(s3Client).abortMultipartUpload(abortCaptor.capture());
+        assertThat(abortCaptor.getValue().getUploadId()).isEqualTo("upload-1");
+    }
+
+    private static String read(Path path) throws IOException {
+        return new String(Files.readAllBytes(path));
+    }
+
+    private void createFile(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        Files.write(new File(agentWorkingDir, name).toPath(), content);
+    }
+
+    private TransferSettings multipartSettings() {
+        return new TransferSettings(multipartProperties());
+    }
+
+    private Properties multipartProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.multipart.threshold.mb", "5");
+        properties.setProperty("cd.go.artifact.s3.multipart.part.size.mb", "5");
+        properties.setProperty("cd.go.artifact.s3.state.dir", agentWorkingDir.getParent());
+        return properties;
+    }
+
+    private static InitiateMultipartUploadResult initiateResult(String uploadId) {
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    private static UploadPartResult uploadPartResult(UploadPartRequest request) throws IOException {
+        assertThat(IOUtils.toByteArray(request.getInputStream())).hasSize((int) request.getPartSize());
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag("etag-" + request.getPartNumber());
+        return result;
+    }
 }
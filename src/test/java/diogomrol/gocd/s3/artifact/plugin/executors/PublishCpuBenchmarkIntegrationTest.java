@@ -0,0 +1,152 @@
+package diogomrol.gocd.s3.artifact.plugin.executors;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.internal.SkipMd5CheckStrategy;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.gson.GsonBuilder;
+import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.ConsoleLogger;
+import diogomrol.gocd.s3.artifact.plugin.IntegrationTests;
+import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import diogomrol.gocd.s3.artifact.plugin.transfer.UploadMode;
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Publishes the same files to the bucket of {@code AWS_BUCKET} in each upload mode and reports the median CPU time
+ * spent by the process per GiB uploaded over {@value #RUNS} runs to {@value #RESULTS}. {@code BENCHMARK_MB} sets the
+ * size of the upload, 256 MiB by default.
+ */
+@Category(IntegrationTests.class)
+public class PublishCpuBenchmarkIntegrationTest {
+    private static final String PREFIX = "cpu-benchmark";
+    private static final int FILES = 4;
+    private static final int RUNS = 3;
+    private static final String RESULTS = "build/reports/benchmark/publish-cpu.json";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Mock
+    private GoPluginApiRequest request;
+    @Mock
+    private ConsoleLogger consoleLogger;
+
+    private File agentWorkingDir;
+    private ArtifactStoreConfig storeConfig;
+    private long totalBytes;
+    private String md5Property;
+
+    @Before
+    public void setUp() throws IOException {
+        initMocks(this);
+        md5Property = System.getProperty(SkipMd5CheckStrategy.DISABLE_PUT_OBJECT_MD5_VALIDATION_PROPERTY);
+        String bucketName = System.getenv("AWS_BUCKET");
+        if (Util.isBlank(bucketName))
+            throw new RuntimeException("Must set AWS_BUCKET env var");
+        storeConfig = new ArtifactStoreConfig(bucketName, "eu-west-1", System.getenv("AWS_ACCESS_KEY"), System.getenv("AWS_SECRET_ACCESS_KEY"));
+        agentWorkingDir = tmpFolder.newFolder("go-agent");
+        String megabytes = System.getenv("BENCHMARK_MB");
+        long fileSize = (Util.isBlank(megabytes) ? 256 : Long.parseLong(megabytes)) * 1024 * 1024 / FILES;
+        Random random = new Random(42);
+        byte[] buffer = new byte[1024 * 1024];
+        for (int i = 0; i < FILES; i++) {
+            try (OutputStream out = Files.newOutputStream(new File(agentWorkingDir, "file" + i + ".bin").toPath())) {
+                for (long written = 0; written < fileSize; written += buffer.length) {
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+                }
+            }
+            totalBytes += fileSize;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        S3ClientFactory.resetJvmWideSettings();
+        if (md5Property == null) {
+            System.clearProperty(SkipMd5CheckStrategy.DISABLE_PUT_OBJECT_MD5_VALIDATION_PROPERTY);
+        } else {
+            System.setProperty(SkipMd5CheckStrategy.DISABLE_PUT_OBJECT_MD5_VALIDATION_PROPERTY, md5Property);
+        }
+        AmazonS3 s3 = new S3ClientFactory().s3(storeConfig);
+        for (S3ObjectSummary summary : s3.listObjects(storeConfig.getS3bucket(), PREFIX).getObjectSummaries()) {
+            s3.deleteObject(storeConfig.getS3bucket(), summary.getKey());
+        }
+    }
+
+    @Test
+    public void shouldSpendLessCpuPerGigabyteInLowCpuMode() throws Exception {
+        Map<UploadMode, double[]> runs = new EnumMap<>(UploadMode.class);
+        for (int run = 0; run < RUNS; run++) {
+            // modes take turns, so that a noisy period of the host does not only slow down one of them
+            for (UploadMode mode : UploadMode.values()) {
+                runs.computeIfAbsent(mode, key -> new double[RUNS])[run] = publish(mode);
+            }
+        }
+        Map<String, Double> cpuSecondsPerGib = new LinkedHashMap<>();
+        runs.forEach((mode, seconds) -> cpuSecondsPerGib.put(mode.getValue(), median(seconds)));
+
+        File results = new File(RESULTS);
+        Files.createDirectories(results.getParentFile().toPath());
+        Files.write(results.toPath(), (new GsonBuilder().setPrettyPrinting().create().toJson(cpuSecondsPerGib) + "\n").getBytes(StandardCharsets.UTF_8));
+        assertThat(cpuSecondsPerGib.get(UploadMode.LOW_CPU.getValue())).isLessThan(cpuSecondsPerGib.get(UploadMode.SIGNED_PAYLOAD.getValue()));
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private double publish(UploadMode mode) {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.upload.mode", mode.getValue());
+        TransferSettings settings = new TransferSettings(properties);
+        S3ClientFactory.applyJvmWideSettings(settings);
+        ArtifactPlan artifactPlan = new ArtifactPlan("id", "storeId", "*.bin", Optional.of(PREFIX + "/" + mode.getValue()));
+        PublishArtifactRequest publishArtifactRequest = new PublishArtifactRequest(new ArtifactStore(artifactPlan.getId(), storeConfig), artifactPlan, agentWorkingDir.getAbsolutePath());
+        when(request.requestBody()).thenReturn(publishArtifactRequest.toJSON());
+
+        long cpuBefore = processCpuNanos();
+        GoPluginApiResponse response = new PublishArtifactExecutor(request, consoleLogger, new S3ClientFactory(settings), settings).execute();
+        long cpuNanos = processCpuNanos() - cpuBefore;
+
+        assertThat(response.responseCode()).isEqualTo(200);
+        return cpuNanos / 1e9 / (totalBytes / (1024.0 * 1024 * 1024));
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
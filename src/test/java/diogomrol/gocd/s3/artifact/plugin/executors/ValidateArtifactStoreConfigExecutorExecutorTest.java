@@ -79,4 +79,64 @@ public class ValidateArtifactStoreConfigExecutorExecutorTest {
         String expectedJSON = "[]";
         JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.NON_EXTENSIBLE);
     }
+
+    @Test
+    public void shouldValidateRateLimits() throws JSONException {
+        String requestBody = new JSONObject()
+                .put("S3Bucket", "http://localhost/index")
+                .put("Region", "us-west-1")
+                .put("AWSAccessKey", "chuck-norris")
+                .put("AWSSecretAccessKey", "chuck-norris-doesnt-need-passwords")
+                .put("MaxUploadMBps", "fast")
+                .put("MaxDownloadMBps", "-1")
+                .put("BurstMB", "0.5")
+                .toString();
+        when(request.requestBody()).thenReturn(requestBody);
+
+        final GoPluginApiResponse response = new ValidateArtifactStoreConfigExecutor(request).execute();
+
+        String expectedJSON = "[\n" +
+                "  {\n" +
+                "    \"key\": \"MaxUploadMBps\",\n" +
+                "    \"message\": \"MaxUploadMBps must be a number.\"\n" +
+                "  },\n" +
+                "  {\n" +
+                "    \"key\": \"MaxDownloadMBps\",\n" +
+                "    \"message\": \"MaxDownloadMBps must not be negative.\"\n" +
+                "  }\n" +
+                "]";
+        JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.NON_EXTENSIBLE);
+    }
+
+    @Test
+    public void shouldRejectRateLimitsWhichAreNotFinite() throws JSONException {
+        String requestBody = new JSONObject()
+                .put("S3Bucket", "http://localhost/index")
+                .put("Region", "us-west-1")
+                .put("AWSAccessKey", "chuck-norris")
+                .put("AWSSecretAccessKey", "chuck-norris-doesnt-need-passwords")
+                .put("MaxUploadMBps", "NaN")
+                .put("MaxDownloadMBps", "Infinity")
+                .put("BurstMB", "-Infinity")
+                .toString();
+        when(request.requestBody()).thenReturn(requestBody);
+
+        final GoPluginApiResponse response = new ValidateArtifactStoreConfigExecutor(request).execute();
+
+        String expectedJSON = "[\n" +
+                "  {\n" +
+                "    \"key\": \"MaxUploadMBps\",\n" +
+                "    \"message\": \"MaxUploadMBps must be a finite number.\"\n" +
+                "  },\n" +
+                "  {\n" +
+                "    \"key\": \"MaxDownloadMBps\",\n" +
+                "    \"message\": \"MaxDownloadMBps must be a finite number.\"\n" +
+                "  },\n" +
+                "  {\n" +
+                "    \"key\": \"BurstMB\",\n" +
+                "    \"message\": \"BurstMB must be a finite number.\"\n" +
+                "  }\n" +
+                "]";
+        JSONAssert.assertEquals(expectedJSON, response.responseBody(), JSONCompareMode.NON_EXTENSIBLE);
+    }
 }
@@ -0,0 +1,855 @@
+package diogomrol.gocd.s3.artifact.plugin.fakes3;
+
+import com.amazonaws.util.BinaryUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for S3, enough of its REST API for the plugin: PUT, GET with ranges and {@code If-Match}, HEAD,
+ * DELETE, copy, ListObjectsV2 with delimiters and continuation, and multipart uploads. Requests are addressed
+ * path-style, e.g. with {@code cd.go.artifact.s3.endpoint} set to {@link #getEndpoint()}, and are not authenticated.
+ * Objects are kept in files, so that the heap of the test measures the plugin rather than the server.
+ * <p>
+ * {@link #inject(Fault)} makes the server misbehave like a real network and service do: latency, bandwidth caps,
+ * {@code 503 SlowDown}, connections closed mid-stream and stalls.
+ */
+public class FakeS3Server implements AutoCloseable {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final Pattern PART = Pattern.compile("<PartNumber>(\\d+)</PartNumber>\\s*<ETag>([^<]*)</ETag>");
+    private static final int MAX_KEYS = 1000;
+
+    private final File dir;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-s3");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final List<Fault> faults = new CopyOnWriteArrayList<>();
+    private final Random random = new Random(42);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    // whether the request of the handler thread is still counted in flight
+    private final ThreadLocal<Boolean> handling = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * @param dir where the objects are kept
+     */
+    public FakeS3Server(File dir) throws IOException {
+        this.dir = dir;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+    }
+
+    /**
+     * @return requests served so far by operation, e.g. {@code GetObject}
+     */
+    public Map<String, Long> getRequests() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((operation, count) -> counts.put(operation, count.sum()));
+        return counts;
+    }
+
+    public long getRequestCount() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * @return the most requests handled at the same time since the start or {@link #resetRequests()}; a request stops
+     * counting just before the last bytes of its response are sent, as the client may start another one right after
+     */
+    public int getMaxConcurrentRequests() {
+        return maxInFlight.get();
+    }
+
+    public void resetRequests() {
+        requests.clear();
+        maxInFlight.set(inFlight.get());
+    }
+
+    /**
+     * Makes the requests matching the fault misbehave, in addition to the faults injected earlier.
+     */
+    public FakeS3Server inject(Fault fault) {
+        faults.add(fault);
+        return this;
+    }
+
+    public void clearFaults() {
+        faults.clear();
+    }
+
+    /**
+     * @return the content of an object, null when there is none
+     */
+    public byte[] getObject(String bucket, String key) throws IOException {
+        StoredObject object = bucket(bucket).get(key);
+        return object == null ? null : Files.readAllBytes(object.file.toPath());
+    }
+
+    public void putObject(String bucket, String key, byte[] content) throws IOException {
+        File file = newFile();
+        Files.write(file.toPath(), content);
+        store(bucket, key, new StoredObject(file, content.length, BinaryUtils.toHex(md5().digest(content))));
+    }
+
+    public int getObjectCount(String bucket) {
+        return bucket(bucket).size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        handling.set(true);
+        try {
+            String path = exchange.getRequestURI().getPath();
+            int slash = path.indexOf('/', 1);
+            String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            String key = slash < 0 ? "" : path.substring(slash + 1);
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            String operation = operation(exchange, key, query);
+            count(operation);
+            Injection injection = inject(exchange, operation, key);
+            if (injection != null && injection.slowDown) {
+                drain(exchange);
+                error(exchange, 503, "SlowDown", "Please reduce your request rate.");
+                return;
+            }
+            switch (operation) {
+                case "ListObjectsV2":
+                    listObjects(exchange, bucket, query);
+                    break;
+                case "Bucket":
+                    drain(exchange);
+                    send(exchange, 200, new byte[0]);
+                    break;
+                case "UploadPart":
+                    uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+                    break;
+                case "CopyObject":
+                    copyObject(exchange, bucket, key);
+                    break;
+                case "PutObject":
+                    putObject(exchange, bucket, key);
+                    break;
+                case "CreateMultipartUpload":
+                    initiateUpload(exchange, bucket, key);
+                    break;
+                case "CompleteMultipartUpload":
+                    completeUpload(exchange, bucket, key, query.get("uploadId"));
+                    break;
+                case "AbortMultipartUpload":
+                    Upload upload = uploads.remove(query.get("uploadId"));
+                    if (upload != null) {
+                        upload.parts.values().forEach(part -> part.file.delete());
+                    }
+                    send(exchange, 204, null);
+                    break;
+                case "DeleteObject":
+                    StoredObject removed = bucket(bucket).remove(key);
+                    if (removed != null) {
+                        removed.file.delete();
+                    }
+                    send(exchange, 204, null);
+                    break;
+                case "GetObject":
+                case "HeadObject":
+                    getObject(exchange, bucket, key, "HeadObject".equals(operation));
+                    break;
+                default:
+                    error(exchange, 405, "MethodNotAllowed", exchange.getRequestMethod() + " is not supported");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            if (!(e instanceof IOException)) {
+                error(exchange, 500, "InternalError", e.toString());
+            }
+        } finally {
+            responding();
+            exchange.close();
+        }
+    }
+
+    private static String operation(HttpExchange exchange, String key, Map<String, String> query) {
+        String method = exchange.getRequestMethod();
+        if (key.isEmpty()) {
+            return "GET".equals(method) ? "ListObjectsV2" : "Bucket";
+        }
+        switch (method) {
+            case "PUT":
+                if (query.containsKey("uploadId")) {
+                    return "UploadPart";
+                }
+                return exchange.getRequestHeaders().containsKey("x-amz-copy-source") ? "CopyObject" : "PutObject";
+            case "POST":
+                return query.containsKey("uploads") ? "CreateMultipartUpload" : "CompleteMultipartUpload";
+            case "DELETE":
+                return query.containsKey("uploadId") ? "AbortMultipartUpload" : "DeleteObject";
+            case "GET":
+                return "GetObject";
+            case "HEAD":
+                return "HeadObject";
+            default:
+                return method;
+        }
+    }
+
+    /**
+     * Applies the faults matching the request: waits for their latency and wraps the bodies of the exchange.
+     *
+     * @return what the faults do to the request, null when none matches
+     */
+    private Injection inject(HttpExchange exchange, String operation, String key) throws InterruptedException {
+        Injection injection = null;
+        for (Fault fault : faults) {
+            if (fault.matches(operation, key, random)) {
+                injection = injection == null ? new Injection() : injection;
+                injection.add(fault, random);
+            }
+        }
+        if (injection != null) {
+            Thread.sleep(injection.latencyMillis);
+            exchange.setStreams(new FaultyInputStream(exchange.getRequestBody(), injection),
+                    new FaultyOutputStream(exchange.getResponseBody(), injection));
+        }
+        return injection;
+    }
+
+    private void putObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        File file = newFile();
+        String eTag = receive(exchange, file);
+        store(bucket, key, new StoredObject(file, file.length(), eTag));
+        exchange.getResponseHeaders().add("ETag", quote(eTag));
+        send(exchange, 200, new byte[0]);
+    }
+
+    private void copyObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        drain(exchange);
+        String source = URLDecoder.decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"), "UTF-8");
+        source = source.startsWith("/") ? source.substring(1) : source;
+        int slash = source.indexOf('/');
+        StoredObject object = slash < 0 ? null : bucket(source.substring(0, slash)).get(source.substring(slash + 1));
+        if (object == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        File file = newFile();
+        Files.copy(object.file.toPath(), file.toPath());
+        StoredObject copy = new StoredObject(file, object.size, object.eTag);
+        store(bucket, key, copy);
+        send(exchange, 200, xml("CopyObjectResult", element("LastModified", isoDate(copy.lastModified)) + element("ETag", quote(copy.eTag))));
+    }
+
+    private void initiateUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+        drain(exchange);
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new Upload());
+        send(exchange, 200, xml("InitiateMultipartUploadResult",
+                element("Bucket", bucket) + element("Key", key) + element("UploadId", uploadId)));
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            drain(exchange);
+            error(exchange, 404, "NoSuchUpload", uploadId);
+            return;
+        }
+        File file = newFile();
+        String eTag = receive(exchange, file);
+        StoredObject previous = upload.parts.put(partNumber, new StoredObject(file, file.length(), eTag));
+        if (previous != null) {
+            previous.file.delete();
+        }
+        exchange.getResponseHeaders().add("ETag", quote(eTag));
+        send(exchange, 200, new byte[0]);
+    }
+
+    private void completeUpload(HttpExchange exchange, String bucket, String key, String uploadId) throws IOException {
+        String body = new String(read(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        Upload upload = uploads.remove(uploadId);
+        if (upload == null) {
+            error(exchange, 404, "NoSuchUpload", uploadId);
+            return;
+        }
+        File file = newFile();
+        MessageDigest eTags = md5();
+        int parts = 0;
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            Matcher matcher = PART.matcher(body);
+            while (matcher.find()) {
+                StoredObject part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+                if (part == null || !part.eTag.equals(unquote(matcher.group(2).replace("&quot;", "\"")))) {
+                    error(exchange, 400, "InvalidPart", "Part " + matcher.group(1) + " was not uploaded");
+                    return;
+                }
+                Files.copy(part.file.toPath(), out);
+                eTags.update(BinaryUtils.fromHex(part.eTag));
+                parts++;
+            }
+        } finally {
+            upload.parts.values().forEach(part -> part.file.delete());
+        }
+        String eTag = BinaryUtils.toHex(eTags.digest()) + "-" + parts;
+        store(bucket, key, new StoredObject(file, file.length(), eTag));
+        send(exchange, 200, xml("CompleteMultipartUploadResult", element("Location", getEndpoint() + "/" + bucket + "/" + key)
+                + element("Bucket", bucket) + element("Key", key) + element("ETag", quote(eTag))));
+    }
+
+    private void getObject(HttpExchange exchange, String bucket, String key, boolean head) throws IOException {
+        StoredObject object = bucket(bucket).get(key);
+        if (object == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !unquote(ifMatch).equals(object.eTag)) {
+            error(exchange, 412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+            return;
+        }
+        long start = 0;
+        long end = object.size - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher != null && matcher.matches()) {
+            start = Long.parseLong(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? end : Math.min(end, Long.parseLong(matcher.group(2)));
+            if (start >= object.size) {
+                error(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+                return;
+            }
+            status = 206;
+            exchange.getResponseHeaders().add("Content-Range", String.format("bytes %d-%d/%d", start, end, object.size));
+        }
+        exchange.getResponseHeaders().add("ETag", quote(object.eTag));
+        exchange.getResponseHeaders().add("Last-Modified", httpDate(object.lastModified));
+        exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        if (head) {
+            exchange.getResponseHeaders().add("Content-Length", Long.toString(object.size));
+            responding();
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        long length = end - start + 1;
+        exchange.sendResponseHeaders(status, length);
+        try (RandomAccessFile file = new RandomAccessFile(object.file, "r"); OutputStream out = exchange.getResponseBody()) {
+            file.seek(start);
+            byte[] buffer = new byte[64 * 1024];
+            while (length > 0) {
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if (read < 0) {
+                    throw new EOFException(object.file.toString());
+                }
+                if (read == length) {
+                    responding();
+                }
+                out.write(buffer, 0, read);
+                length -= read;
+            }
+        }
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        String token = query.get("continuation-token");
+        String startAfter = token != null ? token : query.get("start-after");
+        int maxKeys = Math.min(MAX_KEYS, Integer.parseInt(query.getOrDefault("max-keys", Integer.toString(MAX_KEYS))));
+        boolean urlEncoded = "url".equals(query.get("encoding-type"));
+
+        NavigableMap<String, StoredObject> objects = bucket(bucket).tailMap(prefix, true);
+        if (startAfter != null && startAfter.compareTo(prefix) >= 0) {
+            objects = objects.tailMap(startAfter, false);
+        }
+        StringBuilder contents = new StringBuilder();
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        int keys = 0;
+        String last = null;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            int next = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            String commonPrefix = next < 0 ? null : key.substring(0, next + delimiter.length());
+            if (commonPrefix != null && commonPrefixes.contains(commonPrefix)) {
+                last = key;
+                continue;
+            }
+            if (keys == maxKeys) {
+                truncated = true;
+                break;
+            }
+            keys++;
+            last = key;
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+            } else {
+                StoredObject object = entry.getValue();
+                contents.append("<Contents>").append(element("Key", encode(key, urlEncoded)))
+                        .append(element("LastModified", isoDate(object.lastModified)))
+                        .append(element("ETag", quote(object.eTag)))
+                        .append(element("Size", Long.toString(object.size)))
+                        .append(element("StorageClass", "STANDARD")).append("</Contents>");
+            }
+        }
+        StringBuilder body = new StringBuilder()
+                .append(element("Name", bucket))
+                .append(element("Prefix", encode(prefix, urlEncoded)))
+                .append(element("KeyCount", Integer.toString(keys)))
+                .append(element("MaxKeys", Integer.toString(maxKeys)))
+                .append(element("IsTruncated", Boolean.toString(truncated)));
+        if (delimiter != null) {
+            body.append(element("Delimiter", encode(delimiter, urlEncoded)));
+        }
+        if (urlEncoded) {
+            body.append(element("EncodingType", "url"));
+        }
+        if (token != null) {
+            body.append(element("ContinuationToken", token));
+        }
+        if (truncated) {
+            body.append(element("NextContinuationToken", last));
+        }
+        body.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            body.append("<CommonPrefixes>").append(element("Prefix", encode(commonPrefix, urlEncoded))).append("</CommonPrefixes>");
+        }
+        send(exchange, 200, xml("ListBucketResult", body.toString()));
+    }
+
+    /**
+     * Writes the body of the request to the file, decoding the chunks of streaming signed uploads.
+     *
+     * @return the MD5 of the content in hex
+     */
+    private String receive(HttpExchange exchange, File file) throws IOException {
+        MessageDigest md5 = md5();
+        InputStream in = exchange.getRequestBody();
+        String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (contentSha256 != null && contentSha256.startsWith("STREAMING-")) {
+            in = new AwsChunkedInputStream(in);
+        }
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                md5.update(buffer, 0, read);
+            }
+        }
+        // the connection is only kept alive when the whole body was read, including what follows the last chunk
+        drain(exchange);
+        return BinaryUtils.toHex(md5.digest());
+    }
+
+    private void store(String bucket, String key, StoredObject object) {
+        StoredObject previous = bucket(bucket).put(key, object);
+        if (previous != null) {
+            previous.file.delete();
+        }
+    }
+
+    private NavigableMap<String, StoredObject> bucket(String bucket) {
+        return buckets.computeIfAbsent(bucket, name -> new ConcurrentSkipListMap<>());
+    }
+
+    private File newFile() throws IOException {
+        Files.createDirectories(dir.toPath());
+        return new File(dir, UUID.randomUUID().toString());
+    }
+
+    private void count(String operation) {
+        requests.computeIfAbsent(operation, name -> new LongAdder()).increment();
+    }
+
+    private void error(HttpExchange exchange, int status, String code, String message) throws IOException {
+        send(exchange, status, xml("Error", element("Code", code) + element("Message", message)
+                + element("RequestId", Long.toHexString(System.nanoTime()))));
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        responding();
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        if (body.length > 0) {
+            exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Stops counting the request of the current thread in flight.
+     */
+    private void responding() {
+        if (handling.get()) {
+            handling.set(false);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        read(exchange.getRequestBody());
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? parameter : parameter.substring(0, equals), "UTF-8");
+            query.put(name, equals < 0 ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static byte[] xml(String root, String content) {
+        return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<%s xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">%s</%s>",
+                root, content, root).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String element(String name, String value) {
+        String escaped = value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        return String.format("<%s>%s</%s>", name, escaped, name);
+    }
+
+    private static String encode(String value, boolean urlEncoded) throws UnsupportedEncodingException {
+        return urlEncoded ? URLEncoder.encode(value, "UTF-8").replace("+", "%20") : value;
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String unquote(String eTag) {
+        return eTag.startsWith("\"") && eTag.endsWith("\"") && eTag.length() > 1 ? eTag.substring(1, eTag.length() - 1) : eTag;
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static String isoDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class StoredObject {
+        private final File file;
+        private final long size;
+        private final String eTag;
+        private final long lastModified = System.currentTimeMillis();
+
+        StoredObject(File file, long size, String eTag) {
+            this.file = file;
+            this.size = size;
+            this.eTag = eTag;
+        }
+    }
+
+    private static class Upload {
+        private final Map<Integer, StoredObject> parts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The faults of one request, counting the body bytes which went through to find where to close or stall.
+     */
+    private static class Injection {
+        private static final int PACED_CHUNK = 16 * 1024;
+
+        private long latencyMillis;
+        private boolean slowDown;
+        private long bytesPerSecond;
+        private long resetAfterBytes = -1;
+        private long stallAfterBytes = -1;
+        private long stallMillis;
+        private long bytes;
+        private long startNanos;
+        private boolean reset;
+
+        void add(Fault fault, Random random) {
+            if (fault.getLatency() != null) {
+                latencyMillis += Math.max(0, fault.getLatency().nextMillis(random));
+            }
+            slowDown |= fault.isSlowDown();
+            if (fault.getBytesPerSecond() > 0) {
+                bytesPerSecond = bytesPerSecond == 0 ? fault.getBytesPerSecond() : Math.min(bytesPerSecond, fault.getBytesPerSecond());
+            }
+            if (fault.getResetAfterBytes() >= 0) {
+                resetAfterBytes = resetAfterBytes < 0 ? fault.getResetAfterBytes() : Math.min(resetAfterBytes, fault.getResetAfterBytes());
+            }
+            if (fault.getStallAfterBytes() >= 0 && stallAfterBytes < 0) {
+                stallAfterBytes = fault.getStallAfterBytes();
+                stallMillis = fault.getStallMillis();
+            }
+        }
+
+        /**
+         * Closes the connection or stalls when the body reached the point of the fault.
+         */
+        synchronized void before() throws IOException {
+            if (resetAfterBytes >= 0 && bytes >= resetAfterBytes) {
+                reset = true;
+                throw new IOException("Injected connection reset");
+            }
+            if (stallAfterBytes >= 0 && bytes >= stallAfterBytes) {
+                stallAfterBytes = -1;
+                sleep(stallMillis);
+            }
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * @return how many of the bytes may go through before the next fault, so that it hits at the exact byte
+         */
+        synchronized int allowance(int length) {
+            long allowed = length;
+            if (bytesPerSecond > 0) {
+                allowed = Math.min(allowed, PACED_CHUNK);
+            }
+            if (resetAfterBytes > bytes) {
+                allowed = Math.min(allowed, resetAfterBytes - bytes);
+            }
+            if (stallAfterBytes > bytes) {
+                allowed = Math.min(allowed, stallAfterBytes - bytes);
+            }
+            return (int) Math.max(1, allowed);
+        }
+
+        /**
+         * Counts bytes which went through, waiting as long as the bandwidth cap requires.
+         */
+        synchronized void after(int length) throws IOException {
+            bytes += length;
+            if (bytesPerSecond > 0) {
+                long dueNanos = startNanos + bytes * 1_000_000_000L / bytesPerSecond;
+                sleep(TimeUnit.NANOSECONDS.toMillis(dueNanos - System.nanoTime()));
+            }
+        }
+
+        private static void sleep(long millis) throws IOException {
+            if (millis <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while injecting a fault");
+            }
+        }
+    }
+
+    private static class FaultyInputStream extends FilterInputStream {
+        private final Injection injection;
+
+        FaultyInputStream(InputStream in, Injection injection) {
+            super(in);
+            this.injection = injection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            injection.before();
+            int read = in.read(buffer, offset, injection.allowance(length));
+            if (read > 0) {
+                injection.after(read);
+            }
+            return read;
+        }
+    }
+
+    private static class FaultyOutputStream extends FilterOutputStream {
+        private final Injection injection;
+
+        FaultyOutputStream(OutputStream out, Injection injection) {
+            super(out);
+            this.injection = injection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            while (length > 0) {
+                injection.before();
+                int allowed = Math.min(length, injection.allowance(length));
+                out.write(buffer, offset, allowed);
+                injection.after(allowed);
+                offset += allowed;
+                length -= allowed;
+            }
+        }
+
+        /**
+         * The exchange only closes the connection of a response shorter than announced when closing its body fails.
+         */
+        @Override
+        public void close() throws IOException {
+            synchronized (injection) {
+                if (injection.reset) {
+                    throw new IOException("Injected connection reset");
+                }
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Decodes the {@code aws-chunked} body the SDK sends when it signs the payload of an upload, i.e. chunks of
+     * {@code <hex size>;chunk-signature=<signature>\r\n<data>\r\n} ending with an empty chunk.
+     */
+    private static class AwsChunkedInputStream extends FilterInputStream {
+        private long remaining;
+        private boolean done;
+
+        AwsChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (remaining == 0) {
+                String header = readLine();
+                int semicolon = header.indexOf(';');
+                remaining = Long.parseLong(semicolon < 0 ? header : header.substring(0, semicolon), 16);
+                if (remaining == 0) {
+                    done = true;
+                    return -1;
+                }
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read < 0) {
+                throw new EOFException("Truncated chunk");
+            }
+            remaining -= read;
+            if (remaining == 0) {
+                readLine();
+            }
+            return read;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int next;
+            while ((next = in.read()) != '\n') {
+                if (next < 0) {
+                    throw new EOFException("Truncated chunk header");
+                }
+                if (next != '\r') {
+                    line.append((char) next);
+                }
+            }
+            return line.toString();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package diogomrol.gocd.s3.artifact.plugin.fakes3;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class FakeS3ServerTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private FakeS3Server server;
+    private AmazonS3 s3;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeS3Server(tmpFolder.newFolder());
+        s3 = AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        s3.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void shouldCopyObjects() throws IOException {
+        s3.putObject("bucket", "dir/source file.txt", "content");
+
+        String eTag = s3.copyObject("bucket", "dir/source file.txt", "other", "copy.txt").getETag();
+
+        assertThat(server.getObject("other", "copy.txt")).isEqualTo("content".getBytes(StandardCharsets.UTF_8));
+        assertThat(eTag).isEqualTo(s3.getObjectMetadata("bucket", "dir/source file.txt").getETag());
+        assertThat(server.getRequests()).containsEntry("CopyObject", 1L);
+    }
+
+    @Test
+    public void shouldAnswerSlowDownToTheFaultyRequestsOnly() {
+        server.inject(Fault.on("PutObject").after(1).times(1).slowDown());
+
+        s3.putObject("bucket", "first", "content");
+        Throwable throttled = catchThrowable(() -> s3.putObject("bucket", "second", "content"));
+        s3.putObject("bucket", "third", "content");
+
+        assertThat(throttled).isInstanceOf(AmazonS3Exception.class);
+        assertThat(((AmazonS3Exception) throttled).getStatusCode()).isEqualTo(503);
+        assertThat(((AmazonS3Exception) throttled).getErrorCode()).isEqualTo("SlowDown");
+        assertThat(server.getObjectCount("bucket")).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldCloseTheConnectionMidStream() throws IOException {
+        byte[] content = new byte[256 * 1024];
+        Arrays.fill(content, (byte) 7);
+        server.putObject("bucket", "key", content);
+        server.inject(Fault.on("GetObject").times(1).reset(100 * 1024));
+
+        try (S3Object object = s3.getObject("bucket", "key")) {
+            assertThat(catchThrowable(() -> IOUtils.toByteArray(object.getObjectContent()))).isInstanceOfAny(IOException.class, SdkClientException.class);
+        }
+        try (S3Object object = s3.getObject("bucket", "key")) {
+            assertThat(IOUtils.toByteArray(object.getObjectContent())).isEqualTo(content);
+        }
+    }
+
+    @Test
+    public void shouldCapTheBandwidthOfEachRequest() throws IOException {
+        server.putObject("bucket", "key", new byte[512 * 1024]);
+        server.inject(Fault.on("GetObject").bandwidth(1024 * 1024));
+
+        long start = System.nanoTime();
+        try (S3Object object = s3.getObject(new GetObjectRequest("bucket", "key").withRange(0, 256 * 1024 - 1))) {
+            assertThat(IOUtils.toByteArray(object.getObjectContent())).hasSize(256 * 1024);
+        }
+
+        assertThat((System.nanoTime() - start) / 1_000_000).isGreaterThanOrEqualTo(230);
+    }
+}
@@ -0,0 +1,134 @@
+package diogomrol.gocd.s3.artifact.plugin.fakes3;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Misbehaviour of the {@link FakeS3Server} for some of the requests of an operation, e.g. to delay the 31st and 32nd
+ * GET by ten seconds: {@code Fault.on("GetObject").after(30).times(2).delay(Latency.fixed(10_000))}. Of the requests
+ * matching the operation and key, the first {@link #after(int)} are left alone and each of the next {@link #times(int)}
+ * misbehaves with the given probability. The effects of all faults matching a request add up.
+ */
+public class Fault {
+    public static final String ANY = "*";
+
+    private final String operation;
+    private final AtomicLong matched = new AtomicLong();
+    private String key;
+    private long after;
+    private long times = Long.MAX_VALUE;
+    private double probability = 1;
+    private Latency latency;
+    private boolean slowDown;
+    private long bytesPerSecond;
+    private long resetAfterBytes = -1;
+    private long stallAfterBytes = -1;
+    private long stallMillis;
+
+    private Fault(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * @param operation name of the S3 operation, e.g. {@code PutObject}, or {@link #ANY}
+     */
+    public static Fault on(String operation) {
+        return new Fault(operation);
+    }
+
+    /**
+     * Only requests of this object key.
+     */
+    public Fault forKey(String key) {
+        this.key = key;
+        return this;
+    }
+
+    public Fault after(int requests) {
+        this.after = requests;
+        return this;
+    }
+
+    public Fault times(int requests) {
+        this.times = requests;
+        return this;
+    }
+
+    public Fault withProbability(double probability) {
+        this.probability = probability;
+        return this;
+    }
+
+    /**
+     * Waits before handling the request, i.e. before reading its body and before sending the response headers.
+     */
+    public Fault delay(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Answers {@code 503 SlowDown} instead of handling the request.
+     */
+    public Fault slowDown() {
+        this.slowDown = true;
+        return this;
+    }
+
+    /**
+     * Caps the rate at which the body of the request is read and the one of the response is written.
+     */
+    public Fault bandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Closes the connection once this many bytes of the request or response body went through.
+     */
+    public Fault reset(long afterBytes) {
+        this.resetAfterBytes = afterBytes;
+        return this;
+    }
+
+    /**
+     * Stops moving the body for a while once this many bytes of it went through.
+     */
+    public Fault stall(long afterBytes, long millis) {
+        this.stallAfterBytes = afterBytes;
+        this.stallMillis = millis;
+        return this;
+    }
+
+    boolean matches(String operation, String key, Random random) {
+        if (!ANY.equals(this.operation) && !this.operation.equals(operation) || this.key != null && !this.key.equals(key)) {
+            return false;
+        }
+        long index = matched.getAndIncrement() - after;
+        return index >= 0 && index < times && (probability >= 1 || random.nextDouble() < probability);
+    }
+
+    Latency getLatency() {
+        return latency;
+    }
+
+    boolean isSlowDown() {
+        return slowDown;
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    long getResetAfterBytes() {
+        return resetAfterBytes;
+    }
+
+    long getStallAfterBytes() {
+        return stallAfterBytes;
+    }
+
+    long getStallMillis() {
+        return stallMillis;
+    }
+}
@@ -0,0 +1,34 @@
+package diogomrol.gocd.s3.artifact.plugin.fakes3;
+
+import java.util.Random;
+
+/**
+ * Distribution of the time the {@link FakeS3Server} waits before it handles a request.
+ */
+@FunctionalInterface
+public interface Latency {
+    long nextMillis(Random random);
+
+    static Latency fixed(long millis) {
+        return random -> millis;
+    }
+
+    static Latency uniform(long minMillis, long maxMillis) {
+        return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+    }
+
+    /**
+     * A long-tailed distribution like the one of S3 itself, where a few requests take many times the median.
+     */
+    static Latency logNormal(double medianMillis, double p99Millis) {
+        double sigma = Math.log(p99Millis / medianMillis) / 2.326;
+        return random -> Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    /**
+     * @return {@code slowMillis} for {@code slowPercent} of the requests and {@code fastMillis} for the others
+     */
+    static Latency bimodal(long fastMillis, double slowPercent, long slowMillis) {
+        return random -> random.nextDouble() * 100 < slowPercent ? slowMillis : fastMillis;
+    }
+}
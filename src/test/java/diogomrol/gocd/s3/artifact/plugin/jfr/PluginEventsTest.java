@@ -0,0 +1,53 @@
+package diogomrol.gocd.s3.artifact.plugin.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PluginEventsTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldNotRecordWhileJfrIsNotRecording() {
+        assertThat(PluginEvents.isAvailable()).isTrue();
+
+        assertThat(PluginEvents.s3("GetObject", "bucket", "build/a.txt")).isSameAs(Span.NONE);
+        assertThat(PluginEvents.request("cd.go.artifact.publish-artifact")).isSameAs(Span.NONE);
+    }
+
+    @Test
+    public void shouldCommitEventsToRunningRecording() throws Exception {
+        Path file = tmpFolder.newFile("plugin.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable("gocd.s3.S3Request");
+            recording.enable("gocd.s3.Retry");
+            recording.start();
+
+            try (Span span = PluginEvents.s3("GetObject", "bucket", "build/a.txt")) {
+                span.setBytes(42);
+            }
+            PluginEvents.retry("throttle", "download of `build/a.txt`", 1);
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertThat(events).extracting(event -> event.getEventType().getName()).containsExactly("gocd.s3.S3Request", "gocd.s3.Retry");
+        RecordedEvent request = events.get(0);
+        assertThat(request.getString("operation")).isEqualTo("GetObject");
+        assertThat(request.getString("key")).isEqualTo("build/a.txt");
+        assertThat(request.getLong("bytes")).isEqualTo(42);
+        assertThat(events.get(1).getInt("attempt")).isEqualTo(1);
+        assertThat(PluginEvents.s3("GetObject", "bucket", "build/a.txt")).isSameAs(Span.NONE);
+    }
+}
@@ -0,0 +1,65 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void shouldReportPercentilesWithinBucketPrecision() {
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat((double) histogram.getPercentileMicros(50)).isCloseTo(500_000, within(500_000 / 16.0));
+        assertThat((double) histogram.getPercentileMicros(99)).isCloseTo(990_000, within(990_000 / 16.0));
+        assertThat(histogram.getPercentileMicros(100)).isEqualTo(1_000_000);
+        assertThat(histogram.getMaxMicros()).isEqualTo(1_000_000);
+        assertThat(histogram.getSumMicros()).isEqualTo(500_500_000L);
+    }
+
+    @Test
+    public void shouldKeepSmallValuesExactly() {
+        histogram.recordNanos(3_000);
+        histogram.recordNanos(15_000);
+
+        assertThat(histogram.getPercentileMicros(50)).isEqualTo(3);
+        assertThat(histogram.getPercentileMicros(100)).isEqualTo(15);
+    }
+
+    @Test
+    public void shouldMapEveryValueToBucketContainingIt() {
+        for (long value = 0; value < 1L << 20; value += 1 + value / 7) {
+            int index = LatencyHistogram.index(value);
+            assertThat(LatencyHistogram.highestValue(index)).isGreaterThanOrEqualTo(value);
+            if (index > 0) {
+                assertThat(LatencyHistogram.highestValue(index - 1)).isLessThan(value);
+            }
+        }
+        assertThat(LatencyHistogram.index(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKETS - 1);
+    }
+
+    @Test
+    public void shouldAddOtherHistogram() {
+        LatencyHistogram other = new LatencyHistogram();
+        histogram.recordNanos(1_000_000);
+        other.recordNanos(3_000_000);
+
+        histogram.add(other);
+
+        assertThat(histogram.getCount()).isEqualTo(2);
+        assertThat(histogram.getMaxMicros()).isEqualTo(3_000);
+        assertThat(histogram.getSumMicros()).isEqualTo(4_000);
+    }
+
+    @Test
+    public void shouldReportZeroWhenEmpty() {
+        assertThat(histogram.getPercentileMicros(99)).isZero();
+    }
+}
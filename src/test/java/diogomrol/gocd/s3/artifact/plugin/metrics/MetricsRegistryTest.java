@@ -0,0 +1,65 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricsRegistryTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldWriteTotalsOfAllRequestsToFile() throws Exception {
+        File file = new File(tmpFolder.getRoot(), "state/metrics.prom");
+        MetricsRegistry registry = new MetricsRegistry(file);
+
+        for (int i = 0; i < 2; i++) {
+            RequestMetrics fetch = new RequestMetrics("fetch");
+            fetch.transferred(1024, TimeUnit.MILLISECONDS.toNanos(200));
+            fetch.throttled();
+            fetch.getFirstByte().recordNanos(TimeUnit.MILLISECONDS.toNanos(20));
+            registry.record(fetch);
+        }
+        RequestMetrics publish = new RequestMetrics("publish");
+        publish.getScan().recordNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        registry.record(publish);
+
+        String snapshot = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertThat(snapshot)
+                .contains("# TYPE gocd_s3_requests_total counter\n")
+                .contains("gocd_s3_requests_total{operation=\"fetch\"} 2\n")
+                .contains("gocd_s3_requests_total{operation=\"publish\"} 1\n")
+                .contains("gocd_s3_bytes_total{operation=\"fetch\"} 2048\n")
+                .contains("gocd_s3_throttles_total{operation=\"fetch\"} 2\n")
+                .contains("gocd_s3_retries_total{operation=\"fetch\"} 2\n")
+                .contains("# TYPE gocd_s3_transfer_seconds summary\n")
+                .contains("gocd_s3_transfer_seconds_count{operation=\"fetch\"} 2\n")
+                .contains("gocd_s3_transfer_seconds_sum{operation=\"fetch\"} 0.4\n")
+                .contains("gocd_s3_scan_seconds_count{operation=\"publish\"} 1\n");
+        assertThat(registry.getTotal("fetch").getFirstByte().getPercentileMicros(50)).isEqualTo(20_000);
+        assertThat(new File(file.getParentFile(), "metrics.prom.tmp")).doesNotExist();
+    }
+
+    @Test
+    public void shouldSummarizeRequest() {
+        RequestMetrics metrics = new RequestMetrics("publish");
+        metrics.transferred(2 * 1024 * 1024, TimeUnit.MILLISECONDS.toNanos(100));
+        metrics.stalled();
+        metrics.getClient().recordNanos(TimeUnit.MILLISECONDS.toNanos(3));
+
+        assertThat(metrics.summary())
+                .startsWith("S3 publish metrics: 1 transfers of 2.0 MiB in ")
+                .contains("transfer p50 ")
+                .contains("1 retries, 0 throttled, 1 stalled")
+                .contains("client 3.0 ms")
+                .doesNotContain("first byte")
+                .doesNotContain("scan");
+    }
+}
@@ -0,0 +1,46 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransferReportTest {
+
+    @Test
+    public void shouldAddUpTransfersOfFileAcrossItsParts() {
+        TransferReport report = new TransferReport("fetch", "bucket");
+        long start = System.nanoTime();
+        report.transferred("big.bin", 1048576, start + TimeUnit.MILLISECONDS.toNanos(500), start + TimeUnit.MILLISECONDS.toNanos(1000));
+        report.retried("big.bin");
+        report.transferred("big.bin", 1048576, start, start + TimeUnit.MILLISECONDS.toNanos(400));
+        report.file("big.bin").setSize(2097152).setCrc32c("0badc0de");
+        report.file("copied.bin").setSize(10).setCacheHit("host");
+
+        JsonObject json = new Gson().fromJson(report.toJson(new RequestMetrics("fetch")), JsonObject.class);
+
+        JsonObject big = json.getAsJsonArray("files").get(0).getAsJsonObject();
+        assertThat(big.get("key").getAsString()).isEqualTo("big.bin");
+        assertThat(big.get("transfers").getAsInt()).isEqualTo(2);
+        assertThat(big.get("retries").getAsInt()).isEqualTo(1);
+        assertThat(big.get("bytes").getAsLong()).isEqualTo(2097152);
+        assertThat(big.get("durationMillis").getAsDouble()).isEqualTo(1000);
+        assertThat(big.get("mibPerSecond").getAsDouble()).isEqualTo(2);
+        assertThat(big.get("crc32c").getAsString()).isEqualTo("0badc0de");
+        JsonObject copied = json.getAsJsonArray("files").get(1).getAsJsonObject();
+        assertThat(copied.get("cacheHit").getAsString()).isEqualTo("host");
+        assertThat(copied.get("transfers").getAsInt()).isZero();
+        assertThat(json.getAsJsonObject("totals").get("files").getAsInt()).isEqualTo(2);
+        assertThat(json.getAsJsonObject("totals").get("retries").getAsInt()).isEqualTo(1);
+        assertThat(json.getAsJsonObject("fileDurationMillis").get("max").getAsDouble()).isEqualTo(1000);
+        assertThat(json.getAsJsonObject("fileMibPerSecond").get("min").getAsDouble()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNameReportsByOperationAndStartTime() {
+        assertThat(new TransferReport("publish", "bucket").fileName()).matches("s3-publish-\\d{8}T\\d{6}\\.\\d{3}Z\\.json");
+    }
+}
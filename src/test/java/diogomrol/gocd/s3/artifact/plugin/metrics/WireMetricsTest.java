@@ -0,0 +1,128 @@
+package diogomrol.gocd.s3.artifact.plugin.metrics;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.metrics.AwsSdkMetrics;
+import com.amazonaws.metrics.MetricCollector;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class WireMetricsTest {
+    private final AtomicInteger requests = new AtomicInteger();
+    private HttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().close();
+            byte[] body;
+            if (requests.incrementAndGet() == 1) {
+                body = "<Error><Code>SlowDown</Code><Message>Please reduce your request rate.</Message></Error>".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(503, body.length);
+            } else {
+                body = "content".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("ETag", "\"" + BinaryUtils.toHex(Md5Utils.computeMD5Hash(body)) + "\"");
+                exchange.sendResponseHeaders(200, body.length);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldCollectHttpTimingsAndConnectionReuseOfClient() {
+        WireMetrics metrics = new WireMetrics("bucket");
+        ClientConfiguration configuration = new ClientConfiguration();
+        metrics.instrument(configuration);
+        AmazonS3 s3 = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(
+                        String.format("http://127.0.0.1:%d", server.getAddress().getPort()), "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+                .withClientConfiguration(configuration)
+                .withMetricsCollector(metrics.requestCollector())
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            s3.getObjectAsString("bucket", "build/a.txt");
+        }
+
+        assertThat(requests.get()).isEqualTo(4);
+        assertThat(metrics.getRequests()).isEqualTo(3);
+        assertThat(metrics.getAttempts()).isEqualTo(4);
+        assertThat(metrics.getRetries()).isEqualTo(1);
+        assertThat(metrics.getThrottles()).isEqualTo(1);
+        assertThat(metrics.getConnections()).isEqualTo(1);
+        assertThat(metrics.getReuseRatio()).isEqualTo(0.75);
+        assertThat(metrics.getLease().getCount()).isEqualTo(3);
+        assertThat(metrics.getResponse().getCount()).isEqualTo(4);
+        assertThat(metrics.getSend().getCount()).isEqualTo(4);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void shouldConnectWithTheVerifierAndRandomOfTheDefaultFactoryOfS3Clients() {
+        ClientConfiguration configuration = spy(new ClientConfiguration());
+
+        TimedTlsSocketFactory factory = TimedTlsSocketFactory.create(configuration, new WireMetrics("bucket"));
+
+        assertThat(factory.getHostnameVerifier()).isSameAs(SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+        verify(configuration).getSecureRandom();
+    }
+
+    @Test
+    public void shouldRemoveJvmWideCollectorWhenUninstalled() {
+        WireMetrics.uninstall();
+        assertThat(AwsSdkMetrics.<MetricCollector>getMetricCollector()).isNotInstanceOf(ConnectionLeases.class);
+
+        new WireMetrics("bucket").instrument(new ClientConfiguration());
+        assertThat(AwsSdkMetrics.<MetricCollector>getMetricCollector()).isInstanceOf(ConnectionLeases.class);
+
+        WireMetrics.uninstall();
+        assertThat(AwsSdkMetrics.<MetricCollector>getMetricCollector()).isNotInstanceOf(ConnectionLeases.class);
+    }
+
+    @Test
+    public void shouldReportMetricsOfEachStore() {
+        MetricsRegistry registry = new MetricsRegistry(null);
+        WireMetrics metrics = registry.wire("bucket");
+        metrics.requested(4, 1, 1, 1);
+        metrics.getDns().recordMicros(1500);
+        metrics.connected(2000, 3000);
+
+        assertThat(registry.wire("bucket")).isSameAs(metrics);
+        assertThat(registry.snapshot())
+                .contains("gocd_s3_http_attempts_total{store=\"bucket\"} 4\n")
+                .contains("gocd_s3_http_connections_total{store=\"bucket\"} 1\n")
+                .contains("gocd_s3_http_throttles_total{store=\"bucket\"} 1\n")
+                .contains("gocd_s3_http_connection_reuse_ratio{store=\"bucket\"} 0.75\n")
+                .contains("gocd_s3_http_dns_seconds_sum{store=\"bucket\"} 0.0015\n")
+                .contains("gocd_s3_http_tls_seconds_count{store=\"bucket\"} 1\n");
+    }
+}
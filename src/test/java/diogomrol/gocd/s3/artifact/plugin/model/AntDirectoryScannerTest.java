@@ -67,6 +67,36 @@ public class AntDirectoryScannerTest {
                 .contains(test);
     }
 
+    @Test
+    public void shouldScanInTimeLinearInTheNumberOfFiles() throws IOException {
+        // scanning ten times the files takes at most about ten times as long, while a step quadratic in the number of
+        // files makes it take about twenty times as long already at this size; scaleTest covers 100k-file publishes
+        createFiles("small", 1_000);
+        createFiles("large", 10_000);
+
+        long small = fastestScan("small,small/*.bin", 1_000);
+        long large = fastestScan("large,large/*.bin", 10_000);
+
+        assertThat(large).isLessThan(15 * small);
+    }
+
+    private void createFiles(String directory, int count) throws IOException {
+        File dir = new File(workingDir, directory);
+        assertThat(dir.mkdir()).isTrue();
+        for (int index = 0; index < count; index++) {
+            Files.write(new File(dir, "file" + index + ".bin").toPath(), new byte[0]);
+        }
+    }
+
+    private long fastestScan(String pattern, int files) {
+        long fastest = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            assertThat(scanner.getFilesMatchingPattern(workingDir, pattern)).hasSize(files);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
 
     private File createFile(String path) throws IOException {
         Path filepath = Paths.get(workingDir.toPath().toAbsolutePath().toString(), path);
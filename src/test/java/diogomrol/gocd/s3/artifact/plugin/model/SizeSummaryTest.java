@@ -0,0 +1,58 @@
+package diogomrol.gocd.s3.artifact.plugin.model;
+
+import com.google.gson.reflect.TypeToken;
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SizeSummaryTest {
+
+    @Test
+    public void shouldReadSummaryBackFromArtifactMetadata() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        sizes.put("x/build.json", 41L);
+        sizes.put("x/big.bin", 5_000_000_000L);
+        PublishArtifactResponse response = new PublishArtifactResponse();
+        response.addMetadata(SizeSummary.METADATA_KEY, new SizeSummary(sizes));
+
+        Map<String, Object> metadata = metadataSentBackByServer(response);
+        SizeSummary summary = SizeSummary.fromMetadata(metadata);
+
+        assertThat(summary.getTotalBytes()).isEqualTo(5_000_000_041L);
+        assertThat(summary.getFileCount()).isEqualTo(2);
+        assertThat(summary.hasAllFiles()).isTrue();
+        assertThat(summary.sizeOf("x/big.bin")).isEqualTo(5_000_000_000L);
+        assertThat(summary.sizeOf("x/other.bin")).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldOnlyKeepTotalsForManyFiles() {
+        Map<String, Long> sizes = new HashMap<>();
+        for (int i = 0; i <= SizeSummary.MAX_FILES; i++) {
+            sizes.put("file" + i, 10L);
+        }
+
+        SizeSummary summary = new SizeSummary(sizes);
+
+        assertThat(summary.getFileCount()).isEqualTo(SizeSummary.MAX_FILES + 1);
+        assertThat(summary.getTotalBytes()).isEqualTo(10L * (SizeSummary.MAX_FILES + 1));
+        assertThat(summary.hasAllFiles()).isFalse();
+        assertThat(summary.getFiles()).isEmpty();
+    }
+
+    @Test
+    public void shouldReturnNullForArtifactsPublishedWithoutSummary() {
+        assertThat(SizeSummary.fromMetadata(new HashMap<>())).isNull();
+    }
+
+    private static Map<String, Object> metadataSentBackByServer(PublishArtifactResponse response) {
+        Map<String, Map<String, Object>> body = Util.GSON.fromJson(response.toJSON(), new TypeToken<Map<String, Map<String, Object>>>() {
+        }.getType());
+        return body.get("metadata");
+    }
+}
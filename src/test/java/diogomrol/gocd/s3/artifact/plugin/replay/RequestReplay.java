@@ -0,0 +1,374 @@
+package diogomrol.gocd.s3.artifact.plugin.replay;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
+import com.thoughtworks.go.plugin.api.request.DefaultGoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.request.GoApiRequest;
+import com.thoughtworks.go.plugin.api.response.DefaultGoApiResponse;
+import com.thoughtworks.go.plugin.api.response.GoApiResponse;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.Constants;
+import diogomrol.gocd.s3.artifact.plugin.Request;
+import diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin;
+import diogomrol.gocd.s3.artifact.plugin.S3ClientFactory;
+import diogomrol.gocd.s3.artifact.plugin.capture.RequestRecorder;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.FakeS3Server;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.Checksums;
+import diogomrol.gocd.s3.artifact.plugin.model.SizeSummary;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferScheduler;
+import diogomrol.gocd.s3.artifact.plugin.utils.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Replays the plugin requests captured by {@link RequestRecorder} through {@link S3ArtifactPlugin#handle}, keeping
+ * their relative timing divided by a speed-up, with at most a given number of requests in flight. Workspaces of the
+ * publishes are made up of empty files of the sizes the captured responses report, and the objects the fetches expect
+ * are seeded, so that a capture replays without the agents it was taken on.
+ * <p>
+ * Usage: {@code RequestReplay <capture file> [--concurrency N] [--speed-up X] [--work-dir DIR]}, where a speed-up of 0
+ * sends each request as soon as a slot is free. Requests are sent to a {@link FakeS3Server}.
+ */
+public class RequestReplay {
+    private static final Type METADATA_TYPE = new TypeToken<Map<String, Object>>() {
+    }.getType();
+
+    private final S3ArtifactPlugin plugin;
+    private final int concurrency;
+    private final double speedUp;
+    private final File workDir;
+
+    public RequestReplay(S3ArtifactPlugin plugin, int concurrency, double speedUp, File workDir) {
+        this.plugin = plugin;
+        this.concurrency = concurrency;
+        this.speedUp = speedUp;
+        this.workDir = workDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: RequestReplay <capture file> [--concurrency N] [--speed-up X] [--work-dir DIR]");
+            System.exit(2);
+        }
+        int concurrency = 8;
+        double speedUp = 1;
+        File workDir = null;
+        for (int index = 1; index < args.length; index += 2) {
+            String value = index + 1 < args.length ? args[index + 1] : "";
+            switch (args[index]) {
+                case "--concurrency":
+                    concurrency = Integer.parseInt(value);
+                    break;
+                case "--speed-up":
+                    speedUp = Double.parseDouble(value);
+                    break;
+                case "--work-dir":
+                    workDir = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[index]);
+            }
+        }
+        if (workDir == null) {
+            workDir = Files.createTempDirectory("gocd-s3-replay").toFile();
+        }
+
+        List<JsonObject> captured = readCapture(new File(args[0]));
+        Summary summary;
+        try (FakeS3Server server = new FakeS3Server(new File(workDir, "s3"))) {
+            System.setProperty("cd.go.artifact.s3.endpoint", server.getEndpoint());
+            if (System.getProperty("cd.go.artifact.s3.state.dir") == null) {
+                System.setProperty("cd.go.artifact.s3.state.dir", new File(workDir, "state").getPath());
+            }
+            RequestReplay replay = new RequestReplay(newPlugin(RequestRecorder.DISABLED), concurrency, speedUp, workDir);
+            replay.seed(captured);
+            server.resetRequests();
+            summary = replay.replay(captured);
+            summary.print(System.out);
+            System.out.println("S3 requests: " + new TreeMap<>(server.getRequests()));
+        } finally {
+            TransferScheduler.shutdownShared();
+        }
+        System.exit(summary.getFailures() == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return a plugin whose console output is discarded
+     */
+    public static S3ArtifactPlugin newPlugin(RequestRecorder recorder) {
+        S3ArtifactPlugin plugin = new S3ArtifactPlugin(recorder);
+        plugin.initializeGoApplicationAccessor(new GoApplicationAccessor() {
+            @Override
+            public GoApiResponse submit(GoApiRequest request) {
+                return DefaultGoApiResponse.success(null);
+            }
+        });
+        return plugin;
+    }
+
+    public static List<JsonObject> readCapture(File file) throws IOException {
+        List<JsonObject> captured = new ArrayList<>();
+        JsonParser parser = new JsonParser();
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                captured.add(parser.parse(line).getAsJsonObject());
+            }
+        }
+        captured.sort(Comparator.comparingLong(request -> request.get("time").getAsLong()));
+        return captured;
+    }
+
+    /**
+     * Uploads the objects the captured fetches expect which are not in S3 yet, with the sizes the captured metadata
+     * reports. Fetches of artifacts published with too many files to know their sizes are left to fail.
+     */
+    public void seed(List<JsonObject> captured) throws IOException {
+        for (JsonObject request : captured) {
+            JsonObject body = fetchBody(request);
+            if (body == null) {
+                continue;
+            }
+            SizeSummary sizes = SizeSummary.fromMetadata(Util.GSON.fromJson(body.get("artifact_metadata"), METADATA_TYPE));
+            if (sizes == null) {
+                continue;
+            }
+            ArtifactStoreConfig store = ArtifactStoreConfig.fromJSON(body.get("store_configuration").toString());
+            AmazonS3 s3 = S3ClientFactory.instance().s3(store);
+            try {
+                for (Map.Entry<String, Long> file : sizes.getFiles().entrySet()) {
+                    if (!s3.doesObjectExist(store.getS3bucket(), file.getKey())) {
+                        File content = createFile(new File(workDir, "seed"), file.getValue());
+                        s3.putObject(store.getS3bucket(), file.getKey(), content);
+                        Files.delete(content.toPath());
+                    }
+                }
+            } finally {
+                s3.shutdown();
+            }
+        }
+    }
+
+    public Summary replay(List<JsonObject> captured) throws InterruptedException, ExecutionException {
+        Summary summary = new Summary(concurrency, speedUp);
+        if (captured.isEmpty()) {
+            return summary;
+        }
+        long firstTime = captured.get(0).get("time").getAsLong();
+        ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(concurrency);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int index = 0; index < captured.size(); index++) {
+                JsonObject request = captured.get(index);
+                File scratch = new File(workDir, "requests/" + index);
+                long delayMillis = speedUp <= 0 ? 0 : (long) ((request.get("time").getAsLong() - firstTime) / speedUp);
+                futures.add(executor.schedule(() -> summary.add(request, replay(request, scratch)), delayMillis, TimeUnit.MILLISECONDS));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        summary.wallNanos = System.nanoTime() - start;
+        return summary;
+    }
+
+    /**
+     * @return how long the plugin took to answer, negative when it failed
+     */
+    private long replay(JsonObject captured, File scratch) {
+        try {
+            String name = captured.get("name").getAsString();
+            DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(Constants.EXTENSION_TYPE, Constants.API_VERSION, name);
+            request.setRequestBody(prepareBody(captured, scratch));
+            long start = System.nanoTime();
+            GoPluginApiResponse response = plugin.handle(request);
+            long duration = System.nanoTime() - start;
+            return response.responseCode() == 200 ? duration : -duration;
+        } catch (Exception e) {
+            System.err.println(String.format("Replay of %s failed: %s", captured.get("name").getAsString(), e));
+            return -1;
+        } finally {
+            delete(scratch.toPath());
+        }
+    }
+
+    private static String prepareBody(JsonObject captured, File scratch) throws IOException {
+        JsonElement body = captured.get("body");
+        if (body == null || body.isJsonNull()) {
+            return null;
+        }
+        if (!body.isJsonObject()) {
+            return body.getAsString();
+        }
+        JsonObject copy = body.getAsJsonObject().deepCopy();
+        if (copy.has("agent_working_directory")) {
+            Files.createDirectories(scratch.toPath());
+            copy.addProperty("agent_working_directory", scratch.getAbsolutePath());
+        }
+        String name = captured.get("name").getAsString();
+        if (Request.REQUEST_PUBLISH_ARTIFACT.requestName().equals(name)) {
+            createWorkspace(captured.get("response"), scratch);
+        } else if (Request.REQUEST_FETCH_ARTIFACT.requestName().equals(name) && copy.has("artifact_metadata")) {
+            // the seeded objects are not the captured ones
+            copy.getAsJsonObject("artifact_metadata").remove(Checksums.METADATA_KEY);
+        }
+        return copy.toString();
+    }
+
+    /**
+     * Creates the files a publish uploaded, as reported by its response, for the publish to match them again.
+     */
+    private static void createWorkspace(JsonElement response, File workingDir) throws IOException {
+        if (response == null || !response.isJsonObject() || !response.getAsJsonObject().has("metadata")) {
+            return;
+        }
+        Map<String, Object> metadata = Util.GSON.fromJson(response.getAsJsonObject().get("metadata"), METADATA_TYPE);
+        SizeSummary sizes = SizeSummary.fromMetadata(metadata);
+        if (sizes == null || !sizes.hasAllFiles() || sizes.getFileCount() == 0) {
+            return;
+        }
+        if (Boolean.TRUE.equals(metadata.get("IsFile"))) {
+            createFile(new File(workingDir, (String) metadata.get("Source")), sizes.getTotalBytes());
+            return;
+        }
+        String destination = (String) metadata.get("Destination");
+        String prefix = destination == null || destination.isEmpty() ? "" : destination + "/";
+        for (Map.Entry<String, Long> file : sizes.getFiles().entrySet()) {
+            String path = file.getKey().startsWith(prefix) ? file.getKey().substring(prefix.length()) : file.getKey();
+            createFile(new File(workingDir, path), file.getValue());
+        }
+    }
+
+    /**
+     * @return a sparse file of the given size, or a new one in the given directory when it is a directory
+     */
+    private static File createFile(File file, long size) throws IOException {
+        if (file.isDirectory()) {
+            file = File.createTempFile("seed", ".bin", file);
+        } else {
+            Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+        }
+        try (RandomAccessFile content = new RandomAccessFile(file, "rw")) {
+            content.setLength(size);
+        }
+        return file;
+    }
+
+    private static void delete(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            System.err.println(String.format("Could not delete `%s`: %s", path, e.getMessage()));
+        }
+    }
+
+    private static JsonObject fetchBody(JsonObject captured) {
+        JsonElement body = captured.get("body");
+        if (!Request.REQUEST_FETCH_ARTIFACT.requestName().equals(captured.get("name").getAsString())
+                || body == null || !body.isJsonObject() || !body.getAsJsonObject().has("artifact_metadata")) {
+            return null;
+        }
+        return body.getAsJsonObject();
+    }
+
+    /**
+     * Durations of the replayed requests by request name, next to the captured ones.
+     */
+    public static class Summary {
+        private final int concurrency;
+        private final double speedUp;
+        private final Map<String, Durations> byName = new TreeMap<>();
+        private long wallNanos;
+
+        Summary(int concurrency, double speedUp) {
+            this.concurrency = concurrency;
+            this.speedUp = speedUp;
+        }
+
+        synchronized void add(JsonObject captured, long replayedNanos) {
+            Durations durations = byName.computeIfAbsent(captured.get("name").getAsString(), name -> new Durations());
+            JsonElement responseCode = captured.get("responseCode");
+            if (responseCode == null || responseCode.isJsonNull() || responseCode.getAsInt() != 200) {
+                durations.capturedFailures++;
+            }
+            if (replayedNanos < 0) {
+                durations.failures++;
+            }
+            durations.captured.add(captured.get("durationMillis").getAsDouble());
+            durations.replayed.add(Math.abs(replayedNanos) / 1e6);
+        }
+
+        public synchronized int getCount() {
+            return byName.values().stream().mapToInt(durations -> durations.replayed.size()).sum();
+        }
+
+        public synchronized int getFailures() {
+            return byName.values().stream().mapToInt(durations -> durations.failures).sum();
+        }
+
+        public synchronized int getFailures(String name) {
+            Durations durations = byName.get(name);
+            return durations == null ? 0 : durations.failures;
+        }
+
+        public synchronized void print(PrintStream out) {
+            double seconds = wallNanos / 1e9;
+            out.println(String.format("Replayed %d requests in %.1f s (%.1f requests/s) at concurrency %d, speed-up %s",
+                    getCount(), seconds, seconds == 0 ? 0 : getCount() / seconds, concurrency, speedUp <= 0 ? "unlimited" : speedUp));
+            out.println(String.format("%-42s %7s %16s %30s %30s", "request", "count", "failed (capture)",
+                    "captured p50/p99/max ms", "replayed p50/p99/max ms"));
+            for (Map.Entry<String, Durations> entry : byName.entrySet()) {
+                Durations durations = entry.getValue();
+                out.println(String.format("%-42s %7d %16s %30s %30s", entry.getKey(), durations.replayed.size(),
+                        durations.failures + " (" + durations.capturedFailures + ")",
+                        percentiles(durations.captured), percentiles(durations.replayed)));
+            }
+        }
+
+        private static String percentiles(List<Double> values) {
+            List<Double> sorted = new ArrayList<>(values);
+            Collections.sort(sorted);
+            return String.format("%.1f/%.1f/%.1f", percentile(sorted, 50), percentile(sorted, 99), sorted.get(sorted.size() - 1));
+        }
+
+        private static double percentile(List<Double> sorted, double percentile) {
+            return sorted.get((int) Math.min(sorted.size() - 1, Math.ceil(percentile / 100 * sorted.size()) - 1));
+        }
+    }
+
+    private static class Durations {
+        private final List<Double> captured = new ArrayList<>();
+        private final List<Double> replayed = new ArrayList<>();
+        private int failures;
+        private int capturedFailures;
+    }
+}
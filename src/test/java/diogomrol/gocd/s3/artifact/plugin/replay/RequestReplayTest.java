@@ -0,0 +1,120 @@
+package diogomrol.gocd.s3.artifact.plugin.replay;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+import com.thoughtworks.go.plugin.api.request.DefaultGoPluginApiRequest;
+import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import diogomrol.gocd.s3.artifact.plugin.Constants;
+import diogomrol.gocd.s3.artifact.plugin.S3ArtifactPlugin;
+import diogomrol.gocd.s3.artifact.plugin.capture.RequestRecorder;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.FakeS3Server;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactPlan;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStore;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactConfig;
+import diogomrol.gocd.s3.artifact.plugin.model.FetchArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.model.PublishArtifactRequest;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RequestReplayTest {
+    private static final String BUCKET = "replay";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private Properties systemProperties;
+    private File captureFile;
+    private ArtifactStoreConfig storeConfig;
+
+    @Before
+    public void setUp() throws IOException {
+        systemProperties = (Properties) System.getProperties().clone();
+        System.setProperty("cd.go.artifact.s3.state.dir", tmpFolder.newFolder("state").getPath());
+        System.setProperty("cd.go.artifact.s3.list.cache.ttl.seconds", "0");
+        captureFile = new File(tmpFolder.getRoot(), "capture.jsonl");
+        storeConfig = new ArtifactStoreConfig(BUCKET, "us-east-1", "key", "secret");
+    }
+
+    @After
+    public void tearDown() {
+        System.setProperties(systemProperties);
+    }
+
+    @Test
+    public void shouldReplayCapturedPublishesAndFetchesAgainstAnEmptyS3() throws Exception {
+        try (FakeS3Server server = new FakeS3Server(tmpFolder.newFolder("captured-s3"))) {
+            System.setProperty("cd.go.artifact.s3.endpoint", server.getEndpoint());
+            capture();
+        }
+
+        List<JsonObject> captured = RequestReplay.readCapture(captureFile);
+        assertThat(captured).extracting(request -> request.get("name").getAsString()).containsExactly(
+                "cd.go.artifact.get-capabilities", "cd.go.artifact.publish-artifact", "cd.go.artifact.publish-artifact",
+                "cd.go.artifact.fetch-artifact");
+
+        try (FakeS3Server server = new FakeS3Server(tmpFolder.newFolder("replayed-s3"))) {
+            System.setProperty("cd.go.artifact.s3.endpoint", server.getEndpoint());
+            RequestReplay replay = new RequestReplay(RequestReplay.newPlugin(RequestRecorder.DISABLED), 1, 0, tmpFolder.newFolder("replay"));
+            replay.seed(captured);
+
+            RequestReplay.Summary summary = replay.replay(captured);
+
+            assertThat(summary.getCount()).isEqualTo(4);
+            assertThat(summary.getFailures()).isZero();
+            assertThat(server.getObject(BUCKET, "many/lib/a.jar")).hasSize(1024);
+            assertThat(server.getObject(BUCKET, "many/lib/nested/b.jar")).hasSize(2048);
+            assertThat(server.getObject(BUCKET, "one/app.zip")).hasSize(4096);
+        }
+        assertThat(new File(tmpFolder.getRoot(), "replay/requests").list()).isEmpty();
+    }
+
+    private void capture() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.capture.file", captureFile.getPath());
+        S3ArtifactPlugin plugin = RequestReplay.newPlugin(RequestRecorder.fromSettings(new TransferSettings(properties)));
+
+        File workingDir = tmpFolder.newFolder("agent");
+        createFile(new File(workingDir, "lib/a.jar"), 1024);
+        createFile(new File(workingDir, "lib/nested/b.jar"), 2048);
+        createFile(new File(workingDir, "dist/app.zip"), 4096);
+
+        handle(plugin, "cd.go.artifact.get-capabilities", null);
+        GoPluginApiResponse published = handle(plugin, "cd.go.artifact.publish-artifact", new PublishArtifactRequest(new ArtifactStore("s3", storeConfig),
+                new ArtifactPlan("many", "s3", "lib/**/*.jar", Optional.of("many")), workingDir.getAbsolutePath()).toJSON());
+        handle(plugin, "cd.go.artifact.publish-artifact", new PublishArtifactRequest(new ArtifactStore("s3", storeConfig),
+                new ArtifactPlan("one", "s3", "dist/app.zip", Optional.of("one")), workingDir.getAbsolutePath()).toJSON());
+        Map<String, Map<String, Object>> body = new Gson().fromJson(published.responseBody(), new TypeToken<Map<String, Map<String, Object>>>() {
+        }.getType());
+        handle(plugin, "cd.go.artifact.fetch-artifact", new Gson().toJson(new FetchArtifactRequest(storeConfig, body.get("metadata"),
+                new FetchArtifactConfig("", "fetched", false), tmpFolder.newFolder("downstream").getAbsolutePath())));
+    }
+
+    private static GoPluginApiResponse handle(S3ArtifactPlugin plugin, String name, String body) {
+        DefaultGoPluginApiRequest request = new DefaultGoPluginApiRequest(Constants.EXTENSION_TYPE, Constants.API_VERSION, name);
+        request.setRequestBody(body);
+        GoPluginApiResponse response = plugin.handle(request);
+        assertThat(response.responseCode()).as(response.responseBody()).isEqualTo(200);
+        return response;
+    }
+
+    private static void createFile(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[size]);
+    }
+}
@@ -0,0 +1,149 @@
+package diogomrol.gocd.s3.artifact.plugin.tracing;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import diogomrol.gocd.s3.artifact.plugin.transfer.TransferSettings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracerTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldNotTraceUnlessEnabled() {
+        Tracer tracer = Tracer.fromSettings(new TransferSettings(new Properties()));
+
+        TraceSpan root = tracer.startTrace("publish", Collections.singletonMap("gocd.job", "job"));
+
+        assertThat(tracer.isEnabled()).isFalse();
+        assertThat(root).isSameAs(TraceSpan.NONE);
+        assertThat(root.child("scan")).isSameAs(TraceSpan.NONE);
+    }
+
+    @Test
+    public void shouldWriteTraceToJsonFileWhenNoCollectorIsConfigured() throws Exception {
+        File dir = new File(tmpFolder.getRoot(), "traces");
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.tracing.enabled", "true");
+        properties.setProperty("cd.go.artifact.s3.tracing.dir", dir.getAbsolutePath());
+        Tracer tracer = Tracer.fromSettings(new TransferSettings(properties));
+
+        TraceSpan root = tracer.startTrace("publish", Collections.singletonMap("gocd.job", "job"));
+        root.child("scan").setAttribute("scan.files", 3).end();
+        root.child("upload of `a.txt`").setError("Slow Down").end();
+        assertThat(dir).doesNotExist();
+        root.end();
+        assertThat(tracer.awaitExports(5, TimeUnit.SECONDS)).isTrue();
+
+        File[] files = dir.listFiles();
+        assertThat(files).hasSize(1);
+        JsonArray spans = spans(new String(Files.readAllBytes(files[0].toPath()), StandardCharsets.UTF_8));
+        assertThat(spans).hasSize(3);
+        JsonObject scan = spans.get(0).getAsJsonObject();
+        JsonObject upload = spans.get(1).getAsJsonObject();
+        JsonObject publish = spans.get(2).getAsJsonObject();
+        assertThat(files[0].getName()).isEqualTo(publish.get("traceId").getAsString() + ".json");
+        assertThat(publish.has("parentSpanId")).isFalse();
+        assertThat(scan.get("parentSpanId").getAsString()).isEqualTo(publish.get("spanId").getAsString());
+        assertThat(scan.get("traceId")).isEqualTo(publish.get("traceId"));
+        assertThat(scan.get("attributes").toString())
+                .contains("{\"key\":\"gocd.job\",\"value\":{\"stringValue\":\"job\"}}")
+                .contains("{\"key\":\"scan.files\",\"value\":{\"intValue\":\"3\"}}");
+        assertThat(upload.getAsJsonObject("status").get("code").getAsInt()).isEqualTo(2);
+        assertThat(Long.parseLong(publish.get("endTimeUnixNano").getAsString()))
+                .isGreaterThanOrEqualTo(Long.parseLong(upload.get("endTimeUnixNano").getAsString()));
+    }
+
+    @Test
+    public void shouldPostTraceToCollector() throws Exception {
+        BlockingQueue<String> received = new ArrayBlockingQueue<>(1);
+        HttpServer collector = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        collector.createContext("/v1/traces", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] body = new byte[Integer.parseInt(exchange.getRequestHeaders().getFirst("Content-Length"))];
+                int read = 0;
+                while (read < body.length) {
+                    read += in.read(body, read, body.length - read);
+                }
+                received.add(new String(body, StandardCharsets.UTF_8));
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        collector.start();
+        try {
+            Properties properties = new Properties();
+            properties.setProperty("cd.go.artifact.s3.tracing.enabled", "true");
+            properties.setProperty("cd.go.artifact.s3.tracing.otlp.endpoint",
+                    String.format("http://127.0.0.1:%d/v1/traces", collector.getAddress().getPort()));
+            Tracer tracer = Tracer.fromSettings(new TransferSettings(properties));
+
+            tracer.startTrace("fetch", Collections.singletonMap("s3.bucket", "bucket")).end();
+
+            JsonArray spans = spans(received.poll(5, TimeUnit.SECONDS));
+            assertThat(spans).hasSize(1);
+            assertThat(spans.get(0).getAsJsonObject().get("name").getAsString()).isEqualTo("fetch");
+        } finally {
+            collector.stop(0);
+        }
+    }
+
+    @Test
+    public void shouldKeepOnlyTheLatestTraceFiles() throws Exception {
+        File dir = new File(tmpFolder.getRoot(), "traces");
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.tracing.enabled", "true");
+        properties.setProperty("cd.go.artifact.s3.tracing.dir", dir.getAbsolutePath());
+        properties.setProperty("cd.go.artifact.s3.tracing.max.files", "2");
+        Tracer tracer = Tracer.fromSettings(new TransferSettings(properties));
+
+        for (int trace = 0; trace < 3; trace++) {
+            tracer.startTrace("fetch", Collections.emptyMap()).end();
+        }
+
+        assertThat(tracer.awaitExports(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(dir.listFiles()).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotWaitForCollectorToAnswer() throws Exception {
+        try (ServerSocket unresponsive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Properties properties = new Properties();
+            properties.setProperty("cd.go.artifact.s3.tracing.enabled", "true");
+            properties.setProperty("cd.go.artifact.s3.tracing.otlp.endpoint",
+                    String.format("http://127.0.0.1:%d/v1/traces", unresponsive.getLocalPort()));
+            Tracer tracer = Tracer.fromSettings(new TransferSettings(properties));
+
+            long start = System.nanoTime();
+            tracer.startTrace("fetch", Collections.singletonMap("s3.bucket", "bucket")).end();
+
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000);
+            assertThat(tracer.awaitExports(100, TimeUnit.MILLISECONDS)).isFalse();
+        }
+    }
+
+    private static JsonArray spans(String request) {
+        JsonObject resourceSpans = new JsonParser().parse(request).getAsJsonObject().getAsJsonArray("resourceSpans").get(0).getAsJsonObject();
+        assertThat(resourceSpans.getAsJsonObject("resource").toString()).contains(OtlpJson.SERVICE_NAME);
+        return resourceSpans.getAsJsonArray("scopeSpans").get(0).getAsJsonObject().getAsJsonArray("spans");
+    }
+}
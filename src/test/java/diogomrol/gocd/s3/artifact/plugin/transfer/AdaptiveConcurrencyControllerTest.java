@@ -0,0 +1,105 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveConcurrencyControllerTest {
+    private static final long MB = 1024 * 1024;
+    private long now;
+    private AdaptiveConcurrencyController controller;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        controller = new AdaptiveConcurrencyController(2, 1, 10, () -> now);
+    }
+
+    @Test
+    public void shouldNotAdmitMoreRequestsThanTheLimit() {
+        assertThat(controller.tryAcquire()).isTrue();
+        assertThat(controller.tryAcquire()).isTrue();
+        assertThat(controller.tryAcquire()).isFalse();
+
+        controller.onFailure();
+
+        assertThat(controller.getInFlight()).isEqualTo(1);
+        assertThat(controller.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void shouldGrowAdditivelyWhileThroughputImproves() {
+        completeWindow(2, 10 * MB, 100);
+        assertThat(controller.getLimit()).isEqualTo(3);
+
+        completeWindow(3, 30 * MB, 100);
+        assertThat(controller.getLimit()).isEqualTo(4);
+
+        completeWindow(4, 80 * MB, 100);
+        assertThat(controller.getLimit()).isEqualTo(5);
+        assertThat(controller.isCalibrated()).isTrue();
+    }
+
+    @Test
+    public void shouldHoldTheLimitWhenThroughputStopsImproving() {
+        completeWindow(2, 10 * MB, 100);
+        completeWindow(3, 10 * MB, 100);
+
+        assertThat(controller.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldHalveTheLimitWhenThrottledButOnlyOncePerWindow() {
+        controller = new AdaptiveConcurrencyController(8, 1, 10, () -> now);
+        for (int i = 0; i < 3; i++) {
+            controller.tryAcquire();
+        }
+
+        controller.onThrottle();
+        controller.onThrottle();
+        controller.onThrottle();
+
+        assertThat(controller.getLimit()).isEqualTo(4);
+        assertThat(controller.getInFlight()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldNeverGoBelowMinimumOrAboveMaximum() {
+        controller = new AdaptiveConcurrencyController(1, 1, 2, () -> now);
+        controller.tryAcquire();
+        controller.onThrottle();
+        assertThat(controller.getLimit()).isEqualTo(1);
+
+        for (int i = 1; i < 5; i++) {
+            completeWindow(controller.getLimit(), i * 10 * MB, 100);
+        }
+        assertThat(controller.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldBackOffOnLatencySpike() {
+        controller = new AdaptiveConcurrencyController(8, 1, 10, () -> now);
+        for (int i = 0; i < AdaptiveConcurrencyController.LATENCY_WARMUP_SAMPLES; i++) {
+            controller.tryAcquire();
+            controller.onSuccess(MB, TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        controller.tryAcquire();
+        controller.onSuccess(MB, TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertThat(controller.getLimit()).isEqualTo(6);
+    }
+
+    private void completeWindow(int requests, long bytes, long millis) {
+        for (int i = 0; i < requests; i++) {
+            controller.tryAcquire();
+        }
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+        for (int i = 0; i < requests; i++) {
+            controller.onSuccess(bytes / requests, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTest {
+    @Test
+    public void shouldWaitForReleasedBufferWhenBounded() throws Exception {
+        BufferPool pool = new BufferPool(1024, 0, 2);
+        ByteBuffer first = pool.acquire();
+        pool.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteBuffer> waiting = executor.submit(pool::acquire);
+            try {
+                waiting.get(100, TimeUnit.MILLISECONDS);
+                fail("Expected the third buffer to wait for a release");
+            } catch (TimeoutException expected) {
+            }
+
+            pool.release(first);
+
+            assertThat(waiting.get(5, TimeUnit.SECONDS)).isSameAs(first);
+            assertThat(pool.getAllocated()).isEqualTo(2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldStopWaitingWhenInterrupted() throws Exception {
+        BufferPool pool = new BufferPool(1024, 0, 1);
+        pool.acquire();
+        Thread.currentThread().interrupt();
+
+        try {
+            pool.acquire();
+            fail("Expected the interrupted wait to fail");
+        } catch (InterruptedIOException expected) {
+            assertThat(Thread.interrupted()).isTrue();
+        }
+    }
+
+    @Test
+    public void shouldSizePoolFromSettings() {
+        Properties properties = new Properties();
+        assertThat(BufferPool.fromSettings(new TransferSettings(properties)).getMaxBuffers()).isZero();
+
+        properties.setProperty("cd.go.artifact.s3.buffer.pool.mb", "4");
+        assertThat(BufferPool.fromSettings(new TransferSettings(properties)).getMaxBuffers()).isEqualTo(32);
+    }
+}
@@ -0,0 +1,72 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import diogomrol.gocd.s3.artifact.plugin.fakes3.FakeS3Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class ChecksumManifestTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private FakeS3Server server;
+    private AmazonS3 s3;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FakeS3Server(tmpFolder.newFolder());
+        s3 = AmazonS3ClientBuilder.standard()
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(server.getEndpoint(), "us-east-1"))
+                .withPathStyleAccessEnabled(true)
+                .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        s3.shutdown();
+        server.close();
+    }
+
+    @Test
+    public void shouldKeepManifestUnderTheDestinationOfTheArtifact() {
+        assertThat(ChecksumManifest.keyFor("pipeline/1/build")).isEqualTo("pipeline/1/build/.checksums.json");
+        assertThat(ChecksumManifest.keyFor("")).isEqualTo(".checksums.json");
+    }
+
+    @Test
+    public void shouldLoadTheUploadedChecksums() throws IOException {
+        Map<String, String> checksums = new HashMap<>();
+        checksums.put("build/a.bin", "0badc0de");
+        checksums.put("build/dir/b.bin", "d3e787b1");
+
+        ChecksumManifest.upload(s3, "bucket", "build/.checksums.json", checksums);
+
+        assertThat(ChecksumManifest.load(s3, "bucket", "build/.checksums.json")).isEqualTo(checksums);
+    }
+
+    @Test
+    public void shouldFailToLoadMissingManifest() {
+        Throwable thrown = catchThrowable(() -> ChecksumManifest.load(s3, "bucket", "build/.checksums.json"));
+
+        assertThat(thrown).isInstanceOf(AmazonS3Exception.class);
+        assertThat(((AmazonS3Exception) thrown).getStatusCode()).isEqualTo(404);
+    }
+}
@@ -0,0 +1,34 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrencyHistoryTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldFallBackToDefaultWhenNothingWasRecorded() throws IOException {
+        ConcurrencyHistory history = new ConcurrencyHistory(new File(tmpFolder.getRoot(), "state"));
+
+        assertThat(history.initialLimit("upload.bucket.eu-west-1", 4)).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldRememberLimitPerStoreBetweenInstances() {
+        File stateDir = new File(tmpFolder.getRoot(), "state");
+        new ConcurrencyHistory(stateDir).record("upload.bucket.eu-west-1", 12);
+        new ConcurrencyHistory(stateDir).record("download.bucket.eu-west-1", 20);
+
+        ConcurrencyHistory history = new ConcurrencyHistory(stateDir);
+        assertThat(history.initialLimit("upload.bucket.eu-west-1", 4)).isEqualTo(12);
+        assertThat(history.initialLimit("download.bucket.eu-west-1", 4)).isEqualTo(20);
+        assertThat(history.initialLimit("upload.other.eu-west-1", 4)).isEqualTo(4);
+    }
+}
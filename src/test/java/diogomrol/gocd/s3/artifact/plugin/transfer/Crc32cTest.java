@@ -0,0 +1,68 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class Crc32cTest {
+    private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void shouldComputeCastagnoliChecksum() {
+        assertThat(checksum(Crc32c.create(), CHECK, 0, CHECK.length)).isEqualTo(0xE3069283L);
+        assertThat(checksum(new Crc32c.TableCrc32c(), CHECK, 0, CHECK.length)).isEqualTo(0xE3069283L);
+        assertThat(Crc32c.toHex(0xE3069283L)).isEqualTo("e3069283");
+        assertThat(Crc32c.fromHex("e3069283")).isEqualTo(0xE3069283L);
+    }
+
+    @Test
+    public void shouldCombineChecksumsOfConsecutiveBlocks() {
+        byte[] data = new byte[100_000];
+        new Random(42).nextBytes(data);
+
+        long combined = checksum(Crc32c.create(), data, 0, 30_000);
+        combined = Crc32c.combine(combined, checksum(Crc32c.create(), data, 30_000, 69_999), 69_999);
+        combined = Crc32c.combine(combined, checksum(Crc32c.create(), data, 99_999, 1), 1);
+
+        assertThat(combined).isEqualTo(checksum(Crc32c.create(), data, 0, data.length));
+        assertThat(Crc32c.combine(combined, 0, 0)).isEqualTo(combined);
+    }
+
+    @Test
+    public void shouldNotChecksumBytesTwiceWhenStreamIsReset() throws Exception {
+        byte[] data = new byte[10_000];
+        new Random(7).nextBytes(data);
+        ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(data));
+        byte[] buffer = new byte[4096];
+
+        in.mark(data.length);
+        assertThat(in.read(buffer)).isEqualTo(4096);
+        in.reset();
+        while (in.read(buffer) != -1) {
+        }
+
+        assertThat(in.getChecksum(data.length)).isEqualTo(checksum(Crc32c.create(), data, 0, data.length));
+        assertThat(in.getChecksum(data.length + 1)).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldNotReportChecksumWhenBytesWereSkipped() throws Exception {
+        ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(CHECK));
+
+        assertThat(in.skip(2)).isEqualTo(2);
+        while (in.read() != -1) {
+        }
+
+        assertThat(in.getChecksum(CHECK.length - 2)).isEqualTo(-1);
+    }
+
+    private static long checksum(Checksum checksum, byte[] data, int offset, int length) {
+        checksum.update(data, offset, length);
+        return checksum.getValue();
+    }
+}
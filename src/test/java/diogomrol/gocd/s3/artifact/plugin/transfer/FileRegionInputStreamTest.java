@@ -0,0 +1,97 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class FileRegionInputStreamTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReadRangeOfFileThroughSmallBuffers() throws Exception {
+        byte[] content = randomBytes(10_000);
+        File file = write(content);
+
+        try (InputStream in = new FileRegionInputStream(file, 1000, 5000, new BufferPool(512, 4))) {
+            assertThat(readAll(in)).isEqualTo(Arrays.copyOfRange(content, 1000, 6000));
+            assertThat(in.read()).isEqualTo(-1);
+        }
+    }
+
+    @Test
+    public void shouldReadAgainFromMarkAfterReset() throws Exception {
+        byte[] content = randomBytes(4000);
+        File file = write(content);
+
+        try (InputStream in = new FileRegionInputStream(file, 0, content.length, new BufferPool(512, 4))) {
+            assertThat(in.markSupported()).isTrue();
+            assertThat(in.skip(100)).isEqualTo(100);
+            in.mark(0);
+            readAll(in);
+            in.reset();
+
+            assertThat(readAll(in)).isEqualTo(Arrays.copyOfRange(content, 100, content.length));
+        }
+    }
+
+    @Test
+    public void shouldReuseBufferOfClosedStream() throws Exception {
+        File file = write(randomBytes(2000));
+        BufferPool pool = new BufferPool(512, 4);
+
+        for (int i = 0; i < 3; i++) {
+            try (InputStream in = new FileRegionInputStream(file, 0, 2000, pool)) {
+                readAll(in);
+            }
+        }
+
+        assertThat(pool.getAllocated()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFailWhenFileIsShorterThanRange() throws Exception {
+        File file = write(randomBytes(100));
+
+        try (InputStream in = new FileRegionInputStream(file, 0, 200, new BufferPool(512, 4))) {
+            readAll(in);
+            fail("Expected the truncated file to fail the read");
+        } catch (EOFException e) {
+            assertThat(e.getMessage()).contains("ended at 100 bytes");
+        }
+    }
+
+    private File write(byte[] content) throws IOException {
+        File file = tmpFolder.newFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[300];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
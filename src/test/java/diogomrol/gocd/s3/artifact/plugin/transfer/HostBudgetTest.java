@@ -0,0 +1,107 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class HostBudgetTest {
+    private static final double MIB = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+    private final List<HostBudget> budgets = new ArrayList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        budgets.forEach(HostBudget::close);
+    }
+
+    @Test
+    public void shouldShareConnectionSlotsBetweenAgents() throws Exception {
+        File dir = tmpFolder.newFolder();
+        HostBudget first = budget(dir, 2, 0);
+        HostBudget second = budget(dir, 2, 0);
+
+        HostBudget.Lease lease = first.acquire();
+        HostBudget.Lease other = first.acquire();
+        Future<HostBudget.Lease> waiting = executor.submit(second::acquire);
+        try {
+            waiting.get(300, TimeUnit.MILLISECONDS);
+            fail("Expected all connections of the host to be taken");
+        } catch (TimeoutException expected) {
+        }
+
+        lease.close();
+
+        waiting.get(5, TimeUnit.SECONDS).close();
+        other.close();
+    }
+
+    @Test
+    public void shouldDivideBandwidthBetweenTransferringAgents() throws Exception {
+        File dir = tmpFolder.newFolder();
+        HostBudget first = budget(dir, 0, 8 * MIB);
+        HostBudget second = budget(dir, 0, 8 * MIB);
+
+        HostBudget.Lease lease = first.acquire();
+        assertThat(first.getBytesPerSecondShare()).isEqualTo(8 * MIB);
+        HostBudget.Lease other = second.acquire();
+        assertThat(second.getMembers()).isEqualTo(2);
+        assertThat(second.getBytesPerSecondShare()).isEqualTo(4 * MIB);
+        other.close();
+        lease.close();
+        assertThat(dir.list()).isEmpty();
+    }
+
+    @Test
+    public void shouldRemoveMemberFilesOfDeadAgents() throws Exception {
+        File dir = tmpFolder.newFolder();
+        File stale = new File(dir, "member-dead.lock");
+        assertThat(stale.createNewFile()).isTrue();
+        HostBudget budget = budget(dir, 0, 8 * MIB);
+
+        HostBudget.Lease lease = budget.acquire();
+        assertThat(budget.getMembers()).isEqualTo(1);
+        assertThat(budget.getBytesPerSecondShare()).isEqualTo(8 * MIB);
+        lease.close();
+        assertThat(stale).doesNotExist();
+    }
+
+    @Test
+    public void shouldThrottleTransfersToTheShare() throws Exception {
+        HostBudget budget = budget(tmpFolder.newFolder(), 0, 1 * MIB);
+        TransferProgress progress = new TransferProgress();
+
+        long start = System.nanoTime();
+        try (HostBudget.Lease lease = budget.acquire()) {
+            lease.throttle(progress);
+            for (int i = 0; i < 8; i++) {
+                progress.advance(64 * 1024);
+            }
+        }
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(200);
+        assertThat(progress.getBytes()).isEqualTo(512 * 1024);
+    }
+
+    private HostBudget budget(File dir, int maxConnections, double bytesPerSecond) {
+        HostBudget budget = new HostBudget(dir, maxConnections, bytesPerSecond);
+        budgets.add(budget);
+        return budget;
+    }
+}
@@ -0,0 +1,107 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ListingCacheTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final ListingCache cache = new ListingCache(60_000, 5, clock::get);
+
+    @Test
+    public void shouldServeSubDirectoriesFromListingOfParent() {
+        cache.put("bucket", "x/", "id", objects("x/bin/a", "x/bin/b", "x/bin2/c", "x/lib/d"));
+
+        assertThat(keys(cache.get("bucket", "x/bin/", "id"))).containsExactly("x/bin/a", "x/bin/b");
+        assertThat(keys(cache.get("bucket", "x/", "id"))).hasSize(4);
+        assertThat(cache.get("bucket", "", "id")).isNull();
+        assertThat(cache.get("bucket", "x/bin/", "other")).isNull();
+        assertThat(cache.get("other", "x/bin/", "id")).isNull();
+    }
+
+    @Test
+    public void shouldExpireListings() {
+        cache.put("bucket", "x/", "id", objects("x/a"));
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        assertThat(cache.get("bucket", "x/", "id")).isNotNull();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertThat(cache.get("bucket", "x/", "id")).isNull();
+        assertThat(cache.getObjectCount()).isZero();
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedListingsAboveMaxObjects() {
+        cache.put("bucket", "a/", "id", objects("a/1", "a/2"));
+        cache.put("bucket", "b/", "id", objects("b/1", "b/2"));
+        cache.get("bucket", "a/", "id");
+
+        cache.put("bucket", "c/", "id", objects("c/1", "c/2"));
+
+        assertThat(cache.get("bucket", "b/", "id")).isNull();
+        assertThat(cache.get("bucket", "a/", "id")).isNotNull();
+        assertThat(cache.get("bucket", "c/", "id")).isNotNull();
+        assertThat(cache.getObjectCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldNotKeepListingLargerThanCache() {
+        cache.put("bucket", "x/", "id", objects("x/1", "x/2", "x/3", "x/4", "x/5", "x/6"));
+
+        assertThat(cache.get("bucket", "x/", "id")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    public void shouldBeDisabledWithoutTtl() {
+        ListingCache disabled = new ListingCache(0, 5, clock::get);
+        disabled.put("bucket", "x/", "id", objects("x/1"));
+
+        assertThat(disabled.isEnabled()).isFalse();
+        assertThat(disabled.get("bucket", "x/", "id")).isNull();
+    }
+
+    @Test
+    public void shouldOnlyIdentifyArtifactsPublishedWithSizeSummary() {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("Source", "**/*");
+        metadata.put("Destination", "pipeline/1/stage/1/job");
+        metadata.put("IsFile", false);
+        assertThat(ListingCache.publishIdentity(metadata)).isNull();
+
+        metadata.put("Size", Collections.singletonMap("FileCount", 2000));
+        String identity = ListingCache.publishIdentity(metadata);
+        assertThat(identity).isNotNull().isEqualTo(ListingCache.publishIdentity(new HashMap<>(metadata)));
+
+        metadata.put("Destination", "pipeline/2/stage/1/job");
+        assertThat(ListingCache.publishIdentity(metadata)).isNotEqualTo(identity);
+    }
+
+    private static List<S3ObjectSummary> objects(String... keys) {
+        List<S3ObjectSummary> objects = new ArrayList<>();
+        for (String key : keys) {
+            S3ObjectSummary object = new S3ObjectSummary();
+            object.setKey(key);
+            object.setSize(key.length());
+            objects.add(object);
+        }
+        return objects;
+    }
+
+    private static List<String> keys(List<S3ObjectSummary> objects) {
+        List<String> keys = new ArrayList<>();
+        for (S3ObjectSummary object : objects) {
+            keys.add(object.getKey());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,61 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Answers ListObjectsV2 requests from a set of keys the way S3 does, with prefixes, delimiters and paging.
+ */
+public class ObjectListings {
+    private ObjectListings() {
+    }
+
+    public static ListObjectsV2Result list(Collection<String> keys, ListObjectsV2Request request, int pageSize) {
+        String prefix = request.getPrefix() == null ? "" : request.getPrefix();
+        String after = request.getContinuationToken();
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        result.setBucketName(request.getBucketName());
+        result.setPrefix(request.getPrefix());
+        result.setDelimiter(request.getDelimiter());
+        TreeSet<String> commonPrefixes = new TreeSet<>();
+        int returned = 0;
+        String last = null;
+        for (String key : new TreeSet<>(keys)) {
+            if (!key.startsWith(prefix) || (after != null && (key.compareTo(after) <= 0 || isUnder(key, after, request.getDelimiter())))) {
+                continue;
+            }
+            if (returned == pageSize) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(last);
+                break;
+            }
+            int delimiter = request.getDelimiter() == null ? -1 : key.indexOf(request.getDelimiter(), prefix.length());
+            if (delimiter >= 0) {
+                String commonPrefix = key.substring(0, delimiter + request.getDelimiter().length());
+                if (commonPrefixes.add(commonPrefix)) {
+                    result.getCommonPrefixes().add(commonPrefix);
+                    returned++;
+                    last = commonPrefix;
+                }
+                continue;
+            }
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(request.getBucketName());
+            summary.setKey(key);
+            summary.setSize(key.length());
+            result.getObjectSummaries().add(summary);
+            returned++;
+            last = key;
+        }
+        result.setKeyCount(returned);
+        return result;
+    }
+
+    private static boolean isUnder(String key, String commonPrefix, String delimiter) {
+        return delimiter != null && commonPrefix.endsWith(delimiter) && key.startsWith(commonPrefix);
+    }
+}
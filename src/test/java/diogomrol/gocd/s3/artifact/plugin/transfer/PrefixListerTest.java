@@ -0,0 +1,141 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PrefixListerTest {
+    private final List<String> keys = new ArrayList<>();
+    private final List<String> listedPrefixes = Collections.synchronizedList(new ArrayList<>());
+    private AmazonS3 s3;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        s3 = mock(AmazonS3.class);
+        executor = Executors.newCachedThreadPool();
+        when(s3.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+            ListObjectsV2Request request = invocation.getArgument(0);
+            listedPrefixes.add(request.getPrefix() + (request.getDelimiter() == null ? "" : " (delimited)"));
+            return ObjectListings.list(keys, request, 3);
+        });
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldListEveryKeyOnceAcrossPartitions() throws Exception {
+        for (int dir = 0; dir < 5; dir++) {
+            for (int file = 0; file < 7; file++) {
+                keys.add(String.format("job/dir%d/sub/file%d", dir, file));
+            }
+            keys.add(String.format("job/dir%d/top", dir));
+        }
+        keys.add("job/root.txt");
+
+        assertThat(list("job/", 4)).hasSize(keys.size()).containsExactlyInAnyOrderElementsOf(keys);
+        assertThat(listedPrefixes).contains("job/ (delimited)", "job/dir0/", "job/dir4/");
+
+        listedPrefixes.clear();
+        assertThat(list("job/", 8)).hasSize(keys.size()).containsExactlyInAnyOrderElementsOf(keys);
+        assertThat(listedPrefixes).contains("job/ (delimited)", "job/dir0/ (delimited)", "job/dir4/sub/ (delimited)");
+    }
+
+    @Test
+    public void shouldNotListKeysOfSiblingPrefixes() throws Exception {
+        keys.add("job/bin/a.dll");
+        keys.add("job/bin/lib/b.dll");
+        keys.add("job/bin2/c.dll");
+        keys.add("job/binary.txt");
+
+        assertThat(list(PrefixLister.directoryPrefix("job/bin"), 4)).containsExactlyInAnyOrder("job/bin/a.dll", "job/bin/lib/b.dll");
+    }
+
+    @Test
+    public void shouldListFlatWithoutDiscoveryWhenNotConcurrent() throws Exception {
+        keys.add("job/a/1");
+        keys.add("job/b/2");
+
+        assertThat(list("job/", 1)).containsExactlyInAnyOrder("job/a/1", "job/b/2");
+        assertThat(listedPrefixes).containsOnly("job/");
+    }
+
+    @Test
+    public void shouldListPartitionsConcurrently() throws Exception {
+        for (int dir = 0; dir < 4; dir++) {
+            keys.add(String.format("job/dir%d/file", dir));
+        }
+        CountDownLatch allListing = new CountDownLatch(4);
+        AtomicInteger concurrent = new AtomicInteger();
+        AtomicInteger maxConcurrent = new AtomicInteger();
+
+        new PrefixLister(s3, "bucket", 4, executor).list("job/", objects -> {
+            if (objects.get(0).getKey().startsWith("job/dir")) {
+                maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                allListing.countDown();
+                allListing.await(5, TimeUnit.SECONDS);
+                concurrent.decrementAndGet();
+            }
+        });
+
+        assertThat(maxConcurrent.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldFailWhenListingFails() throws Exception {
+        for (int dir = 0; dir < 4; dir++) {
+            keys.add(String.format("job/dir%d/file", dir));
+        }
+
+        try {
+            new PrefixLister(s3, "bucket", 4, executor).list("job/", objects -> {
+                throw new IllegalStateException("listing failed");
+            });
+            fail("Expected the listing to fail");
+        } catch (IllegalStateException e) {
+            assertThat(e).hasMessage("listing failed");
+        }
+    }
+
+    @Test
+    public void shouldMakeDirectoryPrefix() {
+        assertThat(PrefixLister.directoryPrefix("")).isEqualTo("");
+        assertThat(PrefixLister.directoryPrefix("x/y")).isEqualTo("x/y/");
+        assertThat(PrefixLister.directoryPrefix("x/y/")).isEqualTo("x/y/");
+    }
+
+    private List<String> list(String prefix, int concurrency) throws Exception {
+        Set<String> unique = ConcurrentHashMap.newKeySet();
+        List<String> listed = Collections.synchronizedList(new ArrayList<>());
+        new PrefixLister(s3, "bucket", concurrency, executor).list(prefix, objects -> {
+            for (S3ObjectSummary object : objects) {
+                listed.add(object.getKey());
+                assertThat(unique.add(object.getKey())).as("listed twice: " + object.getKey()).isTrue();
+            }
+        });
+        return listed;
+    }
+}
@@ -0,0 +1,261 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RequestHedgerTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldCallDirectlyWhenDisabled() throws Exception {
+        RequestHedger hedger = new RequestHedger(false, 95, 100, 0);
+        Thread caller = Thread.currentThread();
+
+        String response = hedger.call(() -> Thread.currentThread() == caller ? "direct" : "pooled", discarded -> {});
+
+        assertThat(response).isEqualTo("direct");
+        assertThat(hedger.getRequests()).isEqualTo(1);
+        assertThat(hedger.getHedgesFired()).isZero();
+    }
+
+    @Test
+    public void shouldNotHedgeBeforeEnoughLatenciesWereObserved() throws Exception {
+        RequestHedger hedger = new RequestHedger(true, 95, 100, 0);
+        AtomicInteger calls = new AtomicInteger();
+
+        String response = hedger.call(() -> {
+            calls.incrementAndGet();
+            Thread.sleep(50);
+            return "slow";
+        }, discarded -> {});
+
+        assertThat(response).isEqualTo("slow");
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(hedger.getHedgesFired()).isZero();
+    }
+
+    @Test
+    public void shouldHedgeSlowRequestAndReturnFirstResponse() throws Exception {
+        RequestHedger hedger = warmedUp(100);
+        AtomicInteger calls = new AtomicInteger();
+
+        long start = System.nanoTime();
+        String response = hedger.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                Thread.sleep(10_000);
+                return "primary";
+            }
+            return "hedge";
+        }, discarded -> {});
+
+        assertThat(response).isEqualTo("hedge");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(5_000);
+        assertThat(hedger.getHedgesFired()).isEqualTo(1);
+        assertThat(hedger.getHedgesWon()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotHedgeBeyondBudget() throws Exception {
+        RequestHedger hedger = warmedUp(0);
+        AtomicInteger calls = new AtomicInteger();
+
+        String response = hedger.call(() -> {
+            calls.incrementAndGet();
+            Thread.sleep(100);
+            return "primary";
+        }, discarded -> {});
+
+        assertThat(response).isEqualTo("primary");
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(hedger.getHedgesFired()).isZero();
+    }
+
+    @Test
+    public void shouldDiscardResponseWhichLostTheRace() throws Exception {
+        RequestHedger hedger = warmedUp(100);
+        AtomicInteger calls = new AtomicInteger();
+        List<String> discarded = new CopyOnWriteArrayList<>();
+
+        String response = hedger.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+                while (System.nanoTime() < until) {
+                    Thread.yield();
+                }
+                return "primary";
+            }
+            return "hedge";
+        }, discarded::add);
+
+        assertThat(response).isEqualTo("hedge");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (discarded.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(discarded).containsExactly("primary");
+    }
+
+    @Test
+    public void shouldSendOriginalOnCallingThread() throws Exception {
+        RequestHedger hedger = warmedUp(100);
+        Thread caller = Thread.currentThread();
+
+        String response = hedger.call(() -> Thread.currentThread() == caller ? "caller" : "pooled", discarded -> {});
+
+        assertThat(response).isEqualTo("caller");
+        assertThat(hedger.getHedgesFired()).isZero();
+    }
+
+    @Test
+    public void shouldGiveOriginalADeadlineOnlyWhenItMayBeRaced() throws Exception {
+        RequestHedger hedger = warmedUp(100);
+        List<Integer> deadlines = new CopyOnWriteArrayList<>();
+        RequestHedger.Request<String> request = abortAfterMillis -> {
+            deadlines.add(abortAfterMillis);
+            return "fast";
+        };
+
+        hedger.call(request, discarded -> {});
+        new RequestHedger(true, 95, 100, 10).call(request, discarded -> {});
+
+        assertThat(deadlines).containsExactly(20, 0);
+    }
+
+    @Test
+    public void shouldHedgeFromTheFirstRequestWhenTheStoreWasObservedBefore() throws Exception {
+        ResponseTimes responseTimes = new ResponseTimes();
+        RequestHedger first = new RequestHedger(true, 95, 100, 10, responseTimes, TransferScheduler.shared());
+        for (int i = 0; i < RequestHedger.MIN_SAMPLES; i++) {
+            first.call(() -> "fast", discarded -> {});
+        }
+        RequestHedger next = new RequestHedger(true, 95, 100, 10, responseTimes, TransferScheduler.shared());
+        AtomicInteger calls = new AtomicInteger();
+
+        String response = next.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                Thread.sleep(10_000);
+                return "primary";
+            }
+            return "hedge";
+        }, discarded -> {});
+
+        assertThat(response).isEqualTo("hedge");
+        assertThat(next.getHedgesFired()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldLeaveInterruptOfOthersAfterTheOriginalTookTheOneOfTheRace() throws Exception {
+        RequestHedger hedger = warmedUp(100);
+        AtomicInteger calls = new AtomicInteger();
+
+        String response = hedger.call(() -> {
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    // e.g. the watchdog aborting the transfer right after the duplicate won
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                return "primary";
+            }
+            return "hedge";
+        }, discarded -> {});
+
+        assertThat(response).isEqualTo("hedge");
+        assertThat(Thread.interrupted()).isTrue();
+    }
+
+    @Test
+    public void shouldNotHedgeWhenAllRequestsOfTheSchedulerAreInFlight() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(1, Long.MAX_VALUE);
+        try {
+            RequestHedger hedger = warmedUp(new RequestHedger(true, 95, 100, 10, new ResponseTimes(), scheduler));
+            assertThat(scheduler.tryStartRequest()).isTrue();
+
+            String response = hedger.call(() -> {
+                Thread.sleep(100);
+                return "primary";
+            }, discarded -> {});
+
+            assertThat(response).isEqualTo("primary");
+            assertThat(hedger.getHedgesFired()).isZero();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldNotHedgeWithoutAFreeConnectionOfTheHost() throws Exception {
+        File hostDir = tmpFolder.newFolder("host");
+        HostBudget otherAgent = new HostBudget(hostDir, 1, 0);
+        TransferScheduler scheduler = new TransferScheduler(8, Long.MAX_VALUE, new HostBudget(hostDir, 1, 0));
+        HostBudget.Lease lease = otherAgent.acquire();
+        try {
+            RequestHedger hedger = warmedUp(new RequestHedger(true, 95, 100, 10, new ResponseTimes(), scheduler));
+
+            String response = hedger.call(() -> {
+                Thread.sleep(100);
+                return "primary";
+            }, discarded -> {});
+
+            assertThat(response).isEqualTo("primary");
+            assertThat(hedger.getHedgesFired()).isZero();
+        } finally {
+            lease.close();
+            scheduler.shutdown();
+            otherAgent.close();
+        }
+    }
+
+    @Test
+    public void shouldCountHedgeAsARequestOfTheScheduler() throws Exception {
+        TransferScheduler scheduler = new TransferScheduler(8, Long.MAX_VALUE);
+        try {
+            RequestHedger hedger = warmedUp(new RequestHedger(true, 95, 100, 10, new ResponseTimes(), scheduler));
+            AtomicInteger calls = new AtomicInteger();
+            AtomicInteger inFlight = new AtomicInteger();
+
+            String response = hedger.call(() -> {
+                if (calls.incrementAndGet() == 1) {
+                    Thread.sleep(10_000);
+                    return "primary";
+                }
+                inFlight.set(scheduler.getInFlightRequests());
+                return "hedge";
+            }, discarded -> {});
+
+            assertThat(response).isEqualTo("hedge");
+            assertThat(inFlight.get()).isEqualTo(1);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (scheduler.getInFlightRequests() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(scheduler.getInFlightRequests()).isZero();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private RequestHedger warmedUp(double budgetPercent) throws Exception {
+        return warmedUp(new RequestHedger(true, 95, budgetPercent, 10));
+    }
+
+    private RequestHedger warmedUp(RequestHedger hedger) throws Exception {
+        for (int i = 0; i < RequestHedger.MIN_SAMPLES; i++) {
+            hedger.call(() -> "fast", discarded -> {});
+        }
+        assertThat(hedger.currentThreshold()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(10));
+        return hedger;
+    }
+}
@@ -0,0 +1,256 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SharedFetchTest {
+    private static final String CONTENT = "shared content";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private SharedFetch sharedFetch;
+
+    @Before
+    public void setUp() throws Exception {
+        sharedFetch = new SharedFetch(new File(tmpFolder.getRoot(), "fetches"), 10, TimeUnit.MINUTES.toMillis(10));
+    }
+
+    @Test
+    public void shouldLetOneDownloadLeadAndTheOthersCopyItsResult() throws Exception {
+        SharedFetch.Entry leader = sharedFetch.entry("bucket", "big.bin", 14, "etag", null);
+        SharedFetch.Entry follower = sharedFetch.entry("bucket", "big.bin", 14, "etag", null);
+
+        assertThat(leader.lead()).isTrue();
+        assertThat(follower.lead()).isFalse();
+        assertThat(follower.isStaged()).isFalse();
+
+        Files.write(leader.getPartFile().toPath(), CONTENT.getBytes(StandardCharsets.UTF_8));
+        leader.publish();
+
+        assertThat(follower.isStaged()).isTrue();
+        assertThat(follower.lead()).isFalse();
+        File copy = new File(tmpFolder.getRoot(), "out/big.bin");
+        assertThat(follower.copyTo(copy, null)).isEqualTo(14);
+        assertThat(copy).hasContent(CONTENT);
+    }
+
+    @Test
+    public void shouldLetWaitingDownloadTakeOverWhenLeaderGivesUp() throws Exception {
+        SharedFetch.Entry leader = sharedFetch.entry("bucket", "big.bin", 14, null, "0badc0de");
+        SharedFetch.Entry follower = sharedFetch.entry("bucket", "big.bin", 14, null, "0badc0de");
+        assertThat(leader.lead()).isTrue();
+        Files.write(leader.getPartFile().toPath(), "half".getBytes(StandardCharsets.UTF_8));
+
+        leader.release();
+
+        assertThat(leader.getPartFile()).doesNotExist();
+        assertThat(follower.lead()).isTrue();
+        follower.release();
+    }
+
+    @Test
+    public void shouldOnlyShareLargeObjectsOfKnownVersion() {
+        assertThat(sharedFetch.entry("bucket", "small.bin", 9, "etag", null)).isNull();
+        assertThat(sharedFetch.entry("bucket", "big.bin", 14, null, null)).isNull();
+        assertThat(SharedFetch.DISABLED.entry("bucket", "big.bin", Long.MAX_VALUE - 1, "etag", null)).isNull();
+    }
+
+    @Test
+    public void shouldCreateSharedDirectoryForItsOwnerOnly() throws Exception {
+        assertThat(sharedFetch.entry("bucket", "big.bin", 14, "etag", null)).isNotNull();
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(tmpFolder.getRoot(), "fetches").toPath()))).isEqualTo("rwx------");
+    }
+
+    @Test
+    public void shouldNotShareThroughDirectoryOtherUsersCanWrite() throws Exception {
+        File dir = tmpFolder.newFolder("open");
+        Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+
+        assertThat(new SharedFetch(dir, 10, TimeUnit.MINUTES.toMillis(10)).entry("bucket", "big.bin", 14, "etag", null)).isNull();
+    }
+
+    @Test
+    public void shouldNotShareObjectsOfDifferentVersions() throws Exception {
+        SharedFetch.Entry current = sharedFetch.entry("bucket", "big.bin", 14, "etag", null);
+        SharedFetch.Entry republished = sharedFetch.entry("bucket", "big.bin", 14, "other", null);
+
+        assertThat(current.lead()).isTrue();
+        assertThat(republished.lead()).isTrue();
+        current.release();
+        republished.release();
+    }
+
+    @Test
+    public void shouldDeleteExpiredStagedObjects() throws Exception {
+        SharedFetch.Entry leader = sharedFetch.entry("bucket", "big.bin", 14, "etag", null);
+        assertThat(leader.lead()).isTrue();
+        Files.write(leader.getPartFile().toPath(), CONTENT.getBytes(StandardCharsets.UTF_8));
+        leader.publish();
+        File[] staged = leader.getPartFile().getParentFile().listFiles();
+        for (File file : staged) {
+            assertThat(file.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(11))).isTrue();
+        }
+
+        assertThat(leader.isStaged()).isFalse();
+        sharedFetch.sweep();
+
+        assertThat(leader.getPartFile().getParentFile().listFiles()).isEmpty();
+    }
+
+    @Test
+    public void shouldDownloadObjectOnceForConcurrentPlans() throws Exception {
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)));
+            return object;
+        });
+        ObjectDownloader downloader = new ObjectDownloader(s3, new RequestHedger(false, 95, 5, 50));
+        DownloadPlan leaderPlan = new DownloadPlan("bucket", 1024, 1024, sharedFetch);
+        DownloadPlan followerPlan = new DownloadPlan("bucket", 1024, 1024, sharedFetch);
+        File leaderFile = new File(tmpFolder.getRoot(), "agent1/big.bin");
+        File followerFile = new File(tmpFolder.getRoot(), "agent2/big.bin");
+        leaderPlan.add("big.bin", leaderFile, 14, "etag");
+        followerPlan.add("big.bin", followerFile, 14, "etag");
+        List<TransferEngine.Transfer> leaderTransfers = leaderPlan.transfers(downloader);
+        List<TransferEngine.Transfer> followerTransfers = followerPlan.transfers(downloader);
+        assertThat(followerTransfers.get(0).getDescription()).startsWith("shared download");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> waiting = executor.submit(() -> followerTransfers.get(0).execute(new TransferProgress()));
+            Thread.sleep(3 * SharedFetch.POLL_MILLIS);
+            assertThat(waiting.isDone()).isFalse();
+
+            leaderTransfers.get(0).execute(new TransferProgress());
+
+            assertThat(waiting.get(5, TimeUnit.SECONDS)).isEqualTo(14);
+        } finally {
+            executor.shutdownNow();
+            leaderPlan.close();
+            followerPlan.close();
+        }
+        verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+        assertThat(leaderFile).hasContent(CONTENT);
+        assertThat(followerFile).hasContent(CONTENT);
+    }
+
+    @Test
+    public void shouldNotHoldTheOnlyHostConnectionWhileWaitingForAnotherAgent() throws Exception {
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(CONTENT.getBytes(StandardCharsets.UTF_8)));
+            return object;
+        });
+        ObjectDownloader downloader = new ObjectDownloader(s3, new RequestHedger(false, 95, 5, 50));
+        File hostDir = tmpFolder.newFolder("host");
+        HostBudget leaderHost = new HostBudget(hostDir, 1, 0);
+        HostBudget followerHost = new HostBudget(hostDir, 1, 0);
+        TransferScheduler leaderScheduler = new TransferScheduler(32, Long.MAX_VALUE, leaderHost);
+        TransferScheduler followerScheduler = new TransferScheduler(32, Long.MAX_VALUE, followerHost);
+        DownloadPlan leaderPlan = new DownloadPlan("bucket", 1024, 1024, sharedFetch);
+        DownloadPlan followerPlan = new DownloadPlan("bucket", 1024, 1024, sharedFetch);
+        File leaderFile = new File(tmpFolder.getRoot(), "agent1/big.bin");
+        File followerFile = new File(tmpFolder.getRoot(), "agent2/big.bin");
+        leaderPlan.add("big.bin", leaderFile, 14, "etag");
+        followerPlan.add("big.bin", followerFile, 14, "etag");
+        List<TransferEngine.Transfer> leaderTransfers = leaderPlan.transfers(downloader);
+        List<TransferEngine.Transfer> followerTransfers = followerPlan.transfers(downloader);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> waiting = executor.submit(() -> fetch(followerScheduler, followerTransfers));
+            Thread.sleep(3 * SharedFetch.POLL_MILLIS);
+            assertThat(waiting.isDone()).isFalse();
+
+            Future<?> leading = executor.submit(() -> fetch(leaderScheduler, leaderTransfers));
+
+            leading.get(5, TimeUnit.SECONDS);
+            waiting.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+            leaderScheduler.shutdown();
+            followerScheduler.shutdown();
+            leaderHost.close();
+            followerHost.close();
+            leaderPlan.close();
+            followerPlan.close();
+        }
+        verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+        assertThat(leaderFile).hasContent(CONTENT);
+        assertThat(followerFile).hasContent(CONTENT);
+    }
+
+    private Void fetch(TransferScheduler scheduler, List<TransferEngine.Transfer> transfers) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.stall.timeout.seconds", "0");
+        TransferEngine engine = new TransferEngine(new AdaptiveConcurrencyController(4, 1, 4),
+                new ConcurrencyHistory(tmpFolder.newFolder()), "download.test", scheduler, new TransferSettings(properties));
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            batch.submitAll(transfers);
+            batch.await();
+        }
+        return null;
+    }
+
+    @Test
+    public void shouldDownloadAgainWhenTheStagedObjectDoesNotMatchItsChecksum() throws Exception {
+        Checksum checksum = Crc32c.create();
+        byte[] content = CONTENT.getBytes(StandardCharsets.UTF_8);
+        checksum.update(content, 0, content.length);
+        String crc32c = Crc32c.toHex(checksum.getValue());
+        SharedFetch.Entry damaged = sharedFetch.entry("bucket", "big.bin", 14, null, crc32c);
+        assertThat(damaged.lead()).isTrue();
+        Files.write(damaged.getPartFile().toPath(), "damaged conten".getBytes(StandardCharsets.UTF_8));
+        damaged.publish();
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            S3Object object = new S3Object();
+            object.setObjectContent(new ByteArrayInputStream(content));
+            return object;
+        });
+        DownloadPlan plan = new DownloadPlan("bucket", 1024, 1024, sharedFetch);
+        File file = new File(tmpFolder.getRoot(), "agent/big.bin");
+        plan.add("big.bin", file, 14, null, crc32c);
+
+        try {
+            List<TransferEngine.Transfer> transfers = plan.transfers(new ObjectDownloader(s3, new RequestHedger(false, 95, 5, 50)));
+            assertThat(transfers.get(0).getDescription()).startsWith("shared download");
+            assertThat(transfers.get(0).execute(new TransferProgress())).isEqualTo(14);
+        } finally {
+            plan.close();
+        }
+        verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+        assertThat(file).hasContent(CONTENT);
+        assertThat(sharedFetch.entry("bucket", "big.bin", 14, null, crc32c).copyTo(new File(tmpFolder.getRoot(), "restaged.bin"), null)).isEqualTo(14);
+        assertThat(new File(tmpFolder.getRoot(), "restaged.bin")).hasContent(CONTENT);
+    }
+}
@@ -0,0 +1,44 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBucketTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final TokenBucket bucket = new TokenBucket(1000, 500, clock::get);
+
+    @Test
+    public void shouldLetBurstThroughWithoutWaiting() {
+        assertThat(bucket.reserve(500)).isZero();
+    }
+
+    @Test
+    public void shouldMakeCallersWaitForTheirDebt() {
+        assertThat(bucket.reserve(500)).isZero();
+        assertThat(bucket.reserve(250)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(250));
+        assertThat(bucket.reserve(250)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void shouldRefillAtRateUpToBurst() {
+        bucket.reserve(500);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(bucket.reserve(200)).isZero();
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertThat(bucket.reserve(500)).isZero();
+        assertThat(bucket.reserve(100)).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void shouldApplyNewRate() {
+        bucket.reserve(500);
+        bucket.setRate(100, 50);
+
+        assertThat(bucket.reserve(100)).isEqualTo(TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,356 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import diogomrol.gocd.s3.artifact.plugin.metrics.RequestMetrics;
+import diogomrol.gocd.s3.artifact.plugin.model.ArtifactStoreConfig;
+import diogomrol.gocd.s3.artifact.plugin.tracing.TraceSpan;
+import diogomrol.gocd.s3.artifact.plugin.tracing.Tracer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransferEngineTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    private final TransferScheduler scheduler = new TransferScheduler(32, Long.MAX_VALUE);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void shouldRunAllTransfersWithinTheConcurrencyLimit() throws Exception {
+        TransferEngine engine = engine(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Set<String> done = ConcurrentHashMap.newKeySet();
+
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            for (int i = 0; i < 20; i++) {
+                String name = "file" + i;
+                batch.submit(transfer(name, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    done.add(name);
+                }));
+            }
+            batch.await();
+        }
+
+        assertThat(done).hasSize(20);
+        assertThat(maxRunning.get()).isLessThanOrEqualTo(16).isGreaterThan(1);
+    }
+
+    @Test
+    public void shouldRetryThrottledTransfersAndBackOff() throws Exception {
+        TransferEngine engine = engine(8);
+        AtomicInteger attempts = new AtomicInteger();
+        RequestMetrics metrics = new RequestMetrics("test");
+
+        try (TransferEngine.Batch batch = engine.newBatch(metrics)) {
+            batch.submit(transfer("throttled", () -> {
+                if (attempts.incrementAndGet() == 1) {
+                    throw slowDown();
+                }
+            }));
+            batch.await();
+        }
+
+        assertThat(attempts.get()).isEqualTo(2);
+        assertThat(engine.getController().getLimit()).isEqualTo(4);
+        assertThat(metrics.getTransfers()).isEqualTo(1);
+        assertThat(metrics.getThrottles()).isEqualTo(1);
+        assertThat(metrics.getRetries()).isEqualTo(1);
+        assertThat(metrics.getTransfer().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFreeTheSlotOfThrottledTransfersDuringTheirBackoff() throws Exception {
+        TransferEngine engine = engine(new AdaptiveConcurrencyController(1, 1, 1), "stall.timeout.seconds", "0");
+        List<String> events = new CopyOnWriteArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            batch.submitAll(Arrays.asList(
+                    transfer("throttled", () -> {
+                        events.add("throttled" + attempts.incrementAndGet());
+                        if (attempts.get() == 1) {
+                            throw slowDown();
+                        }
+                    }),
+                    transfer("other", () -> events.add("other"))));
+            batch.await();
+        }
+
+        assertThat(events).containsExactly("throttled1", "other", "throttled2");
+        assertThat(scheduler.getInFlightRequests()).isZero();
+    }
+
+    @Test
+    public void shouldTraceEachAttemptOfTransfers() throws Exception {
+        File traces = tmpFolder.newFolder("traces");
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.tracing.enabled", "true");
+        properties.setProperty("cd.go.artifact.s3.tracing.dir", traces.getAbsolutePath());
+        Tracer tracer = Tracer.fromSettings(new TransferSettings(properties));
+        TraceSpan trace = tracer.startTrace("publish", Collections.emptyMap());
+        TransferEngine engine = engine(8);
+        AtomicInteger attempts = new AtomicInteger();
+
+        try (TransferEngine.Batch batch = engine.newBatch(new RequestMetrics("test"), trace)) {
+            batch.submit(transfer("throttled", () -> {
+                if (attempts.incrementAndGet() == 1) {
+                    throw slowDown();
+                }
+            }));
+            batch.await();
+        }
+        trace.end();
+        assertThat(tracer.awaitExports(5, TimeUnit.SECONDS)).isTrue();
+
+        String exported = new String(Files.readAllBytes(traces.listFiles()[0].toPath()), StandardCharsets.UTF_8);
+        assertThat(exported.split("\"name\":\"throttled\"", -1)).hasSize(3);
+        assertThat(exported).contains("{\"key\":\"retry.reason\",\"value\":{\"stringValue\":\"throttle\"}}")
+                .contains("{\"key\":\"transfer.attempt\",\"value\":{\"intValue\":\"2\"}}");
+    }
+
+    @Test
+    public void shouldFailBatchOnFirstNonThrottlingError() throws Exception {
+        TransferEngine engine = engine(2);
+        thrown.expect(IOException.class);
+        thrown.expectMessage("disk full");
+
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            batch.submit(transfer("broken", () -> {
+                throw new IOException("disk full");
+            }));
+            batch.await();
+        }
+    }
+
+    @Test
+    public void shouldReissueStalledTransfers() throws Exception {
+        TransferEngine engine = engine(new AdaptiveConcurrencyController(2, 1, 16), "stall.timeout.seconds", "0.1", "stall.retries", "2");
+        AtomicInteger attempts = new AtomicInteger();
+
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            batch.submit(transfer("stuck", () -> {
+                if (attempts.incrementAndGet() == 1) {
+                    Thread.sleep(30_000);
+                }
+            }));
+            batch.await();
+        }
+
+        assertThat(attempts.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldFailWhenTransferKeepsStalling() throws Exception {
+        TransferEngine engine = engine(new AdaptiveConcurrencyController(2, 1, 16), "stall.timeout.seconds", "0.05", "stall.retries", "1");
+        AtomicInteger attempts = new AtomicInteger();
+        thrown.expect(InterruptedException.class);
+
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            batch.submit(transfer("stuck", () -> {
+                attempts.incrementAndGet();
+                Thread.sleep(30_000);
+            }));
+            try {
+                batch.await();
+            } finally {
+                assertThat(attempts.get()).isEqualTo(2);
+            }
+        }
+    }
+
+    @Test
+    public void shouldStartLargestTransfersFirst() throws Exception {
+        TransferEngine engine = engine(new AdaptiveConcurrencyController(1, 1, 1), "small.file.kb", "1", "small.lane.percent", "0");
+        List<String> started = new CopyOnWriteArrayList<>();
+
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            batch.submitAll(Arrays.asList(
+                    transfer("10k", 10_000, () -> started.add("10k")),
+                    transfer("50k", 50_000, () -> started.add("50k")),
+                    transfer("20k", 20_000, () -> started.add("20k")),
+                    transfer("small", 100, () -> started.add("small"))));
+            batch.await();
+        }
+
+        assertThat(started).containsExactly("small", "50k", "20k", "10k");
+    }
+
+    @Test
+    public void shouldDrainSmallTransfersWhileLargeOnesRun() throws Exception {
+        TransferEngine engine = engine(new AdaptiveConcurrencyController(2, 2, 2), "small.file.kb", "1");
+        CountDownLatch smallDone = new CountDownLatch(3);
+        List<String> finished = new CopyOnWriteArrayList<>();
+
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            List<TransferEngine.Transfer> transfers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                String name = "large" + i;
+                transfers.add(transfer(name, 1_000_000, () -> {
+                    smallDone.await(5, TimeUnit.SECONDS);
+                    finished.add(name);
+                }));
+            }
+            for (int i = 0; i < 3; i++) {
+                String name = "small" + i;
+                transfers.add(transfer(name, 10, () -> {
+                    finished.add(name);
+                    smallDone.countDown();
+                }));
+            }
+            batch.submitAll(transfers);
+            batch.await();
+        }
+
+        assertThat(finished.subList(0, 3)).containsExactly("small0", "small1", "small2");
+    }
+
+    @Test
+    public void shouldRecognizeThrottlingResponses() {
+        assertThat(TransferEngine.isThrottle(slowDown())).isTrue();
+        assertThat(TransferEngine.isThrottle(new IOException("reset"))).isFalse();
+        AmazonS3Exception denied = new AmazonS3Exception("Access Denied");
+        denied.setStatusCode(403);
+        assertThat(TransferEngine.isThrottle(denied)).isFalse();
+    }
+
+    @Test
+    public void shouldStartFromLearnedConcurrency() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.state.dir", tmpFolder.newFolder("state").getAbsolutePath());
+        TransferSettings settings = new TransferSettings(properties);
+        new ConcurrencyHistory(settings.getStateDir()).record("upload.bucket.region", 17);
+
+        TransferEngine engine = TransferEngine.forStore(new ArtifactStoreConfig("bucket", "region", "a", "b"), TransferEngine.Direction.UPLOAD, settings);
+
+        assertThat(engine.getController().getLimit()).isEqualTo(17);
+    }
+
+    @Test
+    public void shouldShareRateLimitBetweenTransfersOfStore() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.state.dir", tmpFolder.newFolder("state").getAbsolutePath());
+        TransferSettings settings = new TransferSettings(properties);
+        ArtifactStoreConfig storeConfig = new ArtifactStoreConfig("limited-bucket", "region", "a", "b");
+        storeConfig.setRateLimits("2", "", "0.5");
+
+        TransferEngine upload = TransferEngine.forStore(storeConfig, TransferEngine.Direction.UPLOAD, settings);
+        TransferEngine otherUpload = TransferEngine.forStore(storeConfig, TransferEngine.Direction.UPLOAD, settings);
+        TransferEngine download = TransferEngine.forStore(storeConfig, TransferEngine.Direction.DOWNLOAD, settings);
+
+        assertThat(upload.getRateLimit()).isSameAs(otherUpload.getRateLimit());
+        assertThat(upload.getRateLimit().getBytesPerSecond()).isEqualTo(2 * 1024 * 1024);
+        assertThat(upload.getRateLimit().getBurstBytes()).isEqualTo(512 * 1024);
+        assertThat(download.getRateLimit()).isNull();
+    }
+
+    @Test
+    public void shouldNotLimitStoreWhoseLimitIsNotFinite() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.state.dir", tmpFolder.newFolder("state").getAbsolutePath());
+        TransferSettings settings = new TransferSettings(properties);
+        ArtifactStoreConfig storeConfig = new ArtifactStoreConfig("unlimited-bucket", "region", "a", "b");
+        storeConfig.setRateLimits("NaN", "Infinity", "NaN");
+
+        assertThat(TransferEngine.forStore(storeConfig, TransferEngine.Direction.UPLOAD, settings).getRateLimit()).isNull();
+        assertThat(TransferEngine.forStore(storeConfig, TransferEngine.Direction.DOWNLOAD, settings).getRateLimit()).isNull();
+    }
+
+    @Test
+    public void shouldThrottleTransfersToRateLimit() throws Exception {
+        TokenBucket rateLimit = new TokenBucket(40 * 1024, 1024);
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.stall.timeout.seconds", "0");
+        TransferEngine engine = new TransferEngine(new AdaptiveConcurrencyController(4, 1, 16), new ConcurrencyHistory(tmpFolder.newFolder()),
+                "upload.test", scheduler, new TransferSettings(properties), rateLimit);
+
+        long start = System.nanoTime();
+        try (TransferEngine.Batch batch = engine.newBatch()) {
+            for (int i = 0; i < 20; i++) {
+                batch.submit(transfer("file" + i, () -> {
+                }));
+            }
+            batch.await();
+        }
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(400);
+    }
+
+    private TransferEngine engine(int initialLimit) throws IOException {
+        return engine(new AdaptiveConcurrencyController(initialLimit, 1, 16), "stall.timeout.seconds", "0");
+    }
+
+    private TransferEngine engine(AdaptiveConcurrencyController controller, String... settings) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.throttle.retries", "3");
+        for (int i = 0; i < settings.length; i += 2) {
+            properties.setProperty("cd.go.artifact.s3." + settings[i], settings[i + 1]);
+        }
+        return new TransferEngine(controller, new ConcurrencyHistory(tmpFolder.newFolder()), "upload.test", scheduler, new TransferSettings(properties));
+    }
+
+    private static AmazonS3Exception slowDown() {
+        AmazonS3Exception exception = new AmazonS3Exception("Please reduce your request rate.");
+        exception.setStatusCode(503);
+        exception.setErrorCode("SlowDown");
+        return exception;
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static TransferEngine.Transfer transfer(String name, Body body) {
+        return transfer(name, 0, body);
+    }
+
+    private static TransferEngine.Transfer transfer(String name, long size, Body body) {
+        return new TransferEngine.Transfer() {
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public String getDescription() {
+                return name;
+            }
+
+            @Override
+            public long execute(TransferProgress progress) throws Exception {
+                body.run();
+                progress.advance(1024);
+                return 1024;
+            }
+        };
+    }
+}
@@ -0,0 +1,152 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class TransferSchedulerTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+    private TransferScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void shouldServeConcurrentBatchesRoundRobin() throws Exception {
+        scheduler = new TransferScheduler(1, Long.MAX_VALUE);
+        List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+
+        try (TransferEngine.Batch first = engine().newBatch(); TransferEngine.Batch second = engine().newBatch()) {
+            first.submit(transfer("blocker", 0, () -> release.await()));
+            List<TransferEngine.Transfer> many = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String name = "first" + i;
+                many.add(transfer(name, 0, () -> order.add(name)));
+            }
+            first.submitAll(many);
+            List<TransferEngine.Transfer> few = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                String name = "second" + i;
+                few.add(transfer(name, 0, () -> order.add(name)));
+            }
+            second.submitAll(few);
+            release.countDown();
+            first.await();
+            second.await();
+        }
+
+        assertThat(order).hasSize(6);
+        assertThat(order.subList(0, 4)).contains("second0", "second1");
+    }
+
+    @Test
+    public void shouldNotExceedInFlightByteBudget() throws Exception {
+        scheduler = new TransferScheduler(8, 100);
+        AtomicLong maxInFlight = new AtomicLong();
+        AtomicLong inFlightWithLarge = new AtomicLong();
+
+        try (TransferEngine.Batch batch = engine().newBatch()) {
+            List<TransferEngine.Transfer> transfers = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                transfers.add(transfer("file" + i, 40, () -> {
+                    maxInFlight.accumulateAndGet(scheduler.getInFlightBytes(), Math::max);
+                    Thread.sleep(5);
+                }));
+            }
+            transfers.add(transfer("large", 500, () -> {
+                inFlightWithLarge.set(scheduler.getInFlightBytes());
+                Thread.sleep(5);
+            }));
+            batch.submitAll(transfers);
+            batch.await();
+        }
+
+        assertThat(maxInFlight.get()).isEqualTo(80);
+        assertThat(inFlightWithLarge.get()).isEqualTo(500);
+        assertThat(scheduler.getInFlightBytes()).isZero();
+        assertThat(scheduler.getInFlightRequests()).isZero();
+    }
+
+    @Test
+    public void shouldCancelRunningBatchesOnShutdown() throws Exception {
+        scheduler = new TransferScheduler(4, Long.MAX_VALUE);
+        CountDownLatch started = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (TransferEngine.Batch batch = engine().newBatch()) {
+            batch.submit(transfer("hanging", 0, () -> {
+                started.countDown();
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            }));
+            Future<?> awaiting = executor.submit(() -> {
+                batch.await();
+                return null;
+            });
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+            scheduler.shutdown();
+
+            try {
+                awaiting.get(5, TimeUnit.SECONDS);
+                fail("Expected the batch to be cancelled");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause()).isInstanceOf(CancellationException.class)
+                        .hasMessage("S3 artifact plugin is being unloaded");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private TransferEngine engine() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("cd.go.artifact.s3.stall.timeout.seconds", "0");
+        properties.setProperty("cd.go.artifact.s3.small.file.kb", "0");
+        return new TransferEngine(new AdaptiveConcurrencyController(16, 16, 16), new ConcurrencyHistory(tmpFolder.newFolder()),
+                "upload.test", scheduler, new TransferSettings(properties));
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static TransferEngine.Transfer transfer(String name, long size, Body body) {
+        return new TransferEngine.Transfer() {
+            @Override
+            public String getDescription() {
+                return name;
+            }
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public long execute(TransferProgress progress) throws Exception {
+                body.run();
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,106 @@
+package diogomrol.gocd.s3.artifact.plugin.transfer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransferWatchdogTest {
+    private final AtomicLong clock = new AtomicLong();
+    private final TransferScheduler scheduler = new TransferScheduler(1, Long.MAX_VALUE);
+    private final TransferWatchdog watchdog = new TransferWatchdog(10_000, scheduler);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        Thread.interrupted();
+    }
+
+    @Test
+    public void shouldAbortTransferWithoutProgressForStallTimeout() {
+        TransferProgress progress = progress();
+        AtomicInteger aborts = new AtomicInteger();
+        progress.onAbort(aborts::incrementAndGet);
+        progress.setRequestId("4442587FB7D0A2F9");
+        watchdog.watch(progress, "download of `build.json`");
+
+        advanceSeconds(9);
+        assertThat(watchdog.check()).isZero();
+
+        advanceSeconds(1);
+        assertThat(watchdog.check()).isEqualTo(1);
+        assertThat(progress.isStalled()).isTrue();
+        assertThat(aborts.get()).isEqualTo(1);
+        assertThat(Thread.currentThread().isInterrupted()).isTrue();
+
+        advanceSeconds(10);
+        assertThat(watchdog.check()).isZero();
+        watchdog.unwatch(progress);
+    }
+
+    @Test
+    public void shouldNotAbortTransferWhichKeepsMovingBytes() {
+        TransferProgress progress = progress();
+        watchdog.watch(progress, "upload of `build.json`");
+
+        for (int i = 0; i < 5; i++) {
+            advanceSeconds(8);
+            progress.advance(1);
+            assertThat(watchdog.check()).isZero();
+        }
+
+        assertThat(progress.isStalled()).isFalse();
+        assertThat(progress.getBytes()).isEqualTo(5);
+        watchdog.unwatch(progress);
+    }
+
+    @Test
+    public void shouldNotAbortTransferAfterItWasUnwatched() {
+        TransferProgress progress = progress();
+        watchdog.watch(progress, "upload of `build.json`");
+        watchdog.unwatch(progress);
+
+        advanceSeconds(60);
+
+        assertThat(watchdog.check()).isZero();
+        assertThat(progress.isStalled()).isFalse();
+    }
+
+    @Test
+    public void shouldRunAbortActionRegisteredAfterStall() {
+        TransferProgress progress = progress();
+        watchdog.watch(progress, "download of `build.json`");
+        advanceSeconds(10);
+        watchdog.check();
+
+        AtomicInteger aborts = new AtomicInteger();
+        progress.onAbort(aborts::incrementAndGet);
+
+        assertThat(aborts.get()).isEqualTo(1);
+        watchdog.unwatch(progress);
+    }
+
+    @Test
+    public void shouldIgnoreTransfersWhenDisabled() {
+        TransferWatchdog disabled = new TransferWatchdog(0, scheduler);
+        TransferProgress progress = progress();
+        disabled.watch(progress, "download of `build.json`");
+
+        advanceSeconds(3600);
+
+        assertThat(disabled.isEnabled()).isFalse();
+        assertThat(disabled.check()).isZero();
+    }
+
+    private TransferProgress progress() {
+        return new TransferProgress(Thread.currentThread(), clock::get);
+    }
+
+    private void advanceSeconds(long seconds) {
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+}